@@ -13,6 +13,7 @@ import org.boon.json.JsonFactory;
 import com.coillighting.udder.infrastructure.*;
 import com.coillighting.udder.mix.Mixer;
 import com.coillighting.udder.model.Device;
+import com.coillighting.udder.model.TextureCache;
 import com.coillighting.udder.scene.DairyScene;
 import com.coillighting.udder.util.FileUtil;
 
@@ -119,8 +120,44 @@ public class Main {
             opcServerAddresses.add(new SocketAddress(opcServer2Addr, opcServer2Port));
         }
 
+        // Might be null. That's okay.
+        Integer controlPort = this.parseInteger(
+                prop.getProperty(DairyProperties.UDDER_CONTROL_PORT));
+
+        // Optional. Null disables UDP pixel ingest.
+        Integer ingestPort = this.parseInteger(
+                prop.getProperty(DairyProperties.UDDER_INGEST_PORT));
+        List<String> ingestRoutes = null;
+        String ingestRoutesProp = prop.getProperty(DairyProperties.UDDER_INGEST_ROUTES);
+        if(ingestRoutesProp != null && !ingestRoutesProp.trim().isEmpty()) {
+            ingestRoutes = new ArrayList<String>();
+            for(String route: ingestRoutesProp.split(",")) {
+                ingestRoutes.add(route.trim());
+            }
+        }
+
+        // Optional. Null disables OSC.
+        Integer oscPort = this.parseInteger(
+                prop.getProperty(DairyProperties.UDDER_OSC_PORT));
+
+        // Optional. Null or 0 disables the watchdog.
+        String stallFactor = prop.getProperty(DairyProperties.WATCHDOG_STALL_FACTOR);
+        String stallDumpDir = this.translateSeparators(prop.getProperty(
+            DairyProperties.WATCHDOG_DUMP_DIR, "stalls"));
+
+        // Optional. Must be set before the scene loads its images.
+        Integer textureCacheMegabytes = this.parseInteger(
+                prop.getProperty(DairyProperties.UDDER_TEXTURE_CACHE_MB));
+        if(textureCacheMegabytes != null) {
+            TextureCache.getDefault().setCapacityBytes(
+                textureCacheMegabytes.longValue() * 1024L * 1024L);
+        }
+
         PatchSheet patchSheet = PatchSheet.parsePatchSheet(patchSheetPath);
+        long sceneStartNanos = System.nanoTime();
         Mixer mixer = DairyScene.create(patchSheet.getModelSpaceDevices());
+        log("Created the scene in " + (System.nanoTime() - sceneStartNanos) / 1000000
+            + " ms.");
 
         ServicePipeline pipeline = new ServicePipeline(
                 mixer,
@@ -129,6 +166,28 @@ public class Main {
                 new SocketAddress(udderAddr, udderPort),
                 opcServerAddresses);
 
+        // Let browsers draw the preview stream's pixels in the right places.
+        pipeline.getPreviewTransmitter().setDevices(patchSheet.getModelSpaceDevices());
+
+        // Allow the patch sheet to be edited during focus. See PatchReloader.
+        pipeline.enablePatchReload(patchSheetPath);
+
+        if(controlPort != null) {
+            pipeline.enableControlChannel(controlPort);
+        }
+
+        if(ingestPort != null) {
+            pipeline.enablePixelIngest(ingestPort, ingestRoutes);
+        }
+
+        if(oscPort != null) {
+            pipeline.enableOsc(oscPort);
+        }
+
+        if(stallFactor != null && Double.parseDouble(stallFactor) != 0.0) {
+            pipeline.enableStallWatchdog(Double.parseDouble(stallFactor), stallDumpDir);
+        }
+
         // Config parsing and validation is now complete.
 
         if(layoutPath != null) {
@@ -249,4 +308,75 @@ class DairyProperties {
      */
     public static final String OPC_SERVER2_PORT = "opcServer2.port";
 
+    /** Optionally accept a persistent stream of newline-delimited commands
+     * on this TCP port, on the same interface as udder.address. Intended for
+     * control surfaces that send many small updates per second, like
+     * streaming fader moves. Each line is a route, a space, and the same JSON
+     * you would POST as the 'state' param, e.g.
+     *
+     *     /mixer0/layer0 {"level":0.55}
+     *
+     * Optional. Omit it to disable the control channel. Example: "8081".
+     */
+    public static final String UDDER_CONTROL_PORT = "udder.controlPort";
+
+    /** Optionally receive raw frames of packed 8-bit RGB pixels over UDP on
+     * this port, on the same interface as udder.address, and display them in
+     * the ArrayEffect layers listed in udder.ingestRoutes. Each datagram
+     * carries a 16 byte header with a channel number, frame sequence number
+     * and fragment numbering; see PixelIngestServer for the format.
+     *
+     * Optional. Omit it to disable UDP ingest. (Raw frames may always be
+     * POSTed over HTTP.) Example: "8082".
+     */
+    public static final String UDDER_INGEST_PORT = "udder.ingestPort";
+
+    /** A comma-separated list of ArrayEffect routes that receive raw pixel
+     * frames, numbered as UDP channels from 0 in this order. Optional.
+     * Default: every ArrayEffect, sorted by route. Example:
+     * "/mixer0/layer20/effect".
+     */
+    public static final String UDDER_INGEST_ROUTES = "udder.ingestRoutes";
+
+    /** Optionally accept Open Sound Control messages over UDP on this port,
+     * on the same interface as udder.address, for lighting consoles and
+     * TouchOSC-style control surfaces. OSC addresses are routes, e.g.
+     *
+     *     /mixer0/layer3/level 0.5
+     *
+     * See OscServer for the mapping. Optional. Omit it to disable OSC.
+     * Example: "9000".
+     */
+    public static final String UDDER_OSC_PORT = "udder.oscPort";
+
+    /** Keep up to this many megabytes of decoded images in memory. Effects
+     * showing the same image file share one copy, and images no effect is
+     * showing stay cached, so that switching back to them is instant, until
+     * this limit is reached. Images in use are never evicted. Each pixel of
+     * a decoded image takes 12 bytes, plus a third as much again for its mip
+     * pyramid, or about 15 MB at 1280x720.
+     * Raster files (.uraw; see RasterFile) are mapped from disk instead, so
+     * they don't count.
+     *
+     * Optional. Default: "256".
+     */
+    public static final String UDDER_TEXTURE_CACHE_MB = "udder.textureCacheMegabytes";
+
+    /** Write a stall report whenever a frame or an OPC send takes longer
+     * than this many times udder.frameDelayMillis, or whenever no frame at
+     * all appears for that long. Each report holds the timings of the last
+     * few thousand frames and sends, every thread's stack, and GC stats.
+     * Reports are rate limited to one per 30 seconds.
+     *
+     * Optional. Omit it or set it to 0 to disable the watchdog. Must
+     * otherwise be greater than 1. Example: "5" (50 ms at 100 fps).
+     */
+    public static final String WATCHDOG_STALL_FACTOR = "udder.watchdog.stallFactor";
+
+    /** Write stall reports to this directory, creating it if necessary.
+     * Optional. Default: "stalls". Forward slashes are converted to the
+     * system-specific File.separator.
+     */
+    public static final String WATCHDOG_DUMP_DIR = "udder.watchdog.dumpDir";
+
 }
@@ -0,0 +1,209 @@
+package com.coillighting.udder.benchmark;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.coillighting.udder.effect.BloomEffectState;
+import com.coillighting.udder.effect.TextureEffectState;
+import com.coillighting.udder.effect.woven.WovenEffectState;
+import com.coillighting.udder.infrastructure.CommandParser;
+import com.coillighting.udder.mix.LayerState;
+import com.coillighting.udder.model.Pixel;
+import com.coillighting.udder.model.RgbaArray;
+import com.coillighting.udder.util.FileUtil;
+
+import static com.coillighting.udder.util.LogUtil.log;
+
+/** Compare the cost of turning a command's JSON into its state object with
+ *  Boon's reflective JsonFactory versus the compiled StateCodecs, through the
+ *  same CommandParser.createCommand call that HTTP and the control channel
+ *  use. For each typical payload we report the time per command and, where
+ *  the JVM can count them (HotSpot), the bytes allocated per command.
+ *
+ *  Each parser runs the same payload the same number of times, alternating
+ *  rounds so that neither one benefits from running second.
+ *
+ *  Usage (from the udder directory, after building):
+ *
+ *      java -cp target/udder-0.4.2-SNAPSHOT.jar:lib/simple-5.1.5.jar:lib/boon-0.23.jar \
+ *          com.coillighting.udder.benchmark.CodecBenchmark --iterations 20000
+ */
+public class CodecBenchmark {
+
+    public static final String CSV_HEADER =
+        "payload,json_bytes,boon_us,codec_us,speedup,boon_bytes,codec_bytes";
+
+    protected int iterations = 20000;
+    protected int rounds = 5;
+    protected int pixelCount = 2280;
+    protected String outputPath = null;
+
+    /** Route to state class. Each payload below is posted to its route. */
+    protected Map<String, Class> commandMap = new LinkedHashMap<String, Class>();
+    protected Map<String, String> payloads = new LinkedHashMap<String, String>();
+
+    protected void createPayloads() {
+        commandMap.put("/mixer0/layer0", LayerState.class);
+        payloads.put("/mixer0/layer0", "{\"level\":0.55}");
+
+        commandMap.put("/mixer0/layer1/effect", Pixel.class);
+        payloads.put("/mixer0/layer1/effect", "{\"r\": 1.00, \"g\": 0.60, \"b\": 0.50}");
+
+        commandMap.put("/mixer0/layer2/effect", BloomEffectState.class);
+        payloads.put("/mixer0/layer2/effect", "{\"palette\": ["
+            + "{\"r\": 0.20, \"g\": 0.0, \"b\": 1.0}, {\"r\": 0.05, \"g\": 0.10, \"b\": 1.00},"
+            + "{\"r\": 1.0, \"g\": 0.75, \"b\": 0.00}], \"enableBilateralSym\": true,"
+            + " \"enableNestedBilateralSym\": true, \"enableX\": true, \"enableY\": false}");
+
+        commandMap.put("/mixer0/layer3/effect", WovenEffectState.class);
+        payloads.put("/mixer0/layer3/effect", "{\"warpThreadColor\": {\"r\": 0.35, \"g\": 0.00, \"b\": 1.00},"
+            + " \"weftThreadColor\": {\"r\": 1.00, \"g\": 0.66, \"b\": 0.00}}");
+
+        commandMap.put("/mixer0/layer4/effect", TextureEffectState.class);
+        payloads.put("/mixer0/layer4/effect", "{\"filename\": \"images/dairy_collection_A_720p/coppertone_trigrams.png\","
+            + " \"automatic\": false, \"maxTempoMillis\": 0,"
+            + " \"controlQuad\": [[0.0, 0.0], [0.0, 1.0], [1.0, 0.0], [1.0, 1.0]]}");
+
+        // A whole frame of unsigned ARGB pixels, like test/json/pastel_rainbow.
+        StringBuilder sb = new StringBuilder(12 * pixelCount + 16);
+        sb.append("{\"pixels\":[");
+        for(int i=0; i<pixelCount; i++) {
+            if(i > 0) {
+                sb.append(',');
+            }
+            sb.append(0xFF000000L | (i * 2654435761L & 0xFFFFFFL));
+        }
+        sb.append("]}");
+        commandMap.put("/mixer0/layer5/effect", RgbaArray.class);
+        payloads.put("/mixer0/layer5/effect", sb.toString());
+    }
+
+    public String run() throws Exception {
+        this.createPayloads();
+        CommandParser boon = new CommandParser(commandMap);
+        boon.setUseCodecs(false);
+        CommandParser codec = new CommandParser(commandMap);
+
+        StringBuilder csv = new StringBuilder(CSV_HEADER);
+        csv.append('\n');
+        for(Map.Entry<String, String> entry: payloads.entrySet()) {
+            String route = entry.getKey();
+            String json = entry.getValue();
+            String name = commandMap.get(route).getSimpleName();
+
+            long[] boonStats = {0, 0};
+            long[] codecStats = {0, 0};
+            this.measure(boon, route, json, iterations / 10, new long[2]); // warm up
+            this.measure(codec, route, json, iterations / 10, new long[2]);
+            for(int r=0; r<rounds; r++) {
+                this.measure(boon, route, json, iterations, boonStats);
+                this.measure(codec, route, json, iterations, codecStats);
+            }
+            long n = (long) iterations * rounds;
+            double boonMicros = boonStats[0] / 1000.0 / n;
+            double codecMicros = codecStats[0] / 1000.0 / n;
+            long boonBytes = boonStats[1] < 0 ? -1 : boonStats[1] / n;
+            long codecBytes = codecStats[1] < 0 ? -1 : codecStats[1] / n;
+
+            log(name + " (" + json.length() + " chars): Boon "
+                + ScalingBenchmark.format(boonMicros) + " us, codec "
+                + ScalingBenchmark.format(codecMicros) + " us ("
+                + ScalingBenchmark.format(boonMicros / codecMicros) + "x faster), allocating "
+                + (boonBytes < 0 ? "?" : boonBytes) + " vs. "
+                + (codecBytes < 0 ? "?" : codecBytes) + " bytes per command");
+            csv.append(name).append(',')
+                .append(json.length()).append(',')
+                .append(ScalingBenchmark.format(boonMicros)).append(',')
+                .append(ScalingBenchmark.format(codecMicros)).append(',')
+                .append(ScalingBenchmark.format(boonMicros / codecMicros)).append(',')
+                .append(boonBytes).append(',')
+                .append(codecBytes).append('\n');
+        }
+        return csv.toString();
+    }
+
+    /** Parse json n times, adding elapsed nanos to stats[0] and allocated
+     *  bytes to stats[1] (or setting it to -1 if unavailable).
+     */
+    protected void measure(CommandParser parser, String route, String json, int n, long[] stats)
+        throws Exception
+    {
+        long bytesBefore = allocatedBytes();
+        long start = System.nanoTime();
+        int sink = 0;
+        for(int i=0; i<n; i++) {
+            sink += parser.createCommand(route, json).getValue().hashCode() & 1;
+        }
+        stats[0] += System.nanoTime() - start;
+        long bytesAfter = allocatedBytes();
+        if(bytesBefore < 0 || bytesAfter < 0 || stats[1] < 0) {
+            stats[1] = -1;
+        } else {
+            stats[1] += bytesAfter - bytesBefore;
+        }
+        if(sink < 0) {
+            log("Unreachable: " + sink); // keep the JIT from discarding the results
+        }
+    }
+
+    /** Return the bytes this thread has allocated so far, or -1 if the JVM
+     *  doesn't say.
+     */
+    protected static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if(bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(
+                Thread.currentThread().getId());
+        } else {
+            return -1;
+        }
+    }
+
+    public void parseArgs(String[] args) {
+        if(args.length % 2 != 0) {
+            throw new IllegalArgumentException("Expected --option value pairs.");
+        }
+        for(int i=0; i<args.length; i+=2) {
+            String key = args[i];
+            String value = args[i + 1];
+            if(key.equals("--iterations")) {
+                iterations = Integer.parseInt(value);
+            } else if(key.equals("--rounds")) {
+                rounds = Integer.parseInt(value);
+            } else if(key.equals("--pixels")) {
+                pixelCount = Integer.parseInt(value);
+            } else if(key.equals("--out")) {
+                outputPath = value;
+            } else {
+                throw new IllegalArgumentException("Unrecognized option: " + key);
+            }
+        }
+        if(iterations < 10) {
+            throw new IllegalArgumentException("--iterations must be at least 10.");
+        } else if(rounds < 1) {
+            throw new IllegalArgumentException("--rounds must be at least 1.");
+        } else if(pixelCount < 1) {
+            throw new IllegalArgumentException("--pixels must be at least 1.");
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        CodecBenchmark benchmark = new CodecBenchmark();
+        try {
+            benchmark.parseArgs(args);
+        } catch(IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.out.println(
+                "Usage: java com.coillighting.udder.benchmark.CodecBenchmark"
+                + " [--iterations N] [--rounds N] [--pixels N] [--out path/to/results.csv]");
+            System.exit(1);
+        }
+        String csv = benchmark.run();
+        if(benchmark.outputPath != null) {
+            FileUtil.stringToFile(benchmark.outputPath, csv);
+            log("Wrote " + benchmark.outputPath);
+        }
+    }
+}
@@ -0,0 +1,315 @@
+package com.coillighting.udder.benchmark;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.coillighting.udder.blend.MaxBlendOp;
+import com.coillighting.udder.effect.ArrayEffect;
+import com.coillighting.udder.infrastructure.LoopbackOpcServer;
+import com.coillighting.udder.infrastructure.OpcMessageListener;
+import com.coillighting.udder.infrastructure.ServicePipeline;
+import com.coillighting.udder.infrastructure.SocketAddress;
+import com.coillighting.udder.mix.Layer;
+import com.coillighting.udder.mix.Mixable;
+import com.coillighting.udder.mix.Mixer;
+import com.coillighting.udder.model.Device;
+import com.coillighting.udder.util.FileUtil;
+
+import static com.coillighting.udder.util.LogUtil.log;
+
+/** Measure command-to-wire latency and inter-frame jitter of a complete,
+ *  in-process Udder pipeline, entirely over loopback with no hardware.
+ *
+ *  We start a LoopbackOpcServer, then a real ServicePipeline -- HTTP server,
+ *  ShowRunner and OpcTransmitter -- whose scene is a single ArrayEffect layer
+ *  at full level. For each sample, we POST a distinctive marker colour for the
+ *  first device to /mixer0/layer0/effect, noting System.nanoTime() just before
+ *  sending. The OPC server notes the time at which the first message bearing
+ *  that colour finishes arriving. The difference is the command-to-wire
+ *  latency, which covers HTTP parsing, the command queue, animation, mixing,
+ *  the frame queue, OPC encoding and the loopback socket.
+ *
+ *  Every message the OPC server receives also contributes its arrival
+ *  interval to the jitter statistics, whether or not it carries a marker.
+ *
+ *  Each marker is unique within a run, so a late frame can never be mistaken
+ *  for the answer to a later command. Between samples we sleep for a random
+ *  fraction of the frame period, so that commands land at every phase of the
+ *  render loop.
+ *
+ *  Usage (from the udder directory, after building):
+ *
+ *      java -cp target/udder-0.4.2-SNAPSHOT.jar:lib/simple-5.1.5.jar:lib/boon-0.23.jar \
+ *          com.coillighting.udder.benchmark.LatencyBenchmark --samples 500
+ */
+public class LatencyBenchmark implements OpcMessageListener {
+
+    public static final String CSV_HEADER = "sample,marker,http_ms,wire_ms";
+
+    protected int sampleCount = 200;
+    protected int warmupSamples = 20;
+    protected int deviceCount = 2280;
+    protected int frameDelayMillis = 10;
+    protected long timeoutMillis = 2000;
+    protected String outputPath = null;
+
+    /** Preallocated so that the listener thread never allocates. */
+    protected long[] frameIntervalNanos = new long[1 << 20];
+    protected int frameIntervalCount = 0;
+    protected long previousReceivedNanos = 0;
+
+    // Handshake between the posting thread and the listener thread.
+    protected volatile int expectedMarker = -1;
+    protected volatile long markerReceivedNanos = 0;
+    protected volatile CountDownLatch markerLatch = null;
+
+    /** Called from the LoopbackOpcServer's thread. The first device is at
+     *  OPC address 0, so its RGB is the first three bytes of the payload.
+     */
+    public void messageReceived(int channel, int command, byte[] data,
+                                int length, long receivedNanos)
+    {
+        if(previousReceivedNanos != 0 && frameIntervalCount < frameIntervalNanos.length) {
+            frameIntervalNanos[frameIntervalCount++] = receivedNanos - previousReceivedNanos;
+        }
+        previousReceivedNanos = receivedNanos;
+
+        if(length >= 3) {
+            int rgb = ((data[0] & 0xFF) << 16) | ((data[1] & 0xFF) << 8) | (data[2] & 0xFF);
+            CountDownLatch latch = markerLatch;
+            if(rgb == expectedMarker && latch != null && latch.getCount() > 0) {
+                markerReceivedNanos = receivedNanos;
+                latch.countDown();
+            }
+        }
+    }
+
+    public String run() throws IOException, InterruptedException {
+        LoopbackOpcServer opcServer = new LoopbackOpcServer(0, this);
+        opcServer.start();
+
+        RigGenerator rig = new RigGenerator(RigGenerator.GRID, deviceCount, 1, 0L);
+        Device[] devices = rig.createDevices();
+
+        Layer markerLayer = new Layer("Marker", new ArrayEffect(null));
+        markerLayer.setBlendOp(new MaxBlendOp());
+        markerLayer.setLevel(1.0);
+        List<Mixable> layers = new ArrayList<Mixable>(1);
+        layers.add(markerLayer);
+        Mixer mixer = new Mixer(layers);
+        mixer.setLevel(1.0);
+        mixer.patchDevices(devices);
+
+        int httpPort = findFreePort();
+        List<SocketAddress> opcAddresses = new ArrayList<SocketAddress>(1);
+        opcAddresses.add(opcServer.getSocketAddress());
+        ServicePipeline pipeline = new ServicePipeline(mixer,
+            rig.createDeviceAddressMap(), frameDelayMillis,
+            new SocketAddress("127.0.0.1", httpPort), opcAddresses);
+        pipeline.start();
+
+        URL url = new URL("http://127.0.0.1:" + httpPort + "/mixer0/layer0/effect");
+        long[] httpNanos = new long[sampleCount];
+        long[] wireNanos = new long[sampleCount];
+        int[] markers = new int[sampleCount];
+        int received = 0;
+        int lost = 0;
+        Random random = new Random(0L);
+        StringBuilder csv = new StringBuilder(CSV_HEADER).append('\n');
+
+        try {
+            this.awaitFirstFrame(opcServer);
+
+            for(int i = -warmupSamples; i < sampleCount; i++) {
+                // Unique, nonblack, and below 0x800000 so the RGBA int stays
+                // positive in JSON.
+                int marker = 1 + ((i + warmupSamples) % 0x7FFFFE);
+                CountDownLatch latch = new CountDownLatch(1);
+                markerReceivedNanos = 0;
+                expectedMarker = marker;
+                markerLatch = latch;
+
+                long sentNanos = System.nanoTime();
+                String response = post(url, "{\"pixels\":[" + ((marker << 8) | 0xFF) + "]}");
+                long respondedNanos = System.nanoTime();
+                if(!response.startsWith("OK")) {
+                    log("Unexpected response to sample " + i + ": " + response);
+                }
+                boolean arrived = latch.await(timeoutMillis, TimeUnit.MILLISECONDS);
+
+                if(i >= 0) {
+                    markers[i] = marker;
+                    httpNanos[i] = respondedNanos - sentNanos;
+                    if(arrived) {
+                        wireNanos[received++] = markerReceivedNanos - sentNanos;
+                        csv.append(i).append(',').append(marker).append(',')
+                            .append(ScalingBenchmark.format(httpNanos[i] / 1000000.0)).append(',')
+                            .append(ScalingBenchmark.format((markerReceivedNanos - sentNanos) / 1000000.0))
+                            .append('\n');
+                    } else {
+                        ++lost;
+                        csv.append(i).append(',').append(marker).append(',')
+                            .append(ScalingBenchmark.format(httpNanos[i] / 1000000.0))
+                            .append(",\n");
+                    }
+                }
+                Thread.sleep(random.nextInt(frameDelayMillis + 1));
+            }
+        } finally {
+            pipeline.stop();
+            opcServer.stop();
+        }
+
+        long[] wire = Arrays.copyOf(wireNanos, received);
+        Arrays.sort(wire);
+        long[] http = httpNanos.clone();
+        Arrays.sort(http);
+        long[] intervals = Arrays.copyOf(frameIntervalNanos, frameIntervalCount);
+
+        log("------------------------------------------------------------");
+        log("Devices: " + deviceCount + ", frame delay: " + frameDelayMillis
+            + " ms, samples: " + sampleCount + ", lost: " + lost);
+        log("HTTP round trip ms:     " + summarize(http));
+        log("Command-to-wire ms:     " + summarize(wire));
+        log("Frames received:        " + opcServer.getMessageCount());
+        log("Inter-frame interval ms: mean " + ScalingBenchmark.format(ScalingBenchmark.mean(intervals))
+            + ", jitter (stddev) " + ScalingBenchmark.format(stddev(intervals) / 1000000.0));
+        Arrays.sort(intervals);
+        log("Inter-frame interval ms: " + summarize(intervals));
+        return csv.toString();
+    }
+
+    /** Block until the transmitter has connected and delivered one frame. */
+    protected void awaitFirstFrame(LoopbackOpcServer opcServer) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while(opcServer.getMessageCount() == 0) {
+            if(System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException("No OPC frames arrived at " + opcServer);
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    /** Format min/percentiles/max of presorted nanos as milliseconds. */
+    protected static String summarize(long[] sortedNanos) {
+        if(sortedNanos.length == 0) {
+            return "no data";
+        }
+        return "min " + ScalingBenchmark.format(sortedNanos[0] / 1000000.0)
+            + ", p50 " + ScalingBenchmark.format(ScalingBenchmark.percentile(sortedNanos, 0.5))
+            + ", p90 " + ScalingBenchmark.format(ScalingBenchmark.percentile(sortedNanos, 0.9))
+            + ", p99 " + ScalingBenchmark.format(ScalingBenchmark.percentile(sortedNanos, 0.99))
+            + ", max " + ScalingBenchmark.format(sortedNanos[sortedNanos.length - 1] / 1000000.0);
+    }
+
+    protected static double stddev(long[] nanos) {
+        if(nanos.length < 2) {
+            return 0.0;
+        }
+        double mean = 0.0;
+        for(long n: nanos) {
+            mean += n;
+        }
+        mean /= nanos.length;
+        double sumSquares = 0.0;
+        for(long n: nanos) {
+            sumSquares += (n - mean) * (n - mean);
+        }
+        return Math.sqrt(sumSquares / (nanos.length - 1));
+    }
+
+    /** POST a JSON state the same way the curl scripts in udder/test do. */
+    protected static String post(URL url, String json) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+        byte[] body = ("state=" + URLEncoder.encode(json, "UTF-8")).getBytes("UTF-8");
+        connection.setFixedLengthStreamingMode(body.length);
+        OutputStream out = connection.getOutputStream();
+        out.write(body);
+        out.close();
+
+        StringBuilder sb = new StringBuilder();
+        BufferedReader in = new BufferedReader(new InputStreamReader(
+            connection.getResponseCode() < 400
+                ? connection.getInputStream() : connection.getErrorStream(), "UTF-8"));
+        String line;
+        while((line = in.readLine()) != null) {
+            sb.append(line);
+        }
+        in.close();
+        return sb.toString();
+    }
+
+    protected static int findFreePort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        int port = socket.getLocalPort();
+        socket.close();
+        return port;
+    }
+
+    public void parseArgs(String[] args) {
+        if(args.length % 2 != 0) {
+            throw new IllegalArgumentException("Expected --option value pairs.");
+        }
+        for(int i=0; i<args.length; i+=2) {
+            String key = args[i];
+            String value = args[i + 1];
+            if(key.equals("--samples")) {
+                sampleCount = Integer.parseInt(value);
+            } else if(key.equals("--warmup")) {
+                warmupSamples = Integer.parseInt(value);
+            } else if(key.equals("--devices")) {
+                deviceCount = Integer.parseInt(value);
+            } else if(key.equals("--frameDelay")) {
+                frameDelayMillis = Integer.parseInt(value);
+            } else if(key.equals("--out")) {
+                outputPath = value;
+            } else {
+                throw new IllegalArgumentException("Unrecognized option: " + key);
+            }
+        }
+        if(sampleCount < 1) {
+            throw new IllegalArgumentException("--samples must be at least 1.");
+        } else if(deviceCount > 21845) {
+            throw new IllegalArgumentException(
+                "--devices must not exceed 21845, the most a single OPC message can carry.");
+        } else if(frameDelayMillis < 1) {
+            throw new IllegalArgumentException("--frameDelay must be at least 1 ms.");
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        LatencyBenchmark benchmark = new LatencyBenchmark();
+        try {
+            benchmark.parseArgs(args);
+        } catch(IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.out.println(
+                "Usage: java com.coillighting.udder.benchmark.LatencyBenchmark"
+                + " [--samples N] [--warmup N] [--devices N] [--frameDelay MILLIS]"
+                + " [--out path/to/samples.csv]");
+            System.exit(1);
+        }
+        String csv = benchmark.run();
+        if(benchmark.outputPath != null) {
+            FileUtil.stringToFile(benchmark.outputPath, csv);
+            log("Wrote " + benchmark.outputPath);
+        }
+        // Simple leaves a few non-daemon threads behind.
+        System.exit(0);
+    }
+}
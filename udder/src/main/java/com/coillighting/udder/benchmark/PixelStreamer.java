@@ -0,0 +1,145 @@
+package com.coillighting.udder.benchmark;
+
+import java.awt.Color;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+
+import com.coillighting.udder.infrastructure.PixelIngestServer;
+
+import static com.coillighting.udder.util.LogUtil.log;
+
+/** Stream a scrolling rainbow to a running Udder over UDP, in the raw pixel
+ *  format of PixelIngestServer, to try out an external input layer without
+ *  writing a client. Frames larger than --fragment bytes are split across
+ *  several datagrams, exercising reassembly, as a sender would do to stay
+ *  under the network's MTU.
+ *
+ *  Usage (from the udder directory, after building, with udder.ingestPort
+ *  set and the external layer's level turned up):
+ *
+ *      java -cp target/udder-0.4.2-SNAPSHOT.jar:lib/simple-5.1.5.jar:lib/boon-0.23.jar \
+ *          com.coillighting.udder.benchmark.PixelStreamer --port 8082 --fps 30
+ */
+public class PixelStreamer {
+
+    protected String host = "localhost";
+    protected int port = 8082;
+    protected int channel = 0;
+    protected int deviceCount = 2280;
+    protected int fps = 30;
+    protected int fragmentBytes = 1400;
+    protected double seconds = 10.0;
+
+    public void run() throws Exception {
+        DatagramSocket socket = new DatagramSocket();
+        InetSocketAddress address = new InetSocketAddress(host, port);
+        int frameBytes = 3 * deviceCount;
+        byte[] frame = new byte[frameBytes];
+        int fragmentCount = (frameBytes + fragmentBytes - 1) / fragmentBytes;
+        byte[] packet = new byte[PixelIngestServer.HEADER_LENGTH + fragmentBytes];
+        long frameCount = Math.round(seconds * fps);
+        long periodNanos = 1000000000L / fps;
+        long start = System.nanoTime();
+
+        log("Streaming " + frameCount + " frames of " + deviceCount + " pixels to udp://"
+            + host + ':' + port + " channel " + channel + ", " + fragmentCount
+            + " datagram(s) per frame.");
+        for(int sequence=0; sequence<frameCount; sequence++) {
+            for(int i=0; i<deviceCount; i++) {
+                int rgb = Color.HSBtoRGB((float)(i + sequence * 4) / deviceCount, 1.0f, 1.0f);
+                frame[3 * i] = (byte)(rgb >> 16);
+                frame[3 * i + 1] = (byte)(rgb >> 8);
+                frame[3 * i + 2] = (byte) rgb;
+            }
+            for(int f=0; f<fragmentCount; f++) {
+                int offset = f * fragmentBytes;
+                int length = Math.min(fragmentBytes, frameBytes - offset);
+                writeHeader(packet, channel, sequence, f, fragmentCount, offset);
+                System.arraycopy(frame, offset, packet, PixelIngestServer.HEADER_LENGTH, length);
+                socket.send(new DatagramPacket(packet, PixelIngestServer.HEADER_LENGTH + length, address));
+            }
+            long sleepNanos = start + (sequence + 1) * periodNanos - System.nanoTime();
+            if(sleepNanos > 0) {
+                Thread.sleep(sleepNanos / 1000000, (int)(sleepNanos % 1000000));
+            }
+        }
+        socket.close();
+        log("Sent " + frameCount + " frames.");
+    }
+
+    /** Write a PixelIngestServer datagram header, big-endian. */
+    public static void writeHeader(byte[] b, int channel, int sequence,
+                                   int fragmentIndex, int fragmentCount, int offset)
+    {
+        b[0] = (byte)(PixelIngestServer.MAGIC >> 8);
+        b[1] = (byte) PixelIngestServer.MAGIC;
+        b[2] = (byte) PixelIngestServer.VERSION;
+        b[3] = (byte) channel;
+        b[4] = (byte)(sequence >> 24);
+        b[5] = (byte)(sequence >> 16);
+        b[6] = (byte)(sequence >> 8);
+        b[7] = (byte) sequence;
+        b[8] = (byte)(fragmentIndex >> 8);
+        b[9] = (byte) fragmentIndex;
+        b[10] = (byte)(fragmentCount >> 8);
+        b[11] = (byte) fragmentCount;
+        b[12] = (byte)(offset >> 24);
+        b[13] = (byte)(offset >> 16);
+        b[14] = (byte)(offset >> 8);
+        b[15] = (byte) offset;
+    }
+
+    public void parseArgs(String[] args) {
+        if(args.length % 2 != 0) {
+            throw new IllegalArgumentException("Expected --option value pairs.");
+        }
+        for(int i=0; i<args.length; i+=2) {
+            String key = args[i];
+            String value = args[i + 1];
+            if(key.equals("--host")) {
+                host = value;
+            } else if(key.equals("--port")) {
+                port = Integer.parseInt(value);
+            } else if(key.equals("--channel")) {
+                channel = Integer.parseInt(value);
+            } else if(key.equals("--devices")) {
+                deviceCount = Integer.parseInt(value);
+            } else if(key.equals("--fps")) {
+                fps = Integer.parseInt(value);
+            } else if(key.equals("--fragment")) {
+                fragmentBytes = Integer.parseInt(value);
+            } else if(key.equals("--seconds")) {
+                seconds = Double.parseDouble(value);
+            } else {
+                throw new IllegalArgumentException("Unrecognized option: " + key);
+            }
+        }
+        if(deviceCount < 1 || 3 * deviceCount > PixelIngestServer.MAX_FRAME_BYTES) {
+            throw new IllegalArgumentException("--devices must be between 1 and "
+                + PixelIngestServer.MAX_FRAME_BYTES / 3 + ".");
+        } else if(fps < 1) {
+            throw new IllegalArgumentException("--fps must be at least 1.");
+        } else if(fragmentBytes < 3 || fragmentBytes > 65507 - PixelIngestServer.HEADER_LENGTH) {
+            throw new IllegalArgumentException("--fragment must be between 3 and "
+                + (65507 - PixelIngestServer.HEADER_LENGTH) + " bytes.");
+        } else if(channel < 0 || channel > 255) {
+            throw new IllegalArgumentException("--channel must be between 0 and 255.");
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        PixelStreamer streamer = new PixelStreamer();
+        try {
+            streamer.parseArgs(args);
+        } catch(IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.out.println(
+                "Usage: java com.coillighting.udder.benchmark.PixelStreamer"
+                + " [--host HOST] [--port N] [--channel N] [--devices N] [--fps N]"
+                + " [--fragment BYTES] [--seconds S]");
+            System.exit(1);
+        }
+        streamer.run();
+    }
+}
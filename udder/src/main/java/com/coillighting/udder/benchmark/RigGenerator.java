@@ -0,0 +1,230 @@
+package com.coillighting.udder.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.coillighting.udder.infrastructure.PatchElement;
+import com.coillighting.udder.model.Device;
+import com.coillighting.udder.util.FileUtil;
+
+import static com.coillighting.udder.util.LogUtil.log;
+
+/** Generate synthetic patch sheets of arbitrary size, so that we can measure
+ *  how Udder scales beyond the 2,280 devices of the Dairy rig.
+ *
+ *  Output is a JSON array of PatchElements in exactly the format consumed by
+ *  PatchSheet.parsePatchSheet, so a generated rig can be dropped into a
+ *  properties file in place of conf/patch_sheet.json. Addresses are dense,
+ *  starting at 0, in patch sheet order.
+ *
+ *  Points are generated in patch sheet space, which PatchElement.toDevice
+ *  later rotates into Udder's model space. The overall extents are roughly
+ *  the same as the Dairy's (a few hundred units on a side) so that effects
+ *  which scale their output to the rig's bounding cube behave the same way.
+ *
+ *  Usage:
+ *
+ *      java com.coillighting.udder.benchmark.RigGenerator \
+ *          grid|sphere|cloud|gates DEVICE_COUNT path/to/new_patch_sheet.json \
+ *          [GROUP_COUNT [SEED]]
+ */
+public class RigGenerator {
+
+    /** A flat rectangular wall of evenly spaced devices. */
+    public static final String GRID = "grid";
+
+    /** Devices spread evenly over the surface of a sphere. */
+    public static final String SPHERE = "sphere";
+
+    /** Uniformly random points filling a cube. */
+    public static final String CLOUD = "cloud";
+
+    /** Several arches, one per group, receding into the distance like the
+     *  Dairy's gates. This is the shape to use when exercising
+     *  group-sensitive effects.
+     */
+    public static final String GATES = "gates";
+
+    /** Half the length of a side of the generated rig's bounding cube. */
+    public static final double EXTENT = 150.0;
+
+    protected String shape;
+    protected int deviceCount;
+    protected int groupCount;
+    protected long seed;
+
+    public RigGenerator(String shape, int deviceCount, int groupCount, long seed) {
+        if(deviceCount < 1) {
+            throw new IllegalArgumentException("A rig needs at least one device.");
+        } else if(groupCount < 1) {
+            throw new IllegalArgumentException("A rig needs at least one group.");
+        } else if(!(GRID.equals(shape) || SPHERE.equals(shape)
+                || CLOUD.equals(shape) || GATES.equals(shape))) {
+            throw new IllegalArgumentException("Unsupported rig shape: " + shape);
+        }
+        this.shape = shape;
+        this.deviceCount = deviceCount;
+        this.groupCount = groupCount;
+        this.seed = seed;
+    }
+
+    /** Return the generated rig in patch sheet order. The i-th element has
+     *  OPC address i. Deterministic for a given shape, size and seed.
+     */
+    public List<PatchElement> createPatchElements() {
+        ArrayList<PatchElement> elements = new ArrayList<PatchElement>(deviceCount);
+        Random random = new Random(seed);
+
+        // For the grid, fill rows of a roughly square wall.
+        int columns = (int) Math.ceil(Math.sqrt(deviceCount));
+        int rows = (deviceCount + columns - 1) / columns;
+
+        // For the gates, split the devices as evenly as possible.
+        int perGroup = (deviceCount + groupCount - 1) / groupCount;
+
+        for(int i=0; i<deviceCount; i++) {
+            double [] point;
+            int group = 0;
+            if(GRID.equals(shape)) {
+                int row = i / columns;
+                int col = i % columns;
+                point = new double[] {
+                    0.0,
+                    scale(row, rows),
+                    scale(col, columns)
+                };
+                group = (int) (((long) i * groupCount) / deviceCount);
+            } else if(SPHERE.equals(shape)) {
+                // Fibonacci lattice: even coverage without clumping at poles.
+                double y = 1.0 - 2.0 * (i + 0.5) / deviceCount;
+                double r = Math.sqrt(1.0 - y * y);
+                double theta = Math.PI * (3.0 - Math.sqrt(5.0)) * i;
+                point = new double[] {
+                    EXTENT * r * Math.cos(theta),
+                    EXTENT * y,
+                    EXTENT * r * Math.sin(theta)
+                };
+                group = (int) (((long) i * groupCount) / deviceCount);
+            } else if(CLOUD.equals(shape)) {
+                point = new double[] {
+                    EXTENT * (2.0 * random.nextDouble() - 1.0),
+                    EXTENT * (2.0 * random.nextDouble() - 1.0),
+                    EXTENT * (2.0 * random.nextDouble() - 1.0)
+                };
+                group = random.nextInt(groupCount);
+            } else {
+                group = i / perGroup;
+                int indexInGroup = i % perGroup;
+                int groupSize = Math.min(perGroup, deviceCount - group * perGroup);
+                // Sweep each arch from one foot, over the top, to the other.
+                double angle = Math.PI * (indexInGroup + 0.5) / groupSize;
+                point = new double[] {
+                    scale(group, groupCount),
+                    EXTENT * Math.sin(angle) - 0.5 * EXTENT,
+                    EXTENT * Math.cos(angle)
+                };
+            }
+            elements.add(new PatchElement(point, group, i));
+        }
+        return elements;
+    }
+
+    /** Convert the generated rig to Devices the same way PatchSheet does. */
+    public Device[] createDevices() {
+        List<PatchElement> elements = this.createPatchElements();
+        Device[] devices = new Device[elements.size()];
+        for(int i=0; i<devices.length; i++) {
+            devices[i] = elements.get(i).toDevice();
+        }
+        return devices;
+    }
+
+    /** Return an identity address map for a rig created by this generator. */
+    public int[] createDeviceAddressMap() {
+        int[] map = new int[deviceCount];
+        for(int i=0; i<map.length; i++) {
+            map[i] = i;
+        }
+        return map;
+    }
+
+    /** Serialize the generated rig as a JSON patch sheet. We write the JSON
+     *  by hand rather than with Boon because Boon omits zero-valued fields
+     *  such as "group": 0, and because a 500k-device rig is easier to diff
+     *  and grep with one device per line.
+     */
+    public String toJson() {
+        List<PatchElement> elements = this.createPatchElements();
+        StringBuilder sb = new StringBuilder(64 * (elements.size() + 1));
+        sb.append("[\n");
+        for(int i=0; i<elements.size(); i++) {
+            PatchElement pe = elements.get(i);
+            double[] p = pe.getPoint();
+            sb.append("{\"address\": ").append(pe.getAddress())
+                .append(", \"group\": ").append(pe.getGroup())
+                .append(", \"point\": [").append(p[0])
+                .append(", ").append(p[1])
+                .append(", ").append(p[2]).append("]}");
+            if(i < elements.size() - 1) {
+                sb.append(',');
+            }
+            sb.append('\n');
+        }
+        sb.append("]\n");
+        return sb.toString();
+    }
+
+    public String toString() {
+        return "RigGenerator(" + shape + ", " + deviceCount + " devices, "
+            + groupCount + " groups, seed " + seed + ")";
+    }
+
+    /** Map index i of n evenly onto [-EXTENT, EXTENT]. */
+    protected static double scale(int i, int n) {
+        if(n <= 1) {
+            return 0.0;
+        }
+        return EXTENT * (2.0 * i / (n - 1) - 1.0);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if(args.length < 3 || args.length > 5) {
+            printUsage(null);
+            System.exit(1);
+        }
+        String shape = args[0];
+        int deviceCount = Integer.parseInt(args[1]);
+        String path = args[2];
+        int groupCount = args.length > 3 ? Integer.parseInt(args[3]) : 1;
+        long seed = args.length > 4 ? Long.parseLong(args[4]) : 0L;
+
+        if(new File(path).exists()) {
+            printUsage("Patch sheet already exists at '" + path
+                + "'. Delete it yourself if you're ready to part with it.");
+            System.exit(1);
+        }
+
+        RigGenerator generator = null;
+        try {
+            generator = new RigGenerator(shape, deviceCount, groupCount, seed);
+        } catch(IllegalArgumentException e) {
+            printUsage(e.getMessage());
+            System.exit(1);
+        }
+        FileUtil.stringToFile(path, generator.toJson());
+        log("Wrote " + generator + " to " + path);
+    }
+
+    protected static void printUsage(String errorMessage) {
+        if(errorMessage != null) {
+            System.out.println(errorMessage);
+        }
+        System.out.println(
+            "Usage: java com.coillighting.udder.benchmark.RigGenerator "
+            + GRID + '|' + SPHERE + '|' + CLOUD + '|' + GATES
+            + " DEVICE_COUNT path/to/new_patch_sheet.json [GROUP_COUNT [SEED]]");
+    }
+}
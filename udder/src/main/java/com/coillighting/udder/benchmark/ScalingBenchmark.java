@@ -0,0 +1,288 @@
+package com.coillighting.udder.benchmark;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.coillighting.udder.blend.MaxBlendOp;
+import com.coillighting.udder.effect.BloomEffect;
+import com.coillighting.udder.effect.BloomEffectState;
+import com.coillighting.udder.effect.Effect;
+import com.coillighting.udder.effect.MonochromeEffect;
+import com.coillighting.udder.effect.RollEffect;
+import com.coillighting.udder.effect.TextureEffect;
+import com.coillighting.udder.effect.woven.WovenEffect;
+import com.coillighting.udder.infrastructure.OpcTransmitter;
+import com.coillighting.udder.mix.Frame;
+import com.coillighting.udder.mix.Layer;
+import com.coillighting.udder.mix.Mixable;
+import com.coillighting.udder.mix.Mixer;
+import com.coillighting.udder.mix.TimePoint;
+import com.coillighting.udder.model.Device;
+import com.coillighting.udder.model.Pixel;
+import com.coillighting.udder.util.FileUtil;
+import com.coillighting.udder.util.StringUtil;
+
+import static com.coillighting.udder.util.LogUtil.log;
+
+/** Sweep device count and layer count through the full render pipeline --
+ *  Mixer.animate, Mixer.render, Frame.createByCopy and OPC encoding -- and
+ *  report per-stage timings as CSV, one row per (devices, layers) pair, for
+ *  plotting throughput curves.
+ *
+ *  This runs the same stages as ShowRunner and OpcTransmitter, in a single
+ *  thread, without sleeping between frames and without touching the network.
+ *  It therefore measures the ceiling on frame rate imposed by computation
+ *  alone. Scene time advances by a fixed nominal frame period so that every
+ *  run animates through the same timeline regardless of how fast it goes.
+ *
+ *  Rigs are generated with RigGenerator. Layers are populated by cycling
+ *  through the list of effects named by --effects, every layer at full level
+ *  with the max blend mode, so that every layer is animated and mixed in
+ *  every frame (the worst case for the Dairy's shuffler).
+ *
+ *  Run from the udder directory so the default image paths resolve:
+ *
+ *      java -cp target/udder-0.4.2-SNAPSHOT.jar:lib/simple-5.1.5.jar:lib/boon-0.23.jar \
+ *          com.coillighting.udder.benchmark.ScalingBenchmark \
+ *          --devices 2280,20000,100000 --layers 1,4,16 --out scaling.csv
+ *
+ *  Note that OPC's 16-bit length field can't describe more than 21845 pixels
+ *  in a single message, so rigs larger than that are encoded here for timing
+ *  purposes only. A real transmitter would split them across channels.
+ */
+public class ScalingBenchmark {
+
+    public static final String BLOOM = "bloom";
+    public static final String TEXTURE = "texture";
+    public static final String ROLL = "roll";
+    public static final String WOVEN = "woven";
+    public static final String MONOCHROME = "monochrome";
+
+    public static final String CSV_HEADER = "shape,devices,layers,frames,"
+        + "animate_mean_ms,mix_mean_ms,copy_mean_ms,encode_mean_ms,"
+        + "total_mean_ms,total_p50_ms,total_p99_ms,total_max_ms,"
+        + "fps,megapixels_per_sec";
+
+    protected String shape = RigGenerator.CLOUD;
+    protected int[] deviceCounts = {2280, 10000, 20000, 50000, 100000};
+    protected int[] layerCounts = {1, 2, 4, 8, 16};
+    protected String[] effects = {BLOOM, TEXTURE, ROLL, WOVEN, MONOCHROME};
+    protected String textureFilename = "images/dairy_collection_A_720p/blue_skull_necklace.png";
+    protected String rollFilename = "images/dairy_collection_B_scrolling_loops/flame_scroller_amber_medium_contrast.png";
+    protected int warmupFrames = 100;
+    protected int frames = 300;
+    protected long framePeriodMillis = 16;
+    protected String outputPath = null;
+
+    /** Run every combination of device count and layer count, returning the
+     *  CSV including its header.
+     */
+    public String run() {
+        StringBuilder csv = new StringBuilder(CSV_HEADER).append('\n');
+        log(CSV_HEADER);
+        for(int deviceCount: deviceCounts) {
+            RigGenerator rig = new RigGenerator(shape, deviceCount, 2, 0L);
+            Device[] devices = rig.createDevices();
+            int[] deviceAddressMap = rig.createDeviceAddressMap();
+            for(int layerCount: layerCounts) {
+                String row = this.runOne(devices, deviceAddressMap, layerCount);
+                log(row);
+                csv.append(row).append('\n');
+            }
+        }
+        return csv.toString();
+    }
+
+    /** Render warmupFrames untimed, then frames timed, returning one CSV row. */
+    protected String runOne(Device[] devices, int[] deviceAddressMap, int layerCount) {
+        Mixer mixer = this.createMixer(layerCount);
+        mixer.patchDevices(devices);
+
+        byte[] message = new byte[OpcTransmitter.getMessageLength(deviceAddressMap)];
+        Pixel black = Pixel.black();
+
+        long[] animateNanos = new long[frames];
+        long[] mixNanos = new long[frames];
+        long[] copyNanos = new long[frames];
+        long[] encodeNanos = new long[frames];
+        long[] totalNanos = new long[frames];
+
+        long startMillis = System.currentTimeMillis();
+        for(int i = -warmupFrames; i < frames; i++) {
+            long sceneTimeMillis = (warmupFrames + i) * framePeriodMillis;
+            TimePoint timePoint = new TimePoint(startMillis + sceneTimeMillis,
+                sceneTimeMillis, warmupFrames + i);
+
+            long t0 = System.nanoTime();
+            mixer.animate(timePoint);
+            long t1 = System.nanoTime();
+            Pixel[] pixels = mixer.render();
+            long t2 = System.nanoTime();
+            Frame frame = Frame.createByCopy(timePoint, pixels);
+            long t3 = System.nanoTime();
+            OpcTransmitter.writeOPCHeader(message, (byte) 0);
+            OpcTransmitter.writeOPCPixels(message, frame.getPixels(),
+                deviceAddressMap, black);
+            long t4 = System.nanoTime();
+
+            if(i >= 0) {
+                animateNanos[i] = t1 - t0;
+                mixNanos[i] = t2 - t1;
+                copyNanos[i] = t3 - t2;
+                encodeNanos[i] = t4 - t3;
+                totalNanos[i] = t4 - t0;
+            }
+        }
+
+        double totalMeanMs = mean(totalNanos);
+        long[] sorted = totalNanos.clone();
+        Arrays.sort(sorted);
+        double fps = totalMeanMs > 0.0 ? 1000.0 / totalMeanMs : 0.0;
+
+        return StringUtil.join(Arrays.asList(new String[] {
+            shape,
+            "" + devices.length,
+            "" + layerCount,
+            "" + frames,
+            format(mean(animateNanos)),
+            format(mean(mixNanos)),
+            format(mean(copyNanos)),
+            format(mean(encodeNanos)),
+            format(totalMeanMs),
+            format(percentile(sorted, 0.5)),
+            format(percentile(sorted, 0.99)),
+            format(sorted[sorted.length - 1] / 1000000.0),
+            format(fps),
+            format(fps * devices.length / 1000000.0),
+        }), ",");
+    }
+
+    /** Build a mixer with layerCount layers, cycling through effects. */
+    protected Mixer createMixer(int layerCount) {
+        MaxBlendOp max = new MaxBlendOp();
+        List<Mixable> layers = new ArrayList<Mixable>(layerCount);
+        for(int i=0; i<layerCount; i++) {
+            String name = effects[i % effects.length];
+            Layer layer = new Layer(name + i, this.createEffect(name));
+            layer.setBlendOp(max);
+            layer.setLevel(1.0);
+            layers.add(layer);
+        }
+        Mixer mixer = new Mixer(layers);
+        mixer.setLevel(1.0);
+        return mixer;
+    }
+
+    protected Effect createEffect(String name) {
+        if(BLOOM.equals(name)) {
+            BloomEffect bloom = new BloomEffect();
+            Pixel[] palette = {
+                new Pixel(0.11f, 0.05f, 1.0f),
+                new Pixel(0.0f, 0.85f, 0.1f)
+            };
+            bloom.setState(new BloomEffectState(palette, true, true, true, true));
+            return bloom;
+        } else if(TEXTURE.equals(name)) {
+            return new TextureEffect(textureFilename);
+        } else if(ROLL.equals(name)) {
+            RollEffect roll = new RollEffect(rollFilename);
+            roll.setYPeriodMillis(1450);
+            return roll;
+        } else if(WOVEN.equals(name)) {
+            return new WovenEffect();
+        } else if(MONOCHROME.equals(name)) {
+            return new MonochromeEffect(new Pixel(0.5f, 0.25f, 1.0f));
+        } else {
+            throw new IllegalArgumentException("Unsupported effect: " + name);
+        }
+    }
+
+    protected static double mean(long[] nanos) {
+        if(nanos.length == 0) {
+            return 0.0;
+        }
+        double sum = 0.0;
+        for(long n: nanos) {
+            sum += n;
+        }
+        return sum / nanos.length / 1000000.0;
+    }
+
+    /** Nearest-rank percentile of presorted nanos, in milliseconds. */
+    protected static double percentile(long[] sortedNanos, double p) {
+        int i = (int) Math.ceil(p * sortedNanos.length) - 1;
+        i = Math.max(0, Math.min(sortedNanos.length - 1, i));
+        return sortedNanos[i] / 1000000.0;
+    }
+
+    protected static String format(double value) {
+        return String.format("%.4f", value);
+    }
+
+    protected static int[] parseIntList(String csv) {
+        String[] tokens = csv.split(",");
+        int[] values = new int[tokens.length];
+        for(int i=0; i<tokens.length; i++) {
+            values[i] = Integer.parseInt(tokens[i].trim());
+        }
+        return values;
+    }
+
+    /** Parse --key value pairs. Throws IllegalArgumentException on bad input. */
+    public void parseArgs(String[] args) {
+        if(args.length % 2 != 0) {
+            throw new IllegalArgumentException("Expected --option value pairs.");
+        }
+        for(int i=0; i<args.length; i+=2) {
+            String key = args[i];
+            String value = args[i + 1];
+            if(key.equals("--shape")) {
+                shape = value;
+            } else if(key.equals("--devices")) {
+                deviceCounts = parseIntList(value);
+            } else if(key.equals("--layers")) {
+                layerCounts = parseIntList(value);
+            } else if(key.equals("--effects")) {
+                effects = value.split(",");
+            } else if(key.equals("--frames")) {
+                frames = Integer.parseInt(value);
+            } else if(key.equals("--warmup")) {
+                warmupFrames = Integer.parseInt(value);
+            } else if(key.equals("--texture")) {
+                textureFilename = value;
+            } else if(key.equals("--roll")) {
+                rollFilename = value;
+            } else if(key.equals("--out")) {
+                outputPath = value;
+            } else {
+                throw new IllegalArgumentException("Unrecognized option: " + key);
+            }
+        }
+        if(frames < 1) {
+            throw new IllegalArgumentException("--frames must be at least 1.");
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        ScalingBenchmark benchmark = new ScalingBenchmark();
+        try {
+            benchmark.parseArgs(args);
+        } catch(IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.out.println(
+                "Usage: java com.coillighting.udder.benchmark.ScalingBenchmark"
+                + " [--shape grid|sphere|cloud|gates] [--devices N,N,...]"
+                + " [--layers N,N,...] [--effects bloom,texture,roll,woven,monochrome]"
+                + " [--frames N] [--warmup N] [--texture path.png] [--roll path.png]"
+                + " [--out path/to/results.csv]");
+            System.exit(1);
+        }
+        String csv = benchmark.run();
+        if(benchmark.outputPath != null) {
+            FileUtil.stringToFile(benchmark.outputPath, csv);
+            log("Wrote " + benchmark.outputPath);
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package com.coillighting.udder.benchmark;
+
+import com.coillighting.udder.effect.SequenceEffect;
+import com.coillighting.udder.effect.SequenceEffectState;
+import com.coillighting.udder.metrics.Counter;
+import com.coillighting.udder.metrics.Histogram;
+import com.coillighting.udder.metrics.Metric;
+import com.coillighting.udder.metrics.MetricsRegistry;
+import com.coillighting.udder.mix.TimePoint;
+import com.coillighting.udder.model.Device;
+import com.coillighting.udder.util.FileUtil;
+
+import static com.coillighting.udder.util.LogUtil.log;
+
+/** Measure whether an image sequence decodes fast enough to play. We play it
+ *  through a SequenceEffect on a generated rig, in real time, rendering a
+ *  frame every frameDelayMillis as the ShowRunner would, and report:
+ *
+ *    - decode time per sequence frame, and the decode rate it allows;
+ *    - headroom: that rate divided by the playback rate. Below 1.0 the
+ *      decoder can't keep up, and the effect shows stale frames;
+ *    - how many rendered frames found the frame they wanted ready (exact),
+ *      only a neighbor (nearby) or nothing at all (missing);
+ *    - the effect's own animate time per rendered frame.
+ *
+ *  The decoder runs at minimum priority, as in the show, so a busy machine
+ *  lowers the headroom, as it would during a show.
+ *
+ *  Usage (from the udder directory, after building):
+ *
+ *      java -cp target/udder-0.4.2-SNAPSHOT.jar:lib/simple-5.1.5.jar:lib/boon-0.23.jar \
+ *          com.coillighting.udder.benchmark.SequenceBenchmark --source path/to/frames --fps 24
+ */
+public class SequenceBenchmark {
+
+    public static final String CSV_HEADER = "source,fps,frame_delay_ms,decoded_frames,"
+        + "decode_ms_mean,decode_ms_p99,decode_fps,headroom,exact,nearby,missing,"
+        + "animate_us_per_frame";
+
+    protected String source = null;
+    protected double framesPerSecond = SequenceEffect.DEFAULT_FRAMES_PER_SECOND;
+    protected int frameWidth = 0;
+    protected int frameHeight = 0;
+    protected int frameDelayMillis = 10;
+    protected int seconds = 10;
+    protected int deviceCount = 2280;
+    protected String outputPath = null;
+
+    public String run() throws Exception {
+        RigGenerator rig = new RigGenerator(RigGenerator.GATES, deviceCount, 2, 0L);
+        Device[] devices = rig.createDevices();
+        SequenceEffect effect = new SequenceEffect(null, framesPerSecond);
+        effect.patchDevices(devices);
+        effect.setState(new SequenceEffectState(source, framesPerSecond,
+            frameWidth, frameHeight));
+
+        MetricsRegistry metrics = MetricsRegistry.getDefault();
+        Histogram decodeTime = metrics.histogram("udder_sequence_decode_seconds", "");
+        Counter exact = metrics.counter("udder_sequence_frames_total", "",
+            Metric.label("result", "exact"));
+        Counter nearby = metrics.counter("udder_sequence_frames_total", "",
+            Metric.label("result", "nearby"));
+        Counter missing = metrics.counter("udder_sequence_frames_total", "",
+            Metric.label("result", "missing"));
+        Counter errors = metrics.counter("udder_sequence_errors_total", "");
+
+        // Render in real time, as the show would.
+        long startMillis = System.currentTimeMillis();
+        long endMillis = startMillis + 1000L * seconds;
+        long animateNanos = 0;
+        long frames = 0;
+        for(long now = startMillis; now < endMillis; now = System.currentTimeMillis()) {
+            TimePoint timePoint = new TimePoint(now, now - startMillis, frames);
+            long start = System.nanoTime();
+            effect.animate(timePoint);
+            animateNanos += System.nanoTime() - start;
+            ++frames;
+            Thread.sleep(frameDelayMillis);
+        }
+        if(errors.get() > 0 && decodeTime.getCount() == 0) {
+            throw new IllegalArgumentException("Could not play " + source + ". See the log.");
+        }
+
+        long decoded = decodeTime.getCount();
+        double decodeMillis = decoded == 0 ? 0.0 : decodeTime.getSumNanos() / 1000000.0 / decoded;
+        double decodeP99 = decodeTime.getValueAtQuantile(0.99) / 1000000.0;
+        double decodeFps = decodeMillis == 0.0 ? 0.0 : 1000.0 / decodeMillis;
+        double headroom = decodeFps / framesPerSecond;
+        double animateMicros = animateNanos / 1000.0 / frames;
+
+        log(source + " at " + ScalingBenchmark.format(framesPerSecond) + " fps, rendering every "
+            + frameDelayMillis + " ms: decoded " + decoded + " frames in "
+            + ScalingBenchmark.format(decodeMillis) + " ms each (p99 "
+            + ScalingBenchmark.format(decodeP99) + " ms), up to "
+            + ScalingBenchmark.format(decodeFps) + " fps, headroom "
+            + ScalingBenchmark.format(headroom) + "x.");
+        log("Of " + frames + " rendered frames, " + exact.get() + " showed the frame wanted, "
+            + nearby.get() + " a nearby frame and " + missing.get() + " nothing. Animate took "
+            + ScalingBenchmark.format(animateMicros) + " us per frame.");
+
+        StringBuilder csv = new StringBuilder(CSV_HEADER);
+        csv.append('\n');
+        csv.append(source).append(',')
+            .append(ScalingBenchmark.format(framesPerSecond)).append(',')
+            .append(frameDelayMillis).append(',')
+            .append(decoded).append(',')
+            .append(ScalingBenchmark.format(decodeMillis)).append(',')
+            .append(ScalingBenchmark.format(decodeP99)).append(',')
+            .append(ScalingBenchmark.format(decodeFps)).append(',')
+            .append(ScalingBenchmark.format(headroom)).append(',')
+            .append(exact.get()).append(',')
+            .append(nearby.get()).append(',')
+            .append(missing.get()).append(',')
+            .append(ScalingBenchmark.format(animateMicros)).append('\n');
+        return csv.toString();
+    }
+
+    public void parseArgs(String[] args) {
+        if(args.length % 2 != 0) {
+            throw new IllegalArgumentException("Expected --option value pairs.");
+        }
+        for(int i=0; i<args.length; i+=2) {
+            String key = args[i];
+            String value = args[i + 1];
+            if(key.equals("--source")) {
+                source = value;
+            } else if(key.equals("--fps")) {
+                framesPerSecond = Double.parseDouble(value);
+            } else if(key.equals("--width")) {
+                frameWidth = Integer.parseInt(value);
+            } else if(key.equals("--height")) {
+                frameHeight = Integer.parseInt(value);
+            } else if(key.equals("--frameDelayMillis")) {
+                frameDelayMillis = Integer.parseInt(value);
+            } else if(key.equals("--seconds")) {
+                seconds = Integer.parseInt(value);
+            } else if(key.equals("--devices")) {
+                deviceCount = Integer.parseInt(value);
+            } else if(key.equals("--out")) {
+                outputPath = value;
+            } else {
+                throw new IllegalArgumentException("Unrecognized option: " + key);
+            }
+        }
+        if(source == null) {
+            throw new IllegalArgumentException("--source is required.");
+        } else if(framesPerSecond <= 0.0) {
+            throw new IllegalArgumentException("--fps must be positive.");
+        } else if(frameDelayMillis < 1) {
+            throw new IllegalArgumentException("--frameDelayMillis must be at least 1.");
+        } else if(seconds < 1) {
+            throw new IllegalArgumentException("--seconds must be at least 1.");
+        } else if(deviceCount < 1) {
+            throw new IllegalArgumentException("--devices must be at least 1.");
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        SequenceBenchmark benchmark = new SequenceBenchmark();
+        try {
+            benchmark.parseArgs(args);
+        } catch(IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.out.println(
+                "Usage: java com.coillighting.udder.benchmark.SequenceBenchmark"
+                + " --source path/to/frames|video.mjpeg|video.rgb [--fps 24]"
+                + " [--width N --height N] [--frameDelayMillis 10] [--seconds 10]"
+                + " [--devices N] [--out path/to/results.csv]");
+            System.exit(1);
+        }
+        String csv = benchmark.run();
+        if(benchmark.outputPath != null) {
+            FileUtil.stringToFile(benchmark.outputPath, csv);
+            log("Wrote " + benchmark.outputPath);
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package com.coillighting.udder.benchmark;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+import javax.imageio.ImageIO;
+
+import com.coillighting.udder.geometry.Bilinear;
+import com.coillighting.udder.model.PackedTexture;
+import com.coillighting.udder.model.Pixel;
+import com.coillighting.udder.util.FileUtil;
+
+import static com.coillighting.udder.util.LogUtil.log;
+
+/** Compare sampling a texture through BufferedImage.getRGB (Bilinear, as
+ *  TextureEffect and RollEffect used to) with sampling the same image decoded
+ *  into a PackedTexture. For each image in a directory, we draw one frame's
+ *  worth of random sample points per device, sample them with both, check
+ *  that the colors are identical, and report the time per frame.
+ *
+ *  Each sampler runs the same points the same number of times, alternating
+ *  rounds so that neither one benefits from running second.
+ *
+ *  Usage (from the udder directory, after building):
+ *
+ *      java -cp target/udder-0.4.2-SNAPSHOT.jar:lib/simple-5.1.5.jar:lib/boon-0.23.jar \
+ *          com.coillighting.udder.benchmark.TextureBenchmark --dir images/dairy_collection_A_720p
+ */
+public class TextureBenchmark {
+
+    public static final String CSV_HEADER =
+        "image,width,height,image_type,decode_ms,getrgb_us_per_frame,packed_us_per_frame,speedup";
+
+    protected String imageDir = "images/dairy_collection_A_720p";
+    protected int deviceCount = 2280;
+    protected int frames = 200;
+    protected int rounds = 5;
+    protected long seed = 0L;
+    protected String outputPath = null;
+
+    public String run() throws Exception {
+        File[] files = new File(imageDir).listFiles();
+        if(files == null) {
+            throw new IllegalArgumentException("Not a directory: " + imageDir);
+        }
+        Arrays.sort(files);
+
+        // Sample points like a rig stretched a little past the image's edges,
+        // so that both in-bounds and cropped samples are exercised.
+        Random random = new Random(seed);
+        double[] xs = new double[deviceCount];
+        double[] ys = new double[deviceCount];
+        for(int i=0; i<deviceCount; i++) {
+            xs[i] = -0.05 + 1.1 * random.nextDouble();
+            ys[i] = -0.05 + 1.1 * random.nextDouble();
+        }
+        Pixel[] expected = new Pixel[deviceCount];
+        Pixel[] actual = new Pixel[deviceCount];
+        for(int i=0; i<deviceCount; i++) {
+            expected[i] = Pixel.black();
+            actual[i] = Pixel.black();
+        }
+
+        StringBuilder csv = new StringBuilder(CSV_HEADER);
+        csv.append('\n');
+        double totalGetRgb = 0.0;
+        double totalPacked = 0.0;
+        int imageCount = 0;
+        for(File file: files) {
+            if(!file.isFile() || !file.getName().toLowerCase().endsWith(".png")) {
+                continue;
+            }
+            BufferedImage image = ImageIO.read(file);
+            long decodeStart = System.nanoTime();
+            PackedTexture texture = PackedTexture.fromImage(image);
+            double decodeMillis = (System.nanoTime() - decodeStart) / 1000000.0;
+            Bilinear bilinear = new Bilinear();
+            int w = image.getWidth();
+            int h = image.getHeight();
+
+            // Same colors, bit for bit?
+            for(int i=0; i<deviceCount; i++) {
+                bilinear.interpolate(expected[i], image, w, h, xs[i], ys[i], false);
+                texture.sampleBilinear(actual[i], xs[i], ys[i], false);
+                if(expected[i].r != actual[i].r || expected[i].g != actual[i].g
+                    || expected[i].b != actual[i].b)
+                {
+                    throw new IllegalStateException(file.getName() + ": sample " + i
+                        + " differs: " + expected[i] + " vs. " + actual[i]);
+                }
+            }
+
+            long getRgbNanos = 0;
+            long packedNanos = 0;
+            for(int r=-1; r<rounds; r++) { // round -1 warms up
+                long start = System.nanoTime();
+                for(int f=0; f<frames; f++) {
+                    for(int i=0; i<deviceCount; i++) {
+                        bilinear.interpolate(expected[i], image, w, h, xs[i], ys[i], false);
+                    }
+                }
+                long middle = System.nanoTime();
+                for(int f=0; f<frames; f++) {
+                    for(int i=0; i<deviceCount; i++) {
+                        texture.sampleBilinear(actual[i], xs[i], ys[i], false);
+                    }
+                }
+                long end = System.nanoTime();
+                if(r >= 0) {
+                    getRgbNanos += middle - start;
+                    packedNanos += end - middle;
+                }
+            }
+            long n = (long) frames * rounds;
+            double getRgbMicros = getRgbNanos / 1000.0 / n;
+            double packedMicros = packedNanos / 1000.0 / n;
+            totalGetRgb += getRgbMicros;
+            totalPacked += packedMicros;
+            ++imageCount;
+
+            log(file.getName() + " (" + w + "x" + h + ", type " + image.getType() + "): getRGB "
+                + ScalingBenchmark.format(getRgbMicros) + " us/frame, packed "
+                + ScalingBenchmark.format(packedMicros) + " us/frame ("
+                + ScalingBenchmark.format(getRgbMicros / packedMicros) + "x faster), decoded in "
+                + ScalingBenchmark.format(decodeMillis) + " ms");
+            csv.append(file.getName()).append(',')
+                .append(w).append(',')
+                .append(h).append(',')
+                .append(image.getType()).append(',')
+                .append(ScalingBenchmark.format(decodeMillis)).append(',')
+                .append(ScalingBenchmark.format(getRgbMicros)).append(',')
+                .append(ScalingBenchmark.format(packedMicros)).append(',')
+                .append(ScalingBenchmark.format(getRgbMicros / packedMicros)).append('\n');
+        }
+        if(imageCount == 0) {
+            throw new IllegalArgumentException("No PNG images in " + imageDir);
+        }
+        log("Mean over " + imageCount + " images, " + deviceCount + " devices: getRGB "
+            + ScalingBenchmark.format(totalGetRgb / imageCount) + " us/frame, packed "
+            + ScalingBenchmark.format(totalPacked / imageCount) + " us/frame. Output identical.");
+        return csv.toString();
+    }
+
+    public void parseArgs(String[] args) {
+        if(args.length % 2 != 0) {
+            throw new IllegalArgumentException("Expected --option value pairs.");
+        }
+        for(int i=0; i<args.length; i+=2) {
+            String key = args[i];
+            String value = args[i + 1];
+            if(key.equals("--dir")) {
+                imageDir = value;
+            } else if(key.equals("--devices")) {
+                deviceCount = Integer.parseInt(value);
+            } else if(key.equals("--frames")) {
+                frames = Integer.parseInt(value);
+            } else if(key.equals("--rounds")) {
+                rounds = Integer.parseInt(value);
+            } else if(key.equals("--seed")) {
+                seed = Long.parseLong(value);
+            } else if(key.equals("--out")) {
+                outputPath = value;
+            } else {
+                throw new IllegalArgumentException("Unrecognized option: " + key);
+            }
+        }
+        if(deviceCount < 1) {
+            throw new IllegalArgumentException("--devices must be at least 1.");
+        } else if(frames < 1) {
+            throw new IllegalArgumentException("--frames must be at least 1.");
+        } else if(rounds < 1) {
+            throw new IllegalArgumentException("--rounds must be at least 1.");
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        TextureBenchmark benchmark = new TextureBenchmark();
+        try {
+            benchmark.parseArgs(args);
+        } catch(IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.out.println(
+                "Usage: java com.coillighting.udder.benchmark.TextureBenchmark"
+                + " [--dir images/dairy_collection_A_720p] [--devices N] [--frames N]"
+                + " [--rounds N] [--seed N] [--out path/to/results.csv]");
+            System.exit(1);
+        }
+        String csv = benchmark.run();
+        if(benchmark.outputPath != null) {
+            FileUtil.stringToFile(benchmark.outputPath, csv);
+            log("Wrote " + benchmark.outputPath);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.coillighting.udder.codec;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.coillighting.udder.effect.BloomEffectState;
+import com.coillighting.udder.model.Pixel;
+
+/** Decode {"palette": [{"r":..., "g":..., "b":...}, ...],
+ *  "enableBilateralSym": true, "enableNestedBilateralSym": true,
+ *  "enableX": true, "enableY": false}. Every field is optional.
+ */
+public class BloomEffectStateCodec implements StateCodec<BloomEffectState> {
+
+    private static final String[] FIELDS = {"palette", "enableBilateralSym",
+        "enableNestedBilateralSym", "enableX", "enableY"};
+
+    protected PixelCodec pixelCodec = new PixelCodec();
+
+    public Class<BloomEffectState> getStateClass() {
+        return BloomEffectState.class;
+    }
+
+    public BloomEffectState decode(JsonReader reader) throws JsonCodecException {
+        Pixel[] palette = null;
+        Boolean enableBilateralSym = null;
+        Boolean enableNestedBilateralSym = null;
+        Boolean enableX = null;
+        Boolean enableY = null;
+
+        reader.beginObject();
+        while(reader.hasNext()) {
+            switch(reader.nextField(FIELDS)) {
+                case 0: palette = reader.nextNull() ? null : this.decodePalette(reader); break;
+                case 1: enableBilateralSym = decodeBoolean(reader); break;
+                case 2: enableNestedBilateralSym = decodeBoolean(reader); break;
+                case 3: enableX = decodeBoolean(reader); break;
+                case 4: enableY = decodeBoolean(reader); break;
+            }
+        }
+        reader.endObject();
+        return new BloomEffectState(palette, enableBilateralSym,
+            enableNestedBilateralSym, enableX, enableY);
+    }
+
+    protected Pixel[] decodePalette(JsonReader reader) throws JsonCodecException {
+        List<Pixel> palette = new ArrayList<Pixel>(9);
+        reader.beginArray();
+        while(reader.hasNext()) {
+            palette.add(pixelCodec.decode(reader));
+        }
+        reader.endArray();
+        return palette.toArray(new Pixel[palette.size()]);
+    }
+
+    protected static Boolean decodeBoolean(JsonReader reader) throws JsonCodecException {
+        return reader.nextNull() ? null : Boolean.valueOf(reader.nextBoolean());
+    }
+}
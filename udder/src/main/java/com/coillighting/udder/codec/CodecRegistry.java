@@ -0,0 +1,69 @@
+package com.coillighting.udder.codec;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/** Look up the StateCodec for a state class. CommandParser resolves one per
+ *  route when it is constructed, so that a command costs a single map lookup
+ *  before decoding starts. Classes without a codec fall back to Boon, so a
+ *  new Effect works as soon as it's written; give it a codec here when its
+ *  commands become frequent or its errors confusing.
+ */
+public class CodecRegistry {
+
+    private static final CodecRegistry defaultRegistry = createDefault();
+
+    /** JsonReaders are cheap, but not threadsafe, so each thread that decodes
+     *  commands (HTTP workers, control channel sessions) reuses its own.
+     */
+    private static final ThreadLocal<JsonReader> readers = new ThreadLocal<JsonReader>() {
+        protected JsonReader initialValue() {
+            return new JsonReader();
+        }
+    };
+
+    protected Map<Class<?>, StateCodec<?>> codecs = new HashMap<Class<?>, StateCodec<?>>();
+
+    public static CodecRegistry getDefault() {
+        return defaultRegistry;
+    }
+
+    protected static CodecRegistry createDefault() {
+        CodecRegistry registry = new CodecRegistry();
+        registry.register(new LayerStateCodec());
+        registry.register(new PixelCodec());
+        registry.register(new RgbaArrayCodec());
+        registry.register(new BloomEffectStateCodec());
+        registry.register(new RollEffectStateCodec());
+        registry.register(new TextureEffectStateCodec());
+        registry.register(new SequenceEffectStateCodec());
+        registry.register(new WovenEffectStateCodec());
+        registry.register(new DairyShufflerStateCodec());
+        registry.register(new ModulationMatrixStateCodec());
+        return registry;
+    }
+
+    public synchronized void register(StateCodec<?> codec) {
+        codecs.put(codec.getStateClass(), codec);
+    }
+
+    /** Return the codec for the given state class, or null if there is none. */
+    public synchronized StateCodec<?> get(Class<?> stateClass) {
+        return codecs.get(stateClass);
+    }
+
+    /** Decode json, which must hold exactly one value, with the given codec. */
+    public static Object decode(StateCodec<?> codec, String json) throws JsonCodecException {
+        return decode(codec, json, 0, json.length());
+    }
+
+    /** Decode json[start:end] with the given codec. */
+    public static Object decode(StateCodec<?> codec, String json, int start, int end)
+        throws JsonCodecException
+    {
+        JsonReader reader = readers.get().reset(json, start, end);
+        Object state = codec.decode(reader);
+        reader.endDocument();
+        return state;
+    }
+}
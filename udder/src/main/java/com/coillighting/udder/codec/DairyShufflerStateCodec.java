@@ -0,0 +1,27 @@
+package com.coillighting.udder.codec;
+
+import com.coillighting.udder.scene.DairyShufflerState;
+
+/** Decode {"enabled": true, "cueDurationMillis": 10000}. */
+public class DairyShufflerStateCodec implements StateCodec<DairyShufflerState> {
+
+    private static final String[] FIELDS = {"enabled", "cueDurationMillis"};
+
+    public Class<DairyShufflerState> getStateClass() {
+        return DairyShufflerState.class;
+    }
+
+    public DairyShufflerState decode(JsonReader reader) throws JsonCodecException {
+        boolean enabled = false;
+        long cueDurationMillis = 0;
+        reader.beginObject();
+        while(reader.hasNext()) {
+            switch(reader.nextField(FIELDS)) {
+                case 0: enabled = reader.nextBoolean(); break;
+                case 1: cueDurationMillis = reader.nextLong(); break;
+            }
+        }
+        reader.endObject();
+        return new DairyShufflerState(enabled, cueDurationMillis);
+    }
+}
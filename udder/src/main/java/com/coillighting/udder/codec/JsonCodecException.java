@@ -0,0 +1,34 @@
+package com.coillighting.udder.codec;
+
+/** Thrown when a JSON command doesn't match the shape its StateCodec
+ *  expects. The message says what was expected, where (as a path like
+ *  $.palette[2].r, and as a line and column counting from 1) and what was
+ *  found instead, so that it can be shown to the client verbatim.
+ */
+public class JsonCodecException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    protected String path;
+    protected int line;
+    protected int column;
+
+    public JsonCodecException(String message, String path, int line, int column) {
+        super(message);
+        this.path = path;
+        this.line = line;
+        this.column = column;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public int getLine() {
+        return line;
+    }
+
+    public int getColumn() {
+        return column;
+    }
+}
@@ -0,0 +1,639 @@
+package com.coillighting.udder.codec;
+
+import java.util.Arrays;
+
+/** A small pull parser for the JSON command payloads that StateCodecs
+ *  decode. Unlike Boon's generic parser, it builds no intermediate maps,
+ *  lists or value wrappers: a codec asks for exactly the tokens it expects,
+ *  in order, and numbers are read straight out of the input string. The only
+ *  allocations are the strings a codec actually asks for.
+ *
+ *  Like Boon, we tolerate a trailing comma before a closing ']' or '}',
+ *  because several of the example payloads in udder/test/json have one.
+ *  Otherwise we are strict: numbers with leading zeros, like 007, and
+ *  unknown escapes are errors.
+ *
+ *  When a token doesn't match, the reader throws a JsonCodecException saying
+ *  what it expected, where, and what it found instead, e.g.
+ *
+ *      Expected a number at $.palette[1].g (line 3, column 24) but found '"'
+ *
+ *  Not threadsafe. Reuse an instance by calling reset().
+ */
+public class JsonReader {
+
+    public enum Token {
+        BEGIN_OBJECT, END_OBJECT, BEGIN_ARRAY, END_ARRAY,
+        STRING, NUMBER, BOOLEAN, NULL, END
+    }
+
+    /** Powers of ten that a double represents exactly. */
+    private static final double[] POW10 = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    /** Mantissas below this are exact as doubles. See scanNumber. */
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+    protected String json = "";
+    protected int pos = 0;
+    protected int end = 0;
+
+    // One entry per open object or array, for comma handling and error paths.
+    protected int depth = 0;
+    protected boolean[] inArray = new boolean[16];
+    protected boolean[] needsComma = new boolean[16];
+    protected String[] names = new String[16];
+    protected int[] indices = new int[16];
+
+    // The most recent number scanned by scanNumber.
+    protected int numberStart;
+    protected boolean numberNegative;
+    protected long numberMantissa;
+    protected int numberScale; // value = mantissa * 10^scale
+    protected boolean numberIntegral; // no fraction or exponent
+    protected boolean numberExact; // mantissa and scale are exact
+
+    public JsonReader() {}
+
+    public JsonReader(String json) {
+        this.reset(json);
+    }
+
+    public JsonReader reset(String json) {
+        return this.reset(json, 0, json.length());
+    }
+
+    /** Read only json[start:end]. Errors still report lines and columns
+     *  relative to the start of the whole string.
+     */
+    public JsonReader reset(String json, int start, int end) {
+        if(json == null) {
+            throw new NullPointerException("JsonReader requires a JSON string.");
+        }
+        this.json = json;
+        this.pos = start;
+        this.end = end;
+        this.depth = 0;
+        return this;
+    }
+
+    /** Return the offset of the next unread character. */
+    public int getPosition() {
+        return pos;
+    }
+
+    public Token peek() throws JsonCodecException {
+        int c = this.skipWhitespace();
+        switch(c) {
+            case -1: return Token.END;
+            case '{': return Token.BEGIN_OBJECT;
+            case '}': return Token.END_OBJECT;
+            case '[': return Token.BEGIN_ARRAY;
+            case ']': return Token.END_ARRAY;
+            case '"': return Token.STRING;
+            case 't': case 'f': return Token.BOOLEAN;
+            case 'n': return Token.NULL;
+            case '-': case '0': case '1': case '2': case '3': case '4':
+            case '5': case '6': case '7': case '8': case '9':
+                return Token.NUMBER;
+            default:
+                throw this.error("a JSON value");
+        }
+    }
+
+    public void beginObject() throws JsonCodecException {
+        this.expect('{', "an object");
+        this.push(false);
+    }
+
+    public void endObject() throws JsonCodecException {
+        this.expect('}', "'}'");
+        --depth;
+    }
+
+    public void beginArray() throws JsonCodecException {
+        this.expect('[', "an array");
+        this.push(true);
+    }
+
+    public void endArray() throws JsonCodecException {
+        this.expect(']', "']'");
+        --depth;
+    }
+
+    /** Return true if the current object or array has another member,
+     *  consuming the comma before it, or false if it is about to end.
+     */
+    public boolean hasNext() throws JsonCodecException {
+        int d = depth - 1;
+        if(d < 0) {
+            throw new IllegalStateException("JsonReader.hasNext() called outside an object or array.");
+        }
+        char close = inArray[d] ? ']' : '}';
+        int c = this.skipWhitespace();
+        if(c == close) {
+            return false;
+        } else if(needsComma[d]) {
+            if(c != ',') {
+                throw this.error("',' or '" + close + "'");
+            }
+            ++pos;
+            if(this.skipWhitespace() == close) {
+                return false; // tolerate a trailing comma
+            }
+        }
+        needsComma[d] = true;
+        if(inArray[d]) {
+            ++indices[d];
+        }
+        return true;
+    }
+
+    /** Read the next field name, returning its index in fields. Throw if it
+     *  isn't one of them. Unless the name contains escapes, no String is
+     *  allocated.
+     */
+    public int nextField(String[] fields) throws JsonCodecException {
+        int nameStart = this.skipWhitespace() == '"' ? pos : -1;
+        if(nameStart < 0) {
+            throw this.error("a field name");
+        }
+        int nameEnd = this.skipString();
+        int index = -1;
+        int backslash = json.indexOf('\\', nameStart + 1);
+        if(backslash < 0 || backslash >= nameEnd) {
+            int length = nameEnd - nameStart - 2;
+            for(int i=0; i<fields.length; i++) {
+                if(fields[i].length() == length
+                        && json.regionMatches(nameStart + 1, fields[i], 0, length)) {
+                    index = i;
+                    break;
+                }
+            }
+        } else {
+            String name = this.decodeString(nameStart);
+            for(int i=0; i<fields.length; i++) {
+                if(fields[i].equals(name)) {
+                    index = i;
+                    break;
+                }
+            }
+        }
+        if(index < 0) {
+            String name = this.decodeString(nameStart);
+            StringBuilder sb = new StringBuilder();
+            for(String field: fields) {
+                if(sb.length() > 0) {
+                    sb.append(", ");
+                }
+                sb.append(field);
+            }
+            throw this.error(nameStart, "Unknown field \"" + name + "\" at " + this.path()
+                + " " + this.location(nameStart) + ". Expected one of: " + sb + ".");
+        }
+        names[depth - 1] = fields[index];
+        this.expectColon();
+        return index;
+    }
+
+    /** Read the next field name, whatever it is. */
+    public String nextName() throws JsonCodecException {
+        if(this.skipWhitespace() != '"') {
+            throw this.error("a field name");
+        }
+        String name = this.decodeString(pos);
+        this.skipString();
+        names[depth - 1] = name;
+        this.expectColon();
+        return name;
+    }
+
+    /** If the next value is null, consume it and return true. */
+    public boolean nextNull() throws JsonCodecException {
+        if(this.skipWhitespace() == 'n') {
+            this.expectLiteral("null", "null");
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    public boolean nextBoolean() throws JsonCodecException {
+        int c = this.skipWhitespace();
+        if(c == 't') {
+            this.expectLiteral("true", "true or false");
+            return true;
+        } else if(c == 'f') {
+            this.expectLiteral("false", "true or false");
+            return false;
+        } else {
+            throw this.error("true or false");
+        }
+    }
+
+    public String nextString() throws JsonCodecException {
+        if(this.skipWhitespace() != '"') {
+            throw this.error("a string");
+        }
+        String s = this.decodeString(pos);
+        this.skipString();
+        return s;
+    }
+
+    public double nextDouble() throws JsonCodecException {
+        this.scanNumber("a number");
+        double value = this.numberValue();
+        if(Double.isInfinite(value)) {
+            throw this.error(numberStart, "a finite number", json.substring(numberStart, pos));
+        }
+        return value;
+    }
+
+    /** Read an integer. Accept a number with a fraction or exponent, like
+     *  8000.0 or 8e3, only if its value is a whole number.
+     */
+    public long nextLong() throws JsonCodecException {
+        this.scanNumber("an integer");
+        if(numberIntegral && numberExact && numberMantissa < MAX_EXACT_MANTISSA) {
+            return numberNegative ? -numberMantissa : numberMantissa;
+        }
+        double value = this.numberValue();
+        if(value != Math.rint(value) || value < Long.MIN_VALUE || value > Long.MAX_VALUE) {
+            throw this.error(numberStart, "an integer", json.substring(numberStart, pos));
+        }
+        return (long) value;
+    }
+
+    public int nextInt() throws JsonCodecException {
+        this.skipWhitespace();
+        int start = pos;
+        long value = this.nextLong();
+        if(value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw this.error(start, "a 32-bit integer", json.substring(start, pos));
+        }
+        return (int) value;
+    }
+
+    /** Skip the next value, whatever it is. Return the offset where it began,
+     *  so that the caller can hand json[start:getPosition()] to another
+     *  reader later.
+     */
+    public int skipValue() throws JsonCodecException {
+        int start;
+        switch(this.peek()) {
+            case BEGIN_OBJECT:
+                start = pos;
+                this.beginObject();
+                while(this.hasNext()) {
+                    this.nextName();
+                    this.skipValue();
+                }
+                this.endObject();
+                return start;
+            case BEGIN_ARRAY:
+                start = pos;
+                this.beginArray();
+                while(this.hasNext()) {
+                    this.skipValue();
+                }
+                this.endArray();
+                return start;
+            case STRING:
+                start = pos;
+                this.skipString();
+                return start;
+            case NUMBER:
+                this.scanNumber("a number");
+                return numberStart;
+            case BOOLEAN:
+                start = pos;
+                this.nextBoolean();
+                return start;
+            case NULL:
+                start = pos;
+                this.nextNull();
+                return start;
+            default:
+                throw this.error("a JSON value");
+        }
+    }
+
+    /** Throw unless only whitespace remains. */
+    public void endDocument() throws JsonCodecException {
+        if(this.skipWhitespace() >= 0) {
+            throw this.error("the end of the JSON");
+        }
+    }
+
+    /** Report a value that is well-formed JSON but unacceptable to a codec,
+     *  like a ControlQuad with three corners.
+     */
+    public JsonCodecException invalid(int position, String problem) {
+        return this.error(position, problem + " at " + this.path() + " " + this.location(position) + ".");
+    }
+
+    protected void push(boolean array) {
+        if(depth == inArray.length) {
+            int n = depth * 2;
+            inArray = Arrays.copyOf(inArray, n);
+            needsComma = Arrays.copyOf(needsComma, n);
+            names = Arrays.copyOf(names, n);
+            indices = Arrays.copyOf(indices, n);
+        }
+        inArray[depth] = array;
+        needsComma[depth] = false;
+        names[depth] = null;
+        indices[depth] = -1;
+        ++depth;
+    }
+
+    /** Skip whitespace and return the next character without consuming it,
+     *  or -1 at the end of the input.
+     */
+    protected int skipWhitespace() {
+        while(pos < end) {
+            char c = json.charAt(pos);
+            if(c == ' ' || c == '\n' || c == '\r' || c == '\t') {
+                ++pos;
+            } else {
+                return c;
+            }
+        }
+        return -1;
+    }
+
+    protected void expect(char c, String expected) throws JsonCodecException {
+        if(this.skipWhitespace() != c) {
+            throw this.error(expected);
+        }
+        ++pos;
+    }
+
+    protected void expectColon() throws JsonCodecException {
+        if(this.skipWhitespace() != ':') {
+            throw this.error("':' after field \"" + names[depth - 1] + "\"");
+        }
+        ++pos;
+    }
+
+    protected void expectLiteral(String literal, String expected) throws JsonCodecException {
+        int length = literal.length();
+        if(pos + length > end || !json.regionMatches(pos, literal, 0, length)
+                || (pos + length < end && isWordChar(json.charAt(pos + length))))
+        {
+            throw this.error(expected);
+        }
+        pos += length;
+    }
+
+    private static boolean isWordChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '.' || c == '-' || c == '+';
+    }
+
+    /** Return the value of an ASCII hex digit, or -1. Integer.parseInt would
+     *  also take a sign, and Character.digit other scripts' digits.
+     */
+    private static int hexDigit(char c) {
+        if(c >= '0' && c <= '9') {
+            return c - '0';
+        } else if(c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        } else if(c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        } else {
+            return -1;
+        }
+    }
+
+    /** Skip the string starting at pos, which is a '"'. Return its end. */
+    protected int skipString() throws JsonCodecException {
+        int start = pos;
+        ++pos;
+        while(pos < end) {
+            char c = json.charAt(pos++);
+            if(c == '"') {
+                return pos;
+            } else if(c == '\\') {
+                ++pos;
+            } else if(c < 0x20) {
+                throw this.error(pos - 1, "a '\"' (control characters must be escaped in strings)",
+                    "a raw control character");
+            }
+        }
+        pos = start;
+        throw this.error(start, "a terminated string", "a string running to the end of the input");
+    }
+
+    /** Decode the string starting at the given '"' without moving pos. */
+    protected String decodeString(int start) throws JsonCodecException {
+        int i = start + 1;
+        int backslash = json.indexOf('\\', i);
+        int quote = json.indexOf('"', i);
+        if(quote < 0 || quote >= end) {
+            throw this.error(start, "a terminated string", "a string running to the end of the input");
+        } else if(backslash < 0 || backslash > quote) {
+            return json.substring(i, quote);
+        }
+        StringBuilder sb = new StringBuilder(quote - i + 16);
+        while(i < end) {
+            char c = json.charAt(i++);
+            if(c == '"') {
+                return sb.toString();
+            } else if(c != '\\') {
+                sb.append(c);
+            } else if(i < end) {
+                char e = json.charAt(i++);
+                switch(e) {
+                    case '"': case '\\': case '/': sb.append(e); break;
+                    case 'b': sb.append('\b'); break;
+                    case 'f': sb.append('\f'); break;
+                    case 'n': sb.append('\n'); break;
+                    case 'r': sb.append('\r'); break;
+                    case 't': sb.append('\t'); break;
+                    case 'u':
+                        if(i + 4 > end) {
+                            throw this.error(i - 2, "a \\uXXXX escape", "a truncated escape");
+                        }
+                        int code = 0;
+                        for(int j=i; j<i + 4; j++) {
+                            int digit = hexDigit(json.charAt(j));
+                            if(digit < 0) {
+                                throw this.error(i - 2, "a \\uXXXX escape", json.substring(i - 2, i + 4));
+                            }
+                            code = code * 16 + digit;
+                        }
+                        sb.append((char) code);
+                        i += 4;
+                        break;
+                    default:
+                        throw this.error(i - 2, "a valid escape", "\\" + e);
+                }
+            }
+        }
+        throw this.error(start, "a terminated string", "a string running to the end of the input");
+    }
+
+    /** Scan a number token, validating it against the JSON grammar. Digits
+     *  accumulate into numberMantissa as long as they fit exactly, so that
+     *  numberValue() can usually skip Double.parseDouble and its garbage.
+     */
+    protected void scanNumber(String expected) throws JsonCodecException {
+        this.skipWhitespace();
+        numberStart = pos;
+        numberNegative = false;
+        numberMantissa = 0;
+        numberScale = 0;
+        numberIntegral = true;
+        numberExact = true;
+
+        if(pos < end && json.charAt(pos) == '-') {
+            numberNegative = true;
+            ++pos;
+        }
+        int integerStart = pos;
+        int integerDigits = this.scanDigits(false);
+        if(integerDigits == 0) {
+            pos = numberStart;
+            throw this.error(expected);
+        } else if(integerDigits > 1 && json.charAt(integerStart) == '0') {
+            // JSON forbids leading zeros, and Boon reads 010 as 10.
+            throw this.error(numberStart, expected + " without leading zeros",
+                json.substring(numberStart, pos));
+        }
+        if(pos < end && json.charAt(pos) == '.') {
+            ++pos;
+            numberIntegral = false;
+            if(this.scanDigits(true) == 0) {
+                throw this.error(numberStart, expected, json.substring(numberStart, pos));
+            }
+        }
+        if(pos < end && (json.charAt(pos) == 'e' || json.charAt(pos) == 'E')) {
+            ++pos;
+            numberIntegral = false;
+            boolean negativeExponent = false;
+            if(pos < end && (json.charAt(pos) == '+' || json.charAt(pos) == '-')) {
+                negativeExponent = json.charAt(pos) == '-';
+                ++pos;
+            }
+            int exponent = 0;
+            int exponentStart = pos;
+            while(pos < end && json.charAt(pos) >= '0' && json.charAt(pos) <= '9') {
+                if(exponent < 10000) {
+                    exponent = exponent * 10 + (json.charAt(pos) - '0');
+                }
+                ++pos;
+            }
+            if(pos == exponentStart) {
+                throw this.error(numberStart, expected, json.substring(numberStart, pos));
+            }
+            numberScale += negativeExponent ? -exponent : exponent;
+        }
+        if(pos < end && isWordChar(json.charAt(pos))) {
+            while(pos < end && isWordChar(json.charAt(pos))) {
+                ++pos;
+            }
+            throw this.error(numberStart, expected, json.substring(numberStart, pos));
+        }
+    }
+
+    /** Scan a run of digits into the mantissa. Return how many there were. */
+    private int scanDigits(boolean fraction) {
+        int start = pos;
+        while(pos < end) {
+            char c = json.charAt(pos);
+            if(c < '0' || c > '9') {
+                break;
+            }
+            if(numberMantissa < MAX_EXACT_MANTISSA / 10) {
+                numberMantissa = numberMantissa * 10 + (c - '0');
+                if(fraction) {
+                    --numberScale;
+                }
+            } else {
+                numberExact = false;
+                if(!fraction) {
+                    ++numberScale;
+                }
+            }
+            ++pos;
+        }
+        return pos - start;
+    }
+
+    /** Convert the last scanned number. An exact mantissa scaled by an exact
+     *  power of ten rounds only once, so it gives the same double as
+     *  Double.parseDouble (Clinger's fast path). Otherwise fall back.
+     */
+    protected double numberValue() {
+        double value;
+        if(numberExact && numberScale >= -22 && numberScale <= 22) {
+            value = numberScale < 0
+                ? numberMantissa / POW10[-numberScale]
+                : numberMantissa * POW10[numberScale];
+            return numberNegative ? -value : value;
+        } else {
+            return Double.parseDouble(json.substring(numberStart, pos));
+        }
+    }
+
+    /** Return the path to the value being read, like $.palette[2].r. */
+    protected String path() {
+        StringBuilder sb = new StringBuilder("$");
+        for(int d=0; d<depth; d++) {
+            if(inArray[d]) {
+                if(indices[d] >= 0) {
+                    sb.append('[').append(indices[d]).append(']');
+                }
+            } else if(names[d] != null) {
+                sb.append('.').append(names[d]);
+            }
+        }
+        return sb.toString();
+    }
+
+    protected String location(int position) {
+        int[] lineColumn = this.lineAndColumn(position);
+        return "(line " + lineColumn[0] + ", column " + lineColumn[1] + ")";
+    }
+
+    /** Count lines and columns from 1. Only needed when reporting errors. */
+    protected int[] lineAndColumn(int position) {
+        int line = 1;
+        int column = 1;
+        for(int i=0; i<position && i<json.length(); i++) {
+            if(json.charAt(i) == '\n') {
+                ++line;
+                column = 1;
+            } else {
+                ++column;
+            }
+        }
+        return new int[] {line, column};
+    }
+
+    protected JsonCodecException error(String expected) {
+        String found;
+        if(pos >= end) {
+            found = "the end of the input";
+        } else {
+            found = "'" + json.charAt(pos) + "'";
+        }
+        return this.error(pos, expected, found);
+    }
+
+    protected JsonCodecException error(int position, String expected, String found) {
+        return this.error(position, "Expected " + expected + " at " + this.path() + " "
+            + this.location(position) + " but found " + found);
+    }
+
+    protected JsonCodecException error(int position, String message) {
+        int[] lineColumn = this.lineAndColumn(position);
+        return new JsonCodecException(message, this.path(), lineColumn[0], lineColumn[1]);
+    }
+
+    public String toString() {
+        return "JsonReader(" + this.path() + " " + this.location(pos) + ")";
+    }
+}
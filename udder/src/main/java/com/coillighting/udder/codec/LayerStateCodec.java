@@ -0,0 +1,25 @@
+package com.coillighting.udder.codec;
+
+import com.coillighting.udder.mix.LayerState;
+
+/** Decode {"level": 0.55}. */
+public class LayerStateCodec implements StateCodec<LayerState> {
+
+    private static final String[] FIELDS = {"level"};
+
+    public Class<LayerState> getStateClass() {
+        return LayerState.class;
+    }
+
+    public LayerState decode(JsonReader reader) throws JsonCodecException {
+        float level = 0.0f;
+        reader.beginObject();
+        while(reader.hasNext()) {
+            switch(reader.nextField(FIELDS)) {
+                case 0: level = (float) reader.nextDouble(); break;
+            }
+        }
+        reader.endObject();
+        return new LayerState(level);
+    }
+}
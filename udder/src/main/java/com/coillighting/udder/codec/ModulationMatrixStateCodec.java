@@ -0,0 +1,70 @@
+package com.coillighting.udder.codec;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.coillighting.udder.mix.ModulationMatrixState;
+import com.coillighting.udder.mix.ModulationState;
+
+/** Decode {"bindings": [{"target": "/mixer0/layer3", "parameter": "level",
+ *  "wave": "sinusoidal", "periodMillis": 8000, "depth": 0.5, "offset": 0.25},
+ *  ...]}. Within a binding, target is required, and so is periodMillis
+ *  unless wave is "constant"; ModulationMatrix rejects a missing or
+ *  non-positive period. Parameter defaults to "level", wave to
+ *  "sinusoidal", depth to 1.0 and offset to 0.0.
+ */
+public class ModulationMatrixStateCodec implements StateCodec<ModulationMatrixState> {
+
+    private static final String[] FIELDS = {"bindings"};
+
+    private static final String[] BINDING_FIELDS = {"target", "parameter", "wave",
+        "periodMillis", "depth", "offset"};
+
+    public Class<ModulationMatrixState> getStateClass() {
+        return ModulationMatrixState.class;
+    }
+
+    public ModulationMatrixState decode(JsonReader reader) throws JsonCodecException {
+        ModulationState[] bindings = null;
+        reader.beginObject();
+        while(reader.hasNext()) {
+            switch(reader.nextField(FIELDS)) {
+                case 0: bindings = reader.nextNull() ? null : this.decodeBindings(reader); break;
+            }
+        }
+        reader.endObject();
+        return new ModulationMatrixState(bindings);
+    }
+
+    protected ModulationState[] decodeBindings(JsonReader reader) throws JsonCodecException {
+        List<ModulationState> bindings = new ArrayList<ModulationState>();
+        reader.beginArray();
+        while(reader.hasNext()) {
+            bindings.add(this.decodeBinding(reader));
+        }
+        reader.endArray();
+        return bindings.toArray(new ModulationState[bindings.size()]);
+    }
+
+    protected ModulationState decodeBinding(JsonReader reader) throws JsonCodecException {
+        String target = null;
+        String parameter = null;
+        String wave = null;
+        long periodMillis = 0;
+        double depth = 1.0;
+        double offset = 0.0;
+        reader.beginObject();
+        while(reader.hasNext()) {
+            switch(reader.nextField(BINDING_FIELDS)) {
+                case 0: target = reader.nextNull() ? null : reader.nextString(); break;
+                case 1: parameter = reader.nextNull() ? null : reader.nextString(); break;
+                case 2: wave = reader.nextNull() ? null : reader.nextString(); break;
+                case 3: periodMillis = reader.nextLong(); break;
+                case 4: depth = reader.nextDouble(); break;
+                case 5: offset = reader.nextDouble(); break;
+            }
+        }
+        reader.endObject();
+        return new ModulationState(target, parameter, wave, periodMillis, depth, offset);
+    }
+}
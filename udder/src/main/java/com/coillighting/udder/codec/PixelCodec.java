@@ -0,0 +1,34 @@
+package com.coillighting.udder.codec;
+
+import com.coillighting.udder.model.Pixel;
+
+/** Decode {"r": 1.0, "g": 0.6, "b": 0.5}, the state of MonochromeEffect, and
+ *  the colors inside several other states.
+ */
+public class PixelCodec implements StateCodec<Pixel> {
+
+    private static final String[] FIELDS = {"r", "g", "b"};
+
+    public Class<Pixel> getStateClass() {
+        return Pixel.class;
+    }
+
+    public Pixel decode(JsonReader reader) throws JsonCodecException {
+        Pixel pixel = new Pixel();
+        reader.beginObject();
+        while(reader.hasNext()) {
+            switch(reader.nextField(FIELDS)) {
+                case 0: pixel.r = (float) reader.nextDouble(); break;
+                case 1: pixel.g = (float) reader.nextDouble(); break;
+                case 2: pixel.b = (float) reader.nextDouble(); break;
+            }
+        }
+        reader.endObject();
+        return pixel;
+    }
+
+    /** Decode a Pixel, or null. */
+    public Pixel decodeNullable(JsonReader reader) throws JsonCodecException {
+        return reader.nextNull() ? null : this.decode(reader);
+    }
+}
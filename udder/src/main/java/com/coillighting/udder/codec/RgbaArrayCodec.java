@@ -0,0 +1,57 @@
+package com.coillighting.udder.codec;
+
+import java.util.Arrays;
+
+import com.coillighting.udder.model.RgbaArray;
+
+/** Decode {"pixels": [4286578943, ...]}, the state of ArrayEffect.
+ *
+ *  Clients write pixels as unsigned 32-bit ARGB, which overflows an int, so
+ *  we read longs and keep the low 32 bits, as Boon does. The values are
+ *  gathered into a primitive array first, so that the only boxing is into
+ *  the Integer[] that RgbaArray requires.
+ */
+public class RgbaArrayCodec implements StateCodec<RgbaArray> {
+
+    private static final String[] FIELDS = {"pixels"};
+
+    public Class<RgbaArray> getStateClass() {
+        return RgbaArray.class;
+    }
+
+    public RgbaArray decode(JsonReader reader) throws JsonCodecException {
+        Integer[] pixels = null;
+        reader.beginObject();
+        while(reader.hasNext()) {
+            switch(reader.nextField(FIELDS)) {
+                case 0: pixels = reader.nextNull() ? null : this.decodePixels(reader); break;
+            }
+        }
+        reader.endObject();
+        return new RgbaArray(pixels);
+    }
+
+    protected Integer[] decodePixels(JsonReader reader) throws JsonCodecException {
+        int[] values = new int[256];
+        int count = 0;
+        reader.beginArray();
+        while(reader.hasNext()) {
+            int start = reader.getPosition();
+            long value = reader.nextLong();
+            if(value < Integer.MIN_VALUE || value > 0xFFFFFFFFL) {
+                throw reader.invalid(start, "Pixel " + value + " is out of 32-bit ARGB range");
+            }
+            if(count == values.length) {
+                values = Arrays.copyOf(values, count * 2);
+            }
+            values[count++] = (int) value;
+        }
+        reader.endArray();
+
+        Integer[] pixels = new Integer[count];
+        for(int i=0; i<count; i++) {
+            pixels[i] = values[i];
+        }
+        return pixels;
+    }
+}
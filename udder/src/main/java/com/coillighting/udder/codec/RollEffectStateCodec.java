@@ -0,0 +1,38 @@
+package com.coillighting.udder.codec;
+
+import com.coillighting.udder.effect.RollEffectState;
+
+/** Decode {"filename": "images/...", "xPeriodMillis": 4000,
+ *  "yPeriodMillis": 0, "xRotate": 0.25, "yRotate": null}. Every field is
+ *  optional, and null means "leave unchanged."
+ */
+public class RollEffectStateCodec implements StateCodec<RollEffectState> {
+
+    private static final String[] FIELDS = {"filename", "xPeriodMillis",
+        "yPeriodMillis", "xRotate", "yRotate"};
+
+    public Class<RollEffectState> getStateClass() {
+        return RollEffectState.class;
+    }
+
+    public RollEffectState decode(JsonReader reader) throws JsonCodecException {
+        String filename = null;
+        Integer xPeriodMillis = null;
+        Integer yPeriodMillis = null;
+        Double xRotate = null;
+        Double yRotate = null;
+
+        reader.beginObject();
+        while(reader.hasNext()) {
+            switch(reader.nextField(FIELDS)) {
+                case 0: filename = reader.nextNull() ? null : reader.nextString(); break;
+                case 1: xPeriodMillis = reader.nextNull() ? null : Integer.valueOf(reader.nextInt()); break;
+                case 2: yPeriodMillis = reader.nextNull() ? null : Integer.valueOf(reader.nextInt()); break;
+                case 3: xRotate = reader.nextNull() ? null : Double.valueOf(reader.nextDouble()); break;
+                case 4: yRotate = reader.nextNull() ? null : Double.valueOf(reader.nextDouble()); break;
+            }
+        }
+        reader.endObject();
+        return new RollEffectState(filename, xPeriodMillis, yPeriodMillis, xRotate, yRotate);
+    }
+}
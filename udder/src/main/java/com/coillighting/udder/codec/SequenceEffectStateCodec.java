@@ -0,0 +1,36 @@
+package com.coillighting.udder.codec;
+
+import com.coillighting.udder.effect.SequenceEffectState;
+
+/** Decode {"filename": "images/...", "framesPerSecond": 24.0,
+ *  "frameWidth": 320, "frameHeight": 180}. Every field is optional, and null
+ *  means "leave unchanged."
+ */
+public class SequenceEffectStateCodec implements StateCodec<SequenceEffectState> {
+
+    private static final String[] FIELDS = {"filename", "framesPerSecond",
+        "frameWidth", "frameHeight"};
+
+    public Class<SequenceEffectState> getStateClass() {
+        return SequenceEffectState.class;
+    }
+
+    public SequenceEffectState decode(JsonReader reader) throws JsonCodecException {
+        String filename = null;
+        Double framesPerSecond = null;
+        Integer frameWidth = null;
+        Integer frameHeight = null;
+
+        reader.beginObject();
+        while(reader.hasNext()) {
+            switch(reader.nextField(FIELDS)) {
+                case 0: filename = reader.nextNull() ? null : reader.nextString(); break;
+                case 1: framesPerSecond = reader.nextNull() ? null : Double.valueOf(reader.nextDouble()); break;
+                case 2: frameWidth = reader.nextNull() ? null : Integer.valueOf(reader.nextInt()); break;
+                case 3: frameHeight = reader.nextNull() ? null : Integer.valueOf(reader.nextInt()); break;
+            }
+        }
+        reader.endObject();
+        return new SequenceEffectState(filename, framesPerSecond, frameWidth, frameHeight);
+    }
+}
@@ -0,0 +1,23 @@
+package com.coillighting.udder.codec;
+
+/** Decode the JSON state for one Stateful class directly from a JsonReader,
+ *  without Boon's reflection and generic intermediate objects.
+ *
+ *  Codecs follow Boon's conventions for the same classes, so that a command
+ *  means the same thing whichever path parsed it: a missing field takes its
+ *  Java default (0, false or null) and a trailing comma is tolerated. Unlike
+ *  Boon, they reject unknown fields, strings where numbers belong, and
+ *  fractional integers, rather than silently guessing.
+ *
+ *  Codecs are stateless, so one instance serves every thread.
+ */
+public interface StateCodec<T> {
+
+    public Class<T> getStateClass();
+
+    /** Read exactly one JSON value (normally an object) from the reader and
+     *  return the state it describes. Never return null.
+     */
+    public T decode(JsonReader reader) throws JsonCodecException;
+
+}
@@ -0,0 +1,67 @@
+package com.coillighting.udder.codec;
+
+import com.coillighting.udder.effect.TextureEffectState;
+import com.coillighting.udder.geometry.ControlQuad;
+
+/** Decode {"filename": "images/...", "automatic": false,
+ *  "maxTempoMillis": 0, "controlQuad": [[0,0], [0,1], [1,0], [1,1]]}.
+ *  The controlQuad is null or four [x, y] corners in sw, se, nw, ne order.
+ */
+public class TextureEffectStateCodec implements StateCodec<TextureEffectState> {
+
+    private static final String[] FIELDS = {"filename", "automatic",
+        "maxTempoMillis", "controlQuad"};
+
+    public Class<TextureEffectState> getStateClass() {
+        return TextureEffectState.class;
+    }
+
+    public TextureEffectState decode(JsonReader reader) throws JsonCodecException {
+        String filename = null;
+        boolean automatic = false;
+        int maxTempoMillis = 0;
+        ControlQuad controlQuad = null;
+
+        reader.beginObject();
+        while(reader.hasNext()) {
+            switch(reader.nextField(FIELDS)) {
+                case 0: filename = reader.nextNull() ? null : reader.nextString(); break;
+                case 1: automatic = reader.nextBoolean(); break;
+                case 2: maxTempoMillis = reader.nextInt(); break;
+                case 3: controlQuad = reader.nextNull() ? null : this.decodeControlQuad(reader); break;
+            }
+        }
+        reader.endObject();
+        return new TextureEffectState(filename, automatic, maxTempoMillis, controlQuad);
+    }
+
+    protected ControlQuad decodeControlQuad(JsonReader reader) throws JsonCodecException {
+        int start = reader.getPosition();
+        double[][] corners = new double[4][2];
+        int count = 0;
+        reader.beginArray();
+        while(reader.hasNext()) {
+            int cornerStart = reader.getPosition();
+            int coordinates = 0;
+            reader.beginArray();
+            while(reader.hasNext()) {
+                double value = reader.nextDouble();
+                if(count < 4 && coordinates < 2) {
+                    corners[count][coordinates] = value;
+                }
+                ++coordinates;
+            }
+            reader.endArray();
+            if(coordinates != 2) {
+                throw reader.invalid(cornerStart, "A controlQuad corner needs 2 coordinates, not "
+                    + coordinates + ",");
+            }
+            ++count;
+        }
+        reader.endArray();
+        if(count != 4) {
+            throw reader.invalid(start, "A controlQuad needs 4 corners, not " + count + ",");
+        }
+        return new ControlQuad(corners);
+    }
+}
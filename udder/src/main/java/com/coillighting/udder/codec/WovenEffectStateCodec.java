@@ -0,0 +1,32 @@
+package com.coillighting.udder.codec;
+
+import com.coillighting.udder.effect.woven.WovenEffectState;
+import com.coillighting.udder.model.Pixel;
+
+/** Decode {"warpThreadColor": {"r":..., "g":..., "b":...},
+ *  "weftThreadColor": {...}}. Either color may be omitted or null.
+ */
+public class WovenEffectStateCodec implements StateCodec<WovenEffectState> {
+
+    private static final String[] FIELDS = {"warpThreadColor", "weftThreadColor"};
+
+    protected PixelCodec pixelCodec = new PixelCodec();
+
+    public Class<WovenEffectState> getStateClass() {
+        return WovenEffectState.class;
+    }
+
+    public WovenEffectState decode(JsonReader reader) throws JsonCodecException {
+        Pixel warpThreadColor = null;
+        Pixel weftThreadColor = null;
+        reader.beginObject();
+        while(reader.hasNext()) {
+            switch(reader.nextField(FIELDS)) {
+                case 0: warpThreadColor = pixelCodec.decodeNullable(reader); break;
+                case 1: weftThreadColor = pixelCodec.decodeNullable(reader); break;
+            }
+        }
+        reader.endObject();
+        return new WovenEffectState(warpThreadColor, weftThreadColor);
+    }
+}
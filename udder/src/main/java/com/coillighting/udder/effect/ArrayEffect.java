@@ -2,11 +2,38 @@ package com.coillighting.udder.effect;
 
 import java.util.List;
 
+import com.coillighting.udder.mix.TimePoint;
 import com.coillighting.udder.model.Pixel;
 import com.coillighting.udder.model.RgbaArray;
 
+/** Display an array of colors supplied from outside, one per device, in
+ *  patch sheet order.
+ *
+ *  Colors arrive either as an RgbaArray command (JSON, applied on the render
+ *  thread like any other command) or as raw frames of packed 8-bit RGB bytes
+ *  submitted from another thread via submitRgb (see PixelIngestServer). Raw
+ *  frames are double buffered: the submitting thread copies each frame into
+ *  the back buffer, and at its next animate() the render thread swaps the
+ *  buffers and unpacks the front one into pixels. If several frames arrive
+ *  between two render ticks, only the most recent is displayed.
+ */
 public class ArrayEffect extends ArrayEffectBase {
 
+    /** Convert an 8-bit channel to a float without dividing per pixel. */
+    private static final float[] UNIT = new float[256];
+    static {
+        for(int i=0; i<UNIT.length; i++) {
+            UNIT[i] = (float) i / 255.0f;
+        }
+    }
+
+    protected final Object bufferLock = new Object();
+    protected byte[] backBuffer = null; // guarded by bufferLock
+    protected int backLength = 0; // guarded by bufferLock
+    protected byte[] frontBuffer = null; // render thread only
+    protected int frontLength = 0; // render thread only
+    protected volatile boolean framePending = false;
+
     public ArrayEffect(RgbaArray wrappedPixels) {
         super(wrappedPixels);
     }
@@ -27,4 +54,60 @@ public class ArrayEffect extends ArrayEffectBase {
         }
     }
 
+    /** Threadsafe. Queue a frame of packed RGB bytes (3 per device, in patch
+     *  sheet order) for display at the next render tick, replacing any frame
+     *  still waiting there. The caller keeps ownership of rgb. Return true if
+     *  a waiting frame was replaced, i.e. it will never be displayed.
+     */
+    public boolean submitRgb(byte[] rgb, int offset, int length) {
+        if(rgb == null) {
+            throw new NullPointerException("A frame of RGB bytes is required.");
+        } else if(offset < 0 || length < 0 || offset + length > rgb.length) {
+            throw new IndexOutOfBoundsException("Invalid RGB frame: offset " + offset
+                + ", length " + length + " in an array of " + rgb.length + " bytes.");
+        }
+        synchronized(bufferLock) {
+            if(backBuffer == null || backBuffer.length < length) {
+                backBuffer = new byte[length];
+            }
+            System.arraycopy(rgb, offset, backBuffer, 0, length);
+            backLength = length;
+            boolean replaced = framePending;
+            framePending = true;
+            return replaced;
+        }
+    }
+
+    /** Display the latest submitted frame, if there is a new one. */
+    public void animate(TimePoint timePoint) {
+        if(framePending) {
+            synchronized(bufferLock) {
+                byte[] swap = frontBuffer;
+                frontBuffer = backBuffer;
+                frontLength = backLength;
+                backBuffer = swap;
+                framePending = false;
+            }
+            this.unpackRgb(frontBuffer, frontLength);
+        }
+    }
+
+    /** Copy packed RGB into pixels, blacking out any devices beyond the end
+     *  of the frame, as setPixels does.
+     */
+    protected void unpackRgb(byte[] rgb, int length) {
+        if(pixels != null) {
+            int count = Math.min(pixels.length, length / 3);
+            int j = 0;
+            for(int i=0; i<count; i++) {
+                pixels[i].setColor(UNIT[rgb[j] & 0xFF], UNIT[rgb[j + 1] & 0xFF],
+                    UNIT[rgb[j + 2] & 0xFF]);
+                j += 3;
+            }
+            for(int i=count; i<pixels.length; i++) {
+                pixels[i].setBlack();
+            }
+        }
+    }
+
 }
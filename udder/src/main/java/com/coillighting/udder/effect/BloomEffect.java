@@ -1,9 +1,11 @@
 package com.coillighting.udder.effect;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import com.coillighting.udder.geometry.BoundingCube;
 import com.coillighting.udder.geometry.TriangularSequence;
 import com.coillighting.udder.mix.TimePoint;
-import com.coillighting.udder.model.Device;
 import com.coillighting.udder.model.Pixel;
 
 import static com.coillighting.udder.util.LogUtil.log;
@@ -24,8 +26,38 @@ public class BloomEffect extends EffectBase {
 
     // FUTURE parameterize scale modulation
     // scale: device space units per thread
-    protected double scale = 1.0;
-    protected double scaleIncrement = 0.05;
+    protected static final double SCALE_MIN = 1.0;
+    protected static final double SCALE_MAX = 20.0;
+
+    // Keep this increment small or it's too discontinuous to read
+    // and becomes a seizuretron.
+    protected static final double SCALE_INCREMENT = 0.05;
+
+    /** One cycle of the scale, one value per frame, from SCALE_MIN up to
+     *  SCALE_MAX and back down again. Each value is summed exactly as the
+     *  scale used to be, frame by frame, so that it picks exactly the same
+     *  colors.
+     */
+    protected static final double[] SCALES = createScales();
+
+    protected double scale = SCALES[0];
+    protected int scaleStep = 0;
+
+    /** Each device's x (y) offset, transformed by the symmetry, or null if
+     *  that axis is disabled. Recomputed on the next frame after the patch
+     *  or the symmetry changes.
+     */
+    protected double[] xOffsets = null;
+    protected double[] yOffsets = null;
+    protected boolean offsetsValid = false;
+
+    /** For each scale step, each device's index into the palette, computed
+     *  the first time the scale reaches that step after the offsets or the
+     *  palette size change. Then a frame is a lookup and a palette copy per
+     *  device, rather than a square root per axis. That's one byte per
+     *  device per step, or about 1.7 MB for the Dairy's 2,280 devices.
+     */
+    protected byte[][] colorTables = null;
 
     /** Reflect the effect down the middle. */
     protected boolean enableBilateralSym = true;
@@ -94,6 +126,9 @@ public class BloomEffect extends EffectBase {
                 size = max;
             }
 
+            if(repertoire.length != BloomTiling.REPERTOIRES[size].length) {
+                this.clearColorTables();
+            }
             repertoire = BloomTiling.REPERTOIRES[size];
             tiling = BloomTiling.TILINGS_2D[repertoire.length];
             palette = new Pixel[size];
@@ -110,29 +145,33 @@ public class BloomEffect extends EffectBase {
         }
 
         Boolean bilateral = command.getEnableBilateralSym();
-        if(bilateral != null) {
+        if(bilateral != null && bilateral != enableBilateralSym) {
             enableBilateralSym = bilateral;
+            this.clearOffsets();
         }
 
         Boolean nested = command.getEnableNestedBilateralSym();
-        if(nested != null) {
+        if(nested != null && nested != enableNestedBilateralSym) {
             enableNestedBilateralSym = nested;
+            this.clearOffsets();
         }
 
         Boolean x = command.getEnableX();
-        if(x != null) {
+        if(x != null && x != enableX) {
             enableX = x;
+            this.clearOffsets();
         }
 
         Boolean y = command.getEnableY();
-        if(y != null) {
+        if(y != null && y != enableY) {
             enableY = y;
+            this.clearOffsets();
         }
     }
 
-    public void patchDevices(Device[] devices) {
-        super.patchDevices(devices);
-        deviceBounds = Device.getDeviceBoundingCube(devices);
+    public void installPatch(Object prepared) {
+        super.installPatch(prepared);
+        deviceBounds = ((PreparedPatch) prepared).deviceBounds;
         devMinX = deviceBounds.getMinX();
         devMinY = deviceBounds.getMinY();
         devWidth = deviceBounds.getWidth();
@@ -147,25 +186,47 @@ public class BloomEffect extends EffectBase {
         // zCenterOffset = devDepth * 0.5;
         // zQuarterOffset = devDepth * 0.25;
 
+        this.clearOffsets();
     }
 
     public void animate(TimePoint timePoint) {
-        Device dev = null;
-        double[] xyz = null;
-        double xoffset = 0.0;
-        double yoffset = 0.0;
-
-        // x and y palette index
-        int px = 0;
-        int py = 0;
+        if(!offsetsValid) {
+            this.foldOffsets();
+        }
+        if(colorTables == null) {
+            colorTables = new byte[SCALES.length][];
+        }
+        byte[] colors = colorTables[scaleStep];
+        if(colors == null) {
+            colors = this.createColorTable();
+            colorTables[scaleStep] = colors;
+        }
 
         for (int i = 0; i < devices.length; i++) {
-            dev = devices[i];
-            xyz = dev.getPoint();
+            pixels[i].setColor(palette[colors[i]]);
+        }
+
+        // Animate the scale, which translates to virtual threadcount.
+        // FUTURE: shuold timebase, not framebase, this so that it doesn't
+        // call attention to framerate variations. In practice the Dairy rig
+        // exhibits a pretty consistent framerate, so there was no need for
+        // the Luminescence show.
+        scaleStep = (scaleStep + 1) % SCALES.length;
+        scale = SCALES[scaleStep];
+    }
 
+    /** Transform each device's coordinates by the symmetry. */
+    protected void foldOffsets() {
+        final double[] xs = geometry.getX();
+        final double[] ys = geometry.getY();
+        final int count = devices == null ? 0 : devices.length;
+        xOffsets = enableX ? new double[count] : null;
+        yOffsets = enableY ? new double[count] : null;
+
+        for (int i = 0; i < count; i++) {
             // Symmetry is implemented as a transformation of each coordinate.
             if(enableX) {
-                xoffset = xyz[0] - devMinX;
+                double xoffset = xs[i] - devMinX;
                 if(enableBilateralSym) {
                     if(xoffset > xCenterOffset) {
                         xoffset = devWidth - xoffset;
@@ -174,12 +235,10 @@ public class BloomEffect extends EffectBase {
                         xoffset = xCenterOffset - xoffset;
                     }
                 }
-                px = TriangularSequence.oscillatingTriangularRootColor(xoffset, scale, repertoire);
-            } else {
-                px = 0;
+                xOffsets[i] = xoffset;
             }
             if(enableY) {
-                yoffset = xyz[1] - devMinY;
+                double yoffset = ys[i] - devMinY;
                 if(enableBilateralSym) {
                     if(yoffset > yCenterOffset) {
                         yoffset = devHeight - yoffset;
@@ -188,33 +247,70 @@ public class BloomEffect extends EffectBase {
                         yoffset = yCenterOffset - yoffset;
                     }
                 }
-                py = TriangularSequence.oscillatingTriangularRootColor(yoffset, scale, repertoire);
-            } else {
-                py = 0;
+                yOffsets[i] = yoffset;
             }
-
-            int colorIndex = tiling[px][py];
-            pixels[i].setColor(palette[colorIndex]);
         }
+        offsetsValid = true;
+        colorTables = null;
+    }
 
-        // Animate the scale, which translates to virtual threadcount.
-        // FUTURE: shuold timebase, not framebase, this so that it doesn't
-        // call attention to framerate variations. In practice the Dairy rig
-        // exhibits a pretty consistent framerate, so there was no need for
-        // the Luminescence show.
-        scale += scaleIncrement;
-        if(scale > 20.0) {
-            // Keep this increment small or it's too discontinuous to read
-            // and becomes a seizuretron.
-            scaleIncrement = -0.05;
-            scale = 20.0;
-        } else if(scale < 1.0) {
-            // FUTURE - Asymmetric increase and decrease times.
-            scaleIncrement = 0.05;
-            scale = 1.0;
+    /** Each device's palette index at the current scale. */
+    protected byte[] createColorTable() {
+        final int count = devices == null ? 0 : devices.length;
+        byte[] colors = new byte[count];
+
+        // x and y palette index
+        int px = 0;
+        int py = 0;
+
+        for (int i = 0; i < count; i++) {
+            if(xOffsets != null) {
+                px = TriangularSequence.oscillatingTriangularRootColor(xOffsets[i], scale, repertoire);
+            }
+            if(yOffsets != null) {
+                py = TriangularSequence.oscillatingTriangularRootColor(yOffsets[i], scale, repertoire);
+            }
+            colors[i] = (byte) tiling[px][py];
         }
+        return colors;
+    }
+
+    protected void clearOffsets() {
+        offsetsValid = false;
+        colorTables = null;
+    }
+
+    protected void clearColorTables() {
+        colorTables = null;
     }
 
+    /** Step the scale up by SCALE_INCREMENT each frame until it passes
+     *  SCALE_MAX, then down until it passes SCALE_MIN, clamping at each end,
+     *  and stop where it would start over.
+     */
+    protected static double[] createScales() {
+        List<Double> scales = new ArrayList<Double>();
+        double scale = SCALE_MIN;
+        double increment = SCALE_INCREMENT;
+        do {
+            scales.add(scale);
+            scale += increment;
+            if(scale > SCALE_MAX) {
+                increment = -SCALE_INCREMENT;
+                scale = SCALE_MAX;
+            } else if(scale < SCALE_MIN) {
+                // FUTURE - Asymmetric increase and decrease times.
+                increment = SCALE_INCREMENT;
+                scale = SCALE_MIN;
+            }
+        } while(!(scale == SCALE_MIN && increment == SCALE_INCREMENT));
+
+        double[] values = new double[scales.size()];
+        for(int i=0; i<values.length; i++) {
+            values[i] = scales.get(i);
+        }
+        return values;
+    }
 
 }
 
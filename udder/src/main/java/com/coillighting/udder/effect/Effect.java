@@ -5,6 +5,7 @@ import java.util.List;
 import com.coillighting.udder.infrastructure.Stateful;
 import com.coillighting.udder.mix.StatefulAnimator;
 import com.coillighting.udder.model.Device;
+import com.coillighting.udder.model.DeviceGeometry;
 import com.coillighting.udder.model.Pixel;
 
 /** When your drawing routine can be patched, animated, and rendered, then
@@ -23,9 +24,30 @@ public interface Effect extends StatefulAnimator {
      *
      * Expensive setup computations might be performed only when we
      * patchDevices, allowing us to animate pixels efficiently.
+     *
+     * Equivalent to installPatch(preparePatch(devices,
+     * new DeviceGeometry(devices))).
      */
     public void patchDevices(Device[] devices);
 
+    /** The first half of patchDevices, safe to call from any thread while
+     * the show is running: compute everything this effect needs for the
+     * given devices (its pixel array, per-device tables and so on) without
+     * touching this effect's live state, and return it in an opaque object
+     * for installPatch. Take ownership of nothing; clone devices if needed.
+     *
+     * The caller computes the geometry of the devices once, and every
+     * effect in the patch shares it.
+     */
+    public Object preparePatch(Device[] devices, DeviceGeometry geometry);
+
+    /** The second half of patchDevices, called on the render thread between
+     * two frames: adopt the result of an earlier preparePatch on this same
+     * effect. This should be cheap, ideally just a few assignments, so that
+     * a new patch can be swapped in without dropping a frame.
+     */
+    public void installPatch(Object prepared);
+
     /** Draw this object's current state as a pixel array. Normally, each
      * Renderer is also an Animator, and each call to render() follows a call
      * to animate(TimePoint). See Effect.
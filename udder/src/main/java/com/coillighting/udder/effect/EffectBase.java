@@ -2,8 +2,10 @@ package com.coillighting.udder.effect;
 
 import java.util.List;
 
+import com.coillighting.udder.geometry.BoundingCube;
 import com.coillighting.udder.mix.TimePoint;
 import com.coillighting.udder.model.Device;
+import com.coillighting.udder.model.DeviceGeometry;
 import com.coillighting.udder.model.Pixel;
 
 /** Abstract base class for typical Effects. */
@@ -12,24 +14,66 @@ public abstract class EffectBase implements Effect {
     protected Pixel[] pixels = null;
     protected Device[] devices = null;
 
+    /** Flat, normalized device coordinates, shared with the other effects
+     *  in this patch. Read these rather than calling Device.getPoint() in
+     *  animate(), which allocates.
+     */
+    protected DeviceGeometry geometry = null;
+
     /** Reinitialize the Pixel array to match the size of the new patch sheet. */
     public void patchDevices(Device[] devices) {
-        if(devices.length > 0) {
-            this.devices = devices.clone();
-        } else {
-            this.devices = null;
-        }
-        this.initPixels(this.devices.length);
+        this.installPatch(this.preparePatch(devices, new DeviceGeometry(devices)));
+    }
+
+    /** Subclasses with per-device tables of their own should extend
+     *  PreparedPatch, fill it in here and adopt it in installPatch.
+     */
+    public Object preparePatch(Device[] devices, DeviceGeometry geometry) {
+        return new PreparedPatch(devices, geometry);
+    }
+
+    public void installPatch(Object prepared) {
+        PreparedPatch patch = (PreparedPatch) prepared;
+        this.devices = patch.devices;
+        this.pixels = patch.pixels;
+        this.geometry = patch.geometry;
     }
 
     protected void initPixels(int length) {
+        this.pixels = createPixels(length);
+    }
+
+    protected static Pixel[] createPixels(int length) {
         if(length > 0) {
-            this.pixels = new Pixel[length];
-            for(int i=0; i<this.pixels.length; i++) {
-                this.pixels[i] = new Pixel();
+            Pixel[] pixels = new Pixel[length];
+            for(int i=0; i<pixels.length; i++) {
+                pixels[i] = new Pixel();
             }
+            return pixels;
         } else {
-            this.pixels = null;
+            return null;
+        }
+    }
+
+    /** Everything an EffectBase needs for a new patch, computed off the
+     *  render thread.
+     */
+    protected static class PreparedPatch {
+
+        public final Device[] devices;
+        public final Pixel[] pixels;
+        public final BoundingCube deviceBounds;
+        public final DeviceGeometry geometry;
+
+        public PreparedPatch(Device[] devices, DeviceGeometry geometry) {
+            if(devices.length > 0) {
+                this.devices = devices.clone();
+            } else {
+                this.devices = null;
+            }
+            this.pixels = createPixels(devices.length);
+            this.geometry = geometry;
+            this.deviceBounds = geometry.createBoundingCube();
         }
     }
 
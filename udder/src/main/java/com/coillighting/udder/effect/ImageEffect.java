@@ -4,4 +4,10 @@ public interface ImageEffect extends Effect {
 
     public String getFilename();
 
+    /** Start loading this effect's image in the background, if it was
+     *  deferred, so that it's ready by the time the effect is faded in.
+     *  Call from the render thread, e.g. from an animator.
+     */
+    public void prefetch();
+
 }
\ No newline at end of file
@@ -1,31 +1,28 @@
 package com.coillighting.udder.effect;
 
-import java.awt.geom.Point2D;
-import java.awt.image.BufferedImage;
-import java.io.File;
-import java.io.IOException;
-import javax.imageio.ImageIO;
-
-import com.coillighting.udder.geometry.BoundingCube;
-import com.coillighting.udder.geometry.Bilinear;
+import com.coillighting.udder.mix.Modulatable;
 import com.coillighting.udder.mix.TimePoint;
 import com.coillighting.udder.model.Device;
+import com.coillighting.udder.model.DeviceGeometry;
+import com.coillighting.udder.model.PackedTexture;
 import com.coillighting.udder.model.Pixel;
-
-import static com.coillighting.udder.util.LogUtil.log;
+import com.coillighting.udder.model.TextureCache;
 
 
 /** Roll a raster over the devices in your show. The image wraps around at the
  * edges. You may roll horizontally and/or vertically. See RollEffectState for
  * options.
  */
-public class RollEffect extends EffectBase implements ImageEffect {
+public class RollEffect extends EffectBase implements ImageEffect, Modulatable {
+
+    /** Parameters a ModulationMatrix may drive, in modulate()'s order. */
+    public static final String[] MODULATED_PARAMETERS = {"xPeriodMillis",
+        "yPeriodMillis", "xRotate", "yRotate"};
 
-    protected String filename = null;
-    protected BufferedImage image = null;
+    protected TextureSlot textureSlot = null;
+    protected PackedTexture texture = null;
     protected int imageWidth = 0;
     protected int imageHeight = 0;
-    protected BoundingCube deviceBounds = null;
 
     /** offset. 0.0 = no rotation, 1.0 = 100% rotation (equivalent to 0.0). */
     protected double xRotate = 0.0;
@@ -45,24 +42,45 @@ public class RollEffect extends EffectBase implements ImageEffect {
 
     protected boolean interpolateBilinear = true;
 
-    protected Bilinear bilinear;
-
-    // Scratch variables that we shouldn't reallocate on every
-    // trip through the animation loop:
-    private Point2D.Double xyNorm;
+    /** Each device's unrolled position in texel coordinates, split into a
+     *  whole column (row) in [0, imageWidth) ([0, imageHeight)) and a
+     *  fraction in [0.0, 1.0). Rolling adds the same whole and fractional
+     *  offset to every device, so each frame costs a few integer adds and
+     *  compares per device, however the rotation and periods are set.
+     *  preparePatch builds them for a new patch, off the render thread;
+     *  animate rebuilds them only when the image dimensions change.
+     */
+    protected int[] texelX = null;
+    protected double[] fractionX = null;
+    protected int[] texelY = null;
+    protected double[] fractionY = null;
+    protected DeviceGeometry texelGeometry = null;
+    protected int texelWidth = 0;
+    protected int texelHeight = 0;
 
     public RollEffect(String filename) {
-        this.filename = filename;
-        bilinear = new Bilinear();
-
-        // Initialize temps
-        xyNorm = new Point2D.Double(0.0, 0.0);
+        this(filename, false);
+    }
 
-        this.reloadImage();
+    /** If deferred, don't decode the image until prefetch() is called or
+     *  the effect is first shown. See TextureEffect.
+     */
+    public RollEffect(String filename, boolean deferred) {
+        textureSlot = new TextureSlot(TextureCache.getDefault());
+        if(deferred) {
+            textureSlot.defer(filename);
+        } else {
+            textureSlot.load(filename);
+            this.updateImage();
+        }
     }
 
     public String getFilename() {
-        return this.filename;
+        return textureSlot.getFilename();
+    }
+
+    public void prefetch() {
+        textureSlot.prefetch();
     }
 
     public Class getStateClass() {
@@ -70,7 +88,8 @@ public class RollEffect extends EffectBase implements ImageEffect {
     }
 
     public Object getState() {
-        return null; // TODO RollEffectState
+        return new RollEffectState(textureSlot.getFilename(), xPeriodMillis, yPeriodMillis,
+            xRotate, yRotate);
     }
 
     public void setState(Object state) throws ClassCastException {
@@ -85,11 +104,10 @@ public class RollEffect extends EffectBase implements ImageEffect {
         this.setYPeriodMillis(command.getYPeriodMillis());
 
         String fn = command.getFilename();
-        if(!(fn == null || fn.equals("") || fn.equals(filename))) {
-            filename = fn;
-
-            // Reload last in case there is a problem reading the file.
-            this.reloadImage();
+        if(!(fn == null || fn.equals("") || fn.equals(textureSlot.getFilename()))) {
+            // Decode in the background. animate() swaps the new image in
+            // once it's ready, so the lights don't freeze meanwhile.
+            textureSlot.loadLater(fn);
         }
     }
 
@@ -124,16 +142,19 @@ public class RollEffect extends EffectBase implements ImageEffect {
      */
     public void setXPeriodMillis(Integer xmillis) {
         if(xmillis != null) {
-            int xmi = (int) xmillis;
-            if(xmi != xPeriodMillis) {
-                if(xStartTimeMillis > 0 && currentTimeMillis > xStartTimeMillis) {
-                    double elapsed = (((double) (currentTimeMillis - xStartTimeMillis))
-                            / (double) xPeriodMillis) % 1.0;
-                    double reclockedElapsed = elapsed * (double) xmi;
-                    xStartTimeMillis = currentTimeMillis - (long) reclockedElapsed;
-                }
-                xPeriodMillis = xmi;
+            this.setXPeriodMillis(xmillis.intValue());
+        }
+    }
+
+    public void setXPeriodMillis(int xmi) {
+        if(xmi != xPeriodMillis) {
+            if(xStartTimeMillis > 0 && currentTimeMillis > xStartTimeMillis) {
+                double elapsed = (((double) (currentTimeMillis - xStartTimeMillis))
+                        / (double) xPeriodMillis) % 1.0;
+                double reclockedElapsed = elapsed * (double) xmi;
+                xStartTimeMillis = currentTimeMillis - (long) reclockedElapsed;
             }
+            xPeriodMillis = xmi;
         }
     }
 
@@ -144,77 +165,69 @@ public class RollEffect extends EffectBase implements ImageEffect {
      */
     public void setYPeriodMillis(Integer ymillis) {
         if(ymillis != null) {
-            int ymi = (int) ymillis;
-            if(ymi != yPeriodMillis) {
-                if(yStartTimeMillis > 0 && currentTimeMillis > yStartTimeMillis) {
-                    double elapsed = (((double) (currentTimeMillis - yStartTimeMillis))
-                            / (double) yPeriodMillis) % 1.0;
-                    double reclockedElapsed = elapsed * (double)ymi;
-                    yStartTimeMillis = currentTimeMillis - (long) reclockedElapsed;
-                }
-                yPeriodMillis = ymi;
+            this.setYPeriodMillis(ymillis.intValue());
+        }
+    }
+
+    public void setYPeriodMillis(int ymi) {
+        if(ymi != yPeriodMillis) {
+            if(yStartTimeMillis > 0 && currentTimeMillis > yStartTimeMillis) {
+                double elapsed = (((double) (currentTimeMillis - yStartTimeMillis))
+                        / (double) yPeriodMillis) % 1.0;
+                double reclockedElapsed = elapsed * (double)ymi;
+                yStartTimeMillis = currentTimeMillis - (long) reclockedElapsed;
             }
+            yPeriodMillis = ymi;
         }
     }
 
-    public void patchDevices(Device[] devices) {
-        super.patchDevices(devices);
-        deviceBounds = Device.getDeviceBoundingCube(devices);
+    public int getParameterIndex(String name) {
+        for(int i=0; i<MODULATED_PARAMETERS.length; i++) {
+            if(MODULATED_PARAMETERS[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
     }
 
-    private void clearImage() {
-        image = null;
-        imageWidth = 0;
-        imageHeight = 0;
+    public void modulate(int parameter, double value) {
+        switch(parameter) {
+            case 0: this.setXPeriodMillis((int) value); break;
+            case 1: this.setYPeriodMillis((int) value); break;
+            // Unlike setXRotate and setYRotate, don't restart the roll, so
+            // that a modulated rotation sways the image as it rolls.
+            case 2: xRotate = wrapRotation(value); break;
+            case 3: yRotate = wrapRotation(value); break;
+        }
     }
 
-    /** If we can't load the image, log an error and proceed.
-     *  Don't crash the server.
-     *  FIXME REF deduplicate w/TextureEffect.reloadImage
-     */
-    public void reloadImage() {
-        this.clearImage();
-        if(filename != null) {
-            File imageFile = new File(filename);
-            if(!imageFile.exists()) {
-                log("File not found: " + filename);
-                filename = null;
-            } else if(!imageFile.isFile()) {
-                log("Not a regular file: " + filename);
-                filename = null;
-            } else {
-                try {
-                    image = ImageIO.read(imageFile);
-                } catch(IOException iox) {
-                    log("Error loading image " + filename + "\n" + iox);
-                    filename = null;
-                    return;
-                }
-                imageWidth = image.getWidth();
-                imageHeight = image.getHeight();
-                if(imageWidth == 0 || imageHeight == 0) {
-                    log("Error loading " + filename + ": empty image.");
-                    this.clearImage();
-                    filename = null;
-                }
-            }
+    private static double wrapRotation(double rotate) {
+        double r = rotate % 1.0;
+        if(r < 0.0) r += 1.0;
+        return r;
+    }
+
+    /** Show the slot's current texture. */
+    private void updateImage() {
+        texture = textureSlot.getTexture();
+        if(texture == null) {
+            imageWidth = 0;
+            imageHeight = 0;
         } else {
-            log("RollEffect: no image to load.");
+            imageWidth = texture.getWidth();
+            imageHeight = texture.getHeight();
         }
     }
 
     public void animate(TimePoint timePoint) {
-        if(image == null) {
+        if(textureSlot.update()) {
+            this.updateImage();
+        }
+        if(texture == null) {
             for(Pixel px: pixels) {
                 px.setBlack();
             }
         } else {
-            final double devMinX = deviceBounds.getMinX();
-            final double devMinY = deviceBounds.getMinY();
-            final double devWidth = deviceBounds.getWidth();
-            final double devHeight = deviceBounds.getHeight();
-            xyNorm.setLocation(0.0, 0.0);
-
             long now = timePoint.sceneTimeMillis();
 
             // Frame offsets given baseline x/y rotation and timepoint in the cycle,
@@ -251,50 +264,161 @@ public class RollEffect extends EffectBase implements ImageEffect {
 
             currentTimeMillis = now;
 
+            if(texelGeometry != geometry || texelWidth != imageWidth
+                || texelHeight != imageHeight)
+            {
+                this.rebuildTexelTables();
+            }
+
+            // Convert each frame offset into whole texels plus a fraction.
+            double xo = xFrameOffset % 1.0;
+            if(xo < 0.0) {
+                xo += 1.0;
+            }
+            final double xt = xo * imageWidth;
+            int xShift = (int) xt;
+            final double xShiftFraction = xt - xShift;
+            if(xShift >= imageWidth) {
+                xShift -= imageWidth;
+            }
+
+            double yo = yFrameOffset % 1.0;
+            if(yo < 0.0) {
+                yo += 1.0;
+            }
+            final double yt = yo * imageHeight;
+            int yShift = (int) yt;
+            final double yShiftFraction = yt - yShift;
+            if(yShift >= imageHeight) {
+                yShift -= imageHeight;
+            }
+
             for(int i=0; i<devices.length; i++) {
-                Device dev = devices[i];
-                double[] xyz = dev.getPoint();
-
-                // Flatten the rig and normalize this Device's location
-                // in space to a coordinate inside the unit square.
-                // Also flip the Y axis so that the image is right side up
-                // when projected on the rig.
-                // FUTURE: option to 3D rotate the virtual projector position
-                // so we can roll the image in 2D while transforming the
-                // axis of extrusion in 3D.
-                xyNorm.x = (xyz[0] - devMinX) / devWidth;
-                xyNorm.y = 1.0 - ((xyz[1] - devMinY) / devHeight);
-
-                double x = (xFrameOffset + xyNorm.x) % 1.0;
-                if(x < 0.0) {
-                    x += 1.0;
+                // Roll this device's texel coordinate, wrapping around at the
+                // edges of the image.
+                double fx = fractionX[i] + xShiftFraction;
+                int x = texelX[i] + xShift;
+                if(fx >= 1.0) {
+                    fx -= 1.0;
+                    ++x;
+                }
+                if(x >= imageWidth) {
+                    x -= imageWidth;
                 }
 
-                double y = (yFrameOffset + xyNorm.y) % 1.0;
-                if(y < 0.0) {
-                    y += 1.0;
+                double fy = fractionY[i] + yShiftFraction;
+                int y = texelY[i] + yShift;
+                if(fy >= 1.0) {
+                    fy -= 1.0;
+                    ++y;
+                }
+                if(y >= imageHeight) {
+                    y -= imageHeight;
                 }
 
                 if(!interpolateBilinear) {
                     // Truncate mode: round down fractions to an integer pixel
                     // coordinate, and send that pixel's color to this device
                     // point. Low-rez but a good reference for debugging the
-                    // bilinear mode. Wrap around at the edges. Normalize to
-                    // [0.0..1.0).
-                    int imgX = ((int) (x * imageWidth));
-                    int imgY = ((int) (y * imageHeight));
-
-                    try {
-                        int color = image.getRGB(imgX, imgY);
-                        pixels[i].setRGBColor(color);
-                    } catch(ArrayIndexOutOfBoundsException e) {
-                        pixels[i].setBlack();
-                    }
-
+                    // bilinear mode.
+                    texture.sampleNearest(pixels[i], x, y);
+                } else if(x == 0 || y == 0) {
+                    // Like PackedTexture.sampleBilinear without streaking,
+                    // black out the first column and row, which lie less
+                    // than one texel from the edge.
+                    pixels[i].setBlack();
                 } else {
-                    bilinear.interpolate(pixels[i], image, imageWidth, imageHeight, x, y, false);
+                    // Blend from the texel up and to the left of this one.
+                    texture.sampleBilinear(pixels[i], x - 1, x, fx, y - 1, y, fy);
                 }
             }
         }
     }
+
+    /** Unroll each device's normalized position into texel coordinates.
+     *  Also flip the Y axis so that the image is right side up when
+     *  projected on the rig.
+     *  FUTURE: option to 3D rotate the virtual projector position so we can
+     *  roll the image in 2D while transforming the axis of extrusion in 3D.
+     */
+    protected void rebuildTexelTables() {
+        final int n = devices.length;
+        if(texelX == null || texelX.length != n) {
+            texelX = new int[n];
+            fractionX = new double[n];
+            texelY = new int[n];
+            fractionY = new double[n];
+        }
+        fillTexelTables(geometry, imageWidth, imageHeight, texelX, fractionX, texelY, fractionY);
+        texelGeometry = geometry;
+        texelWidth = imageWidth;
+        texelHeight = imageHeight;
+    }
+
+    protected static void fillTexelTables(DeviceGeometry geometry, int imageWidth, int imageHeight,
+                                          int[] texelX, double[] fractionX,
+                                          int[] texelY, double[] fractionY)
+    {
+        final double[] xNorm = geometry.getXNorm();
+        final double[] yNorm = geometry.getYNorm();
+        for(int i=0; i<texelX.length; i++) {
+            double xt = xNorm[i] * imageWidth;
+            int x = (int) xt;
+            fractionX[i] = xt - x;
+            texelX[i] = x >= imageWidth ? x - imageWidth : x;
+
+            double yt = (1.0 - yNorm[i]) * imageHeight;
+            int y = (int) yt;
+            fractionY[i] = yt - y;
+            texelY[i] = y >= imageHeight ? y - imageHeight : y;
+        }
+    }
+
+    public Object preparePatch(Device[] devices, DeviceGeometry geometry) {
+        return new RollPatch(devices, geometry, texture);
+    }
+
+    public void installPatch(Object prepared) {
+        super.installPatch(prepared);
+        RollPatch patch = (RollPatch) prepared;
+        texelX = patch.texelX;
+        fractionX = patch.fractionX;
+        texelY = patch.texelY;
+        fractionY = patch.fractionY;
+        texelGeometry = patch.geometry;
+        texelWidth = patch.texelWidth;
+        texelHeight = patch.texelHeight;
+    }
+
+    /** The patch, plus each device's unrolled texel coordinates in the image
+     *  this effect was showing when the patch was prepared. If the image
+     *  changes size before installPatch, animate rebuilds them.
+     */
+    protected static class RollPatch extends PreparedPatch {
+
+        final int[] texelX;
+        final double[] fractionX;
+        final int[] texelY;
+        final double[] fractionY;
+        final int texelWidth;
+        final int texelHeight;
+
+        public RollPatch(Device[] devices, DeviceGeometry geometry, PackedTexture texture) {
+            super(devices, geometry);
+            final int n = devices.length;
+            texelX = new int[n];
+            fractionX = new double[n];
+            texelY = new int[n];
+            fractionY = new double[n];
+            if(texture == null) {
+                texelWidth = 0;
+                texelHeight = 0;
+            } else {
+                texelWidth = texture.getWidth();
+                texelHeight = texture.getHeight();
+                fillTexelTables(geometry, texelWidth, texelHeight,
+                    texelX, fractionX, texelY, fractionY);
+            }
+        }
+    }
 }
@@ -0,0 +1,166 @@
+package com.coillighting.udder.effect;
+
+import com.coillighting.udder.mix.Modulatable;
+import com.coillighting.udder.mix.TimePoint;
+import com.coillighting.udder.model.FrameSequence;
+import com.coillighting.udder.model.PackedTexture;
+import com.coillighting.udder.model.Pixel;
+
+/** Play an image sequence or a video over the devices in your show,
+ *  stretched over the whole rig like an unstretched TextureEffect, and
+ *  looping at the end. See SequenceEffectState for options.
+ *
+ *  Frames are decoded ahead of time on a background thread (see
+ *  FrameSequence). Each frame we show the decoded frame nearest to the one
+ *  that the scene time calls for, so playback follows TimePoint's timebase,
+ *  and a decoder that falls behind drops or repeats frames rather than
+ *  stalling the show. While a new sequence opens, we keep showing the last
+ *  frame of the previous one.
+ */
+public class SequenceEffect extends EffectBase implements ImageEffect, Modulatable {
+
+    public static final double DEFAULT_FRAMES_PER_SECOND = 24.0;
+
+    /** Parameters a ModulationMatrix may drive, in modulate()'s order. */
+    public static final String[] MODULATED_PARAMETERS = {"framesPerSecond"};
+
+    protected FrameSequence sequence = null;
+    protected String filename = null;
+    protected double framesPerSecond = DEFAULT_FRAMES_PER_SECOND;
+    protected int frameWidth = 0;
+    protected int frameHeight = 0;
+
+    /** The frame we're showing. */
+    protected PackedTexture texture = null;
+
+    /** Scene time at which the current sequence showed its first frame, or
+     *  -1 if it hasn't yet.
+     */
+    protected long startTimeMillis = -1;
+
+    /** scene time of last frame rendered */
+    protected long currentTimeMillis = 0;
+
+    /** Play the given sequence, or nothing if filename is null, until told
+     *  otherwise.
+     */
+    public SequenceEffect(String filename, double framesPerSecond) {
+        this.setFramesPerSecond(framesPerSecond);
+        this.open(filename, frameWidth, frameHeight);
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    /** A sequence always decodes in the background as soon as it opens. */
+    public void prefetch() {
+    }
+
+    public Class getStateClass() {
+        return SequenceEffectState.class;
+    }
+
+    public Object getState() {
+        return new SequenceEffectState(filename, framesPerSecond, frameWidth, frameHeight);
+    }
+
+    public void setState(Object state) throws ClassCastException {
+        SequenceEffectState command = (SequenceEffectState) state;
+
+        Double fps = command.getFramesPerSecond();
+        if(fps != null && fps > 0.0) {
+            this.setFramesPerSecond(fps);
+        }
+
+        int width = command.getFrameWidth() == null ? frameWidth : command.getFrameWidth();
+        int height = command.getFrameHeight() == null ? frameHeight : command.getFrameHeight();
+        String fn = command.getFilename();
+        if(fn == null || fn.equals("")) {
+            fn = filename;
+        }
+        if(fn != null && !(fn.equals(filename) && width == frameWidth && height == frameHeight)) {
+            this.open(fn, width, height);
+        }
+    }
+
+    /** Change the rate without jumping to another frame. */
+    public void setFramesPerSecond(double fps) {
+        if(fps <= 0.0) {
+            throw new IllegalArgumentException("Invalid frame rate: " + fps);
+        }
+        if(startTimeMillis >= 0 && currentTimeMillis > startTimeMillis) {
+            double frames = (currentTimeMillis - startTimeMillis) * framesPerSecond / 1000.0;
+            startTimeMillis = currentTimeMillis - (long) (frames * 1000.0 / fps);
+        }
+        framesPerSecond = fps;
+    }
+
+    public double getFramesPerSecond() {
+        return framesPerSecond;
+    }
+
+    public int getParameterIndex(String name) {
+        return MODULATED_PARAMETERS[0].equals(name) ? 0 : -1;
+    }
+
+    /** Like setState, ignore rates that aren't positive. */
+    public void modulate(int parameter, double value) {
+        if(parameter == 0 && value > 0.0) {
+            this.setFramesPerSecond(value);
+        }
+    }
+
+    /** Start decoding the given sequence in the background. It plays from
+     *  its first frame as soon as that is ready.
+     */
+    protected void open(String filename, int width, int height) {
+        if(sequence != null) {
+            sequence.close();
+            sequence = null;
+        }
+        this.filename = filename;
+        this.frameWidth = width;
+        this.frameHeight = height;
+        this.startTimeMillis = -1;
+        if(filename != null) {
+            sequence = new FrameSequence(filename, FrameSequence.DEFAULT_CAPACITY, width, height);
+            sequence.start();
+        }
+    }
+
+    public void animate(TimePoint timePoint) {
+        long now = timePoint.sceneTimeMillis();
+        currentTimeMillis = now;
+        int count = sequence == null ? 0 : sequence.getFrameCount();
+        if(count > 0) {
+            if(startTimeMillis < 0) {
+                startTimeMillis = now;
+            }
+            long frame = (long) Math.floor((now - startTimeMillis) * framesPerSecond / 1000.0);
+            int index = (int) (frame % count);
+            if(index < 0) {
+                // Scene time may run backwards.
+                index += count;
+            }
+            sequence.seek(index);
+            PackedTexture nearest = sequence.nearest(index);
+            if(nearest != null) {
+                texture = nearest;
+            }
+        }
+
+        if(texture == null) {
+            for(Pixel px: pixels) {
+                px.setBlack();
+            }
+        } else {
+            final double[] xNorm = geometry.getXNorm();
+            final double[] yNorm = geometry.getYNorm();
+            for(int i=0; i<devices.length; i++) {
+                // Flip y so that the image is right side up on the rig.
+                texture.sampleBilinear(pixels[i], xNorm[i], 1.0 - yNorm[i], false);
+            }
+        }
+    }
+}
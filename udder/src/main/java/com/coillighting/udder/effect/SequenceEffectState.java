@@ -0,0 +1,74 @@
+package com.coillighting.udder.effect;
+
+/** Convey public parameters to and from SequenceEffect instances.
+ *  This class serves as a JSON mapping target for Boon.
+ */
+public class SequenceEffectState {
+
+    /** Play this image sequence: a directory of images, played in order of
+     * filename, an .mjpeg file or a raw .rgb file. See FrameSequence.
+     * SequenceEffect will start from the first frame when this value changes.
+     * Send null or the empty string for this value to be ignored, so you keep
+     * playing the current sequence.
+     */
+    protected String filename;
+
+    /** Play this many frames per second of scene time. Send null or <=0 for
+     * this value to be ignored, retaining the current rate.
+     */
+    protected Double framesPerSecond;
+
+    /** The size of each frame of a raw RGB file, which has no header to say.
+     * Ignored for other formats. Send null to keep the current size.
+     */
+    protected Integer frameWidth;
+    protected Integer frameHeight;
+
+    public SequenceEffectState(String filename, Double framesPerSecond,
+                               Integer frameWidth, Integer frameHeight)
+    {
+        this.filename = filename;
+        this.framesPerSecond = framesPerSecond;
+        this.frameWidth = frameWidth;
+        this.frameHeight = frameHeight;
+    }
+
+    public String toString() {
+        return "SequenceEffectState(\"" + filename + "\", framesPerSecond="
+            + framesPerSecond + ", frameWidth=" + frameWidth
+            + ", frameHeight=" + frameHeight + ")";
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    public void setFilename(String filename) {
+        this.filename = filename;
+    }
+
+    public Double getFramesPerSecond() {
+        return framesPerSecond;
+    }
+
+    public void setFramesPerSecond(Double framesPerSecond) {
+        this.framesPerSecond = framesPerSecond;
+    }
+
+    public Integer getFrameWidth() {
+        return frameWidth;
+    }
+
+    public void setFrameWidth(Integer frameWidth) {
+        this.frameWidth = frameWidth;
+    }
+
+    public Integer getFrameHeight() {
+        return frameHeight;
+    }
+
+    public void setFrameHeight(Integer frameHeight) {
+        this.frameHeight = frameHeight;
+    }
+
+}
@@ -1,21 +1,20 @@
 package com.coillighting.udder.effect;
 
 import java.awt.geom.Point2D;
-import java.awt.image.BufferedImage;
-import java.io.File;
-import java.io.IOException;
 import java.util.Random;
-import javax.imageio.ImageIO;
 
-import com.coillighting.udder.geometry.BoundingCube;
 import com.coillighting.udder.geometry.ControlQuad;
 import com.coillighting.udder.geometry.Interpolator;
+import com.coillighting.udder.mix.Modulatable;
 import com.coillighting.udder.mix.TimePoint;
 import com.coillighting.udder.model.Device;
+import com.coillighting.udder.model.DeviceGeometry;
+import com.coillighting.udder.model.PackedTexture;
 import com.coillighting.udder.model.Pixel;
+import com.coillighting.udder.model.SampleTable;
+import com.coillighting.udder.model.TextureCache;
 
 import static com.coillighting.udder.geometry.Interpolator.Interpolation;
-import static com.coillighting.udder.util.LogUtil.log;
 
 
 /** Stretch and squeeze a raster image over the pointcloud representing the
@@ -23,16 +22,18 @@ import static com.coillighting.udder.util.LogUtil.log;
  *
  * TODO rename to StretchEffect.
  */
-public class TextureEffect extends EffectBase implements ImageEffect {
+public class TextureEffect extends EffectBase implements ImageEffect, Modulatable {
+
+    /** Parameters a ModulationMatrix may drive, in modulate()'s order. */
+    public static final String[] MODULATED_PARAMETERS = {"maxTempoMillis"};
 
     protected Interpolator interpolator = null;
     protected Random random = null;
 
-    protected String filename = null;
-    protected BufferedImage image = null;
+    protected TextureSlot textureSlot = null;
+    protected PackedTexture texture = null;
     protected int imageWidth = 0;
     protected int imageHeight = 0;
-    protected BoundingCube deviceBounds = null;
     protected ControlQuad controlQuadManual = null;
     protected ControlQuad controlQuadAutomaticStart = null;
     protected ControlQuad controlQuadAutomaticCurrent = null;
@@ -44,16 +45,48 @@ public class TextureEffect extends EffectBase implements ImageEffect {
     protected boolean automatic = true;
     protected boolean interpolateBilinear = true;
 
+    /** Average each device's share of the image from the texture's mip
+     *  pyramid, rather than sampling the four texels under it, which
+     *  shimmers when devices lie many texels apart. Requires bilinear mode.
+     */
+    protected boolean mipmapEnabled = true;
+
+    /** Decide whether to clip out-of-bounds pixel coordinates to the edge
+     *  colors (causing streaking, sometimes looks good) or just crop them
+     *  (color that part of the rig black). false=crop. FUTURE: could export
+     *  this option.
+     */
+    protected static final boolean STREAK_ENABLED = false;
+
+    /** Precomputed samples for the manual control quad, and what they were
+     *  computed for. preparePatch builds the table for a new patch, off the
+     *  render thread; animate rebuilds it only when the quad, the texture or
+     *  the mipmap setting changes.
+     */
+    protected SampleTable sampleTable = null;
+    protected PackedTexture sampleTableTexture = null;
+    protected DeviceGeometry sampleTableGeometry = null;
+    protected ControlQuad sampleTableQuad = new ControlQuad();
+    protected boolean sampleTableMipmapped = false;
+
     // Scratch variables that we shouldn't reallocate on every
     // trip through the animation loop:
-    private Pixel p, p11, p12, p21, p22;
     private Point2D.Double xyNorm;
+    private Point2D.Double xyStretched;
 
     /** The longest it will take for one corner to complete a single transit. */
     int maxTempoMillis = 18000;
 
     public TextureEffect(String filename) {
-        this.filename = filename;
+        this(filename, false);
+    }
+
+    /** If deferred, don't decode the image until prefetch() is called or
+     *  the effect is first shown, so that a scene of many images starts
+     *  quickly. The effect shows black until the image is ready.
+     */
+    public TextureEffect(String filename, boolean deferred) {
+        textureSlot = new TextureSlot(TextureCache.getDefault());
         random = new Random();
         interpolator = new Interpolator();
         controlQuadManual = new ControlQuad();
@@ -69,14 +102,15 @@ public class TextureEffect extends EffectBase implements ImageEffect {
         };
 
         // Initialize temps
-        p = Pixel.black();
-        p11 = Pixel.black();
-        p12 = Pixel.black();
-        p21 = Pixel.black();
-        p22 = Pixel.black();
         xyNorm = new Point2D.Double(0.0, 0.0);
+        xyStretched = new Point2D.Double(0.0, 0.0);
 
-        this.reloadImage();
+        if(deferred) {
+            textureSlot.defer(filename);
+        } else {
+            textureSlot.load(filename);
+            this.updateImage();
+        }
     }
 
     public Class getStateClass() {
@@ -84,7 +118,9 @@ public class TextureEffect extends EffectBase implements ImageEffect {
     }
 
     public Object getState() {
-        return null; // TODO TextureEffectState
+        ControlQuad quad = new ControlQuad();
+        quad.setDoubleValues(controlQuadManual);
+        return new TextureEffectState(textureSlot.getFilename(), automatic, maxTempoMillis, quad);
     }
 
     public void setState(Object state) throws ClassCastException {
@@ -104,61 +140,30 @@ public class TextureEffect extends EffectBase implements ImageEffect {
         }
 
         String fn = command.getFilename();
-        if(!(fn == null || fn.equals("") || fn.equals(filename))) {
-            filename = fn;
-
-            // Reload last in case there is a problem reading the file.
-            this.reloadImage();
+        if(!(fn == null || fn.equals("") || fn.equals(textureSlot.getFilename()))) {
+            // Decode in the background. animate() swaps the new image in
+            // once it's ready, so the lights don't freeze meanwhile.
+            textureSlot.loadLater(fn);
         }
     }
 
-    public void patchDevices(Device[] devices) {
-        super.patchDevices(devices);
-        deviceBounds = Device.getDeviceBoundingCube(devices);
-    }
-
     public String getFilename() {
-        return this.filename;
+        return textureSlot.getFilename();
     }
 
-    private void clearImage() {
-        image = null;
-        imageWidth = 0;
-        imageHeight = 0;
+    public void prefetch() {
+        textureSlot.prefetch();
     }
 
-    /** If we can't load the image, log an error and proceed.
-     *  Don't crash the server.
-     *  FIXME REF deduplicate w/RollEffect.reloadImage
-     */
-    public void reloadImage() {
-        this.clearImage();
-        if(filename != null) {
-            File imageFile = new File(filename);
-            if(!imageFile.exists()) {
-                log("File not found: " + filename);
-                filename = null;
-            } else if(!imageFile.isFile()) {
-                log("Not a regular file: " + filename);
-                filename = null;
-            } else {
-                try {
-                    image = ImageIO.read(imageFile);
-                } catch(IOException iox) {
-                    log("Error loading image " + filename + "\n" + iox);
-                    filename = null;
-                    return;
-                }
-                imageWidth = image.getWidth();
-                imageHeight = image.getHeight();
-                if(imageWidth == 0 || imageHeight == 0) {
-                    log("Error loading " + filename + ": empty image.");
-                    this.clearImage();
-                    filename = null;
-                }
-            }
+    /** Show the slot's current texture. */
+    private void updateImage() {
+        texture = textureSlot.getTexture();
+        if(texture == null) {
+            imageWidth = 0;
+            imageHeight = 0;
         } else {
-            log("TextureEffect: no image to load.");
+            imageWidth = texture.getWidth();
+            imageHeight = texture.getHeight();
         }
     }
 
@@ -264,17 +269,133 @@ public class TextureEffect extends EffectBase implements ImageEffect {
         this.animateCorner(Waypoints.NE, now, 0.5, 1.0, 0.5, 1.0);
     }
 
+    /** Flatten the rig and normalize device i's location in space to a
+     *  coordinate inside the unit square, then distort it by stretching the
+     *  flattened rig over the image. Leave the result in xyStretched.
+     */
+    private void stretchDevice(int i, ControlQuad controlQuad) {
+        stretchDevice(geometry, i, controlQuad, xyNorm, xyStretched);
+    }
+
+    /** Like stretchDevice(i, controlQuad), but for any geometry and with the
+     *  caller's scratch points, so that preparePatch can call it off the
+     *  render thread.
+     */
+    private static void stretchDevice(DeviceGeometry geometry, int i, ControlQuad controlQuad,
+                                      Point2D.Double xyNorm, Point2D.Double xyStretched)
+    {
+        // Also flip the Y axis so that the image is right side up
+        // when projected on the rig.
+        // FUTURE: distort the mapping in 3D, not just 2D. We can
+        // get away with 2D at the Dairy because the two rigs aren't
+        // quite the same size and shape, but a Cubatron-like setup
+        // deserves full 3D texture mapping.
+        xyNorm.x = geometry.getXNorm()[i];
+        xyNorm.y = 1.0 - geometry.getYNorm()[i];
+        controlQuad.stretchXY(xyNorm, xyStretched);
+    }
+
+    /** How many texels lie between device i and its neighbors once
+     *  stretched by the control quad, as a mip level of detail. Call right
+     *  after stretchDevice(i, controlQuad).
+     *
+     *  The stretch is bilinear, so its derivatives at the device are cheap:
+     *  (a, b) is how far the image moves per unit of normalized x, and
+     *  (c, d) per unit of normalized (flipped) y. Scale those by the
+     *  device's spacing along each axis.
+     */
+    private double deviceLod(int i, ControlQuad q) {
+        return deviceLod(geometry, i, q, xyNorm, texture, mipmapEnabled);
+    }
+
+    private static double deviceLod(DeviceGeometry geometry, int i, ControlQuad q,
+                                    Point2D.Double xyNorm, PackedTexture texture,
+                                    boolean mipmapEnabled)
+    {
+        if(!mipmapEnabled) {
+            return 0.0;
+        }
+        final double spacing = geometry.getSpacing()[i];
+        final double rigWidth = geometry.getWidth();
+        final double rigHeight = geometry.getHeight();
+        final double sx = rigWidth == 0.0 ? 0.0 : spacing / rigWidth;
+        final double sy = rigHeight == 0.0 ? 0.0 : spacing / rigHeight;
+        final double x = xyNorm.x;
+        final double y = xyNorm.y;
+        final double a = y * (q.ne.x - q.nw.x) + (1.0 - y) * (q.se.x - q.sw.x);
+        final double b = y * (q.ne.y - q.nw.y) + (1.0 - y) * (q.se.y - q.sw.y);
+        final double c = x * (q.ne.x - q.se.x) + (1.0 - x) * (q.nw.x - q.sw.x);
+        final double d = x * (q.ne.y - q.se.y) + (1.0 - x) * (q.nw.y - q.sw.y);
+        return texture.lod(a * sx, b * sx, c * sy, d * sy);
+    }
+
+    /** Return true if sampleTable was built for the current texture, patch
+     *  and manual control quad.
+     */
+    private boolean isSampleTableCurrent() {
+        return sampleTable != null
+            && sampleTableMipmapped == mipmapEnabled
+            && sampleTableTexture == texture
+            && sampleTableGeometry == geometry
+            && sampleTableQuad.hasSameValues(controlQuadManual);
+    }
+
+    private void rebuildSampleTable() {
+        if(sampleTable == null || sampleTable.getCount() != devices.length) {
+            sampleTable = new SampleTable(devices.length);
+        }
+        fillSampleTable(sampleTable, geometry, texture, controlQuadManual, mipmapEnabled,
+            xyNorm, xyStretched);
+        sampleTableTexture = texture;
+        sampleTableGeometry = geometry;
+        sampleTableMipmapped = mipmapEnabled;
+        sampleTableQuad.setDoubleValues(controlQuadManual);
+    }
+
+    private static void fillSampleTable(SampleTable table, DeviceGeometry geometry,
+                                        PackedTexture texture, ControlQuad quad,
+                                        boolean mipmapEnabled, Point2D.Double xyNorm,
+                                        Point2D.Double xyStretched)
+    {
+        for(int i=0; i<table.getCount(); i++) {
+            stretchDevice(geometry, i, quad, xyNorm, xyStretched);
+            texture.prepare(table, i, xyStretched.x, xyStretched.y,
+                deviceLod(geometry, i, quad, xyNorm, texture, mipmapEnabled), STREAK_ENABLED);
+        }
+    }
+
+    public Object preparePatch(Device[] devices, DeviceGeometry geometry) {
+        return new TexturePatch(devices, geometry, this);
+    }
+
+    public void installPatch(Object prepared) {
+        super.installPatch(prepared);
+        TexturePatch patch = (TexturePatch) prepared;
+        sampleTable = patch.sampleTable;
+        sampleTableTexture = patch.texture;
+        sampleTableGeometry = patch.geometry;
+        sampleTableMipmapped = patch.mipmapEnabled;
+        sampleTableQuad.setDoubleValues(patch.quad);
+    }
+
     public void animate(TimePoint timePoint) {
-        if(image == null) {
+        if(textureSlot.update()) {
+            this.updateImage();
+        }
+        if(texture == null) {
             for(Pixel px: pixels) {
                 px.setBlack();
             }
+        } else if(!automatic && interpolateBilinear) {
+            // The manual control quad moves only when someone moves it, so
+            // look the samples up in a table, rebuilt when it does.
+            if(!this.isSampleTableCurrent()) {
+                this.rebuildSampleTable();
+            }
+            for(int i=0; i<devices.length; i++) {
+                texture.sample(pixels[i], sampleTable, i);
+            }
         } else {
-            final double devMinX = deviceBounds.getMinX();
-            final double devMinY = deviceBounds.getMinY();
-            final double devWidth = deviceBounds.getWidth();
-            final double devHeight = deviceBounds.getHeight();
-            xyNorm.setLocation(0.0, 0.0);
             ControlQuad controlQuad;
 
             if(!automatic) {
@@ -285,22 +406,7 @@ public class TextureEffect extends EffectBase implements ImageEffect {
             }
 
             for(int i=0; i<devices.length; i++) {
-                Device dev = devices[i];
-                double[] xyz = dev.getPoint();
-
-                // Flatten the rig and normalize this Device's location
-                // in space to a coordinate inside the unit square.
-                // Also flip the Y axis so that the image is right side up
-                // when projected on the rig.
-                // FUTURE: distort the mapping in 3D, not just 2D. We can
-                // get away with 2D at the Dairy because the two rigs aren't
-                // quite the same size and shape, but a Cubatron-like setup
-                // deserves full 3D texture mapping.
-                xyNorm.x = (xyz[0] - devMinX) / devWidth;
-                xyNorm.y = 1.0 - ((xyz[1] - devMinY) / devHeight);
-
-                // Distort the image by stretching the flattened rig over it.
-                Point2D.Double xyStretched = controlQuad.stretchXY(xyNorm);
+                this.stretchDevice(i, controlQuad);
 
                 if(!interpolateBilinear) {
                     // Truncate mode: round down fractions to an integer pixel
@@ -310,99 +416,78 @@ public class TextureEffect extends EffectBase implements ImageEffect {
 
                     int imgX = ((int) (xyStretched.x * imageWidth) - 1);
                     int imgY = ((int) (xyStretched.y * imageHeight) - 1);
-                    if(imgX < 0 || imgX >= imageWidth || imgY < 0 || imgY >= imageHeight) {
-                        pixels[i].setBlack();
-                    } else {
-                        int color = image.getRGB(imgX, imgY);
-                        pixels[i].setRGBColor(color);
-                    }
+                    texture.sampleNearest(pixels[i], imgX, imgY);
                 } else {
                     // Bilinear (quadratic) interpolation mode: given the four
                     // closest pixels to this device point, compute its color.
                     // https://en.wikipedia.org/wiki/Bilinear_interpolation
-
-                    // Decide whether to clip out-of-bounds pixel coordinates
-                    // to the edge colors (causing streaking, sometimes looks
-                    // good) or just crop them (color that part of the rig
-                    // black). false=crop. FUTURE: could export this option.
-                    final boolean streakEnabled = false;
-                    boolean streaked = false;
-                    double x = (xyStretched.x * imageWidth) - 1;
-                    if(x < 0.0) {
-                        // This will streak the edges if coordinates are out of bounds.
-                        x = 0.0;
-                        streaked = true;
-                    } else if(x >= imageWidth) {
-                        x = imageWidth - 1; // streak
-                        streaked = true;
-                    }
-                    int x1 = (int) Math.floor(x);
-                    int x2 = (int) Math.ceil(x);
-                    if(x2 >= imageWidth) {
-                        x2 = imageWidth - 1; // streak
-                        streaked = true;
-                    }
-
-                    double y = (xyStretched.y * imageHeight) - 1;
-                    if(y < 0.0) {
-                        y = 0.0; // streak
-                        streaked = true;
-                    } else if(y >= imageHeight) {
-                        y = imageHeight - 1; // streak
-                        streaked = true;
-                    }
-                    int y1 = (int) Math.floor(y);
-                    int y2 = (int) Math.ceil(y);
-                    if(y2 >= imageHeight) {
-                        y2 = imageHeight - 1; // streak
-                        streaked = true;
-                    }
-
-                    if(streaked && ! streakEnabled) {
-                        pixels[i].setBlack();
-                    } else {
-                        // Sample colors from the four surrounding pixels.
-                        p11.setRGBColor(image.getRGB(x1, y1));
-                        p21.setRGBColor(image.getRGB(x2, y1));
-                        p12.setRGBColor(image.getRGB(x1, y2));
-                        p22.setRGBColor(image.getRGB(x2, y2));
-
-                        // First we do two linear interpolations, R1 and R2,
-                        // in the x direction.
-                        final double right = (x1 == x2 ? 0.0 : (x2 - x) / (x2 - x1));
-                        final double left = (x1 == x2 ? 1.0 : (x - x1) / (x2 - x1));
-
-                        final double rR1 = p11.r * right + p21.r * left;
-                        final double gR1 = p11.g * right + p21.g * left;
-                        final double bR1 = p11.b * right + p21.b * left;
-
-                        final double rR2 = p12.r * right + p22.r * left;
-                        final double gR2 = p12.g * right + p22.g * left;
-                        final double bR2 = p12.b * right + p22.b * left;
-
-                        // Next interpolate R1 and R2 in the Y direction.
-                        final double high = (y1 == y2 ? 0.0 : (y2 - y) / (y2 - y1));
-                        final double low = (y1 == y2 ? 1.0 : (y - y1) / (y2 - y1));
-                        p.r = (float) (rR1 * high + rR2 * low);
-                        p.g = (float) (gR1 * high + gR2 * low);
-                        p.b = (float) (bR1 * high + bR2 * low);
-
-                        pixels[i].setColor(p);
-                        // Of course, this whole time we have falsely assumed
-                        // linear gamma.
-                    }
+                    // Where devices are sparse, do that in a smaller copy of
+                    // the image, so that the color is the average of the
+                    // device's surroundings (trilinear mipmapping).
+                    texture.sampleTrilinear(pixels[i], xyStretched.x, xyStretched.y,
+                        this.deviceLod(i, controlQuad), STREAK_ENABLED);
+                    // Of course, this whole time we have falsely assumed
+                    // linear gamma.
                 }
             }
         }
     }
 
+    public boolean getMipmapEnabled() {
+        return this.mipmapEnabled;
+    }
+
+    public void setMipmapEnabled(boolean mipmapEnabled) {
+        this.mipmapEnabled = mipmapEnabled;
+    }
+
     public boolean getAutomatic() {
         return this.automatic;
     }
 
+    public int getParameterIndex(String name) {
+        return MODULATED_PARAMETERS[0].equals(name) ? 0 : -1;
+    }
+
+    /** Like setState, ignore tempos under 1 ms. */
+    public void modulate(int parameter, double value) {
+        if(parameter == 0 && value >= 1.0) {
+            maxTempoMillis = (int) value;
+        }
+    }
+
     public void setAutomatic(boolean automatic) {
         this.automatic = automatic;
     }
+
+    /** The patch, plus the manual control quad's sample table for it. */
+    protected static class TexturePatch extends PreparedPatch {
+
+        final SampleTable sampleTable;
+        final PackedTexture texture;
+        final ControlQuad quad;
+        final boolean mipmapEnabled;
+
+        /** Read the effect's texture and manual quad once. If either changes
+         *  before installPatch, animate rebuilds the table.
+         */
+        public TexturePatch(Device[] devices, DeviceGeometry geometry, TextureEffect effect) {
+            super(devices, geometry);
+            this.texture = effect.texture;
+            this.quad = new ControlQuad();
+            this.quad.setDoubleValues(effect.controlQuadManual);
+            this.mipmapEnabled = effect.mipmapEnabled;
+            if(texture != null && this.devices != null && !effect.automatic
+                && effect.interpolateBilinear)
+            {
+                this.sampleTable = new SampleTable(this.devices.length);
+                fillSampleTable(sampleTable, geometry, texture, quad, mipmapEnabled,
+                    new Point2D.Double(), new Point2D.Double());
+            } else {
+                this.sampleTable = null;
+            }
+        }
+    }
 }
 
 
@@ -43,7 +43,7 @@ public class TextureEffectState {
     public TextureEffectState(String fileName, boolean automatic,
                                 int maxTempoMillis, ControlQuad controlQuad)
     {
-        this.filename = filename;
+        this.filename = fileName;
         this.automatic = automatic;
         this.maxTempoMillis = maxTempoMillis;
         this.controlQuad = controlQuad;
@@ -0,0 +1,153 @@
+package com.coillighting.udder.effect;
+
+import java.io.IOException;
+
+import com.coillighting.udder.model.PackedTexture;
+import com.coillighting.udder.model.TextureCache;
+import com.coillighting.udder.model.TextureLoad;
+
+import static com.coillighting.udder.util.LogUtil.log;
+
+/** The texture an ImageEffect is showing, plus the one it will show next.
+ *
+ *  While the show runs, a new filename is loaded by the TextureCache in the
+ *  background, and the effect keeps showing its current texture until the
+ *  new one has been decoded. The effect calls update() at the top of each
+ *  frame to swap it in. If the new image can't be loaded, we log the error
+ *  and keep the current texture. Don't crash the server.
+ *
+ *  A scene with many images may defer() each one instead, so that it starts
+ *  without decoding any of them. A deferred image starts loading in the
+ *  background when prefetch() is called, or at the latest when update() is
+ *  first called, i.e. when its effect is first shown.
+ *
+ *  Not threadsafe. Call load() or defer() while assembling a scene, and
+ *  everything else from the render thread.
+ */
+public class TextureSlot {
+
+    protected TextureCache cache;
+    protected PackedTexture texture = null;
+    protected String filename = null;
+    protected TextureLoad pending = null;
+
+    /** An image to load when it's wanted, or null. */
+    protected String deferred = null;
+
+    public TextureSlot(TextureCache cache) {
+        if(cache == null) {
+            throw new NullPointerException("TextureSlot requires a TextureCache.");
+        }
+        this.cache = cache;
+    }
+
+    /** Load the given image now, blocking, as when a scene is assembled.
+     *  On failure the slot is left empty.
+     */
+    public void load(String filename) {
+        this.cancelPending();
+        PackedTexture loaded = null;
+        if(filename == null) {
+            log("No image to load.");
+        } else {
+            try {
+                loaded = cache.acquire(filename);
+            } catch(IOException iox) {
+                log(iox.getMessage());
+            }
+        }
+        cache.release(texture);
+        texture = loaded;
+        this.filename = loaded == null ? null : filename;
+    }
+
+    /** Start loading the given image in the background. Supersedes any
+     *  image still loading.
+     */
+    public void loadLater(String filename) {
+        this.cancelPending();
+        pending = cache.acquireLater(filename);
+    }
+
+    /** Remember the given image, but don't load it until prefetch() or
+     *  update() is called. Supersedes any image still loading.
+     */
+    public void defer(String filename) {
+        this.cancelPending();
+        deferred = filename;
+    }
+
+    /** Start loading the deferred image in the background, if there is one.
+     *  Return true if this started a load.
+     */
+    public boolean prefetch() {
+        if(deferred == null) {
+            return false;
+        }
+        String filename = deferred;
+        deferred = null;
+        pending = cache.acquireLater(filename);
+        return true;
+    }
+
+    /** If a background load has finished, swap in its texture and release
+     *  the previous one. Return true if the texture changed. Starts loading
+     *  a deferred image, which is wanted now.
+     */
+    public boolean update() {
+        this.prefetch();
+        if(pending == null || !pending.isDone()) {
+            return false;
+        }
+        TextureLoad load = pending;
+        pending = null;
+        PackedTexture loaded = load.getTexture();
+        if(loaded == null) {
+            log(load.getError().getMessage());
+            return false;
+        }
+        cache.release(texture);
+        texture = loaded;
+        filename = load.getFilename();
+        return true;
+    }
+
+    /** The current texture, or null if there isn't one. */
+    public PackedTexture getTexture() {
+        return texture;
+    }
+
+    /** The image requested most recently, even if it is still loading or
+     *  deferred.
+     */
+    public String getFilename() {
+        if(deferred != null) {
+            return deferred;
+        }
+        return pending != null ? pending.getFilename() : filename;
+    }
+
+    public boolean isLoading() {
+        return pending != null;
+    }
+
+    public boolean isDeferred() {
+        return deferred != null;
+    }
+
+    /** Give up the texture and any pending load. */
+    public void release() {
+        this.cancelPending();
+        cache.release(texture);
+        texture = null;
+        filename = null;
+    }
+
+    protected void cancelPending() {
+        deferred = null;
+        if(pending != null) {
+            pending.cancel();
+            pending = null;
+        }
+    }
+}
@@ -4,6 +4,8 @@ import java.util.LinkedHashMap;
 
 import com.coillighting.udder.effect.EffectBase;
 import com.coillighting.udder.mix.TimePoint;
+import com.coillighting.udder.model.Device;
+import com.coillighting.udder.model.DeviceGeometry;
 import com.coillighting.udder.model.Pixel;
 
 import static com.coillighting.udder.util.LogUtil.log;
@@ -124,9 +126,10 @@ public class WovenEffect extends EffectBase {
     }
 
     public Object getState() {
+        // Copy the colors so the caller can't share them with the cues.
         return new WovenEffectState(
-            ((WarpCue) cues.get(WARP)).getThreadColor(),
-            ((WeftCue) cues.get(WEFT)).getThreadColor());
+            new Pixel(((WarpCue) cues.get(WARP)).getThreadColor()),
+            new Pixel(((WeftCue) cues.get(WEFT)).getThreadColor()));
     }
 
     public void setState(Object state) throws ClassCastException {
@@ -153,8 +156,17 @@ public class WovenEffect extends EffectBase {
         if(this.verbose) log(this.frame);
     }
 
+    public Object preparePatch(Device[] devices, DeviceGeometry geometry) {
+        return new WovenPatch(devices, geometry, frame);
+    }
+
+    public void installPatch(Object prepared) {
+        super.installPatch(prepared);
+        frame.setMap(((WovenPatch) prepared).map);
+    }
+
     public Pixel[] render() {
-        frame.render(pixels, devices);
+        frame.render(pixels);
         return pixels;
     }
 
@@ -164,4 +176,15 @@ public class WovenEffect extends EffectBase {
             this.reset();
         }
     }
+
+    /** The patch, plus where each device falls in the warp and weft. */
+    protected static class WovenPatch extends PreparedPatch {
+
+        final WovenMap map;
+
+        public WovenPatch(Device[] devices, DeviceGeometry geometry, WovenFrame frame) {
+            super(devices, geometry);
+            this.map = frame.createMap(geometry);
+        }
+    }
 }
@@ -4,9 +4,7 @@ import java.util.Random;
 
 import com.coillighting.udder.blend.BlendOp;
 import com.coillighting.udder.blend.MaxBlendOp;
-import com.coillighting.udder.geometry.BoundingCube;
-import com.coillighting.udder.geometry.Point3D;
-import com.coillighting.udder.model.Device;
+import com.coillighting.udder.model.DeviceGeometry;
 import com.coillighting.udder.model.Pixel;
 
 /** A simple data structure by which a WovenEffect communicates pixels
@@ -40,6 +38,9 @@ public class WovenFrame {
     /** Array of [group0, group1] - whether to draw weft on this group. */
     boolean [] weftEnabled = {true, true};
 
+    /** Which warp or weft pixel each device shows, for the current patch. */
+    protected WovenMap map = null;
+
     public WovenFrame() {
         this.random = new Random();
         this.blendOp = new MaxBlendOp();
@@ -143,47 +144,49 @@ public class WovenFrame {
         return sb.toString();
      }
 
-    public void render(Pixel[] pixels, Device[] devices) {
-        // OPTIMIZATION CANDIDATE: compute these only when the device list changes
-        final BoundingCube box = Device.getDeviceBoundingCube(devices);
-        final double wScale = 1.0 / box.getWidth();
-        final double hScale = 1.0 / box.getHeight();
-        final double xOff = -box.getMinX();
-        final double yOff = -box.getMinY();
-
-        final double warpScale = -0.000000001 + (double) warp.length;
-        final double weftScale = -0.000000001 + (double) weft[0].length;
-
-        for(int i=0; i<devices.length; i++) {
-            final Device device = devices[i];
-            final int group = device.getGroup();
-
-            if(group < 2) {
+    /** Map a new patch onto the warp and weft. See createMap(). */
+    void setMap(WovenMap map) {
+        this.map = map;
+    }
 
-                final double px = wScale * (device.x + xOff); // normalized 0..1
-                final double py = hScale * (device.y + yOff); // ditto
+    /** Map the given patch onto this frame's warp and weft. Computing the
+     *  map is comparatively slow, so do that off the render thread.
+     */
+    WovenMap createMap(DeviceGeometry geometry) {
+        return new WovenMap(geometry, (2 * warpThreadcount) - 1, weftThreadcount);
+    }
 
-                // Draw the nearest neighbor in the warp for this pixel.
-                // Fill from right to left.
-                final int xWarp = warp.length - 1 - (int)(px * warpScale);
+    public void render(Pixel[] pixels) {
+        if(map == null) {
+            return;
+        } else if(map.warpLength != warp.length || map.weftLength != weft[0].length) {
+            // Someone changed the threadcount since the patch was mapped.
+            map = new WovenMap(map.geometry, warp.length, weft[0].length);
+        }
 
-                // Draw the nearest neighbor in the weft for this pixel.
-                final double center = 0.125; // oscillate around this line
-                final int xWeft = px < center ? 0 : 1;
-                final int yWeft = (int)(py * weftScale);
+        final int[] groups = map.group;
+        final int[] warpIndex = map.warpIndex;
+        final int[] weftColumn = map.weftColumn;
+        final int[] weftRow = map.weftRow;
+        final float scale = (float) brightness;
 
-                final Pixel pixel = pixels[i];
-                pixel.setColor(background);
+        for(int i=0; i<groups.length; i++) {
+            final int group = groups[i];
+            if(group < 0) {
+                continue;
+            }
+            final Pixel pixel = pixels[i];
+            pixel.setColor(background);
 
-                if(WovenFrame.isWarp(group, px, py)) {
-                    if(warpEnabled[group]) {
-                        pixel.blendWith(warp[xWarp], 1.0f, blendOp);
-                    }
-                } else if(weftEnabled[group]) {
-                    pixel.blendWith(weft[xWeft][yWeft], 1.0f, blendOp);
+            final int xWarp = warpIndex[i];
+            if(xWarp >= 0) {
+                if(warpEnabled[group]) {
+                    pixel.blendWith(warp[xWarp], 1.0f, blendOp);
                 }
-                pixel.scale((float)brightness);
+            } else if(weftEnabled[group]) {
+                pixel.blendWith(weft[weftColumn[i]][weftRow[i]], 1.0f, blendOp);
             }
+            pixel.scale(scale);
         }
     }
 
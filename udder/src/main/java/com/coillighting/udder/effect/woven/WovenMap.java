@@ -0,0 +1,69 @@
+package com.coillighting.udder.effect.woven;
+
+import com.coillighting.udder.model.DeviceGeometry;
+
+/** For each device, the warp or weft pixel it shows. Depends only on the
+ *  patch and the threadcounts, so WovenFrame.render just gathers colors.
+ */
+class WovenMap {
+
+    public final DeviceGeometry geometry;
+    public final int warpLength;
+    public final int weftLength;
+
+    /** Each device's group, or -1 if the Woven effect doesn't draw on it. */
+    public final int[] group;
+
+    /** Each device's pixel in the warp, or -1 if it shows the weft. */
+    public final int[] warpIndex;
+
+    /** Each device's pixel in the weft, if it shows the weft. */
+    public final int[] weftColumn;
+    public final int[] weftRow;
+
+    public WovenMap(DeviceGeometry geometry, int warpLength, int weftLength) {
+        this.geometry = geometry;
+        this.warpLength = warpLength;
+        this.weftLength = weftLength;
+
+        final int count = geometry.getCount();
+        group = new int[count];
+        warpIndex = new int[count];
+        weftColumn = new int[count];
+        weftRow = new int[count];
+
+        final double[] xs = geometry.getX();
+        final double[] ys = geometry.getY();
+        final int[] groups = geometry.getGroup();
+        final double wScale = 1.0 / geometry.getWidth();
+        final double hScale = 1.0 / geometry.getHeight();
+        final double xOff = -geometry.getMinX();
+        final double yOff = -geometry.getMinY();
+
+        final double warpScale = -0.000000001 + (double) warpLength;
+        final double weftScale = -0.000000001 + (double) weftLength;
+
+        for(int i=0; i<count; i++) {
+            final int g = groups[i];
+            if(g >= 0 && g < 2) {
+                final double px = wScale * (xs[i] + xOff); // normalized 0..1
+                final double py = hScale * (ys[i] + yOff); // ditto
+                group[i] = g;
+
+                if(WovenFrame.isWarp(g, px, py)) {
+                    // Draw the nearest neighbor in the warp for this pixel.
+                    // Fill from right to left.
+                    warpIndex[i] = warpLength - 1 - (int)(px * warpScale);
+                } else {
+                    // Draw the nearest neighbor in the weft for this pixel.
+                    final double center = 0.125; // oscillate around this line
+                    warpIndex[i] = -1;
+                    weftColumn[i] = px < center ? 0 : 1;
+                    weftRow[i] = (int)(py * weftScale);
+                }
+            } else {
+                group[i] = -1;
+            }
+        }
+    }
+}
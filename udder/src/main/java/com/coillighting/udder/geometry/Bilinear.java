@@ -4,7 +4,12 @@ import java.awt.image.BufferedImage;
 
 import com.coillighting.udder.model.Pixel;
 
-// TODO figure out how many of these 'finals' are required to cause inlining
+/** Bilinear sampling straight from a BufferedImage. Effects now sample a
+ *  PackedTexture instead, which computes the same colors several times
+ *  faster; this remains as the reference for TextureBenchmark.
+ *
+ *  TODO figure out how many of these 'finals' are required to cause inlining
+ */
 public final class Bilinear {
 
     // Scratch variables that we shouldn't reallocate on every
@@ -106,6 +106,17 @@ public class ControlQuad {
         return Stretch.stretchXY(xy, sw, se, nw, ne);
     }
 
+    /** Store the stretched point in result rather than allocating it. */
+    public void stretchXY(Point2D.Double xy, Point2D.Double result) {
+        Stretch.stretchXY(xy, sw, se, nw, ne, result);
+    }
+
+    /** Return true if both quads have the same corners. */
+    public boolean hasSameValues(ControlQuad other) {
+        return other != null && sw.equals(other.sw) && se.equals(other.se)
+            && nw.equals(other.nw) && ne.equals(other.ne);
+    }
+
     /** In JSON-compatible format. */
     public String toString() {
         return "[["+sw.x+","+sw.y+"],["+se.x+","+se.y+"],["+nw.x+","+nw.y+"],["+ne.x+","+ne.y+"]]";
@@ -53,10 +53,24 @@ public class Stretch {
     public static Point2D.Double stretchXY(Point2D.Double xy,
             Point2D.Double sw, Point2D.Double se,
             Point2D.Double nw, Point2D.Double ne)
+    {
+        Point2D.Double result = new Point2D.Double();
+        stretchXY(xy, sw, se, nw, ne, result);
+        return result;
+    }
+
+    /** Like stretchXY, but store the distorted point in result instead of
+     *  allocating a new one, for per-device loops. result may be xy.
+     */
+    public static void stretchXY(Point2D.Double xy,
+            Point2D.Double sw, Point2D.Double se,
+            Point2D.Double nw, Point2D.Double ne,
+            Point2D.Double result)
     {
         double x = stretch2D(xy.y, xy.x, sw.x, se.x, nw.x, ne.x);
         double y = stretch2D(xy.x, xy.y, sw.y, nw.y, se.y, ne.y);
-        return new Point2D.Double(x, y);
+        result.x = x;
+        result.y = y;
     }
 
     /** 32-bit version of stretchXY. */
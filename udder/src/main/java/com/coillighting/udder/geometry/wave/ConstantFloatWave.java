@@ -3,7 +3,7 @@ package com.coillighting.udder.geometry.wave;
 import com.coillighting.udder.mix.TimePoint;
 
 /** Base class implementing a constant signal. */
-public class ConstantFloatWave implements Wave<Float> {
+public class ConstantFloatWave implements FloatWave {
 
     protected float value = 0.0f;
 
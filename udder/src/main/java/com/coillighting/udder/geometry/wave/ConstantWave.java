@@ -3,7 +3,7 @@ package com.coillighting.udder.geometry.wave;
 import com.coillighting.udder.mix.TimePoint;
 
 /** Base class implementing a constant signal. */
-public class ConstantWave implements Wave<Double> {
+public class ConstantWave implements DoubleWave {
 
     protected double value = 0.0;
 
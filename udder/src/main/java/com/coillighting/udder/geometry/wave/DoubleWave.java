@@ -0,0 +1,12 @@
+package com.coillighting.udder.geometry.wave;
+
+import com.coillighting.udder.mix.TimePoint;
+
+/** A Wave of doubles that can also be sampled without boxing, for callers
+ *  that evaluate it every frame, like a ModulationMatrix.
+ */
+public interface DoubleWave extends Wave<Double> {
+
+    public double getVal(TimePoint time);
+
+}
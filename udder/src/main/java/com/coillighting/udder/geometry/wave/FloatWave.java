@@ -0,0 +1,10 @@
+package com.coillighting.udder.geometry.wave;
+
+import com.coillighting.udder.mix.TimePoint;
+
+/** A Wave of floats that can also be sampled without boxing. */
+public interface FloatWave extends Wave<Float> {
+
+    public float getVal(TimePoint time);
+
+}
@@ -5,7 +5,7 @@ import com.coillighting.udder.mix.TimePoint;
 /** Abstract base class for removing boilerplate from the implementation of
  *  periodic floating-point signal generators.
  */
-public abstract class FloatWaveBase implements Wave<Float> {
+public abstract class FloatWaveBase implements FloatWave {
 
     protected float start = 0.0f;
     protected float end = 0.0f;
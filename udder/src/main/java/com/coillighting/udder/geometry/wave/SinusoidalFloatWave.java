@@ -22,7 +22,7 @@ import com.coillighting.udder.geometry.Crossfade;
             x0 = start;
             x1 = end;
         } else {
-            x -= -0.5f;
+            x -= 0.5f;
             x0 = end;
             x1 = start;
         }
@@ -22,7 +22,7 @@ import com.coillighting.udder.geometry.Crossfade;
             x0 = start;
             x1 = end;
         } else {
-            x -= -0.5;
+            x -= 0.5;
             x0 = end;
             x1 = start;
         }
@@ -5,13 +5,13 @@ import com.coillighting.udder.mix.TimePoint;
 /** Abstract base class for removing boilerplate from the implementation of
  *  periodic, high-resolution floating-point signal generators.
  */
-public abstract class WaveBase implements Wave<Double> {
+public abstract class WaveBase implements DoubleWave {
 
     protected double start = 0.0;
     protected double end = 0.0;
     protected long period = 0;
 
-    public WaveBase(Double start, double end, long period) {
+    public WaveBase(double start, double end, long period) {
         this.start = start;
         this.end = end;
         this.period = period;
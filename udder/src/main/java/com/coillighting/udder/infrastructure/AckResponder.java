@@ -0,0 +1,173 @@
+package com.coillighting.udder.infrastructure;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.simpleframework.http.Response;
+import org.simpleframework.http.Status;
+
+import com.coillighting.udder.metrics.Counter;
+import com.coillighting.udder.metrics.Metric;
+import com.coillighting.udder.metrics.MetricsRegistry;
+
+import static com.coillighting.udder.util.LogUtil.log;
+
+/** Complete HTTP responses once their commands have been rendered, rather
+ *  than when they were queued. The HTTP thread attaches a receipt to the
+ *  command, queues it, and returns without closing the response. Simple
+ *  keeps the connection open until ShowRunner's receipt fires, whereupon
+ *  this responder's own thread writes the reply:
+ *
+ *      OK 12 FRAME 3456 LATENCY_US 8210
+ *
+ *  giving the index of the first frame rendered with the command in effect
+ *  and the time from the command's arrival to the end of that frame, also
+ *  available as X-Udder-Frame and X-Udder-Latency-Micros headers. If the
+ *  destination rejected the command, the reply is FAILED (422) instead.
+ *
+ *  Neither the render thread nor Simple's worker threads ever block or write
+ *  to a socket on behalf of a waiting client. If a command hasn't been
+ *  rendered within the timeout (e.g. the show has stopped), the reply is
+ *  QUEUED (202), as for a batch that timed out before.
+ *
+ *  A client that waits for each reply before sending its next command never
+ *  has more than one command in the queue, and a client that keeps N
+ *  requests in flight has a window of N, so controllers can implement their
+ *  own flow control.
+ */
+public class AckResponder implements Runnable {
+
+    protected HttpServiceContainer container;
+    protected long timeoutMillis;
+    protected LinkedBlockingQueue<PendingAck> completed = new LinkedBlockingQueue<PendingAck>();
+    protected Queue<PendingAck> waiting = new ConcurrentLinkedQueue<PendingAck>(); // deadline order
+    protected Thread thread = null;
+    protected volatile boolean running = false;
+
+    protected Counter acksRendered;
+    protected Counter acksFailed;
+    protected Counter acksTimedOut;
+
+    public AckResponder(HttpServiceContainer container, long timeoutMillis) {
+        if(container == null) {
+            throw new NullPointerException("AckResponder requires an HttpServiceContainer.");
+        } else if(timeoutMillis <= 0) {
+            throw new IllegalArgumentException("Invalid ack timeout: " + timeoutMillis);
+        }
+        this.container = container;
+        this.timeoutMillis = timeoutMillis;
+        MetricsRegistry metrics = MetricsRegistry.getDefault();
+        String help = "HTTP responses deferred until their commands were rendered, by outcome.";
+        acksRendered = metrics.counter("udder_http_acks_total", help,
+            Metric.label("result", "rendered"));
+        acksFailed = metrics.counter("udder_http_acks_total", help,
+            Metric.label("result", "failed"));
+        acksTimedOut = metrics.counter("udder_http_acks_total", help,
+            Metric.label("result", "timeout"));
+    }
+
+    /** Return a receipt that will complete this response. Attach it to the
+     *  command, queue the command, and then, only if it was accepted, call
+     *  await(). If reportLatency is false, the reply omits LATENCY_US, as
+     *  for a plain batch.
+     */
+    public PendingAck createAck(Response response, int requestIndex, boolean reportLatency) {
+        return new PendingAck(this, response, requestIndex, reportLatency);
+    }
+
+    /** Start the timeout for an ack whose command was queued. From now on
+     *  this responder owns the response.
+     */
+    public void await(PendingAck ack) {
+        ack.deadlineMillis = System.currentTimeMillis() + timeoutMillis;
+        waiting.offer(ack);
+    }
+
+    /** Called by PendingAck on the render thread. */
+    void complete(PendingAck ack) {
+        completed.offer(ack);
+    }
+
+    public void start() {
+        running = true;
+        thread = new Thread(this, "AckResponder");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() throws InterruptedException {
+        running = false;
+        if(thread != null) {
+            thread.interrupt();
+            thread.join(1000);
+        }
+    }
+
+    public void run() {
+        try {
+            while(running) {
+                PendingAck ack = completed.poll(this.millisToNextDeadline(), TimeUnit.MILLISECONDS);
+                while(ack != null) {
+                    this.respond(ack);
+                    ack = completed.poll();
+                }
+                this.expire(System.currentTimeMillis());
+            }
+        } catch(InterruptedException e) {
+            // stop() was called.
+        }
+        // Don't leave clients hanging.
+        this.expire(Long.MAX_VALUE);
+    }
+
+    protected long millisToNextDeadline() {
+        PendingAck head = waiting.peek();
+        if(head == null) {
+            return timeoutMillis;
+        } else {
+            return Math.max(1, head.deadlineMillis - System.currentTimeMillis());
+        }
+    }
+
+    /** Forget acks that have completed, and time out the rest, as long as
+     *  their deadline precedes nowMillis. Acks wait in deadline order.
+     */
+    protected void expire(long nowMillis) {
+        PendingAck head = waiting.peek();
+        while(head != null && (head.isDone() || head.deadlineMillis <= nowMillis)) {
+            waiting.poll();
+            if(head.claim()) {
+                acksTimedOut.increment();
+                head.response.setStatus(Status.ACCEPTED);
+                container.respond(head.response, "QUEUED " + head.requestIndex);
+            }
+            head = waiting.peek();
+        }
+    }
+
+    protected void respond(PendingAck ack) {
+        Response response = ack.response;
+        String responseBody;
+        if(ack.applied) {
+            acksRendered.increment();
+            response.setStatus(Status.OK);
+            responseBody = "OK " + ack.requestIndex + " FRAME " + ack.frameIndex;
+        } else {
+            acksFailed.increment();
+            response.setCode(422);
+            response.setDescription("Unprocessable Entity");
+            responseBody = "FAILED " + ack.requestIndex + " FRAME " + ack.frameIndex;
+        }
+        long latencyMicros = ack.latencyNanos / 1000;
+        if(ack.reportLatency) {
+            responseBody += " LATENCY_US " + latencyMicros;
+        }
+        response.setValue("X-Udder-Frame", "" + ack.frameIndex);
+        response.setValue("X-Udder-Latency-Micros", "" + latencyMicros);
+        if(!container.respond(response, responseBody)) {
+            log("Failed to acknowledge request " + ack.requestIndex + '.');
+        }
+    }
+}
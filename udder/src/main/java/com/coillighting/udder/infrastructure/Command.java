@@ -11,9 +11,18 @@ public class Command {
     private Object value = null;
     private String path = null;
 
+    /** System.nanoTime() when this command was created, for measuring how
+     *  long it waits in the command queue.
+     */
+    private long createdNanos = 0;
+
+    /** If not null, notified when this command reaches the lights. */
+    private volatile CommandReceipt receipt = null;
+
     public Command(String path, Object value) {
         this.value = value;
         this.path = path;
+        this.createdNanos = System.nanoTime();
     }
 
     public String toString() {
@@ -39,4 +48,19 @@ public class Command {
     public void setPath(String path) {
         this.path = path;
     }
+
+    public long getCreatedNanos() {
+        return this.createdNanos;
+    }
+
+    public CommandReceipt getReceipt() {
+        return this.receipt;
+    }
+
+    /** Before queueing this command, ask ShowRunner to notify receipt once
+     *  the command has been applied and rendered.
+     */
+    public void setReceipt(CommandReceipt receipt) {
+        this.receipt = receipt;
+    }
 }
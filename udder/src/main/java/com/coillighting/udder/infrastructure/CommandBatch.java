@@ -0,0 +1,40 @@
+package com.coillighting.udder.infrastructure;
+
+import java.util.Collections;
+import java.util.List;
+
+/** The payload of a Command that bundles several commands, for example all
+ *  of the layer levels and effect settings that make up a look. ShowRunner
+ *  applies every command in a batch at the same frame boundary, so the
+ *  lights never show an intermediate state, and renders just one frame for
+ *  the lot.
+ *
+ *  Every command in a batch is parsed and routed before the batch is
+ *  queued, so a batch with any invalid command is rejected as a whole.
+ *
+ *  Like any other command, the HTTP response to a batch reports the frame
+ *  it took effect in once rendered. See AckResponder.
+ */
+public class CommandBatch {
+
+    private List<Command> commands;
+
+    public CommandBatch(List<Command> commands) {
+        if(commands == null) {
+            throw new NullPointerException("CommandBatch requires a list of commands.");
+        }
+        this.commands = Collections.unmodifiableList(commands);
+    }
+
+    public List<Command> getCommands() {
+        return commands;
+    }
+
+    public int size() {
+        return commands.size();
+    }
+
+    public String toString() {
+        return "CommandBatch(" + commands.size() + " commands)";
+    }
+}
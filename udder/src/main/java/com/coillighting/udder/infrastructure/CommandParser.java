@@ -0,0 +1,224 @@
+package com.coillighting.udder.infrastructure;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.boon.json.JsonFactory;
+
+import static org.boon.Exceptions.SoftenedException;
+
+import com.coillighting.udder.codec.CodecRegistry;
+import com.coillighting.udder.codec.JsonCodecException;
+import com.coillighting.udder.codec.JsonReader;
+import com.coillighting.udder.codec.StateCodec;
+
+import static com.coillighting.udder.util.LogUtil.log;
+
+/** Translate a route and its JSON payload into a Command, independently of
+ *  how they arrived. Shared by every control surface (HTTP and the streaming
+ *  ControlChannelServer) so that they all accept exactly the same commands.
+ *
+ *  Each route's state class is looked up in the CodecRegistry once, up
+ *  front. Routes with a StateCodec are decoded by it directly; the rest fall
+ *  back to Boon's reflective JsonFactory. Codec errors become
+ *  CommandParserExceptions whose messages pinpoint the problem.
+ */
+public class CommandParser {
+
+    /** POST a JSON list of {"path": route, "state": {...}} objects here to
+     *  apply them all in the same frame. See CommandBatch.
+     */
+    public static final String BATCH_ROUTE = "/batch";
+
+    protected Map<String, Class> commandMap; // translate route strings to command "state" Classes
+    protected Map<String, StateCodec<?>> codecMap; // routes with a compiled codec
+    protected boolean useCodecs = true; // if false, parse everything with Boon
+
+    public CommandParser(Map<String, Class> commandMap) {
+        this(commandMap, CodecRegistry.getDefault());
+    }
+
+    public CommandParser(Map<String, Class> commandMap, CodecRegistry codecs) {
+        if(commandMap == null) {
+            throw new NullPointerException(
+                    "CommandParser requires a commandMap for dispatching commands.");
+        } else if(codecs == null) {
+            throw new NullPointerException("CommandParser requires a CodecRegistry.");
+        }
+        this.commandMap = commandMap;
+        this.codecMap = new HashMap<String, StateCodec<?>>(commandMap.size() * 2);
+        for(Map.Entry<String, Class> entry: commandMap.entrySet()) {
+            StateCodec<?> codec = codecs.get(entry.getValue());
+            if(codec != null) {
+                codecMap.put(entry.getKey(), codec);
+            }
+        }
+        if(codecMap.size() < commandMap.size()) {
+            log("Compiled JSON codecs for " + codecMap.size() + " of " + commandMap.size()
+                + " routes. The rest will be parsed by Boon.");
+        }
+    }
+
+    public Map<String, Class> getCommandMap() {
+        return commandMap;
+    }
+
+    /** Return true if the given route is decoded by a StateCodec. */
+    public boolean hasCodec(String route) {
+        return useCodecs && codecMap.containsKey(route);
+    }
+
+    public boolean getUseCodecs() {
+        return useCodecs;
+    }
+
+    /** For comparison (see CodecBenchmark), disable codecs and parse every
+     *  route with Boon.
+     */
+    public void setUseCodecs(boolean useCodecs) {
+        this.useCodecs = useCodecs;
+    }
+
+    /** Return true if createCommand accepts this route. */
+    public boolean hasRoute(String route) {
+        return BATCH_ROUTE.equals(route) || this.commandMap.containsKey(route);
+    }
+
+    /** Return a Command object bearing a payload relevant to the given route,
+     * or die trying and throw an exception. Never return null. For the
+     * BATCH_ROUTE, the payload is a CommandBatch.
+     */
+    public Command createCommand(String route, String json)
+            throws RoutingException,
+            CommandParserException,
+            SoftenedException, // generic wrapper for a boon JSON parser exception
+            ClassCastException // sometimes a Boon JSON parser exception in disguise
+    {
+        if (BATCH_ROUTE.equals(route)) {
+            return this.createBatchCommand(json);
+        } else if (json == null && this.commandMap.containsKey(route)) {
+            throw new CommandParserException("A JSON state is required for " + route);
+        } else {
+            return this.createCommand(route, json, 0, json == null ? 0 : json.length());
+        }
+    }
+
+    /** Create a Command from the JSON state at json[start:end]. */
+    protected Command createCommand(String route, String json, int start, int end)
+            throws RoutingException,
+            CommandParserException,
+            SoftenedException,
+            ClassCastException
+    {
+        Class stateClass = this.commandMap.get(route);
+        StateCodec<?> codec = useCodecs ? this.codecMap.get(route) : null;
+
+        if (stateClass == null) {
+            throw new RoutingException("No route for path: " + route);
+
+        } else if (codec != null) {
+            try {
+                return new Command(route, CodecRegistry.decode(codec, json, start, end));
+            } catch (JsonCodecException e) {
+                throw new CommandParserException("Invalid " + stateClass.getSimpleName()
+                        + " for " + route + ": " + e.getMessage());
+            }
+
+        } else {
+            if (start != 0 || end != json.length()) {
+                json = json.substring(start, end);
+            }
+            // This works fine, but the JsonFactory for some reason wants a
+            // Class<T>, not a plain class. Causes an unchecked conversion warning.
+            Object state = JsonFactory.fromJson(json, stateClass);
+            if (state == null) {
+                throw new CommandParserException(
+                        "Failed to deserialize a JSON command of length "
+                                + json.length() + " for " + route);
+
+            } else if (state.getClass() == stateClass) {
+                return new Command(route, state);
+
+            } else {
+                throw new CommandParserException(
+                        "Failed to convert a command of length "
+                                + json.length() + " for " + route + " into a "
+                                + stateClass.getSimpleName() + ".");
+            }
+        }
+    }
+
+    /** Parse and route every command in a batch, or reject the whole batch.
+     *
+     * Example command-line test query:
+     * curl --data 'state=[{"path":"/mixer0/layer0","state":{"level":1.0}},{"path":"/mixer0/layer1","state":{"level":0.0}}]' localhost:8080/batch
+     */
+    protected Command createBatchCommand(String json)
+            throws RoutingException,
+            CommandParserException,
+            SoftenedException,
+            ClassCastException
+    {
+        if (json == null) {
+            throw new CommandParserException("A JSON list of commands is required for " + BATCH_ROUTE);
+        }
+        // Find each entry's path and the extent of its state, then decode the
+        // state in place, without Boon building and reserializing a tree.
+        JsonReader reader = new JsonReader(json);
+        List<Command> commands = new ArrayList<Command>();
+        try {
+            if (reader.peek() != JsonReader.Token.BEGIN_ARRAY) {
+                throw new CommandParserException(
+                        BATCH_ROUTE + " requires a JSON list of {\"path\": ..., \"state\": ...} objects.");
+            }
+            reader.beginArray();
+            int i = 0;
+            while (reader.hasNext()) {
+                if (reader.peek() != JsonReader.Token.BEGIN_OBJECT) {
+                    throw new CommandParserException("Command " + i + " of the batch is not a JSON object.");
+                }
+                String route = null;
+                int stateStart = -1;
+                int stateEnd = -1;
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String name = reader.nextName();
+                    if ("path".equals(name) && reader.peek() == JsonReader.Token.STRING) {
+                        route = reader.nextString();
+                    } else if ("state".equals(name)) {
+                        if (!reader.nextNull()) {
+                            stateStart = reader.skipValue();
+                            stateEnd = reader.getPosition();
+                        }
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+
+                if (route == null) {
+                    throw new CommandParserException("Command " + i + " of the batch has no \"path\".");
+                } else if (stateStart < 0) {
+                    throw new CommandParserException("Command " + i + " of the batch has no \"state\".");
+                } else if (BATCH_ROUTE.equals(route)) {
+                    throw new CommandParserException("Command batches may not be nested.");
+                } else if (!this.commandMap.containsKey(route)) {
+                    throw new RoutingException("No route for path: " + route
+                            + " (command " + i + " of the batch)");
+                }
+                commands.add(this.createCommand(route, json, stateStart, stateEnd));
+                ++i;
+            }
+            reader.endArray();
+            reader.endDocument();
+        } catch (JsonCodecException e) {
+            throw new CommandParserException("Malformed command batch: " + e.getMessage());
+        }
+        if (commands.isEmpty()) {
+            throw new CommandParserException("Empty command batch.");
+        }
+        return new Command(BATCH_ROUTE, new CommandBatch(commands));
+    }
+}
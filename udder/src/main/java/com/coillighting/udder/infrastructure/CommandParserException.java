@@ -0,0 +1,12 @@
+package com.coillighting.udder.infrastructure;
+
+/** A command's payload couldn't be decoded into its route's state class. */
+class CommandParserException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    public CommandParserException(String message) {
+        super(message);
+    }
+
+}
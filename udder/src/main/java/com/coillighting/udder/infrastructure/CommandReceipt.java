@@ -0,0 +1,21 @@
+package com.coillighting.udder.infrastructure;
+
+/** Notified by ShowRunner once a Command has reached the lights, that is,
+ *  once the first frame with the command in effect has been rendered and
+ *  handed to the transmitters. Lets a client learn when its change became
+ *  visible, and pace itself accordingly.
+ */
+public interface CommandReceipt {
+
+    /** Called on the render thread, so implementations must return quickly
+     *  and never block.
+     *
+     *  frameIndex is the index of the first frame rendered with the command
+     *  in effect. latencyNanos is the time from the command's creation
+     *  (normally its arrival) to the end of that frame. applied is false if
+     *  the command's destination rejected its state, or any command in its
+     *  batch was rejected.
+     */
+    public void rendered(long frameIndex, long latencyNanos, boolean applied);
+
+}
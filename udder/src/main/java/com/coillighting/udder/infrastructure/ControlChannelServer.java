@@ -0,0 +1,259 @@
+package com.coillighting.udder.infrastructure;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.boon.Exceptions.SoftenedException;
+
+import com.coillighting.udder.metrics.Counter;
+import com.coillighting.udder.metrics.Metric;
+import com.coillighting.udder.metrics.MetricsRegistry;
+
+import static com.coillighting.udder.util.LogUtil.log;
+
+/** A persistent, streaming alternative to HttpServiceContainer for clients
+ *  that send a lot of small updates, like a touch surface streaming fader
+ *  moves at 60 Hz across several layers. Over HTTP, each of those moves
+ *  costs a connection (or at least a request), header parsing and URL
+ *  decoding. Here a client opens one TCP connection and keeps writing lines.
+ *
+ *  Protocol: UTF-8 text, one command per line, each a route and its JSON
+ *  state separated by whitespace. The JSON is the same as the HTTP 'state'
+ *  param, just not URL-encoded, and must not contain a newline:
+ *
+ *      /mixer0/layer0 {"level":0.55}
+ *      /mixer0/layer1 {"level":0.25}
+ *
+ *  Commands go through the same CommandParser and onto the same command queue
+ *  as HTTP commands, so ShowRunner can't tell the difference. That includes
+ *  CommandBatches sent to CommandParser.BATCH_ROUTE.
+ *
+ *  Successful commands get no reply, so the client never has to wait.
+ *  Problems are reported back asynchronously with the line number (counting
+ *  from 1) of the offending command:
+ *
+ *      NOT_FOUND 12 /mixer0/layer99
+ *      PARSE_ERROR 13 /mixer0/layer0 Invalid LayerState for /mixer0/layer0: ...
+ *      DROPPED 14 /mixer0/layer0
+ *
+ *  A client that wants to know when the server has queued everything it sent
+ *  so far can send "PING", and the server replies "PONG n", where n is that
+ *  line's number. Blank lines and lines starting with '#' are ignored.
+ *
+ *  Each connection gets its own reader thread. This is intended for a
+ *  handful of long-lived control surfaces, not for the public, so
+ *  connections beyond maxClients are refused.
+ */
+public class ControlChannelServer implements Runnable {
+
+    protected boolean verbose = true; // log connections and errors
+    protected boolean debug = false; // log every command
+    protected ServerSocket serverSocket;
+    protected Queue<Command> queue; // feed commands to this queue
+    protected CommandParser parser;
+    protected Thread thread;
+    protected volatile boolean running = false;
+    protected int maxClients = 16;
+    protected AtomicInteger clientCount = new AtomicInteger(0);
+
+    protected Counter commandsAccepted;
+    protected Counter commandsDropped;
+    protected Counter commandsRejected;
+
+    public ControlChannelServer(InetSocketAddress listenAddress, Queue<Command> queue,
+                                CommandParser parser) throws IOException
+    {
+        if(queue == null) {
+            throw new NullPointerException(
+                    "ControlChannelServer requires a Queue for consuming commands.");
+        } else if(parser == null) {
+            throw new NullPointerException(
+                    "ControlChannelServer requires a CommandParser.");
+        }
+        this.queue = queue;
+        this.parser = parser;
+        this.serverSocket = new ServerSocket();
+        this.serverSocket.setReuseAddress(true);
+        this.serverSocket.bind(listenAddress);
+
+        MetricsRegistry metrics = MetricsRegistry.getDefault();
+        String help = "Commands received over the streaming control channel, by outcome.";
+        commandsAccepted = metrics.counter("udder_control_commands_total", help,
+            Metric.label("result", "accepted"));
+        commandsDropped = metrics.counter("udder_control_commands_total", help,
+            Metric.label("result", "dropped"));
+        commandsRejected = metrics.counter("udder_control_commands_total", help,
+            Metric.label("result", "rejected"));
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /** Start accepting connections in a new daemon thread. */
+    public void start() {
+        running = true;
+        thread = new Thread(this, "ControlChannel:" + this.getPort());
+        thread.setDaemon(true);
+        thread.start();
+        log("Listening for streaming commands on tcp://"
+            + serverSocket.getInetAddress().getHostAddress() + ':' + this.getPort());
+    }
+
+    /** Stop accepting connections. Open connections close when their
+     *  clients disconnect or the process exits.
+     */
+    public void stop() throws InterruptedException {
+        running = false;
+        try {
+            serverSocket.close();
+        } catch(IOException e) {
+            // Nothing left to do.
+        }
+        if(thread != null) {
+            thread.join(1000);
+        }
+    }
+
+    public void run() {
+        try {
+            while(running) {
+                Socket client = serverSocket.accept();
+                if(clientCount.incrementAndGet() > maxClients) {
+                    clientCount.decrementAndGet();
+                    log("Refused control channel client " + client.getRemoteSocketAddress()
+                        + ": already serving " + maxClients + " clients.");
+                    client.close();
+                } else {
+                    client.setTcpNoDelay(true);
+                    Thread reader = new Thread(new ControlChannelSession(this, client),
+                        "ControlChannel:" + client.getRemoteSocketAddress());
+                    reader.setDaemon(true);
+                    reader.start();
+                }
+            }
+        } catch(SocketException e) {
+            // Normally this just means stop() closed the socket.
+            if(running) log("Stopping " + this + ": " + e);
+        } catch(IOException e) {
+            log("Stopping " + this + ": " + e);
+        } finally {
+            running = false;
+        }
+    }
+
+    /** Handle one line from a client. Return a reply, or null if none is
+     *  needed.
+     */
+    protected String handleLine(String line, long lineNumber) {
+        int length = line.length();
+        int start = 0;
+        while(start < length && Character.isWhitespace(line.charAt(start))) {
+            ++start;
+        }
+        if(start == length || line.charAt(start) == '#') {
+            return null;
+        }
+        int split = start;
+        while(split < length && !Character.isWhitespace(line.charAt(split))) {
+            ++split;
+        }
+        String route = line.substring(start, split);
+        if(split == length && route.equals("PING")) {
+            return "PONG " + lineNumber;
+        }
+        String json = split == length ? null : line.substring(split + 1);
+
+        String reply;
+        try {
+            Command command = parser.createCommand(route, json);
+            if(queue.offer(command)) {
+                commandsAccepted.increment();
+                if(debug) log(command + " OK " + lineNumber);
+                return null;
+            } else {
+                commandsDropped.increment();
+                return "DROPPED " + lineNumber + ' ' + route;
+            }
+        } catch(RoutingException e) {
+            reply = "NOT_FOUND " + lineNumber + ' ' + route;
+        } catch(ClassCastException e) {
+            // See HttpServiceContainer: often a JSON syntax error in disguise.
+            reply = "PARSE_CAST_ERROR " + lineNumber + ' ' + route;
+        } catch(SoftenedException e) {
+            reply = "PARSE_ERROR " + lineNumber + ' ' + route;
+        } catch(CommandParserException e) {
+            reply = "PARSE_ERROR " + lineNumber + ' ' + route + ' '
+                + e.getMessage().replace('\n', ' ');
+        } catch(Exception e) {
+            reply = "UNEXPECTED_ERROR " + lineNumber + ' ' + route;
+            log("Unexpected error in control channel line " + lineNumber + ": " + e);
+        }
+        commandsRejected.increment();
+        if(verbose) log("Control channel: " + reply);
+        return reply;
+    }
+
+    public String toString() {
+        return "ControlChannelServer(" + serverSocket.getLocalSocketAddress() + ")";
+    }
+
+}
+
+
+/** Read commands from one control channel client until it disconnects. */
+class ControlChannelSession implements Runnable {
+
+    protected ControlChannelServer server;
+    protected Socket client;
+
+    public ControlChannelSession(ControlChannelServer server, Socket client) {
+        this.server = server;
+        this.client = client;
+    }
+
+    public void run() {
+        String name = String.valueOf(client.getRemoteSocketAddress());
+        if(server.verbose) log("Control channel client connected: " + name);
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(
+                client.getInputStream(), "UTF-8"));
+            Writer out = new BufferedWriter(new OutputStreamWriter(
+                client.getOutputStream(), "UTF-8"));
+            long lineNumber = 0;
+            String line;
+            while((line = in.readLine()) != null) {
+                ++lineNumber;
+                String reply = server.handleLine(line, lineNumber);
+                if(reply != null) {
+                    out.write(reply);
+                    out.write('\n');
+                }
+                // Flush once the client pauses, not after every error.
+                if(!in.ready()) {
+                    out.flush();
+                }
+            }
+        } catch(IOException e) {
+            if(server.verbose) log("Control channel client " + name + ": " + e);
+        } finally {
+            server.clientCount.decrementAndGet();
+            try {
+                client.close();
+            } catch(IOException e) {
+                // Nothing left to do.
+            }
+            if(server.verbose) log("Control channel client disconnected: " + name);
+        }
+    }
+}
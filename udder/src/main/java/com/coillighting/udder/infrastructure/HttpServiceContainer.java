@@ -5,7 +5,6 @@ import java.net.URLDecoder;
 import java.util.Map;
 import java.util.Queue;
 
-import org.boon.json.JsonFactory;
 import org.simpleframework.http.core.Container;
 import org.simpleframework.http.Path;
 import org.simpleframework.http.Query;
@@ -15,6 +14,9 @@ import org.simpleframework.http.Status;
 
 import static org.boon.Exceptions.SoftenedException;
 
+import com.coillighting.udder.metrics.Counter;
+import com.coillighting.udder.metrics.Metric;
+import com.coillighting.udder.metrics.MetricsRegistry;
 import com.coillighting.udder.util.CollectionUtil;
 import com.coillighting.udder.util.StringUtil;
 
@@ -29,8 +31,53 @@ public class HttpServiceContainer implements Container {
     protected boolean debug = false; // log successful POSTs and our response
     protected Queue<Command> queue; // feed requests to this queue
     protected Map<String, Class> commandMap; // translate route strings to command "state" Classes
+    protected CommandParser parser;
+    protected ShowRunner showRunner; // source of SceneSnapshots for GET requests
+    protected PreviewTransmitter previewTransmitter;
+    protected PixelIngestServer pixelIngestServer;
+    protected PatchReloader patchReloader;
     protected int requestIndex = 0; // Count requests to assist debugging (for now)
 
+    public static final String METRICS_ROUTE = "/metrics";
+
+    /** GET a live Server-Sent Events stream of the mixed output, optionally
+     *  with ?fps=N&step=N. See PreviewTransmitter.
+     */
+    public static final String PREVIEW_ROUTE = "/preview";
+
+    /** POST raw packed RGB with this Content-Type to an ArrayEffect route.
+     *  See PixelIngestServer.
+     */
+    public static final String RAW_PIXELS_CONTENT_TYPE = "application/octet-stream";
+
+    /** POST to reload the patch sheet and swap it in between two frames.
+     *  See PatchReloader.
+     */
+    public static final String PATCH_ROUTE = "/patch";
+
+    /** GET the state of every route at once. See SceneSnapshot.toJson(). */
+    public static final String STATE_ROUTE = "/state";
+
+    /** How long to wait for ShowRunner to apply a CommandBatch, or any
+     *  command POSTed with ack=rendered, before responding without its frame
+     *  index.
+     */
+    public static final long ACK_TIMEOUT_MILLIS = 1000;
+
+    /** POST a command with ack=rendered (as a param, or as the value of an
+     *  X-Udder-Ack header) to be answered only once it has been rendered.
+     *  See AckResponder.
+     */
+    public static final String ACK_PARAM = "ack";
+    public static final String ACK_HEADER = "X-Udder-Ack";
+    public static final String ACK_RENDERED = "rendered";
+
+    protected AckResponder ackResponder;
+    protected MetricsRegistry metrics;
+    protected Counter commandsAccepted;
+    protected Counter commandsDropped;
+    protected Counter commandsRejected;
+
     public HttpServiceContainer(Queue<Command> queue, Map<String, Class> commandMap) {
         if(queue == null) {
             throw new NullPointerException(
@@ -41,6 +88,41 @@ public class HttpServiceContainer implements Container {
         }
         this.queue = queue;
         this.commandMap = commandMap;
+        this.parser = new CommandParser(commandMap);
+        this.ackResponder = new AckResponder(this, ACK_TIMEOUT_MILLIS);
+
+        this.metrics = MetricsRegistry.getDefault();
+        String help = "Commands received over HTTP, by outcome.";
+        commandsAccepted = metrics.counter("udder_http_commands_total", help,
+            Metric.label("result", "accepted"));
+        commandsDropped = metrics.counter("udder_http_commands_total", help,
+            Metric.label("result", "dropped"));
+        commandsRejected = metrics.counter("udder_http_commands_total", help,
+            Metric.label("result", "rejected"));
+    }
+
+    /** Serve GET requests for scene state from this ShowRunner's snapshots. */
+    public void setShowRunner(ShowRunner showRunner) {
+        this.showRunner = showRunner;
+    }
+
+    public void setPreviewTransmitter(PreviewTransmitter previewTransmitter) {
+        this.previewTransmitter = previewTransmitter;
+    }
+
+    /** Completes deferred responses. Start it before serving requests. */
+    public AckResponder getAckResponder() {
+        return ackResponder;
+    }
+
+    /** Reload the patch sheet on POST /patch. */
+    public void setPatchReloader(PatchReloader patchReloader) {
+        this.patchReloader = patchReloader;
+    }
+
+    /** Accept raw pixel frames for the PixelIngestServer's routes. */
+    public void setPixelIngestServer(PixelIngestServer pixelIngestServer) {
+        this.pixelIngestServer = pixelIngestServer;
     }
 
     public void setVerbose(boolean verbose) {
@@ -84,9 +166,7 @@ public class HttpServiceContainer implements Container {
         Query query = request.getQuery();
         Path path = request.getPath();
         String route = path.toString();
-        Class stateClass = this.commandMap.get(route);
-
-        if (stateClass == null) {
+        if (!this.parser.hasRoute(route)) {
             throw new RoutingException("No route for path: " + route);
 
         } else {
@@ -98,34 +178,17 @@ public class HttpServiceContainer implements Container {
                 String json = URLDecoder.decode(rawState, "UTF-8");
                 if (json == null) {
                     throw new CommandParserException("Failed to URL-decode a raw JSON string for " + route);
-
                 } else {
-                    // This works fine, but the JsonFactory for some reason wants a
-                    // Class<T>, not a plain class. Causes an unchecked conversion warning.
-                    Object state = JsonFactory.fromJson(json, stateClass);
-                    if (state == null) {
-                        throw new CommandParserException(
-                                "Failed to deserialize a JSON command of length "
-                                        + json.length() + " for " + route);
-
-                    } else if (state.getClass() == stateClass) {
-                        return new Command(route, state);
-
-                    } else {
-                        throw new CommandParserException(
-                                "Failed to convert a command of length "
-                                        + json.length() + " for " + route + " into a "
-                                        + stateClass.getSimpleName() + ".");
-                    }
+                    return this.parser.createCommand(route, json);
                 }
             }
         }
     }
 
     /** Dispatch a GET or POST request to the appropriate handler.
-     * FUTURE Explore Simple's asynchronous response mode.
-     * See "asynchronous services" here:
-     * http://www.simpleframework.org/doc/tutorial/tutorial.php
+     * Most responses are complete when this returns, but Simple's
+     * asynchronous mode lets others finish later on another thread: see
+     * PreviewTransmitter and AckResponder.
      */
     public void handle(Request request, Response response) {
         try {
@@ -159,14 +222,81 @@ public class HttpServiceContainer implements Container {
     private void handleGet(Request request, Response response) {
         int index = this.requestIndex;
         ++this.requestIndex; // Increment before any possible exception.
+        String route = request.getPath().getPath();
+        if(METRICS_ROUTE.equals(route)) {
+            response.setStatus(Status.OK);
+            this.respond(response, metrics.toPrometheusText());
+            return;
+        } else if(PREVIEW_ROUTE.equals(route) && previewTransmitter != null) {
+            this.handlePreview(request, response);
+            return;
+        }
+
+        // Serve state from the latest snapshot, never from the live scene,
+        // which belongs to the render thread.
+        SceneSnapshot snapshot = showRunner == null ? null : showRunner.getSnapshot();
+        String json = null;
+        if(snapshot != null) {
+            json = STATE_ROUTE.equals(route) ? snapshot.toJson() : snapshot.getStateJson(route);
+        }
+        if(json != null) {
+            response.setStatus(Status.OK);
+            response.setValue("X-Udder-Frame", "" + snapshot.getFrameIndex());
+            response.setValue("Cache-Control", "no-cache");
+            this.respond(response, json, "application/json");
+        } else if(STATE_ROUTE.equals(route) || this.commandMap.containsKey(route)) {
+            response.setStatus(Status.SERVICE_UNAVAILABLE);
+            this.respond(response, "NOT_READY " + index);
+        } else {
+            response.setStatus(Status.NOT_FOUND);
+            this.respond(response, "NOT_FOUND " + index);
+        }
+    }
+
+    /** Hand the response over to the PreviewTransmitter, which keeps it open
+     *  and streams to it from another thread after we return. (Simple doesn't
+     *  complete a response until it's closed.)
+     */
+    private void handlePreview(Request request, Response response) {
+        Query query = request.getQuery();
+        int fps = this.parseQueryInt(query, "fps", PreviewTransmitter.DEFAULT_FPS);
+        int step = this.parseQueryInt(query, "step", 1);
         response.setStatus(Status.OK);
-        String responseBody = "TODO GET " + index;
-        this.respond(response, responseBody);
+        addResponseHeader(response, "text/event-stream");
+        response.setValue("Cache-Control", "no-cache");
+        try {
+            previewTransmitter.subscribe(response.getOutputStream(), fps, step);
+        } catch(IOException e) {
+            log("Failed to open a preview stream: " + e);
+        }
+    }
+
+    private int parseQueryInt(Query query, String key, int defaultValue) {
+        String value = query.get(key);
+        if(value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch(NumberFormatException e) {
+            return defaultValue;
+        }
     }
 
     private void handlePost(Request request, Response response) {
         int index = this.requestIndex;
         ++this.requestIndex; // Increment before any possible exception.
+        if(pixelIngestServer != null) {
+            String contentType = request.getValue("Content-Type");
+            if(contentType != null && contentType.startsWith(RAW_PIXELS_CONTENT_TYPE)) {
+                this.handleRawPixels(request, response, index);
+                return;
+            }
+        }
+        if(patchReloader != null && PATCH_ROUTE.equals(request.getPath().getPath())) {
+            this.handlePatch(response, index);
+            return;
+        }
 
         String responseBody;
         try {
@@ -175,12 +305,27 @@ public class HttpServiceContainer implements Container {
             if(command == null) {
                 throw new NullPointerException("Unreachable code: comand is null.");
             } else {
+                // Report the frame in which a batch took effect, and that of
+                // any command whose client asked to hear when it's rendered.
+                boolean ackRendered = this.isAckRendered(request);
+                PendingAck ack = null;
+                if(ackRendered || command.getValue() instanceof CommandBatch) {
+                    ack = ackResponder.createAck(response, index, ackRendered);
+                    command.setReceipt(ack);
+                }
                 boolean accepted = this.queue.offer(command);
-                if(accepted) {
+                if(accepted && ack != null) {
+                    commandsAccepted.increment();
+                    if(this.debug) log(command.toString() + " awaiting render for request " + index);
+                    ackResponder.await(ack);
+                    return; // The AckResponder will respond.
+                } else if(accepted) {
+                    commandsAccepted.increment();
                     response.setStatus(Status.OK);
                     responseBody = "OK " + index;
                     if(this.debug) log(command.toString() + ' ' + responseBody);
                 } else {
+                    commandsDropped.increment();
                     // For some reason, Status doesn't know about RFC 6585.
                     response.setCode(429);
                     response.setDescription("Too Many Requests");
@@ -221,8 +366,9 @@ public class HttpServiceContainer implements Container {
             if(this.verbose) log("Boon failed to parse a valid command from request " + index + ": " + e);
 
         } catch(CommandParserException e) {
+            // Unlike Boon's, these messages are worth showing to the client.
             response.setStatus(Status.BAD_REQUEST);
-            responseBody = "PARSE_ERROR " + index;
+            responseBody = "PARSE_ERROR " + index + ' ' + e.getMessage();
             if(this.verbose) log("Failed to parse a valid command from request " + index + ": " + e);
 
         } catch(Exception e) {
@@ -234,20 +380,153 @@ public class HttpServiceContainer implements Container {
             log("Unexpected error in request " + index + ": " + e + '\n' + sw);
         }
 
+        if(response.getCode() >= 400 && response.getCode() != 429) {
+            commandsRejected.increment();
+        }
         this.respond(response, responseBody);
     }
 
-    private void addResponseHeader(Response response) {
+    /** Prepare the new patch here, on this worker thread, then answer once
+     *  ShowRunner has rendered the first frame with it:
+     *
+     *      OK 7 FRAME 9120 LATENCY_US 10340
+     *
+     *  where the latency counts from the end of preparation. A patch sheet
+     *  that can't be loaded is reported as PATCH_ERROR, and the show carries
+     *  on with the old patch.
+     */
+    private void handlePatch(Response response, int index) {
+        Command command;
+        try {
+            command = patchReloader.createCommand();
+        } catch(Exception e) {
+            // Boon, IO, address and device validation errors alike.
+            commandsRejected.increment();
+            response.setStatus(Status.BAD_REQUEST);
+            log("Failed to reload the patch sheet " + patchReloader.getPatchSheetPath()
+                + " for request " + index + ": " + e);
+            // Boon's messages run to several lines. The first says enough.
+            String message = String.valueOf(e.getMessage()).trim().split("\n", 2)[0];
+            this.respond(response, "PATCH_ERROR " + index + ' ' + message);
+            return;
+        }
+        PendingAck ack = ackResponder.createAck(response, index, true);
+        command.setReceipt(ack);
+        if(this.queue.offer(command)) {
+            commandsAccepted.increment();
+            ackResponder.await(ack);
+        } else {
+            commandsDropped.increment();
+            response.setCode(429);
+            response.setDescription("Too Many Requests");
+            this.respond(response, "DROPPED " + index);
+        }
+    }
+
+    private boolean isAckRendered(Request request) {
+        String ack = request.getQuery().get(ACK_PARAM);
+        if(ack == null) {
+            ack = request.getValue(ACK_HEADER);
+        }
+        return ack != null && ACK_RENDERED.equals(ack.trim());
+    }
+
+    /** Read request bodies into a reusable per-thread buffer. */
+    private static final ThreadLocal<byte[]> rawPixelBuffer = new ThreadLocal<byte[]>() {
+        protected byte[] initialValue() {
+            return new byte[8192];
+        }
+    };
+
+    /** Read a whole request body into this thread's rawPixelBuffer, which may
+     *  grow to PixelIngestServer.MAX_FRAME_BYTES, and return its length.
+     *  Throw IllegalArgumentException if the body is any larger.
+     */
+    static int readRawPixels(InputStream in) throws IOException {
+        byte[] buffer = rawPixelBuffer.get();
+        int n = 0;
+        while(true) {
+            if(n == buffer.length) {
+                if(n >= PixelIngestServer.MAX_FRAME_BYTES) {
+                    // A full buffer is fine, as long as nothing follows.
+                    if(in.read() >= 0) {
+                        throw new IllegalArgumentException("Raw pixel frame too large.");
+                    }
+                    break;
+                }
+                byte[] grown = new byte[Math.min(2 * n, PixelIngestServer.MAX_FRAME_BYTES)];
+                System.arraycopy(buffer, 0, grown, 0, n);
+                buffer = grown;
+                rawPixelBuffer.set(buffer);
+            }
+            int read = in.read(buffer, n, buffer.length - n);
+            if(read < 0) {
+                break;
+            }
+            n += read;
+        }
+        return n;
+    }
+
+    /** Hand a raw RGB frame straight to its ArrayEffect, bypassing the command
+     *  queue. Example, using a file of packed RGB bytes:
+     *
+     *  curl --data-binary @frame.rgb -H 'Content-Type: application/octet-stream' \
+     *      localhost:8080/mixer0/layer20/effect
+     */
+    private void handleRawPixels(Request request, Response response, int index) {
+        String route = request.getPath().getPath();
+        int channel = pixelIngestServer.getChannel(route);
+        String responseBody;
+        try {
+            long length = request.getContentLength();
+            if(channel < 0) {
+                response.setStatus(Status.NOT_FOUND);
+                responseBody = "NOT_FOUND " + index;
+                if(this.verbose) log("Raw pixels are only accepted for " + pixelIngestServer.getRoutes()
+                    + ", not " + route + ".");
+            } else if(length > PixelIngestServer.MAX_FRAME_BYTES) {
+                response.setCode(413);
+                response.setDescription("Payload Too Large");
+                responseBody = "TOO_LARGE " + index;
+            } else {
+                long seq = PixelIngestServer.parseSequence(request.getValue("X-Udder-Sequence"));
+                int n = readRawPixels(request.getInputStream());
+                byte[] buffer = rawPixelBuffer.get();
+                if(pixelIngestServer.submit(channel, seq, buffer, 0, n)) {
+                    response.setStatus(Status.OK);
+                    responseBody = "OK " + index;
+                } else {
+                    response.setStatus(Status.CONFLICT);
+                    responseBody = "STALE " + index;
+                }
+            }
+        } catch(IOException e) {
+            response.setStatus(Status.BAD_REQUEST);
+            responseBody = "READ_ERROR " + index;
+            if(this.verbose) log("Failed to read raw pixels from request " + index + ": " + e);
+        } catch(IllegalArgumentException e) {
+            response.setStatus(Status.BAD_REQUEST);
+            responseBody = "PARSE_ERROR " + index + ' ' + e.getMessage();
+        }
+        this.respond(response, responseBody);
+    }
+
+    static void addResponseHeader(Response response, String contentType) {
         long time = System.currentTimeMillis();
-        response.setValue("Content-Type", "text/plain");
+        response.setValue("Content-Type", contentType);
         response.setValue("Server", "Udder/1.0 (Simple 4.0)");
         response.setValue("Access-Control-Allow-Origin", "*");
         response.setDate("Date", time);
         response.setDate("Last-Modified", time);
     }
 
-    private boolean respond(Response response, String responseBody) {
-        this.addResponseHeader(response);
+    boolean respond(Response response, String responseBody) {
+        return this.respond(response, responseBody, "text/plain");
+    }
+
+    boolean respond(Response response, String responseBody, String contentType) {
+        addResponseHeader(response, contentType);
         try {
             PrintStream body = response.getPrintStream();
             body.println(responseBody);
@@ -265,13 +544,3 @@ public class HttpServiceContainer implements Container {
         System.out.println(message);
     }
 }
-
-
-class RoutingException extends Exception {
-    public RoutingException(String message) { super(message); }
-}
-
-
-class CommandParserException extends Exception {
-    public CommandParserException(String message) { super(message); }
-}
@@ -0,0 +1,149 @@
+package com.coillighting.udder.infrastructure;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+
+import static com.coillighting.udder.util.LogUtil.log;
+
+/** An in-process stand-in for an OPC server such as the Fadecandy server or
+ *  openpixelcontrol's gl_server. Listens on the loopback interface, parses
+ *  each incoming OPC message, timestamps it with System.nanoTime() and hands
+ *  it to an OpcMessageListener. Nothing is displayed.
+ *
+ *  Intended for benchmarks and tests that need to observe exactly what
+ *  OpcTransmitter puts on the wire, and when, without any hardware.
+ *
+ *  Accepts one client at a time, which is all an OpcTransmitter needs. When
+ *  the client disconnects, waits for the next one.
+ *
+ *  Note that OPC's 16-bit length field wraps for messages covering more than
+ *  21845 pixels, in which case this server loses its framing just like a
+ *  real OPC server would.
+ */
+public class LoopbackOpcServer implements Runnable {
+
+    protected boolean verbose = false;
+    protected ServerSocket serverSocket;
+    protected volatile Socket clientSocket;
+    protected OpcMessageListener listener;
+    protected Thread thread;
+    protected volatile boolean running = false;
+    protected volatile long messageCount = 0;
+
+    /** Reused for every message. See the borrowing contract on
+     *  OpcMessageListener.
+     */
+    private byte[] data = new byte[OpcHeader.SUBPIXEL_START + 3 * 4096];
+
+    /** Listen on the given loopback port. Pass 0 to let the OS pick a free
+     *  port, then ask getPort() which one it chose.
+     */
+    public LoopbackOpcServer(int port, OpcMessageListener listener) throws IOException {
+        if(listener == null) {
+            throw new NullPointerException(
+                "LoopbackOpcServer requires a listener for incoming messages.");
+        }
+        this.listener = listener;
+        this.serverSocket = new ServerSocket(port, 1, InetAddress.getByName("127.0.0.1"));
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /** Return the address an OpcTransmitter should connect to. */
+    public SocketAddress getSocketAddress() {
+        return new SocketAddress("127.0.0.1", this.getPort());
+    }
+
+    public long getMessageCount() {
+        return messageCount;
+    }
+
+    /** Start listening in a new daemon thread. */
+    public void start() {
+        running = true;
+        thread = new Thread(this, "LoopbackOpcServer:" + this.getPort());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Close all sockets and wait briefly for the listening thread to exit. */
+    public void stop() throws InterruptedException {
+        running = false;
+        this.closeQuietly();
+        if(thread != null) {
+            thread.join(1000);
+        }
+    }
+
+    public void run() {
+        try {
+            while(running) {
+                Socket client = serverSocket.accept();
+                clientSocket = client;
+                if(verbose) log("Accepted OPC client " + client.getRemoteSocketAddress());
+                try {
+                    this.receive(new DataInputStream(new BufferedInputStream(
+                        client.getInputStream())));
+                } catch(EOFException e) {
+                    if(verbose) log("OPC client disconnected from " + this);
+                } finally {
+                    clientSocket = null;
+                    client.close();
+                }
+            }
+        } catch(SocketException e) {
+            // Normally this just means stop() closed the socket.
+            if(running) log("Stopping " + this + ": " + e);
+        } catch(IOException e) {
+            log("Stopping " + this + ": " + e);
+        } finally {
+            running = false;
+            this.closeQuietly();
+        }
+    }
+
+    /** Parse messages until the client disconnects. */
+    protected void receive(DataInputStream in) throws IOException {
+        while(running) {
+            int channel = in.readUnsignedByte();
+            int command = in.readUnsignedByte();
+            int length = in.readUnsignedShort();
+            if(length > data.length) {
+                data = new byte[length];
+            }
+            in.readFully(data, 0, length);
+            long receivedNanos = System.nanoTime();
+            ++messageCount;
+            listener.messageReceived(channel, command, data, length, receivedNanos);
+        }
+    }
+
+    protected void closeQuietly() {
+        try {
+            Socket client = clientSocket;
+            if(client != null) {
+                client.close();
+            }
+        } catch(IOException e) {
+            // Nothing left to do.
+        }
+        try {
+            serverSocket.close();
+        } catch(IOException e) {
+            // Nothing left to do.
+        }
+    }
+
+    public String toString() {
+        return "LoopbackOpcServer(127.0.0.1:" + this.getPort() + ")";
+    }
+
+}
@@ -0,0 +1,15 @@
+package com.coillighting.udder.infrastructure;
+
+/** Byte offsets and constants of an Open Pixel Control message header,
+ *  shared by OpcTransmitter and LoopbackOpcServer.
+ */
+class OpcHeader {
+    // OPC protocol details (byte offsets)
+    public static final int CHANNEL = 0;
+    public static final int COMMAND = 1;
+    public static final int COMMAND_SET_PIXELS = 0;
+    public static final int SUBPIXEL_COUNT_MSB = 2;
+    public static final int SUBPIXEL_COUNT_LSB = 3;
+    public static final int SUBPIXEL_START = 4;
+
+}
@@ -0,0 +1,21 @@
+package com.coillighting.udder.infrastructure;
+
+/** Receives each OPC message parsed by a LoopbackOpcServer.
+ *
+ *  Borrowing contract: the data array belongs to the server, which will
+ *  overwrite it with the next message. Listeners that need to keep any of it
+ *  must copy it before returning. Called from the server's own thread.
+ */
+public interface OpcMessageListener {
+
+    /** @param channel the OPC channel byte, 0-255
+     *  @param command the OPC command byte, 0-255 (0 means set pixels)
+     *  @param data the message payload, excluding the four byte header
+     *  @param length the number of valid bytes in data
+     *  @param receivedNanos System.nanoTime() as soon as the last byte of
+     *         the message was read from the socket
+     */
+    public void messageReceived(int channel, int command, byte[] data,
+                                int length, long receivedNanos);
+
+}
@@ -8,6 +8,12 @@ import java.net.SocketException;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
 
+import com.coillighting.udder.metrics.Counter;
+import com.coillighting.udder.metrics.FlightEvents;
+import com.coillighting.udder.metrics.FlightLog;
+import com.coillighting.udder.metrics.Histogram;
+import com.coillighting.udder.metrics.Metric;
+import com.coillighting.udder.metrics.MetricsRegistry;
 import com.coillighting.udder.mix.Frame;
 import com.coillighting.udder.model.Pixel;
 
@@ -35,6 +41,23 @@ public class OpcTransmitter implements Transmitter {
     protected int serverPort;
     protected int[] deviceAddressMap; // see PatchSheet.deviceAddressMap
     protected long previousFrameRealTimeMillis = 0;
+    protected long connectAttempts = 0;
+    protected String outputName;
+
+    protected Histogram encodeTime;
+    protected Histogram sendTime;
+    protected Counter framesSent;
+    protected Counter reconnects;
+    protected Counter sendErrors;
+
+    /** Recent sends, for the StallWatchdog. */
+    public static final int LOG_FRAME = 0;
+    public static final int LOG_START_NANOS = 1;
+    public static final int LOG_ENCODE_NANOS = 2;
+    public static final int LOG_SEND_NANOS = 3;
+    public static final int LOG_BYTES = 4;
+    protected FlightLog flightLog = new FlightLog("sends", new String[] {
+        "frame", "start_ns", "encode_ns", "send_ns", "bytes"}, 4096);
 
     protected final boolean verbose = false;
     protected final boolean debug = true;
@@ -52,6 +75,24 @@ public class OpcTransmitter implements Transmitter {
         this.serverHost = opcServerAddr.getHost();
         this.serverPort = opcServerAddr.getPort();
         this.deviceAddressMap = deviceAddressMap;
+        this.registerMetrics(MetricsRegistry.getDefault());
+    }
+
+    protected void registerMetrics(MetricsRegistry metrics) {
+        outputName = serverHost + ':' + serverPort;
+        String output = Metric.label("output", outputName);
+        encodeTime = metrics.histogram("udder_opc_encode_seconds",
+            "Time spent encoding a frame as an OPC message.", output);
+        sendTime = metrics.histogram("udder_opc_send_seconds",
+            "Time spent writing an OPC message to the socket, including any connect.",
+            output);
+        framesSent = metrics.counter("udder_opc_messages_sent_total",
+            "OPC messages written to the socket, including retransmissions.", output);
+        reconnects = metrics.counter("udder_opc_reconnects_total",
+            "Attempts to reconnect to the OPC server after the first connection.",
+            output);
+        sendErrors = metrics.counter("udder_opc_errors_total",
+            "IO errors while connecting to or writing to the OPC server.", output);
     }
 
     public void setFrameQueue(BlockingQueue<Frame> frameQueue) {
@@ -61,6 +102,10 @@ public class OpcTransmitter implements Transmitter {
     protected void connect() throws IOException {
         this.socket = null;
         this.dataOutputStream = null;
+        if(connectAttempts > 0) {
+            reconnects.increment();
+        }
+        ++connectAttempts;
 
         log("Attempting to connect to OPC remote server at "
             + this.serverHost + ":"+ this.serverPort);
@@ -73,13 +118,41 @@ public class OpcTransmitter implements Transmitter {
     }
 
     protected void sendBytes(byte[] bytes) throws IOException {
-        if(socket == null) {
+        this.sendBytes(bytes, -1, System.nanoTime(), 0);
+    }
+
+    /** Send a message, logging the frame index (or -1 for a retransmission)
+     *  and the encoding time to the flight log.
+     */
+    protected void sendBytes(byte[] bytes, long frameIndex, long encodeStartNanos,
+                             long encodeNanos) throws IOException
+    {
+        Object event = FlightEvents.beginOpcSend();
+        long start = System.nanoTime();
+        boolean connecting = socket == null;
+        if(connecting) {
             this.connect();
         }
         this.dataOutputStream.write(bytes, 0, bytes.length);
+        long end = System.nanoTime();
+        sendTime.record(end - start);
+        framesSent.increment();
+        FlightEvents.commitOpcSend(event, outputName, bytes.length, connecting);
+
+        int slot = flightLog.claim();
+        flightLog.set(slot, LOG_FRAME, frameIndex);
+        flightLog.set(slot, LOG_START_NANOS, encodeStartNanos);
+        flightLog.set(slot, LOG_ENCODE_NANOS, encodeNanos);
+        flightLog.set(slot, LOG_SEND_NANOS, end - start);
+        flightLog.set(slot, LOG_BYTES, bytes.length);
+        flightLog.publish(end);
         if(verbose) log(this.formatMessage(bytes));
     }
 
+    public FlightLog getFlightLog() {
+        return flightLog;
+    }
+
     // Broken out into a separate method for easy profiling.
     // Some profilers otherwise have a hard time distinguishing between
     // time spent in run() and time spend waiting for the next frame.
@@ -89,6 +162,16 @@ public class OpcTransmitter implements Transmitter {
     }
 
     protected void writeOPCPixels(byte[] message, Pixel[] pixels) {
+        OpcTransmitter.writeOPCPixels(message, pixels, deviceAddressMap, black);
+    }
+
+    /** Static so that benchmarks and test harnesses can exercise exactly the
+     *  same encoder as the transmitter. Unpatched addresses receive the given
+     *  black pixel.
+     */
+    public static void writeOPCPixels(byte[] message, Pixel[] pixels,
+                                      int[] deviceAddressMap, Pixel black)
+    {
         int i = OpcHeader.SUBPIXEL_START;
         for (int deviceIndex : deviceAddressMap) {
             Pixel pixel;
@@ -104,6 +187,27 @@ public class OpcTransmitter implements Transmitter {
         }
     }
 
+    /** Return the length in bytes of a set-pixels message covering every
+     *  address in the given deviceAddressMap, header included.
+     */
+    public static int getMessageLength(int[] deviceAddressMap) {
+        return OpcHeader.SUBPIXEL_START + 3 * deviceAddressMap.length;
+    }
+
+    /** Write the OPC header for a set-pixels message on the given channel.
+     *
+     *  Note that OPC's length field is only 16 bits wide, so a single message
+     *  can't address more than 21845 pixels. Larger rigs will need to be split
+     *  across several channels or several servers (FUTURE).
+     */
+    public static void writeOPCHeader(byte[] message, byte channel) {
+        final int subpixelLen = message.length - OpcHeader.SUBPIXEL_START;
+        message[OpcHeader.CHANNEL] = channel;
+        message[OpcHeader.COMMAND] = OpcHeader.COMMAND_SET_PIXELS;
+        message[OpcHeader.SUBPIXEL_COUNT_MSB] = (byte)(subpixelLen / 256);
+        message[OpcHeader.SUBPIXEL_COUNT_LSB] = (byte)(subpixelLen % 256);
+    }
+
     public void run() {
         try {
             log("Starting OPC transmitter " + this);
@@ -131,12 +235,15 @@ public class OpcTransmitter implements Transmitter {
                         // the order of PatchSheet.modelSpaceDevices.
                         Pixel[] pixels = frame.getPixels();
 
+                        // Follow the frame's patch, which changes whenever
+                        // the patch sheet is reloaded.
+                        if(frame.getDeviceAddressMap() != null) {
+                            deviceAddressMap = frame.getDeviceAddressMap();
+                        }
+
                         // count the opc pixels, which might be a superset of
                         // the patched pixels:
-                        final int pixelLen = deviceAddressMap.length;
-                        final int subpixelLen = 3 * pixelLen;
-                        final int headerLen = 4;
-                        final int messageLen = headerLen + subpixelLen;
+                        final int messageLen = getMessageLength(deviceAddressMap);
 
                         // recycle the message struct whenever possible
                         if(messageLen != message.length) {
@@ -153,14 +260,14 @@ public class OpcTransmitter implements Transmitter {
                         // recomputed in every frame because they are tied to
                         // constants or values that rarely vary.
 
-                        message[OpcHeader.CHANNEL] = channel;
-                        message[OpcHeader.COMMAND] = OpcHeader.COMMAND_SET_PIXELS;
-
-                        message[OpcHeader.SUBPIXEL_COUNT_MSB] = (byte)(subpixelLen / 256);
-                        message[OpcHeader.SUBPIXEL_COUNT_LSB] = (byte)(subpixelLen % 256);
+                        long encodeStart = System.nanoTime();
+                        writeOPCHeader(message, channel);
 
                         this.writeOPCPixels(message, pixels);
-                        this.sendBytes(message);
+                        long encodeNanos = System.nanoTime() - encodeStart;
+                        encodeTime.record(encodeNanos);
+                        this.sendBytes(message, frame.getTimePoint().getFrameIndex(),
+                            encodeStart, encodeNanos);
                     } else {
                         // If there are no incoming frames, periodically retransmit
                         // the last frame, in case the remote OPC server process was
@@ -179,12 +286,14 @@ public class OpcTransmitter implements Transmitter {
                         }
                     }
                 } catch(SocketException e) {
+                    sendErrors.increment();
                     log("\nERROR -----------------------------------------");
                     this.socket = null;
                     this.dataOutputStream = null;
                     log(e.toString());
                     this.delayReconnect();
                 } catch(IOException e) {
+                    sendErrors.increment();
                     log("\nERROR -----------------------------------------");
                     log(e.toString());
                 }
@@ -261,14 +370,3 @@ public class OpcTransmitter implements Transmitter {
         return "OpcTransmitter(" + serverHost + ":" + serverPort + ")";
     }
 }
-
-class OpcHeader {
-    // OPC protocol details (byte offsets)
-    public static final int CHANNEL = 0;
-    public static final int COMMAND = 1;
-    public static final int COMMAND_SET_PIXELS = 0;
-    public static final int SUBPIXEL_COUNT_MSB = 2;
-    public static final int SUBPIXEL_COUNT_LSB = 3;
-    public static final int SUBPIXEL_START = 4;
-
-}
\ No newline at end of file
@@ -0,0 +1,453 @@
+package com.coillighting.udder.infrastructure;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+
+import static org.boon.Exceptions.SoftenedException;
+
+import com.coillighting.udder.metrics.Counter;
+import com.coillighting.udder.metrics.Metric;
+import com.coillighting.udder.metrics.MetricsRegistry;
+import com.coillighting.udder.mix.LayerState;
+import com.coillighting.udder.model.Pixel;
+
+import static com.coillighting.udder.util.LogUtil.log;
+
+/** Accept Open Sound Control messages over UDP, the native tongue of
+ *  lighting consoles and TouchOSC-style control surfaces. A datagram costs
+ *  no connection setup and no text parsing, so fader moves arrive with less
+ *  latency, and less variation in latency, than over HTTP.
+ *
+ *  OSC addresses map onto routes (see Router) as follows:
+ *
+ *      /mixer0/layer3/level 0.5     level of a Mixer or Layer (LayerState)
+ *      /mixer0/layer3 0.5           same thing
+ *      /mixer0/layer5/effect 1 0 0  color of a Pixel-state effect (r, g, b)
+ *      /mixer0/layer2/effect "{...}"  any route, with its JSON state as one
+ *                                     string argument, as for HTTP
+ *
+ *  Numeric arguments may be floats (f), doubles (d), ints (i), longs (h) or
+ *  booleans (T/F, as 1 or 0). Levels and colors are used as is, so scale
+ *  your controls from 0 to 1.
+ *
+ *  The receiving thread parses each datagram and offers the resulting
+ *  Command straight to ShowRunner's command queue, so no other thread is
+ *  involved. An OSC bundle becomes a single CommandBatch, applied in one
+ *  frame, so a console can set several layers at once without tearing. As
+ *  with the /batch route, if any message in a bundle can't be mapped, the
+ *  whole bundle is dropped. Bundle time tags are ignored: everything is
+ *  applied as soon as possible.
+ *
+ *  OSC has no replies, so problems are only counted (udder_osc_messages_total)
+ *  and logged, once per unmapped address.
+ */
+public class OscServer implements Runnable {
+
+    /** OSC over UDP rarely exceeds one Ethernet frame, but allow for big
+     *  JSON strings.
+     */
+    public static final int MAX_PACKET_BYTES = 65536;
+
+    protected boolean verbose = true; // log each unmapped address once
+    protected boolean debug = false; // log every command
+    protected DatagramSocket socket;
+    protected Queue<Command> queue;
+    protected CommandParser parser;
+    protected Map<String, Class> commandMap;
+    protected Thread thread = null;
+    protected volatile boolean running = false;
+    protected Set<String> reportedAddresses = new HashSet<String>();
+
+    protected Counter messagesAccepted;
+    protected Counter messagesDropped;
+    protected Counter messagesUnmapped;
+    protected Counter messagesMalformed;
+
+    public OscServer(InetSocketAddress listenAddress, Queue<Command> queue,
+                     CommandParser parser) throws SocketException
+    {
+        if(queue == null) {
+            throw new NullPointerException("OscServer requires a Queue for consuming commands.");
+        } else if(parser == null) {
+            throw new NullPointerException("OscServer requires a CommandParser.");
+        }
+        this.queue = queue;
+        this.parser = parser;
+        this.commandMap = parser.getCommandMap();
+        this.socket = new DatagramSocket(null);
+        this.socket.setReuseAddress(true);
+        this.socket.bind(listenAddress);
+
+        MetricsRegistry metrics = MetricsRegistry.getDefault();
+        String help = "OSC messages received, by outcome. A bundle counts each of its messages.";
+        messagesAccepted = metrics.counter("udder_osc_messages_total", help,
+            Metric.label("result", "accepted"));
+        messagesDropped = metrics.counter("udder_osc_messages_total", help,
+            Metric.label("result", "dropped"));
+        messagesUnmapped = metrics.counter("udder_osc_messages_total", help,
+            Metric.label("result", "unmapped"));
+        messagesMalformed = metrics.counter("udder_osc_messages_total", help,
+            Metric.label("result", "malformed"));
+    }
+
+    public int getPort() {
+        return socket.getLocalPort();
+    }
+
+    /** Start receiving in a new daemon thread. */
+    public void start() {
+        running = true;
+        thread = new Thread(this, "OscServer:" + this.getPort());
+        thread.setDaemon(true);
+        thread.start();
+        log("Listening for OSC on udp://"
+            + socket.getLocalAddress().getHostAddress() + ':' + this.getPort());
+    }
+
+    public void stop() throws InterruptedException {
+        running = false;
+        socket.close();
+        if(thread != null) {
+            thread.join(1000);
+        }
+    }
+
+    public void run() {
+        byte[] buffer = new byte[MAX_PACKET_BYTES];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        List<Command> commands = new ArrayList<Command>();
+        try {
+            while(running) {
+                packet.setLength(buffer.length);
+                socket.receive(packet);
+                commands.clear();
+                this.handlePacket(buffer, packet.getLength(), commands);
+            }
+        } catch(SocketException e) {
+            // Normally this just means stop() closed the socket.
+            if(running) log("Stopping " + this + ": " + e);
+        } catch(IOException e) {
+            log("Stopping " + this + ": " + e);
+        } finally {
+            running = false;
+        }
+    }
+
+    /** Parse one OSC packet (a message or a bundle) and queue its commands.
+     *  The caller supplies an empty scratch list. Return the number of
+     *  messages queued.
+     */
+    protected int handlePacket(byte[] buffer, int length, List<Command> commands) {
+        OscReader reader = new OscReader(buffer, 0, length);
+        try {
+            if(reader.isBundle()) {
+                this.readBundle(reader, commands);
+            } else {
+                commands.add(this.readMessage(reader));
+            }
+        } catch(OscFormatException e) {
+            messagesMalformed.add(countMessages(new OscReader(buffer, 0, length)));
+            if(verbose) log("Malformed OSC packet of " + length + " bytes: " + e.getMessage());
+            return 0;
+        } catch(RoutingException e) {
+            messagesUnmapped.add(countMessages(new OscReader(buffer, 0, length)));
+            this.report(e.getMessage());
+            return 0;
+        } catch(CommandParserException e) {
+            messagesUnmapped.add(countMessages(new OscReader(buffer, 0, length)));
+            this.report(e.getMessage());
+            return 0;
+        } catch(SoftenedException e) {
+            messagesUnmapped.add(countMessages(new OscReader(buffer, 0, length)));
+            this.report("Failed to parse a JSON state: " + e.getMessage());
+            return 0;
+        } catch(ClassCastException e) {
+            messagesUnmapped.add(countMessages(new OscReader(buffer, 0, length)));
+            this.report("Failed to parse a JSON state: " + e);
+            return 0;
+        } catch(RuntimeException e) {
+            // Boon and the codecs may throw anything, but one bad packet
+            // must not stop the receiver thread.
+            messagesMalformed.add(countMessages(new OscReader(buffer, 0, length)));
+            this.report("Unexpected error in an OSC packet of " + length + " bytes: " + e);
+            return 0;
+        }
+
+        if(commands.isEmpty()) {
+            return 0; // an empty bundle
+        }
+        Command command = commands.size() == 1 ? commands.get(0)
+            : new Command(CommandParser.BATCH_ROUTE,
+                new CommandBatch(new ArrayList<Command>(commands)));
+        if(queue.offer(command)) {
+            messagesAccepted.add(commands.size());
+            if(debug) log("OSC " + command);
+            return commands.size();
+        } else {
+            messagesDropped.add(commands.size());
+            return 0;
+        }
+    }
+
+    /** Read every message in a bundle, flattening nested bundles. Return the
+     *  number of messages read. Throw on the first bad one.
+     */
+    protected int readBundle(OscReader reader, List<Command> commands)
+        throws OscFormatException, RoutingException, CommandParserException
+    {
+        reader.readBundleHeader();
+        int count = 0;
+        while(reader.hasRemaining()) {
+            OscReader element = reader.readBundleElement();
+            if(element.isBundle()) {
+                count += this.readBundle(element, commands);
+            } else {
+                ++count;
+                commands.add(this.readMessage(element));
+            }
+        }
+        return count;
+    }
+
+    /** Count the messages in a packet without parsing them, so that a bundle
+     *  rejected for one bad message counts all of its messages. Count a
+     *  malformed element as one message.
+     */
+    protected static int countMessages(OscReader reader) {
+        if(!reader.isBundle()) {
+            return 1;
+        }
+        int count = 0;
+        try {
+            reader.readBundleHeader();
+            while(reader.hasRemaining()) {
+                count += countMessages(reader.readBundleElement());
+            }
+        } catch(OscFormatException e) {
+            ++count;
+        }
+        return count;
+    }
+
+    protected Command readMessage(OscReader reader)
+        throws OscFormatException, RoutingException, CommandParserException
+    {
+        String address = reader.readString();
+        List<Object> args = reader.readArguments();
+        return this.createCommand(address, args);
+    }
+
+    /** Map an OSC message onto a Command. See the class comment. */
+    protected Command createCommand(String address, List<Object> args)
+        throws RoutingException, CommandParserException
+    {
+        String route = address;
+        boolean levelOnly = false;
+        if(!commandMap.containsKey(route) && route.endsWith("/level")) {
+            route = route.substring(0, route.length() - "/level".length());
+            levelOnly = true;
+        }
+        Class stateClass = commandMap.get(route);
+        if(stateClass == null) {
+            throw new RoutingException("No route for OSC address " + address);
+        }
+
+        int n = args.size();
+        if(!levelOnly && n == 1 && args.get(0) instanceof String) {
+            return parser.createCommand(route, (String) args.get(0));
+        } else if(stateClass == LayerState.class && n == 1 && isNumeric(args.get(0))) {
+            return new Command(route, new LayerState((float) toDouble(args.get(0))));
+        } else if(!levelOnly && stateClass == Pixel.class && n == 3 && isNumeric(args.get(0))
+                && isNumeric(args.get(1)) && isNumeric(args.get(2)))
+        {
+            return new Command(route, new Pixel((float) toDouble(args.get(0)),
+                (float) toDouble(args.get(1)), (float) toDouble(args.get(2))));
+        } else {
+            throw new CommandParserException("Can't map OSC " + address + " with "
+                + n + " argument(s) " + args + " onto a " + stateClass.getSimpleName()
+                + " for " + route + ".");
+        }
+    }
+
+    protected static boolean isNumeric(Object arg) {
+        return arg instanceof Number || arg instanceof Boolean;
+    }
+
+    protected static double toDouble(Object arg) {
+        if(arg instanceof Boolean) {
+            return ((Boolean) arg).booleanValue() ? 1.0 : 0.0;
+        } else {
+            return ((Number) arg).doubleValue();
+        }
+    }
+
+    /** Log a mapping problem, but only once per message, so that a fader
+     *  bound to the wrong address doesn't flood the log.
+     */
+    protected void report(String message) {
+        if(verbose && reportedAddresses.size() < 1000 && reportedAddresses.add(message)) {
+            log(message);
+        }
+    }
+
+    public String toString() {
+        return "OscServer(" + socket.getLocalSocketAddress() + ")";
+    }
+}
+
+
+class OscFormatException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    public OscFormatException(String message) { super(message); }
+}
+
+
+/** Read the OSC 1.0 binary encoding: big-endian, with strings and blobs
+ *  padded to a multiple of 4 bytes.
+ */
+class OscReader {
+
+    private static final byte[] BUNDLE_TAG = {'#', 'b', 'u', 'n', 'd', 'l', 'e', 0};
+
+    protected byte[] buffer;
+    protected int pos;
+    protected int end;
+
+    public OscReader(byte[] buffer, int offset, int length) {
+        this.buffer = buffer;
+        this.pos = offset;
+        this.end = offset + length;
+    }
+
+    public boolean hasRemaining() {
+        return pos < end;
+    }
+
+    public boolean isBundle() {
+        if(end - pos < BUNDLE_TAG.length) {
+            return false;
+        }
+        for(int i=0; i<BUNDLE_TAG.length; i++) {
+            if(buffer[pos + i] != BUNDLE_TAG[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Skip "#bundle" and the time tag. */
+    public void readBundleHeader() throws OscFormatException {
+        this.require(16);
+        pos += 16;
+    }
+
+    /** Return a reader for the next element of a bundle, and skip it. */
+    public OscReader readBundleElement() throws OscFormatException {
+        int size = this.readInt();
+        if(size < 0 || size % 4 != 0) {
+            throw new OscFormatException("Invalid bundle element size " + size + ".");
+        }
+        this.require(size);
+        OscReader element = new OscReader(buffer, pos, size);
+        pos += size;
+        return element;
+    }
+
+    public int readInt() throws OscFormatException {
+        this.require(4);
+        int value = ((buffer[pos] & 0xFF) << 24) | ((buffer[pos + 1] & 0xFF) << 16)
+            | ((buffer[pos + 2] & 0xFF) << 8) | (buffer[pos + 3] & 0xFF);
+        pos += 4;
+        return value;
+    }
+
+    public long readLong() throws OscFormatException {
+        long high = this.readInt() & 0xFFFFFFFFL;
+        long low = this.readInt() & 0xFFFFFFFFL;
+        return (high << 32) | low;
+    }
+
+    public String readString() throws OscFormatException {
+        int start = pos;
+        int terminator = start;
+        while(terminator < end && buffer[terminator] != 0) {
+            ++terminator;
+        }
+        if(terminator == end) {
+            throw new OscFormatException("Unterminated string at byte " + start + ".");
+        }
+        String s;
+        try {
+            s = new String(buffer, start, terminator - start, "UTF-8");
+        } catch(java.io.UnsupportedEncodingException e) {
+            throw new RuntimeException(e); // UTF-8 is always supported
+        }
+        pos = start + ((terminator - start) / 4 + 1) * 4;
+        if(pos > end) {
+            throw new OscFormatException("Truncated padding after string at byte " + start + ".");
+        }
+        return s;
+    }
+
+    /** Read the type tag string and the arguments it describes. Tolerate a
+     *  message without a type tag string only if nothing follows the
+     *  address, as old senders might send; without tags, any arguments
+     *  would be unreadable.
+     */
+    public List<Object> readArguments() throws OscFormatException {
+        List<Object> args = new ArrayList<Object>(4);
+        if(pos >= end) {
+            return args;
+        } else if(buffer[pos] != ',') {
+            throw new OscFormatException("Missing type tag string at byte " + pos + ".");
+        }
+        String tags = this.readString();
+        for(int i=1; i<tags.length(); i++) {
+            char tag = tags.charAt(i);
+            switch(tag) {
+                case 'i': args.add(Integer.valueOf(this.readInt())); break;
+                case 'f': args.add(Float.valueOf(Float.intBitsToFloat(this.readInt()))); break;
+                case 'h': args.add(Long.valueOf(this.readLong())); break;
+                case 'd': args.add(Double.valueOf(Double.longBitsToDouble(this.readLong()))); break;
+                case 's': case 'S': args.add(this.readString()); break;
+                case 'T': args.add(Boolean.TRUE); break;
+                case 'F': args.add(Boolean.FALSE); break;
+                case 'N': case 'I': args.add(null); break;
+                case 'c': case 'r': case 'm': args.add(Integer.valueOf(this.readInt())); break;
+                case 't': args.add(Long.valueOf(this.readLong())); break;
+                case 'b':
+                    int size = this.readInt();
+                    if(size < 0) {
+                        throw new OscFormatException("Invalid blob size " + size + ".");
+                    }
+                    int padded = (size + 3) & ~3;
+                    this.require(padded);
+                    byte[] blob = new byte[size];
+                    System.arraycopy(buffer, pos, blob, 0, size);
+                    pos += padded;
+                    args.add(blob);
+                    break;
+                default:
+                    throw new OscFormatException("Unsupported OSC type tag '" + tag + "'.");
+            }
+        }
+        return args;
+    }
+
+    protected void require(int bytes) throws OscFormatException {
+        if(end - pos < bytes) {
+            throw new OscFormatException("Expected " + bytes + " more bytes at byte " + pos
+                + " but the packet ends at " + end + ".");
+        }
+    }
+}
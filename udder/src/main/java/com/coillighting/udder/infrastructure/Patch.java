@@ -0,0 +1,60 @@
+package com.coillighting.udder.infrastructure;
+
+import com.coillighting.udder.model.Device;
+import com.coillighting.udder.model.DeviceGeometry;
+
+/** An immutable snapshot of a PatchSheet: the Devices in mixer order, and the
+ *  map from OPC addresses to those devices. Unlike a PatchSheet, a Patch may
+ *  be shared among threads, and its arrays are handed out by reference, so
+ *  nobody may modify them. Frames carry their Patch's deviceAddressMap to the
+ *  transmitters, so that a patch can be swapped between two frames without
+ *  any transmitter seeing a frame from one patch with the map of another.
+ *
+ *  The Patch computes its DeviceGeometry up front, off the render thread,
+ *  and hands it to Mixer.preparePatch so that every effect shares it.
+ */
+public class Patch {
+
+    private final Device[] devices;
+    private final int[] deviceAddressMap;
+    private final DeviceGeometry geometry;
+
+    public Patch(PatchSheet patchSheet) {
+        // PatchSheet's getters return copies, which nobody else holds.
+        this(patchSheet.getModelSpaceDevices(), patchSheet.getDeviceAddressMap());
+    }
+
+    /** Take ownership of the given arrays. */
+    public Patch(Device[] devices, int[] deviceAddressMap) {
+        if(devices == null) {
+            throw new NullPointerException("Patch requires an array of Devices.");
+        } else if(deviceAddressMap == null) {
+            throw new NullPointerException("Patch requires a deviceAddressMap.");
+        }
+        this.devices = devices;
+        this.deviceAddressMap = deviceAddressMap;
+        this.geometry = new DeviceGeometry(devices);
+    }
+
+    /** Do not modify the result. */
+    public Device[] getDevices() {
+        return devices;
+    }
+
+    /** Do not modify the result. See PatchSheet.deviceAddressMap. */
+    public int[] getDeviceAddressMap() {
+        return deviceAddressMap;
+    }
+
+    public DeviceGeometry getGeometry() {
+        return geometry;
+    }
+
+    public int getDeviceCount() {
+        return devices.length;
+    }
+
+    public String toString() {
+        return "Patch(" + devices.length + " devices, " + deviceAddressMap.length + " addresses)";
+    }
+}
@@ -0,0 +1,37 @@
+package com.coillighting.udder.infrastructure;
+
+/** The payload of a Command that replaces the show's patch between two
+ *  frames. Everything expensive (parsing the patch sheet, computing each
+ *  effect's per-device tables) is done before the command is queued, by
+ *  Mixer.preparePatch, so ShowRunner only has to install the results.
+ */
+public class PatchChange {
+
+    private final Patch patch;
+    private final Object preparedMixer;
+
+    /** preparedMixer must come from Mixer.preparePatch(patch.getDevices(),
+     *  patch.getGeometry()).
+     */
+    public PatchChange(Patch patch, Object preparedMixer) {
+        if(patch == null) {
+            throw new NullPointerException("PatchChange requires a Patch.");
+        } else if(preparedMixer == null) {
+            throw new NullPointerException("PatchChange requires a prepared Mixer patch.");
+        }
+        this.patch = patch;
+        this.preparedMixer = preparedMixer;
+    }
+
+    public Patch getPatch() {
+        return patch;
+    }
+
+    public Object getPreparedMixer() {
+        return preparedMixer;
+    }
+
+    public String toString() {
+        return "PatchChange(" + patch + ")";
+    }
+}
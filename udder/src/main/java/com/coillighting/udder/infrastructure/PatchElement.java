@@ -104,4 +104,8 @@ public class PatchElement {
         return this.group;
     }
 
+    public int getAddress() {
+        return this.address;
+    }
+
 }
@@ -0,0 +1,54 @@
+package com.coillighting.udder.infrastructure;
+
+import java.io.IOException;
+
+import com.coillighting.udder.mix.Mixer;
+
+import static com.coillighting.udder.util.LogUtil.log;
+
+/** Reload the patch sheet while the show runs, so that installers can move
+ *  pixels around during focus without restarting Udder, which would reload
+ *  every texture and lose the show's state.
+ *
+ *  Called from an HTTP worker thread, never from the render thread. We parse
+ *  the patch sheet and have the Mixer prepare every effect's per-device
+ *  tables for it here, then return a PatchChange command. Once queued,
+ *  ShowRunner installs it between two frames, switching the devices, the
+ *  pixel arrays and the transmitters' deviceAddressMap at once.
+ */
+public class PatchReloader {
+
+    protected String patchSheetPath;
+    protected Mixer mixer;
+
+    public PatchReloader(String patchSheetPath, Mixer mixer) {
+        if(patchSheetPath == null) {
+            throw new NullPointerException("PatchReloader requires the path of a patch sheet.");
+        } else if(mixer == null) {
+            throw new NullPointerException("PatchReloader requires a Mixer to repatch.");
+        }
+        this.patchSheetPath = patchSheetPath;
+        this.mixer = mixer;
+    }
+
+    /** Parse the patch sheet and prepare the mixer for it. Return a command
+     *  to queue for ShowRunner. Expensive, but safe while the show runs.
+     */
+    public Command createCommand() throws IOException, DeviceAddressException {
+        long start = System.nanoTime();
+        Patch patch = new Patch(PatchSheet.parsePatchSheet(patchSheetPath));
+        if(patch.getDeviceCount() == 0) {
+            throw new DeviceAddressException("The patch sheet " + patchSheetPath
+                + " contains no devices.");
+        }
+        Object preparedMixer = mixer.preparePatch(patch.getDevices(), patch.getGeometry());
+        log("Prepared " + patch + " from " + patchSheetPath + " in "
+            + (System.nanoTime() - start) / 1000000 + " ms.");
+        return new Command(HttpServiceContainer.PATCH_ROUTE,
+            new PatchChange(patch, preparedMixer));
+    }
+
+    public String getPatchSheetPath() {
+        return patchSheetPath;
+    }
+}
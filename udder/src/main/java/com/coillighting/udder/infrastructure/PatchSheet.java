@@ -34,7 +34,7 @@ public class PatchSheet {
                 new Device[modelSpaceDevices.size()]);
 
         // Establish the range and mapping of OPC addresses
-        int maxAddr = Integer.MIN_VALUE;
+        int maxAddr = -1;
         for(Device device: modelSpaceDevices) {
             int addr = device.getAddr();
             if(addr > maxAddr) {
@@ -0,0 +1,50 @@
+package com.coillighting.udder.infrastructure;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.simpleframework.http.Response;
+
+/** One HTTP response waiting for its command to be rendered. Whichever comes
+ *  first, rendering or the timeout, claims the response.
+ */
+class PendingAck implements CommandReceipt {
+
+    final AckResponder responder;
+    final Response response;
+    final int requestIndex;
+    final boolean reportLatency;
+    volatile long deadlineMillis = 0;
+    private final AtomicBoolean done = new AtomicBoolean(false);
+
+    // Written by the render thread before it hands this ack to the
+    // responder through a concurrent queue.
+    long frameIndex = -1;
+    long latencyNanos = -1;
+    boolean applied = false;
+
+    PendingAck(AckResponder responder, Response response, int requestIndex,
+               boolean reportLatency)
+    {
+        this.responder = responder;
+        this.response = response;
+        this.requestIndex = requestIndex;
+        this.reportLatency = reportLatency;
+    }
+
+    boolean claim() {
+        return done.compareAndSet(false, true);
+    }
+
+    boolean isDone() {
+        return done.get();
+    }
+
+    public void rendered(long frameIndex, long latencyNanos, boolean applied) {
+        if(this.claim()) {
+            this.frameIndex = frameIndex;
+            this.latencyNanos = latencyNanos;
+            this.applied = applied;
+            responder.complete(this);
+        }
+    }
+}
@@ -0,0 +1,416 @@
+package com.coillighting.udder.infrastructure;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.coillighting.udder.effect.ArrayEffect;
+import com.coillighting.udder.metrics.Counter;
+import com.coillighting.udder.metrics.Metric;
+import com.coillighting.udder.metrics.MetricsRegistry;
+
+import static com.coillighting.udder.util.LogUtil.log;
+
+/** Feed raw frames of packed 8-bit RGB pixels from other applications, like
+ *  a video player or a VJ tool, straight into ArrayEffect layers, bypassing
+ *  JSON and the command queue. A JSON RgbaArray for the Dairy's 2,280
+ *  devices is ~25 KB of text that parses into thousands of boxed Integers.
+ *  The same frame here is 6,840 bytes, copied once into the effect's back
+ *  buffer and unpacked on the render thread. See ArrayEffect.submitRgb.
+ *
+ *  Each target ArrayEffect is a numbered channel, in the order of the routes
+ *  given to the constructor. Frames arrive two ways:
+ *
+ *  1. HTTP: POST the raw bytes to the effect's route with the Content-Type
+ *     application/octet-stream. An optional X-Udder-Sequence header gives
+ *     the frame's sequence number (see below). See HttpServiceContainer.
+ *
+ *  2. UDP, once listen() is called: one frame per datagram, or fragments of
+ *     a frame spread across several. Each datagram begins with this 16 byte
+ *     header, big-endian:
+ *
+ *         offset  size  field
+ *          0      2     magic: 'U', 'P'
+ *          2      1     version: 1
+ *          3      1     channel
+ *          4      4     frame sequence number (unsigned, may wrap)
+ *          8      2     fragment index, from 0
+ *         10      2     fragment count, from 1
+ *         12      4     byte offset of this fragment's payload in the frame
+ *         16      ...   payload: packed RGB bytes
+ *
+ *     A fragmented frame is displayed only when all of its fragments have
+ *     arrived. We assemble two frames at a time per channel, so fragments
+ *     of consecutive frames may interleave. Starting a third abandons the
+ *     oldest.
+ *
+ *  Sequence numbers let us discard late and duplicate frames: a frame that
+ *  is older than the newest one already submitted on its channel is
+ *  dropped, so the most recent complete frame always wins. A sender that
+ *  restarts its count from zero is recognized once it is more than
+ *  REORDER_WINDOW frames "behind."
+ */
+public class PixelIngestServer implements Runnable {
+
+    public static final int HEADER_LENGTH = 16;
+    public static final int MAGIC = 0x5550; // "UP"
+    public static final int VERSION = 1;
+
+    /** Frames this far behind the newest are assumed to belong to a
+     *  restarted sender, not to be late.
+     */
+    public static final int REORDER_WINDOW = 1024;
+
+    /** Neither UDP nor HTTP frames may exceed this. 64K devices at 3 bytes. */
+    public static final int MAX_FRAME_BYTES = 3 * 65536;
+    public static final int MAX_FRAGMENTS = 1024;
+
+    protected boolean verbose = true;
+    protected List<String> routes;
+    protected ArrayEffect[] targets;
+    protected FrameAssembler[] assemblers;
+    protected DatagramSocket socket = null;
+    protected Thread thread = null;
+    protected volatile boolean running = false;
+
+    protected Counter packetsAccepted;
+    protected Counter packetsMalformed;
+    protected Counter packetsUnknownChannel;
+    protected Counter framesSubmitted;
+    protected Counter framesSuperseded;
+    protected Counter framesStale;
+    protected Counter framesIncomplete;
+
+    /** Accept frames for the ArrayEffect at each of the given routes. */
+    public PixelIngestServer(Router router, List<String> routes) {
+        if(router == null) {
+            throw new NullPointerException("PixelIngestServer requires a Router.");
+        } else if(routes == null) {
+            throw new NullPointerException("PixelIngestServer requires a list of routes.");
+        } else if(routes.size() > 256) {
+            throw new IllegalArgumentException("PixelIngestServer supports at most 256 channels.");
+        }
+        this.routes = new ArrayList<String>(routes);
+        this.targets = new ArrayEffect[routes.size()];
+        this.assemblers = new FrameAssembler[routes.size()];
+        for(int i=0; i<targets.length; i++) {
+            Stateful target = router.get(routes.get(i));
+            if(!(target instanceof ArrayEffect)) {
+                throw new IllegalArgumentException("Can't ingest pixels for " + routes.get(i)
+                    + ": it is " + (target == null ? "not a route" : "not an ArrayEffect") + ".");
+            }
+            targets[i] = (ArrayEffect) target;
+            assemblers[i] = new FrameAssembler(this, i);
+        }
+
+        MetricsRegistry metrics = MetricsRegistry.getDefault();
+        String help = "Raw pixel datagrams received, by outcome.";
+        packetsAccepted = metrics.counter("udder_ingest_packets_total", help,
+            Metric.label("result", "accepted"));
+        packetsMalformed = metrics.counter("udder_ingest_packets_total", help,
+            Metric.label("result", "malformed"));
+        packetsUnknownChannel = metrics.counter("udder_ingest_packets_total", help,
+            Metric.label("result", "unknown_channel"));
+        help = "Raw pixel frames received over UDP or HTTP, by outcome.";
+        framesSubmitted = metrics.counter("udder_ingest_frames_total", help,
+            Metric.label("result", "submitted"));
+        framesSuperseded = metrics.counter("udder_ingest_frames_total", help,
+            Metric.label("result", "superseded"));
+        framesStale = metrics.counter("udder_ingest_frames_total", help,
+            Metric.label("result", "stale"));
+        framesIncomplete = metrics.counter("udder_ingest_frames_total", help,
+            Metric.label("result", "incomplete"));
+    }
+
+    public List<String> getRoutes() {
+        return routes;
+    }
+
+    /** Return the channel number for route, or -1 if it isn't a target. */
+    public int getChannel(String route) {
+        return routes.indexOf(route);
+    }
+
+    /** Threadsafe. Submit a complete frame to the given channel. Pass a
+     *  negative sequence number if the sender doesn't number its frames.
+     *  Return false if the frame was discarded as stale.
+     */
+    public boolean submit(int channel, long sequence, byte[] rgb, int offset, int length) {
+        if(length > MAX_FRAME_BYTES) {
+            throw new IllegalArgumentException("A frame of " + length
+                + " bytes exceeds the maximum of " + MAX_FRAME_BYTES + ".");
+        }
+        return assemblers[channel].submitFrame(sequence, rgb, offset, length);
+    }
+
+    /** Parse the X-Udder-Sequence header of an HTTP frame: an unsigned 32-bit
+     *  sequence number, or a negative number (or no header at all) for an
+     *  unsequenced frame, which returns -1. Throw IllegalArgumentException
+     *  for anything else.
+     */
+    public static long parseSequence(String header) {
+        if(header == null) {
+            return -1;
+        }
+        long sequence;
+        try {
+            sequence = Long.parseLong(header.trim());
+        } catch(NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid X-Udder-Sequence: " + header);
+        }
+        if(sequence < 0) {
+            return -1;
+        } else if(sequence > 0xFFFFFFFFL) {
+            throw new IllegalArgumentException("X-Udder-Sequence " + header
+                + " exceeds the maximum of 4294967295.");
+        }
+        return sequence;
+    }
+
+    /** Bind a UDP socket. Call start() to begin receiving. */
+    public void listen(InetSocketAddress listenAddress) throws SocketException {
+        socket = new DatagramSocket(null);
+        socket.setReuseAddress(true);
+        socket.setReceiveBufferSize(1 << 20);
+        socket.bind(listenAddress);
+    }
+
+    public int getPort() {
+        return socket == null ? -1 : socket.getLocalPort();
+    }
+
+    /** Start receiving datagrams in a new daemon thread, if listening. */
+    public void start() {
+        if(socket == null) {
+            return;
+        }
+        running = true;
+        thread = new Thread(this, "PixelIngest:" + this.getPort());
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MAX_PRIORITY - 1);
+        thread.start();
+        log("Listening for raw pixel frames on udp://"
+            + socket.getLocalAddress().getHostAddress() + ':' + this.getPort()
+            + " for " + routes);
+    }
+
+    public void stop() throws InterruptedException {
+        running = false;
+        if(socket != null) {
+            socket.close();
+        }
+        if(thread != null) {
+            thread.join(1000);
+        }
+    }
+
+    public void run() {
+        byte[] buffer = new byte[65536];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        try {
+            while(running) {
+                packet.setLength(buffer.length);
+                socket.receive(packet);
+                this.receivePacket(buffer, packet.getLength());
+            }
+        } catch(SocketException e) {
+            // Normally this just means stop() closed the socket.
+            if(running) log("Stopping " + this + ": " + e);
+        } catch(IOException e) {
+            log("Stopping " + this + ": " + e);
+        } finally {
+            running = false;
+        }
+    }
+
+    /** Parse one datagram. Return false if it was rejected. */
+    protected boolean receivePacket(byte[] buffer, int length) {
+        if(length < HEADER_LENGTH || readUnsignedShort(buffer, 0) != MAGIC
+                || (buffer[2] & 0xFF) != VERSION)
+        {
+            packetsMalformed.increment();
+            return false;
+        }
+        int channel = buffer[3] & 0xFF;
+        long sequence = readInt(buffer, 4) & 0xFFFFFFFFL;
+        int fragmentIndex = readUnsignedShort(buffer, 8);
+        int fragmentCount = readUnsignedShort(buffer, 10);
+        int offset = readInt(buffer, 12);
+        int payloadLength = length - HEADER_LENGTH;
+        if(fragmentCount == 0 || fragmentCount > MAX_FRAGMENTS || fragmentIndex >= fragmentCount
+                || offset < 0 || offset > MAX_FRAME_BYTES - payloadLength)
+        {
+            packetsMalformed.increment();
+            return false;
+        } else if(channel >= assemblers.length) {
+            packetsUnknownChannel.increment();
+            return false;
+        }
+        packetsAccepted.increment();
+        if(fragmentCount == 1 && offset == 0) {
+            assemblers[channel].submitFrame(sequence, buffer, HEADER_LENGTH, payloadLength);
+        } else {
+            assemblers[channel].receiveFragment(sequence, fragmentIndex, fragmentCount,
+                offset, buffer, HEADER_LENGTH, payloadLength);
+        }
+        return true;
+    }
+
+    protected static int readUnsignedShort(byte[] b, int i) {
+        return ((b[i] & 0xFF) << 8) | (b[i + 1] & 0xFF);
+    }
+
+    protected static int readInt(byte[] b, int i) {
+        return ((b[i] & 0xFF) << 24) | ((b[i + 1] & 0xFF) << 16)
+            | ((b[i + 2] & 0xFF) << 8) | (b[i + 3] & 0xFF);
+    }
+
+    public String toString() {
+        return "PixelIngestServer(" + (socket == null ? "HTTP only" : "udp:" + this.getPort()) + ")";
+    }
+}
+
+
+/** Track sequence numbers and reassemble fragmented frames for one channel.
+ *  Called from the UDP thread and from HTTP worker threads.
+ */
+class FrameAssembler {
+
+    protected PixelIngestServer server;
+    protected ArrayEffect target;
+    protected int channel;
+    protected boolean sequenced = false; // have we seen a sequence number yet?
+    protected int lastSequence = 0; // newest frame submitted, as a wrapping int
+    protected PartialFrame[] partials = {new PartialFrame(), new PartialFrame()};
+
+    public FrameAssembler(PixelIngestServer server, int channel) {
+        this.server = server;
+        this.channel = channel;
+        this.target = server.targets[channel];
+    }
+
+    /** Return true if sequence is already superseded (or a duplicate). */
+    protected boolean isStale(int sequence) {
+        if(!sequenced) {
+            return false;
+        }
+        int age = lastSequence - sequence;
+        return age >= 0 && age < PixelIngestServer.REORDER_WINDOW;
+    }
+
+    public synchronized boolean submitFrame(long sequence, byte[] rgb, int offset, int length) {
+        if(sequence >= 0) {
+            int seq = (int) sequence;
+            if(this.isStale(seq)) {
+                server.framesStale.increment();
+                return false;
+            }
+            sequenced = true;
+            lastSequence = seq;
+            // Anything still being assembled for an older frame is now moot.
+            for(PartialFrame partial: partials) {
+                if(partial.active && this.isStale(partial.sequence)) {
+                    partial.active = false;
+                    server.framesIncomplete.increment();
+                }
+            }
+        }
+        if(target.submitRgb(rgb, offset, length)) {
+            server.framesSuperseded.increment();
+        }
+        server.framesSubmitted.increment();
+        return true;
+    }
+
+    public synchronized void receiveFragment(long sequence, int index, int count, int offset,
+                                             byte[] buffer, int payloadOffset, int payloadLength)
+    {
+        int seq = (int) sequence;
+        if(this.isStale(seq)) {
+            if(index == 0) {
+                server.framesStale.increment(); // count each frame once
+            }
+            return;
+        }
+        PartialFrame partial = null;
+        for(PartialFrame p: partials) {
+            if(p.active && p.sequence == seq) {
+                partial = p;
+                break;
+            }
+        }
+        if(partial == null) {
+            // Reuse an idle slot, or else abandon the older frame.
+            partial = partials[0];
+            if(partials[1].active == false
+                    || (partials[0].active && partials[0].sequence - partials[1].sequence > 0))
+            {
+                partial = partials[1];
+            }
+            if(partial.active) {
+                server.framesIncomplete.increment();
+            }
+            partial.begin(seq, count);
+        } else if(partial.fragmentCount != count) {
+            server.packetsMalformed.increment();
+            return;
+        }
+        if(partial.add(index, offset, buffer, payloadOffset, payloadLength)) {
+            partial.active = false;
+            this.submitFrame(sequence, partial.data, 0, partial.length);
+        }
+    }
+}
+
+
+/** A frame whose fragments are still arriving. */
+class PartialFrame {
+
+    protected boolean active = false;
+    protected int sequence;
+    protected int fragmentCount;
+    protected int received;
+    protected boolean[] fragments = new boolean[16];
+    protected byte[] data = new byte[8192];
+    protected int length;
+
+    public void begin(int sequence, int fragmentCount) {
+        this.active = true;
+        this.sequence = sequence;
+        this.fragmentCount = fragmentCount;
+        this.received = 0;
+        this.length = 0;
+        if(fragments.length < fragmentCount) {
+            fragments = new boolean[fragmentCount];
+        } else {
+            for(int i=0; i<fragmentCount; i++) {
+                fragments[i] = false;
+            }
+        }
+    }
+
+    /** Add a fragment, ignoring duplicates. Return true if the frame is now
+     *  complete.
+     */
+    public boolean add(int index, int offset, byte[] buffer, int payloadOffset, int payloadLength) {
+        if(!fragments[index]) {
+            int end = offset + payloadLength;
+            if(data.length < end) {
+                byte[] grown = new byte[Math.max(end, data.length * 2)];
+                System.arraycopy(data, 0, grown, 0, length);
+                data = grown;
+            }
+            System.arraycopy(buffer, payloadOffset, data, offset, payloadLength);
+            fragments[index] = true;
+            ++received;
+            if(end > length) {
+                length = end;
+            }
+        }
+        return received == fragmentCount;
+    }
+}
@@ -0,0 +1,437 @@
+package com.coillighting.udder.infrastructure;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.coillighting.udder.metrics.Counter;
+import com.coillighting.udder.metrics.FlightLog;
+import com.coillighting.udder.metrics.Gauge;
+import com.coillighting.udder.metrics.Histogram;
+import com.coillighting.udder.metrics.Metric;
+import com.coillighting.udder.metrics.MetricsRegistry;
+import com.coillighting.udder.mix.Frame;
+import com.coillighting.udder.model.Device;
+import com.coillighting.udder.model.Pixel;
+import com.coillighting.udder.util.StringUtil;
+
+import static com.coillighting.udder.util.LogUtil.log;
+
+/** Stream a low-rate preview of the mixed output to browsers as Server-Sent
+ *  Events, so that operators can watch the show remotely without running
+ *  gl_server. See HttpServiceContainer.PREVIEW_ROUTE and test/preview.html.
+ *
+ *  Like an OpcTransmitter, this runs in its own thread and takes its frames
+ *  from a TransmissionCoupling's frame queue, so it costs the render loop
+ *  nothing beyond one Frame copy, no matter how many clients are watching.
+ *  While nobody is watching, the ShowRunner skips even that (see
+ *  isWatched).
+ *
+ *  Each client asks for a frame rate (fps) and a spatial downsampling
+ *  factor (step: show every step-th device). Clients asking for the same
+ *  fps and step share a PreviewTier, which encodes each preview frame
+ *  just once, as an SSE message ready to write to the wire:
+ *
+ *      event: key        every sampled device as 8-bit RGB
+ *      event: delta      only the devices that changed since the previous
+ *                        message, as runs of (varint skip, varint count,
+ *                        count * RGB)
+ *
+ *  Both are base64-encoded, and each message's id is its frame index. A
+ *  client's first message is always an info event describing the stream,
+ *  followed by a keyframe.
+ *
+ *  Every client has its own writer thread and a one-message mailbox. If a
+ *  client hasn't finished writing its previous message when the next one is
+ *  ready, it misses that message and every delta after it until the tier
+ *  sends it a fresh keyframe. So a slow client only slows itself down.
+ */
+public class PreviewTransmitter implements Transmitter {
+
+    public static final int MAX_FPS = 30;
+    public static final int DEFAULT_FPS = 10;
+
+    protected boolean verbose = true;
+    protected BlockingQueue<Frame> frameQueue;
+    protected CopyOnWriteArrayList<PreviewTier> tiers = new CopyOnWriteArrayList<PreviewTier>();
+    protected volatile Device[] devices = null;
+    protected int subscriberCount = 0;
+
+    protected Gauge subscribers;
+    protected Counter keyframes;
+    protected Counter deltas;
+    protected Counter dropped;
+    protected Histogram encodeTime;
+
+    public PreviewTransmitter() {
+        MetricsRegistry metrics = MetricsRegistry.getDefault();
+        subscribers = metrics.gauge("udder_preview_subscribers",
+            "Clients currently watching the live preview stream.");
+        String help = "Preview messages encoded, by type. Each is shared by every client in its tier.";
+        keyframes = metrics.counter("udder_preview_messages_total", help,
+            Metric.label("type", "key"));
+        deltas = metrics.counter("udder_preview_messages_total", help,
+            Metric.label("type", "delta"));
+        dropped = metrics.counter("udder_preview_dropped_total",
+            "Preview messages skipped because a client hadn't finished writing the previous one.");
+        encodeTime = metrics.histogram("udder_preview_encode_seconds",
+            "Time spent downsampling and encoding one preview message.");
+    }
+
+    public void setFrameQueue(BlockingQueue<Frame> frameQueue) {
+        this.frameQueue = frameQueue;
+    }
+
+    public BlockingQueue<Frame> getFrameQueue() {
+        return this.frameQueue;
+    }
+
+    /** Return true if any client is subscribed. Safe to call from the render
+     *  thread every frame.
+     */
+    public boolean isWatched() {
+        return !tiers.isEmpty();
+    }
+
+    /** The preview keeps no flight log. */
+    public FlightLog getFlightLog() {
+        return null;
+    }
+
+    /** Optionally describe the devices, in mixer order, so that clients can
+     *  draw each pixel in the right place. See the info event.
+     */
+    public void setDevices(Device[] devices) {
+        this.devices = devices;
+    }
+
+    /** Start streaming to a client. Called by an HTTP worker thread, which
+     *  should have already written the response headers. The client's own
+     *  writer thread owns out from now on, and closes it when the client
+     *  disconnects or this transmitter stops.
+     */
+    public synchronized void subscribe(OutputStream out, int fps, int step) {
+        fps = Math.max(1, Math.min(MAX_FPS, fps));
+        step = Math.max(1, step);
+        PreviewTier tier = null;
+        for(PreviewTier t: tiers) {
+            if(t.fps == fps && t.step == step) {
+                tier = t;
+                break;
+            }
+        }
+        if(tier == null) {
+            tier = new PreviewTier(fps, step);
+            tiers.add(tier);
+        }
+        PreviewSubscriber subscriber = new PreviewSubscriber(this, tier, out,
+            this.createInfoMessage(fps, step));
+        tier.subscribers.add(subscriber);
+        tier.keyframeRequested = true;
+        subscribers.set(++subscriberCount);
+
+        Thread thread = new Thread(subscriber, "Preview:" + subscriberCount);
+        thread.setDaemon(true);
+        thread.start();
+        if(verbose) log("Preview client subscribed at " + fps + " fps, step " + step + '.');
+    }
+
+    protected synchronized void unsubscribe(PreviewSubscriber subscriber) {
+        PreviewTier tier = subscriber.tier;
+        if(tier.subscribers.remove(subscriber)) {
+            subscribers.set(--subscriberCount);
+            if(tier.subscribers.isEmpty()) {
+                tiers.remove(tier);
+            }
+            if(verbose) log("Preview client unsubscribed.");
+        }
+    }
+
+    protected byte[] createInfoMessage(int fps, int step) {
+        StringBuilder sb = new StringBuilder(256);
+        sb.append("event: info\ndata: {\"fps\":").append(fps).append(",\"step\":").append(step);
+        Device[] d = devices;
+        if(d != null) {
+            sb.append(",\"pixels\":").append((d.length + step - 1) / step).append(",\"positions\":[");
+            for(int i=0; i<d.length; i+=step) {
+                if(i > 0) {
+                    sb.append(',');
+                }
+                sb.append((float) d[i].x).append(',').append((float) d[i].y);
+            }
+            sb.append(']');
+        }
+        sb.append("}\n\n");
+        return PreviewTier.toBytes(sb);
+    }
+
+    public void run() {
+        if(frameQueue == null) {
+            throw new NullPointerException("PreviewTransmitter requires a frame queue.");
+        }
+        try {
+            while(true) {
+                Frame frame = frameQueue.take();
+                if(tiers.isEmpty()) {
+                    continue;
+                }
+                long now = System.nanoTime();
+                for(PreviewTier tier: tiers) {
+                    if(now - tier.lastEncodeNanos >= tier.intervalNanos) {
+                        tier.lastEncodeNanos = now;
+                        byte[] message = tier.encode(frame.getPixels(),
+                            frame.getTimePoint().getFrameIndex());
+                        encodeTime.recordSince(now);
+                        if(message != null) {
+                            boolean key = tier.lastMessageWasKey;
+                            if(key) {
+                                keyframes.increment();
+                            } else {
+                                deltas.increment();
+                            }
+                            for(PreviewSubscriber subscriber: tier.subscribers) {
+                                if(!subscriber.offer(message, key)) {
+                                    dropped.increment();
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        } catch(InterruptedException e) {
+            log("Stopping " + this);
+            for(PreviewTier tier: tiers) {
+                for(PreviewSubscriber subscriber: tier.subscribers) {
+                    subscriber.close();
+                }
+            }
+        }
+    }
+
+    public String toString() {
+        return "PreviewTransmitter";
+    }
+}
+
+
+/** The clients watching at one fps and step, and the encoder they share.
+ *  Everything but the volatile flag and the subscriber list belongs to the
+ *  transmitter thread.
+ */
+class PreviewTier {
+
+    final int fps;
+    final int step;
+    final long intervalNanos;
+    final CopyOnWriteArrayList<PreviewSubscriber> subscribers =
+        new CopyOnWriteArrayList<PreviewSubscriber>();
+
+    /** Set when a new or lagging subscriber needs a keyframe. */
+    volatile boolean keyframeRequested = true;
+
+    long lastEncodeNanos = 0;
+    boolean lastMessageWasKey = false;
+    private byte[] previous = null; // RGB as of the last message sent
+    private byte[] current = null;
+    private byte[] delta = null;
+    private StringBuilder sb = new StringBuilder(1024);
+
+    PreviewTier(int fps, int step) {
+        this.fps = fps;
+        this.step = step;
+        // Allow a little jitter, or a 30 fps client would often get 25.
+        this.intervalNanos = 1000000000L / fps * 9 / 10;
+    }
+
+    /** Return the next SSE message, or null if nothing changed. */
+    byte[] encode(Pixel[] pixels, long frameIndex) {
+        int count = (pixels.length + step - 1) / step;
+        if(current == null || current.length != 3 * count) {
+            current = new byte[3 * count];
+            previous = null;
+            // Worst case: every other pixel changed, costing a skip and a
+            // count per pixel.
+            delta = new byte[3 * count + 10 * count + 10];
+        }
+        for(int i=0, j=0; i<pixels.length; i+=step, j+=3) {
+            Pixel p = pixels[i];
+            current[j] = toByte(p.r);
+            current[j + 1] = toByte(p.g);
+            current[j + 2] = toByte(p.b);
+        }
+
+        boolean key = keyframeRequested || previous == null;
+        byte[] payload = current;
+        int length = current.length;
+        if(!key) {
+            length = this.encodeDelta();
+            if(length == 0) {
+                return null;
+            } else if(length >= current.length) {
+                key = true; // cheaper to send it all
+                length = current.length;
+            } else {
+                payload = delta;
+            }
+        }
+        keyframeRequested = false;
+        lastMessageWasKey = key;
+
+        sb.setLength(0);
+        sb.append(key ? "event: key\nid: " : "event: delta\nid: ").append(frameIndex)
+            .append("\ndata: ");
+        StringUtil.appendBase64(sb, payload, length);
+        sb.append("\n\n");
+
+        byte[] swap = previous == null ? new byte[current.length] : previous;
+        previous = current;
+        current = swap;
+        return toBytes(sb);
+    }
+
+    /** Write runs of changed pixels into delta. Return the length. */
+    private int encodeDelta() {
+        int n = 0;
+        int count = current.length / 3;
+        int lastEnd = 0;
+        int i = 0;
+        while(i < count) {
+            if(samePixel(i)) {
+                ++i;
+                continue;
+            }
+            int start = i;
+            while(i < count && !samePixel(i)) {
+                ++i;
+            }
+            n = writeVarint(delta, n, start - lastEnd);
+            n = writeVarint(delta, n, i - start);
+            System.arraycopy(current, 3 * start, delta, n, 3 * (i - start));
+            n += 3 * (i - start);
+            lastEnd = i;
+        }
+        return n;
+    }
+
+    private boolean samePixel(int i) {
+        int j = 3 * i;
+        return current[j] == previous[j] && current[j + 1] == previous[j + 1]
+            && current[j + 2] == previous[j + 2];
+    }
+
+    static int writeVarint(byte[] buffer, int offset, int value) {
+        while((value & ~0x7F) != 0) {
+            buffer[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[offset++] = (byte) value;
+        return offset;
+    }
+
+    static byte toByte(float channel) {
+        if(channel <= 0.0f) {
+            return 0;
+        } else if(channel >= 1.0f) {
+            return (byte) 0xFF;
+        } else {
+            return (byte) (255.99999f * channel);
+        }
+    }
+
+    /** SSE messages here are pure ASCII. */
+    static byte[] toBytes(CharSequence cs) {
+        int len = cs.length();
+        byte[] bytes = new byte[len];
+        for(int i=0; i<len; i++) {
+            bytes[i] = (byte) cs.charAt(i);
+        }
+        return bytes;
+    }
+}
+
+
+/** One client of the preview stream, with its own writer thread. */
+class PreviewSubscriber implements Runnable {
+
+    /** Write an SSE comment this often if nothing else happens, so that
+     *  proxies don't time out a quiet stream.
+     */
+    static final long HEARTBEAT_MILLIS = 15000;
+    static final byte[] HEARTBEAT = PreviewTier.toBytes(":\n\n");
+
+    final PreviewTransmitter transmitter;
+    final PreviewTier tier;
+    private final OutputStream out;
+    private byte[] pending; // guarded by this
+    private boolean needsKeyframe = true; // guarded by this
+    private volatile boolean closed = false;
+
+    PreviewSubscriber(PreviewTransmitter transmitter, PreviewTier tier,
+                      OutputStream out, byte[] info)
+    {
+        this.transmitter = transmitter;
+        this.tier = tier;
+        this.out = out;
+        this.pending = info;
+    }
+
+    /** Called by the transmitter thread. Never blocks. Return false if the
+     *  message was dropped.
+     */
+    synchronized boolean offer(byte[] message, boolean key) {
+        if(pending != null) {
+            // Still writing an older message. Skip this one, and since any
+            // later delta would be relative to it, wait for a keyframe.
+            needsKeyframe = true;
+            return false;
+        } else if(needsKeyframe && !key) {
+            // Caught up. Ask for a keyframe to resume from. (A client that
+            // is stuck never asks, so it can't make its whole tier send
+            // nothing but keyframes.)
+            tier.keyframeRequested = true;
+            return false;
+        }
+        needsKeyframe = false;
+        pending = message;
+        this.notify();
+        return true;
+    }
+
+    public void run() {
+        try {
+            while(!closed) {
+                byte[] message;
+                synchronized(this) {
+                    if(pending == null) {
+                        this.wait(HEARTBEAT_MILLIS);
+                    }
+                    message = pending;
+                }
+                out.write(message == null ? HEARTBEAT : message);
+                out.flush();
+                synchronized(this) {
+                    if(pending == message) {
+                        pending = null;
+                    }
+                }
+            }
+        } catch(IOException e) {
+            // The client went away.
+        } catch(InterruptedException e) {
+            // Shutting down.
+        } finally {
+            transmitter.unsubscribe(this);
+            this.close();
+        }
+    }
+
+    void close() {
+        closed = true;
+        try {
+            out.close();
+        } catch(IOException e) {
+            // Nothing left to do.
+        }
+    }
+}
@@ -1,7 +1,11 @@
 package com.coillighting.udder.infrastructure;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 
 import com.coillighting.udder.effect.Effect;
 import com.coillighting.udder.mix.Layer;
@@ -58,6 +62,43 @@ public class Router {
         }
     }
 
+    /** Route the given path to a single object outside the Mixer tree, such
+     *  as a ModulationMatrix. Add it before calling getCommandMap().
+     */
+    public void addRoute(String path, Stateful target) {
+        if(path == null) {
+            throw new NullPointerException("Null route.");
+        } else if(target == null) {
+            throw new NullPointerException("Null target for route " + path);
+        }
+        routes.put(path, target);
+    }
+
+    /** Return a new map, sorted by route, of the state of every routable
+     *  object, or null where the object doesn't report its state. Like the
+     *  objects themselves, this is for use on the render thread only. See
+     *  SceneSnapshot for sharing the result with other threads.
+     */
+    public Map<String, Object> captureStates() {
+        Map<String, Object> states = new TreeMap<String, Object>();
+        for(Map.Entry<String, Stateful> entry : this.routes.entrySet()) {
+            states.put(entry.getKey(), entry.getValue().getState());
+        }
+        return states;
+    }
+
+    /** Return the sorted routes of every object of the given type. */
+    public List<String> findRoutes(Class type) {
+        List<String> found = new ArrayList<String>();
+        for(Map.Entry<String, Stateful> entry : this.routes.entrySet()) {
+            if(type.isInstance(entry.getValue())) {
+                found.add(entry.getKey());
+            }
+        }
+        Collections.sort(found);
+        return found;
+    }
+
     /** Router.routes contains non-threadsafe direct references to Mixers and
      *  Layers. In order to share routing information with other threads, a new,
      *  strictly symbolic table is required. The caller owns the returned map.
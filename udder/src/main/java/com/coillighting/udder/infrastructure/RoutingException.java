@@ -0,0 +1,12 @@
+package com.coillighting.udder.infrastructure;
+
+/** A command named a route that doesn't exist. */
+class RoutingException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    public RoutingException(String message) {
+        super(message);
+    }
+
+}
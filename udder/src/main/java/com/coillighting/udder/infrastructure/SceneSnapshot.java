@@ -0,0 +1,161 @@
+package com.coillighting.udder.infrastructure;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.boon.json.JsonFactory;
+import org.boon.json.JsonSerializer;
+import org.boon.json.JsonSerializerFactory;
+import org.boon.json.serializers.CustomObjectSerializer;
+import org.boon.json.serializers.JsonSerializerInternal;
+import org.boon.primitive.CharBuf;
+
+import com.coillighting.udder.geometry.ControlQuad;
+
+/** An immutable copy of the public state of every routable object in the
+ *  scene (see Router), as of one frame. ShowRunner captures one every few
+ *  frames and publishes it through a volatile reference, so that GET
+ *  requests can report the scene's state without touching the render
+ *  thread's objects, no matter how often dashboards poll.
+ *
+ *  The state objects come from Stateful.getState(), which returns a fresh
+ *  copy, and nothing modifies them afterwards. They are serialized to JSON
+ *  lazily, on the first request for each route, by the requesting thread,
+ *  and the result is memoised for the life of the snapshot.
+ */
+public class SceneSnapshot {
+
+    private final long frameIndex;
+    private final long sceneTimeMillis;
+    private final long realTimeMillis;
+    private final Map<String, Object> states;
+
+    /** Memoised JSON, keyed by route. A race only means we serialize the same
+     *  state twice, so no locking is required beyond the map's own.
+     */
+    private final ConcurrentHashMap<String, String> json;
+    private volatile String sceneJson = null;
+
+    /** The caller gives up ownership of states, which should be sorted. */
+    public SceneSnapshot(long frameIndex, long sceneTimeMillis, long realTimeMillis,
+                         Map<String, Object> states)
+    {
+        if(states == null) {
+            throw new NullPointerException("SceneSnapshot requires a map of states.");
+        }
+        this.frameIndex = frameIndex;
+        this.sceneTimeMillis = sceneTimeMillis;
+        this.realTimeMillis = realTimeMillis;
+        this.states = Collections.unmodifiableMap(states);
+        this.json = new ConcurrentHashMap<String, String>(states.size() * 2);
+    }
+
+    public long getFrameIndex() {
+        return frameIndex;
+    }
+
+    public long getSceneTimeMillis() {
+        return sceneTimeMillis;
+    }
+
+    public long getRealTimeMillis() {
+        return realTimeMillis;
+    }
+
+    public boolean hasRoute(String route) {
+        return states.containsKey(route);
+    }
+
+    /** Return the state object for the given route. Do not modify it. */
+    public Object getState(String route) {
+        return states.get(route);
+    }
+
+    /** Return the JSON-serialized state for the given route, or null if the
+     *  route doesn't exist. A route whose state is unknown serializes as
+     *  "null".
+     */
+    public String getStateJson(String route) {
+        String s = json.get(route);
+        if(s == null && states.containsKey(route)) {
+            s = toJson(states.get(route));
+            json.put(route, s);
+        }
+        return s;
+    }
+
+    /** Return the whole scene as a JSON object:
+     *
+     *  {"frame":123,"sceneTimeMillis":4567,"realTimeMillis":...,
+     *   "states":{"/mixer0":{...},"/mixer0/layer0":{...},...}}
+     */
+    public String toJson() {
+        String s = sceneJson;
+        if(s == null) {
+            StringBuilder sb = new StringBuilder(256 + 64 * states.size());
+            sb.append("{\"frame\":").append(frameIndex)
+                .append(",\"sceneTimeMillis\":").append(sceneTimeMillis)
+                .append(",\"realTimeMillis\":").append(realTimeMillis)
+                .append(",\"states\":{");
+            boolean first = true;
+            for(String route: states.keySet()) {
+                if(!first) {
+                    sb.append(',');
+                }
+                first = false;
+                sb.append(JsonFactory.toJson(route)).append(':')
+                    .append(this.getStateJson(route));
+            }
+            sb.append("}}");
+            s = sb.toString();
+            sceneJson = s;
+        }
+        return s;
+    }
+
+    /** Unlike JsonFactory's default, report zeros and falses too, which a
+     *  dashboard needs to see. Boon serializers aren't threadsafe, so each
+     *  HTTP worker thread gets its own.
+     */
+    private static final ThreadLocal<JsonSerializer> serializer = new ThreadLocal<JsonSerializer>() {
+        protected JsonSerializer initialValue() {
+            return new JsonSerializerFactory()
+                .includeDefaultValues()
+                .includeNulls()
+                .useFieldsOnly()
+                .addTypeSerializer(ControlQuad.class, new ControlQuadSerializer())
+                .create();
+        }
+    };
+
+    protected static String toJson(Object state) {
+        return state == null ? "null" : serializer.get().serialize(state).toString();
+    }
+
+    public String toString() {
+        return "SceneSnapshot(frame " + frameIndex + ", " + states.size() + " routes)";
+    }
+}
+
+
+/** Write a ControlQuad the way TextureEffectState reads it: a list of four
+ *  [x, y] corners in sw, se, nw, ne order. (By default Boon would write the
+ *  Point2Ds' toString()s.)
+ */
+class ControlQuadSerializer implements CustomObjectSerializer<ControlQuad> {
+
+    public Class<ControlQuad> type() {
+        return ControlQuad.class;
+    }
+
+    public void serializeObject(JsonSerializerInternal serializer, ControlQuad quad,
+                                CharBuf builder)
+    {
+        builder.add("[[").add(quad.sw.x).add(',').add(quad.sw.y)
+            .add("],[").add(quad.se.x).add(',').add(quad.se.y)
+            .add("],[").add(quad.nw.x).add(',').add(quad.nw.y)
+            .add("],[").add(quad.ne.x).add(',').add(quad.ne.y)
+            .add("]]");
+    }
+}
@@ -15,8 +15,10 @@ import org.simpleframework.transport.connect.Connection;
 import org.simpleframework.transport.connect.SocketConnection;
 import org.simpleframework.transport.Server;
 
+import com.coillighting.udder.effect.ArrayEffect;
 import com.coillighting.udder.mix.Frame;
 import com.coillighting.udder.mix.Mixer;
+import com.coillighting.udder.mix.ModulationMatrix;
 
 import static com.coillighting.udder.util.LogUtil.log;
 
@@ -31,6 +33,7 @@ public class ServicePipeline {
     protected boolean verbose = false;
     protected Mixer mixer;
     protected Router router;
+    protected ModulationMatrix modulation;
     protected Queue<Command> commandQueue;
     protected HttpServiceContainer httpServiceContainer;
     protected Server server;
@@ -40,6 +43,12 @@ public class ServicePipeline {
     protected List<TransmissionCoupling> transmissionCouplings;
     protected ShowRunner showRunner;
     protected Thread showThread;
+    protected StallWatchdog stallWatchdog;
+    protected Thread stallWatchdogThread;
+    protected ControlChannelServer controlChannelServer;
+    protected PreviewTransmitter previewTransmitter;
+    protected PixelIngestServer pixelIngestServer;
+    protected OscServer oscServer;
 
     public ServicePipeline(Mixer mixer,
                            int[] deviceAddressMap,
@@ -75,6 +84,10 @@ public class ServicePipeline {
         // TODO variable base path token for mixer - add constructor arg so we can have multiple mixers
         this.router.addRoutes("mixer0", this.mixer);
 
+        // Bind waves to levels and effect parameters with POST /mixer0/modulation.
+        this.modulation = new ModulationMatrix(this.router);
+        this.router.addRoute("/mixer0/modulation", this.modulation);
+
         this.commandQueue = new ConcurrentLinkedQueue<Command>();
 
         for(int i=0; i<outputCt; i++) {
@@ -85,17 +98,35 @@ public class ServicePipeline {
             transmissionCouplings.add(coupling);
             frameQueues.add(coupling.frameQueue);
         }
+
+        // The browser preview stream (GET /preview) gets a frame queue of its
+        // own, just like an OPC server.
+        this.previewTransmitter = new PreviewTransmitter();
+        TransmissionCoupling previewCoupling = new TransmissionCoupling(previewTransmitter);
+        transmissionCouplings.add(previewCoupling);
+        frameQueues.add(previewCoupling.frameQueue);
         this.showRunner = new ShowRunner(
                 frameDelayMillis,
                 this.commandQueue,
                 this.mixer,
                 this.router,
                 frameQueues);
-        this.showThread = new Thread(this.showRunner);
+        this.showThread = new Thread(this.showRunner, "ShowRunner");
 
         this.httpServiceContainer = new HttpServiceContainer(
             this.commandQueue,
             this.router.getCommandMap());
+        this.httpServiceContainer.setShowRunner(this.showRunner);
+        this.showRunner.setDeviceAddressMap(deviceAddressMap.clone());
+        this.showRunner.setPreviewTransmitter(this.previewTransmitter);
+        this.showRunner.setModulationMatrix(this.modulation);
+        this.httpServiceContainer.setPreviewTransmitter(this.previewTransmitter);
+
+        // Every ArrayEffect accepts raw pixel frames over HTTP. See
+        // enablePixelIngest for UDP.
+        this.pixelIngestServer = new PixelIngestServer(this.router,
+            this.router.findRoutes(ArrayEffect.class));
+        this.httpServiceContainer.setPixelIngestServer(this.pixelIngestServer);
         this.httpServiceContainer.setVerbose(this.verbose || this.httpServiceContainer.getVerbose());
 
         this.server = new ContainerServer(this.httpServiceContainer);
@@ -107,11 +138,22 @@ public class ServicePipeline {
     public void start() throws IOException {
         try {
             for(TransmissionCoupling coupling: transmissionCouplings) {
-                log("Will transmit OPC frames to " + coupling.getTransmitter());
+                log("Will transmit frames to " + coupling.getTransmitter());
                 coupling.start();
             }
+            this.httpServiceContainer.getAckResponder().start();
             this.showThread.start();
+            if(this.stallWatchdogThread != null) {
+                this.stallWatchdogThread.start();
+            }
             this.serverConnection.connect(this.listenAddress);
+            if(this.controlChannelServer != null) {
+                this.controlChannelServer.start();
+            }
+            this.pixelIngestServer.start();
+            if(this.oscServer != null) {
+                this.oscServer.start();
+            }
             log("Listening on http://localhost:" + this.listenPort + '/');
             log("ListenAddress: " + this.listenAddress);
         } catch(BindException be) {
@@ -120,5 +162,108 @@ public class ServicePipeline {
             System.exit(1);
         }
     }
+
+    /** Stop listening for requests, then stop the show and its transmitters.
+     *  Normally Udder runs until the process is killed, so this is mainly for
+     *  benchmarks and tests that run a whole pipeline in-process.
+     */
+    public void stop() throws IOException, InterruptedException {
+        this.serverConnection.close();
+        this.server.stop();
+        if(this.controlChannelServer != null) {
+            this.controlChannelServer.stop();
+        }
+        this.pixelIngestServer.stop();
+        if(this.oscServer != null) {
+            this.oscServer.stop();
+        }
+        this.showThread.interrupt();
+        this.httpServiceContainer.getAckResponder().stop();
+        if(this.stallWatchdogThread != null) {
+            this.stallWatchdogThread.interrupt();
+        }
+        for(TransmissionCoupling coupling: transmissionCouplings) {
+            coupling.stop();
+        }
+        this.showThread.join(1000);
+        log("Stopped listening on http://localhost:" + this.listenPort + '/');
+    }
+
+    /** Before start(), optionally watch for frames that take longer than
+     *  stallFactor times the frame delay, writing a report to dumpDir for
+     *  each. See StallWatchdog.
+     */
+    public void enableStallWatchdog(double stallFactor, String dumpDir) {
+        List<Transmitter> transmitters = new ArrayList<Transmitter>(transmissionCouplings.size());
+        for(TransmissionCoupling coupling: transmissionCouplings) {
+            transmitters.add(coupling.getTransmitter());
+        }
+        this.stallWatchdog = new StallWatchdog(showRunner, transmitters, stallFactor, dumpDir);
+        this.stallWatchdogThread = new Thread(this.stallWatchdog, "StallWatchdog");
+        this.stallWatchdogThread.setDaemon(true);
+        this.stallWatchdogThread.setPriority(Thread.MIN_PRIORITY);
+    }
+
+    /** Before start(), optionally accept streaming commands over a persistent
+     *  TCP connection on the given port, on the same interface as HTTP. See
+     *  ControlChannelServer.
+     */
+    public void enableControlChannel(int port) throws IOException {
+        this.controlChannelServer = new ControlChannelServer(
+            new InetSocketAddress(this.listenAddress.getAddress(), port),
+            this.commandQueue,
+            new CommandParser(this.router.getCommandMap()));
+    }
+
+    /** Before start(), optionally receive raw pixel frames over UDP on the
+     *  given port, on the same interface as HTTP. Channels are numbered in
+     *  the order of routes, which must all be ArrayEffects. If routes is
+     *  null, use every ArrayEffect, sorted by route. The HTTP endpoint
+     *  accepts raw frames for the same routes. See PixelIngestServer.
+     */
+    public void enablePixelIngest(int port, List<String> routes) throws IOException {
+        if(routes != null) {
+            this.pixelIngestServer = new PixelIngestServer(this.router, routes);
+            this.httpServiceContainer.setPixelIngestServer(this.pixelIngestServer);
+        }
+        this.pixelIngestServer.listen(new InetSocketAddress(this.listenAddress.getAddress(), port));
+    }
+
+    /** Before start(), optionally accept Open Sound Control messages over
+     *  UDP on the given port, on the same interface as HTTP. See OscServer.
+     */
+    public void enableOsc(int port) throws IOException {
+        this.oscServer = new OscServer(
+            new InetSocketAddress(this.listenAddress.getAddress(), port),
+            this.commandQueue,
+            new CommandParser(this.router.getCommandMap()));
+    }
+
+    public OscServer getOscServer() {
+        return this.oscServer;
+    }
+
+    /** Optionally let clients POST /patch to reload the patch sheet at the
+     *  given path without restarting. See PatchReloader.
+     */
+    public void enablePatchReload(String patchSheetPath) {
+        this.httpServiceContainer.setPatchReloader(new PatchReloader(patchSheetPath, this.mixer));
+    }
+
+    public PixelIngestServer getPixelIngestServer() {
+        return this.pixelIngestServer;
+    }
+
+    public PreviewTransmitter getPreviewTransmitter() {
+        return this.previewTransmitter;
+    }
+
+    public Router getRouter() {
+        return this.router;
+    }
+
+    public ModulationMatrix getModulationMatrix() {
+        return this.modulation;
+    }
 }
 
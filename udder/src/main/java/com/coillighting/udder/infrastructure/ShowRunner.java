@@ -1,10 +1,19 @@
 package com.coillighting.udder.infrastructure;
 
+import java.lang.management.ManagementFactory;
 import java.util.List;
 import java.util.Queue;
 
+import com.coillighting.udder.metrics.Counter;
+import com.coillighting.udder.metrics.FlightEvents;
+import com.coillighting.udder.metrics.FlightLog;
+import com.coillighting.udder.metrics.Gauge;
+import com.coillighting.udder.metrics.Histogram;
+import com.coillighting.udder.metrics.Metric;
+import com.coillighting.udder.metrics.MetricsRegistry;
 import com.coillighting.udder.mix.Frame;
 import com.coillighting.udder.mix.Mixer;
+import com.coillighting.udder.mix.ModulationMatrix;
 import com.coillighting.udder.mix.TimePoint;
 import com.coillighting.udder.model.Pixel;
 import com.coillighting.udder.util.TimingUtil;
@@ -35,6 +44,51 @@ public class ShowRunner implements Runnable {
     protected long previousFrameRealTimeMillis = 0;
     protected long frameCounter = 0;
 
+    /** Whether we've logged the time to the first frame. */
+    protected boolean firstFrameLogged = false;
+
+    // Instruments, registered up front so the loop never allocates for them.
+    protected Gauge commandQueueDepth;
+    protected Histogram commandQueueWait;
+    protected Counter commandsApplied;
+    protected Counter commandsFailed;
+    protected Histogram animateTime;
+    protected Histogram mixTime;
+    protected Histogram copyTime;
+    protected Histogram frameTime;
+    protected Counter[] droppedFrames;
+    protected Histogram snapshotTime;
+
+    /** The latest SceneSnapshot, for threads other than this one. Replaced
+     *  at most every snapshotIntervalFrames frames.
+     */
+    protected volatile SceneSnapshot snapshot = null;
+    protected long snapshotFrameIndex = Long.MIN_VALUE / 2;
+    protected int snapshotIntervalFrames = 10;
+
+    /** Tag each frame with its patch's address map. Render thread only, once
+     *  the show has started. See PatchChange.
+     */
+    protected int[] deviceAddressMap = null;
+    protected PreviewTransmitter previewTransmitter = null;
+
+    /** Drives parameters from waves at the top of every frame, if not null. */
+    protected ModulationMatrix modulation = null;
+
+    /** Stage timings of recent frames, for the StallWatchdog. */
+    public static final int FLIGHT_LOG_CAPACITY = 4096;
+    public static final int LOG_FRAME = 0;
+    public static final int LOG_START_NANOS = 1;
+    public static final int LOG_QUEUE_WAIT_NANOS = 2;
+    public static final int LOG_ANIMATE_NANOS = 3;
+    public static final int LOG_MIX_NANOS = 4;
+    public static final int LOG_COPY_NANOS = 5;
+    public static final int LOG_TOTAL_NANOS = 6;
+    public static final int LOG_DROPPED_FRAMES = 7;
+    protected FlightLog flightLog = new FlightLog("frames", new String[] {
+        "frame", "start_ns", "queue_wait_ns", "animate_ns", "mix_ns",
+        "copy_ns", "total_ns", "dropped"}, FLIGHT_LOG_CAPACITY);
+
     public ShowRunner(Integer frameDelayMillis, Queue<Command> commandQueue, Mixer mixer,
         Router router, List<Queue<Frame>> frameQueues)
     {
@@ -68,6 +122,35 @@ public class ShowRunner implements Runnable {
         this.mixer = mixer;
         this.router = router;
         this.frameQueues = frameQueues;
+        this.registerMetrics(MetricsRegistry.getDefault());
+    }
+
+    protected void registerMetrics(MetricsRegistry metrics) {
+        commandQueueDepth = metrics.gauge("udder_command_queue_depth",
+            "Commands waiting to be applied, sampled once per frame.");
+        commandQueueWait = metrics.histogram("udder_command_queue_wait_seconds",
+            "Time from a command's creation until the show applies it.");
+        String help = "Commands applied to the scene, by outcome.";
+        commandsApplied = metrics.counter("udder_commands_applied_total", help,
+            Metric.label("result", "ok"));
+        commandsFailed = metrics.counter("udder_commands_applied_total", help,
+            Metric.label("result", "error"));
+        animateTime = metrics.histogram("udder_animate_seconds",
+            "Time spent in Mixer.animate per frame, all layers included.");
+        mixTime = metrics.histogram("udder_mix_seconds",
+            "Time spent mixing down all layers per frame.");
+        copyTime = metrics.histogram("udder_frame_copy_seconds",
+            "Time spent copying the mixed frame for all outputs.");
+        frameTime = metrics.histogram("udder_frame_seconds",
+            "Total time to apply a command, animate, mix and copy one frame.");
+        snapshotTime = metrics.histogram("udder_snapshot_seconds",
+            "Time spent capturing a SceneSnapshot for GET requests.");
+        droppedFrames = new Counter[frameQueues.size()];
+        for(int q=0; q<droppedFrames.length; q++) {
+            droppedFrames[q] = metrics.counter("udder_frames_dropped_total",
+                "Rendered frames dropped because an output's queue was full.",
+                Metric.label("output", "" + q));
+        }
     }
 
     public void run() {
@@ -83,6 +166,7 @@ public class ShowRunner implements Runnable {
             while(true) {
 
                 Command command = this.commandQueue.poll();
+                long frameStartNanos = System.nanoTime();
 
                 // TODO Don't necessarily re-animate and re-render in response
                 // to every command. Several densely spaced commands should be
@@ -93,14 +177,23 @@ public class ShowRunner implements Runnable {
 
                 if(command != null || !sleepy) {
                     sleepy = true;
+                    Object frameEvent = FlightEvents.beginFrame();
+                    commandQueueDepth.set(this.commandQueue.size());
+                    long queueWaitNanos = -1;
+                    boolean applied = true;
                     if(command != null) {
-                        String path = command.getPath();
-                        Stateful dest = this.router.get(path);
-                        try {
-                            dest.setState(command.getValue());
-                        } catch(Exception e) {
-                            log("Failed to issue command to destination "
-                                + dest + " at " + path + ": " + e); // TEMP?
+                        queueWaitNanos = frameStartNanos - command.getCreatedNanos();
+                        commandQueueWait.record(queueWaitNanos);
+                        Object value = command.getValue();
+                        if(value instanceof PatchChange) {
+                            applied = this.installPatch((PatchChange) value);
+                        } else if(value instanceof CommandBatch) {
+                            // Apply the whole batch before rendering again.
+                            for(Command c: ((CommandBatch) value).getCommands()) {
+                                applied &= this.applyCommand(c, queueWaitNanos);
+                            }
+                        } else {
+                            applied = this.applyCommand(command, queueWaitNanos);
                         }
                     }
                     timePoint = timePoint.next();
@@ -122,7 +215,13 @@ public class ShowRunner implements Runnable {
                         }
                     }
 
+                    long animateStartNanos = System.nanoTime();
+                    if(modulation != null) {
+                        modulation.animate(timePoint);
+                    }
                     this.mixer.animate(timePoint);
+                    long mixStartNanos = System.nanoTime();
+                    animateTime.record(mixStartNanos - animateStartNanos);
 
                     // These pixels belong to mixer, and Effect's contract
                     // prohibits ShowRunner from sharing them beyond this
@@ -132,12 +231,28 @@ public class ShowRunner implements Runnable {
                     // without reallocating when the downstream transmitter is
                     // done with them. This worked well in LD50.
                     Pixel[] mixerPixels = this.mixer.render();
+                    long copyStartNanos = System.nanoTime();
+                    mixTime.record(copyStartNanos - mixStartNanos);
+
+                    // Don't copy frames for a preview that nobody watches.
+                    Queue<Frame> unwatchedQueue = null;
+                    if(previewTransmitter != null && !previewTransmitter.isWatched()) {
+                        unwatchedQueue = previewTransmitter.getFrameQueue();
+                    }
 
                     int q=0;
+                    int dropped=0;
                     for(Queue<Frame> frameQueue: frameQueues) {
-                        Frame frame = Frame.createByCopy(timePoint, mixerPixels);
+                        if(frameQueue == unwatchedQueue) {
+                            q++;
+                            continue;
+                        }
+                        Frame frame = Frame.createByCopy(timePoint, mixerPixels,
+                            deviceAddressMap);
 
                         if(!frameQueue.offer(frame)) {
+                            droppedFrames[q].increment();
+                            ++dropped;
                             if(droppedFrameCount == -1) {
                                 log("Frame queue #" + q + " (of " + frameQueues.size()
                                     + " queues) overflow. Dropped frame at " + timePoint);
@@ -156,6 +271,37 @@ public class ShowRunner implements Runnable {
                         }
                         q++;
                     }
+                    long frameEndNanos = System.nanoTime();
+                    copyTime.record(frameEndNanos - copyStartNanos);
+                    frameTime.record(frameEndNanos - frameStartNanos);
+                    FlightEvents.commitFrame(frameEvent, timePoint.getFrameIndex(), command != null);
+
+                    if(!firstFrameLogged) {
+                        firstFrameLogged = true;
+                        this.logTimeToFirstFrame();
+                    }
+
+                    // The command is now on its way to the lights.
+                    CommandReceipt receipt = command == null ? null : command.getReceipt();
+                    if(receipt != null) {
+                        receipt.rendered(timePoint.getFrameIndex(),
+                            frameEndNanos - command.getCreatedNanos(), applied);
+                    }
+
+                    int slot = flightLog.claim();
+                    flightLog.set(slot, LOG_FRAME, timePoint.getFrameIndex());
+                    flightLog.set(slot, LOG_START_NANOS, frameStartNanos);
+                    flightLog.set(slot, LOG_QUEUE_WAIT_NANOS, queueWaitNanos);
+                    flightLog.set(slot, LOG_ANIMATE_NANOS, mixStartNanos - animateStartNanos);
+                    flightLog.set(slot, LOG_MIX_NANOS, copyStartNanos - mixStartNanos);
+                    flightLog.set(slot, LOG_COPY_NANOS, frameEndNanos - copyStartNanos);
+                    flightLog.set(slot, LOG_TOTAL_NANOS, frameEndNanos - frameStartNanos);
+                    flightLog.set(slot, LOG_DROPPED_FRAMES, dropped);
+                    flightLog.publish(frameEndNanos);
+
+                    if(timePoint.getFrameIndex() - snapshotFrameIndex >= snapshotIntervalFrames) {
+                        this.publishSnapshot(timePoint);
+                    }
                 } else if(busyWait) {
                     // EXPERIMENTAL: For load testing. Avoid busyWait in production.
                     // duration=10000 gave me 2000-5000 fps in a mix with
@@ -176,6 +322,111 @@ public class ShowRunner implements Runnable {
         }
     }
 
+    /** Copy the state of the scene so that other threads can read it. */
+    protected void publishSnapshot(TimePoint timePoint) {
+        long start = System.nanoTime();
+        try {
+            this.snapshot = new SceneSnapshot(timePoint.getFrameIndex(),
+                timePoint.sceneTimeMillis(), timePoint.realTimeMillis(),
+                this.router.captureStates());
+        } catch(Exception e) {
+            log("Failed to capture a scene snapshot: " + e);
+        }
+        snapshotFrameIndex = timePoint.getFrameIndex();
+        snapshotTime.recordSince(start);
+    }
+
+    /** Return the most recently published SceneSnapshot, or null if none has
+     *  been published yet. Safe to call from any thread.
+     */
+    public SceneSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /** Publish a new SceneSnapshot every this many frames. */
+    public void setSnapshotIntervalFrames(int snapshotIntervalFrames) {
+        if(snapshotIntervalFrames < 1) {
+            throw new IllegalArgumentException(
+                "Invalid snapshot interval: " + snapshotIntervalFrames);
+        }
+        this.snapshotIntervalFrames = snapshotIntervalFrames;
+    }
+
+    /** Swap in a new patch prepared by PatchReloader, so that the frame about
+     *  to be rendered is the first with the new devices. Return false if the
+     *  mixer rejected it.
+     */
+    protected boolean installPatch(PatchChange change) {
+        Patch patch = change.getPatch();
+        try {
+            this.mixer.installPatch(change.getPreparedMixer());
+        } catch(RuntimeException e) {
+            log("Failed to install " + patch + ": " + e);
+            return false;
+        }
+        this.deviceAddressMap = patch.getDeviceAddressMap();
+        if(this.previewTransmitter != null) {
+            this.previewTransmitter.setDevices(patch.getDevices());
+        }
+        log("Installed " + patch + '.');
+        return true;
+    }
+
+    /** Report how long the JVM took to render its first frame, counting
+     *  config parsing, scene construction and pipeline startup.
+     */
+    protected void logTimeToFirstFrame() {
+        long startMillis = ManagementFactory.getRuntimeMXBean().getStartTime();
+        log("Rendered the first frame " + (System.currentTimeMillis() - startMillis)
+            + " ms after startup.");
+    }
+
+    /** Before starting the show, set the address map for its first frames. */
+    public void setDeviceAddressMap(int[] deviceAddressMap) {
+        this.deviceAddressMap = deviceAddressMap;
+    }
+
+    /** Tell this preview about each new patch's devices. */
+    public void setPreviewTransmitter(PreviewTransmitter previewTransmitter) {
+        this.previewTransmitter = previewTransmitter;
+    }
+
+    /** Before starting the show, set the modulations to apply before the
+     *  mixer animates each frame.
+     */
+    public void setModulationMatrix(ModulationMatrix modulation) {
+        this.modulation = modulation;
+    }
+
+    /** Route a single command to its destination and apply it. Return false
+     *  if the destination rejected it.
+     */
+    protected boolean applyCommand(Command command, long queueWaitNanos) {
+        String path = command.getPath();
+        Stateful dest = this.router.get(path);
+        Object commandEvent = FlightEvents.beginCommand();
+        try {
+            dest.setState(command.getValue());
+            commandsApplied.increment();
+            FlightEvents.commitCommand(commandEvent, path, queueWaitNanos, true);
+            return true;
+        } catch(Exception e) {
+            commandsFailed.increment();
+            FlightEvents.commitCommand(commandEvent, path, queueWaitNanos, false);
+            log("Failed to issue command to destination "
+                + dest + " at " + path + ": " + e); // TEMP?
+            return false;
+        }
+    }
+
+    public FlightLog getFlightLog() {
+        return flightLog;
+    }
+
+    public int getFrameDelayMillis() {
+        return frameDelayMillis;
+    }
+
     // We break this out into a separate method so that a profiler can easily
     // distinguish between a real hotspot and a quick nap.
     protected void waitSleepy(long Duration) throws InterruptedException {
@@ -0,0 +1,332 @@
+package com.coillighting.udder.infrastructure;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.LockInfo;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+
+import com.coillighting.udder.metrics.FlightLog;
+import com.coillighting.udder.util.FileUtil;
+
+import static com.coillighting.udder.util.LogUtil.log;
+
+/** Watch the render loop and the transmitters for stalls, and when one
+ *  occurs, write a report to disk with enough context to diagnose it: the
+ *  recent frame and send timings from their FlightLogs, a stack trace and
+ *  CPU time for every thread, GC statistics and the system load.
+ *
+ *  This is aimed at the quasiperiodic ~0.5 s "sticky" playback we've seen on
+ *  single-core ARM boards (see TransmissionCoupling). The logs never reported
+ *  dropped frames there, so we need to catch the stall in the act.
+ *
+ *  A stall is any of:
+ *
+ *      - no new frame published for more than stallFactor * frameDelayMillis.
+ *        We notice this while it's happening, so the thread stacks in the
+ *        report show what the render thread was stuck on.
+ *      - a frame that took longer than that to render.
+ *      - an OPC send that took longer than that to write.
+ *
+ *  Reports are rate limited (see minDumpIntervalMillis). All the work
+ *  happens in the watchdog's own low-priority thread. The monitored threads
+ *  only write to their FlightLogs, which never block or allocate.
+ */
+public class StallWatchdog implements Runnable {
+
+    protected ShowRunner showRunner;
+    protected List<Transmitter> transmitters;
+    protected double stallFactor;
+    protected long thresholdNanos;
+    protected long pollMillis;
+    protected File dumpDir;
+
+    /** Don't write more than one report this often, so that a show that is
+     *  simply overloaded doesn't fill the disk.
+     */
+    protected long minDumpIntervalMillis = 30000;
+    protected long lastDumpMillis = 0;
+
+    /** Ignore the first frames, which are slow while classes load, images
+     *  decode and the JIT warms up.
+     */
+    protected long warmupFrames = 100;
+    protected int suppressedCount = 0;
+
+    protected boolean stalled = false;
+    protected ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    // GC snapshots from one to two seconds ago, so a report can show what
+    // the collectors did just before and during the stall.
+    protected long[][] gcBaseline = null;
+    protected long gcBaselineMillis = 0;
+    protected long[][] gcPreviousBaseline = null;
+
+    public StallWatchdog(ShowRunner showRunner, List<Transmitter> transmitters,
+                         double stallFactor, String dumpDir)
+    {
+        if(showRunner == null) {
+            throw new NullPointerException("StallWatchdog requires a ShowRunner to watch.");
+        } else if(stallFactor <= 1.0) {
+            throw new IllegalArgumentException(
+                "The stall factor must be greater than 1: " + stallFactor);
+        }
+        this.showRunner = showRunner;
+        this.transmitters = transmitters;
+        this.stallFactor = stallFactor;
+        this.thresholdNanos = (long) (stallFactor * showRunner.getFrameDelayMillis() * 1000000.0);
+        this.pollMillis = Math.max(1, thresholdNanos / 4000000);
+        this.dumpDir = new File(dumpDir == null ? "." : dumpDir);
+    }
+
+    public void run() {
+        log("Stall watchdog will report frames slower than " + thresholdNanos / 1000000.0
+            + " ms to " + dumpDir.getAbsolutePath());
+        try {
+            FlightLog frames = showRunner.getFlightLog();
+            while(frames.getCount() < warmupFrames) {
+                Thread.sleep(100);
+            }
+            long frameCursor = frames.getCount();
+            long[] sendCursors = new long[transmitters == null ? 0 : transmitters.size()];
+            for(int i=0; i<sendCursors.length; i++) {
+                FlightLog sends = transmitters.get(i).getFlightLog();
+                sendCursors[i] = sends == null ? 0 : sends.getCount();
+            }
+
+            while(true) {
+                Thread.sleep(pollMillis);
+                this.updateGcBaseline();
+
+                String reason = null;
+                String stacks = null;
+
+                long lastFrameNanos = frames.getLastPublishedNanos();
+                long gap = System.nanoTime() - lastFrameNanos;
+                if(frames.getCount() > 0 && gap > thresholdNanos) {
+                    if(!stalled) {
+                        stalled = true;
+                        // Capture the stacks now, while the stall is on.
+                        stacks = this.formatThreads();
+                        reason = "No frame published for " + millis(gap)
+                            + " ms. Thread stacks were captured during the stall.";
+                        this.awaitRecovery(frames, lastFrameNanos);
+                    }
+                } else {
+                    stalled = false;
+                }
+
+                long slowest = 0;
+                long slowestFrame = -1;
+                long end = frames.getCount();
+                for(long seq=Math.max(frameCursor, frames.getOldestSequence()); seq<end; seq++) {
+                    long total = frames.get(seq, ShowRunner.LOG_TOTAL_NANOS);
+                    long frame = frames.get(seq, ShowRunner.LOG_FRAME);
+                    if(frames.isIntact(seq) && total > slowest) {
+                        slowest = total;
+                        slowestFrame = frame;
+                    }
+                }
+                frameCursor = end;
+                if(reason == null && slowest > thresholdNanos) {
+                    reason = "Frame " + slowestFrame + " took " + millis(slowest) + " ms to render.";
+                }
+
+                for(int i=0; i<sendCursors.length; i++) {
+                    FlightLog sends = transmitters.get(i).getFlightLog();
+                    if(sends == null) {
+                        continue;
+                    }
+                    slowest = 0;
+                    end = sends.getCount();
+                    for(long seq=Math.max(sendCursors[i], sends.getOldestSequence()); seq<end; seq++) {
+                        long send = sends.get(seq, OpcTransmitter.LOG_SEND_NANOS);
+                        if(sends.isIntact(seq) && send > slowest) {
+                            slowest = send;
+                        }
+                    }
+                    sendCursors[i] = end;
+                    if(reason == null && slowest > thresholdNanos) {
+                        reason = "A send by " + transmitters.get(i) + " took "
+                            + millis(slowest) + " ms.";
+                    }
+                }
+
+                if(reason != null) {
+                    this.report(reason, stacks);
+                }
+            }
+        } catch(InterruptedException e) {
+            log("Stopping stall watchdog.");
+        }
+    }
+
+    /** Wait a little while for the render loop to publish again, so that the
+     *  report includes the slow frame itself.
+     */
+    protected void awaitRecovery(FlightLog frames, long lastFrameNanos)
+            throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis()
+            + Math.min(5000, 10 * thresholdNanos / 1000000);
+        while(frames.getLastPublishedNanos() == lastFrameNanos
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(pollMillis);
+        }
+    }
+
+    protected void report(String reason, String stacks) {
+        long now = System.currentTimeMillis();
+        if(now - lastDumpMillis < minDumpIntervalMillis) {
+            ++suppressedCount;
+            return;
+        }
+        lastDumpMillis = now;
+
+        StringBuilder sb = new StringBuilder(1 << 20);
+        sb.append("Udder stall report\n");
+        sb.append("Time: ").append(new Date(now)).append('\n');
+        sb.append("Reason: ").append(reason).append('\n');
+        sb.append("Threshold: ").append(millis(thresholdNanos)).append(" ms (")
+            .append(stallFactor).append(" x ").append(showRunner.getFrameDelayMillis())
+            .append(" ms frame delay)\n");
+        sb.append("JVM uptime: ").append(ManagementFactory.getRuntimeMXBean().getUptime())
+            .append(" ms\n");
+        sb.append("System.nanoTime() at report: ").append(System.nanoTime()).append('\n');
+        if(suppressedCount > 0) {
+            sb.append("Stalls not reported since the previous report (rate limit): ")
+                .append(suppressedCount).append('\n');
+            suppressedCount = 0;
+        }
+
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        sb.append("\n== System ==\n");
+        sb.append("Processors: ").append(os.getAvailableProcessors())
+            .append(", load average: ").append(os.getSystemLoadAverage()).append('\n');
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        sb.append("Heap used: ").append(heap.getUsed() >> 10).append(" KiB, committed: ")
+            .append(heap.getCommitted() >> 10).append(" KiB, max: ")
+            .append(heap.getMax() >> 10).append(" KiB\n");
+
+        sb.append("\n== Garbage collectors ==\n");
+        this.formatGc(sb);
+
+        sb.append("\n== Threads ==\n");
+        if(stacks != null) {
+            sb.append(stacks);
+        } else {
+            sb.append("(Captured after the slow frame or send had finished.)\n");
+            sb.append(this.formatThreads());
+        }
+
+        sb.append("\n== Render loop: ").append(showRunner.getFlightLog()).append(" ==\n");
+        sb.append("(All times are System.nanoTime() values or durations in ns.)\n");
+        showRunner.getFlightLog().writeCsv(sb);
+
+        if(transmitters != null) {
+            for(Transmitter transmitter: transmitters) {
+                FlightLog sends = transmitter.getFlightLog();
+                if(sends != null) {
+                    sb.append("\n== ").append(transmitter).append(": ")
+                        .append(sends).append(" ==\n");
+                    sends.writeCsv(sb);
+                }
+            }
+        }
+
+        String filename = "stall-" + new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(
+            new Date(now)) + ".txt";
+        File file = new File(dumpDir, filename);
+        try {
+            if(!dumpDir.isDirectory() && !dumpDir.mkdirs()) {
+                throw new IOException("Failed to create directory " + dumpDir);
+            }
+            FileUtil.stringToFile(file.getPath(), sb.toString());
+            log("STALL: " + reason + " Wrote " + file.getPath());
+        } catch(IOException e) {
+            log("STALL: " + reason + " Failed to write a report to " + file.getPath()
+                + ": " + e);
+        }
+    }
+
+    /** Every second, keep the previous second's GC counters. */
+    protected void updateGcBaseline() {
+        long now = System.currentTimeMillis();
+        if(now - gcBaselineMillis >= 1000) {
+            gcPreviousBaseline = gcBaseline;
+            gcBaseline = this.captureGc();
+            gcBaselineMillis = now;
+        }
+    }
+
+    /** Return {collectionCount, collectionTimeMillis} per collector. */
+    protected long[][] captureGc() {
+        List<GarbageCollectorMXBean> gcs = ManagementFactory.getGarbageCollectorMXBeans();
+        long[][] snapshot = new long[gcs.size()][2];
+        for(int i=0; i<snapshot.length; i++) {
+            snapshot[i][0] = gcs.get(i).getCollectionCount();
+            snapshot[i][1] = gcs.get(i).getCollectionTime();
+        }
+        return snapshot;
+    }
+
+    protected void formatGc(StringBuilder sb) {
+        List<GarbageCollectorMXBean> gcs = ManagementFactory.getGarbageCollectorMXBeans();
+        long[][] baseline = gcPreviousBaseline != null ? gcPreviousBaseline : gcBaseline;
+        for(int i=0; i<gcs.size(); i++) {
+            GarbageCollectorMXBean gc = gcs.get(i);
+            sb.append(gc.getName()).append(": ").append(gc.getCollectionCount())
+                .append(" collections, ").append(gc.getCollectionTime()).append(" ms total");
+            if(baseline != null && i < baseline.length) {
+                sb.append(" (+").append(gc.getCollectionCount() - baseline[i][0])
+                    .append(" collections, +").append(gc.getCollectionTime() - baseline[i][1])
+                    .append(" ms in the last 1-2 s)");
+            }
+            sb.append('\n');
+        }
+    }
+
+    /** Format every live thread's state, CPU time, locks and full stack. */
+    protected String formatThreads() {
+        StringBuilder sb = new StringBuilder(1 << 16);
+        boolean cpuTime = threads.isThreadCpuTimeSupported() && threads.isThreadCpuTimeEnabled();
+        for(ThreadInfo info: threads.dumpAllThreads(false, false)) {
+            if(info == null) {
+                continue;
+            }
+            sb.append('"').append(info.getThreadName()).append("\" id=")
+                .append(info.getThreadId()).append(' ').append(info.getThreadState());
+            if(cpuTime) {
+                sb.append(" cpu=").append(threads.getThreadCpuTime(info.getThreadId()) / 1000000)
+                    .append("ms");
+            }
+            sb.append(" blocked=").append(info.getBlockedCount())
+                .append(" waited=").append(info.getWaitedCount());
+            LockInfo lock = info.getLockInfo();
+            if(lock != null) {
+                sb.append(" on ").append(lock);
+                if(info.getLockOwnerName() != null) {
+                    sb.append(" owned by \"").append(info.getLockOwnerName()).append('"');
+                }
+            }
+            sb.append('\n');
+            for(StackTraceElement frame: info.getStackTrace()) {
+                sb.append("    at ").append(frame).append('\n');
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    protected static String millis(long nanos) {
+        return String.format("%.3f", nanos / 1000000.0);
+    }
+
+}
@@ -46,13 +46,21 @@ public class TransmissionCoupling {
     public TransmissionCoupling(Transmitter transmitter) {
         frameQueue = new LinkedBlockingQueue<Frame>(bufferSize);
         transmitter.setFrameQueue(frameQueue);
-        transmitterThread = new Thread(transmitter);
+        this.transmitter = transmitter;
+        transmitterThread = new Thread(transmitter, "Transmitter " + transmitter);
     }
 
     public void start() throws IllegalThreadStateException {
         this.transmitterThread.start();
     }
 
+    /** Ask the transmitter thread to stop. Transmitters stop when interrupted
+     *  while waiting for a frame.
+     */
+    public void stop() {
+        this.transmitterThread.interrupt();
+    }
+
     public BlockingQueue<Frame> getFrameQueue() {
         return frameQueue;
     }
@@ -1,5 +1,6 @@
 package com.coillighting.udder.infrastructure;
 
+import com.coillighting.udder.metrics.FlightLog;
 import com.coillighting.udder.mix.Frame;
 
 import java.util.concurrent.BlockingQueue;
@@ -8,4 +9,9 @@ public interface Transmitter extends Runnable {
 
     public void setFrameQueue(BlockingQueue<Frame> frameQueue);
 
+    /** Return this transmitter's log of recent sends, or null if it keeps
+     *  none. The StallWatchdog reads it.
+     */
+    public FlightLog getFlightLog();
+
 }
\ No newline at end of file
@@ -0,0 +1,36 @@
+package com.coillighting.udder.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/** A monotonically increasing count of events. Threadsafe and
+ *  allocation-free.
+ */
+public class Counter extends Metric {
+
+    private final AtomicLong count = new AtomicLong();
+
+    public Counter(String name, String help, String labels) {
+        super(name, help, labels);
+    }
+
+    public void increment() {
+        count.incrementAndGet();
+    }
+
+    public void add(long n) {
+        count.addAndGet(n);
+    }
+
+    public long get() {
+        return count.get();
+    }
+
+    public String getType() {
+        return "counter";
+    }
+
+    public void writePrometheus(StringBuilder sb) {
+        this.writeSample(sb, "", null, Long.toString(count.get()));
+    }
+
+}
@@ -0,0 +1,86 @@
+package com.coillighting.udder.metrics;
+
+import static com.coillighting.udder.util.LogUtil.log;
+
+/** Emit custom JDK Flight Recorder events for frames, layers, mixdown, OPC
+ *  sends and commands, so that a continuous low-overhead recording can
+ *  correlate render stalls with GC pauses, safepoints and CPU contention.
+ *
+ *  Usage follows a begin/commit pattern:
+ *
+ *      Object event = FlightEvents.beginFrame();
+ *      ... render the frame ...
+ *      FlightEvents.commitFrame(event, frameIndex, commandApplied);
+ *
+ *  The events themselves live in JfrEvents, which is the only class that
+ *  refers to jdk.jfr. This facade touches JfrEvents only when JFR is
+ *  present, so Udder still runs on JVMs without Flight Recorder, and on
+ *  those JVMs every call here reduces to a check of a constant. When JFR is
+ *  present but not recording, begin returns null and commit does nothing.
+ *
+ *  Set the system property udder.jfr=false to disable the events entirely.
+ */
+public class FlightEvents {
+
+    public static final boolean AVAILABLE = detect();
+
+    private static boolean detect() {
+        if("false".equals(System.getProperty("udder.jfr"))) {
+            return false;
+        }
+        try {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        } catch(ClassNotFoundException e) {
+            log("JDK Flight Recorder is not available in this JVM. Udder's custom JFR events are disabled.");
+            return false;
+        } catch(LinkageError e) {
+            return false;
+        }
+    }
+
+    public static Object beginFrame() {
+        return AVAILABLE ? JfrEvents.beginFrame() : null;
+    }
+
+    public static void commitFrame(Object event, long frameIndex, boolean commandApplied) {
+        if(event != null) JfrEvents.commitFrame(event, frameIndex, commandApplied);
+    }
+
+    public static Object beginLayerAnimate() {
+        return AVAILABLE ? JfrEvents.beginLayerAnimate() : null;
+    }
+
+    public static void commitLayerAnimate(Object event, long frameIndex,
+                                          int layerIndex, String layerName)
+    {
+        if(event != null) JfrEvents.commitLayerAnimate(event, frameIndex, layerIndex, layerName);
+    }
+
+    public static Object beginMix() {
+        return AVAILABLE ? JfrEvents.beginMix() : null;
+    }
+
+    public static void commitMix(Object event, long frameIndex, int visibleLayerCount) {
+        if(event != null) JfrEvents.commitMix(event, frameIndex, visibleLayerCount);
+    }
+
+    public static Object beginOpcSend() {
+        return AVAILABLE ? JfrEvents.beginOpcSend() : null;
+    }
+
+    public static void commitOpcSend(Object event, String output, int bytes, boolean connected) {
+        if(event != null) JfrEvents.commitOpcSend(event, output, bytes, connected);
+    }
+
+    public static Object beginCommand() {
+        return AVAILABLE ? JfrEvents.beginCommand() : null;
+    }
+
+    public static void commitCommand(Object event, String route, long queueWaitNanos,
+                                     boolean succeeded)
+    {
+        if(event != null) JfrEvents.commitCommand(event, route, queueWaitNanos, succeeded);
+    }
+
+}
@@ -0,0 +1,144 @@
+package com.coillighting.udder.metrics;
+
+/** A fixed-size, single-writer, lock-free ring of recent records, each a
+ *  row of long values under named columns. For example, ShowRunner logs the
+ *  stage timings of its last few thousand frames here, so that when a stall
+ *  occurs we can dump the frames leading up to it.
+ *
+ *  Writing never allocates or blocks. The writer claims the next slot, fills
+ *  in its columns, then publishes it:
+ *
+ *      int slot = log.claim();
+ *      log.set(slot, COLUMN_A, a);
+ *      log.set(slot, COLUMN_B, b);
+ *      log.publish(nowNanos);
+ *
+ *  Only one thread may write. Any number of threads may read concurrently
+ *  without blocking the writer. A reader identifies records by sequence
+ *  number, where the first record ever published is 0, and must call
+ *  isIntact after reading a record to learn whether the writer overwrote it
+ *  in the meantime.
+ */
+public class FlightLog {
+
+    protected final String name;
+    protected final String[] columns;
+    protected final int capacity;
+    protected final int mask;
+    protected final long[] data;
+
+    /** The number of records ever published. Written only by the writer. */
+    protected volatile long count = 0;
+
+    /** The timestamp passed to the most recent publish. */
+    protected volatile long lastPublishedNanos = 0;
+
+    /** Round capacity up to the next power of two. */
+    public FlightLog(String name, String[] columns, int capacity) {
+        if(columns == null || columns.length == 0) {
+            throw new IllegalArgumentException("A FlightLog requires at least one column.");
+        } else if(capacity < 1) {
+            throw new IllegalArgumentException("Invalid FlightLog capacity: " + capacity);
+        }
+        int c = Integer.highestOneBit(capacity);
+        if(c < capacity) {
+            c <<= 1;
+        }
+        this.name = name;
+        this.columns = columns.clone();
+        this.capacity = c;
+        this.mask = c - 1;
+        this.data = new long[c * columns.length];
+    }
+
+    /** Writer only. Return the offset of the next unpublished slot. */
+    public int claim() {
+        return (int) (count & mask) * columns.length;
+    }
+
+    /** Writer only. Set a column in a claimed slot. */
+    public void set(int slot, int column, long value) {
+        data[slot + column] = value;
+    }
+
+    /** Writer only. Publish the claimed slot. */
+    public void publish(long timestampNanos) {
+        lastPublishedNanos = timestampNanos;
+        count = count + 1; // volatile write publishes the slot
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String[] getColumns() {
+        return columns.clone();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getLastPublishedNanos() {
+        return lastPublishedNanos;
+    }
+
+    /** Return the oldest sequence number that might still be intact. (The
+     *  writer may already be reusing the slot of the one before it.)
+     */
+    public long getOldestSequence() {
+        long c = count;
+        return c >= capacity ? c - capacity + 1 : 0;
+    }
+
+    /** Read a column of a published record. Call isIntact afterwards. */
+    public long get(long sequence, int column) {
+        return data[(int) (sequence & mask) * columns.length + column];
+    }
+
+    /** Return true if the record with the given sequence number is still
+     *  intact, i.e. it was published and the writer hasn't started reusing
+     *  its slot.
+     */
+    public boolean isIntact(long sequence) {
+        long c = count;
+        return sequence < c && c < sequence + capacity;
+    }
+
+    /** Append every intact record, oldest first, as CSV with a header. */
+    public void writeCsv(StringBuilder sb) {
+        long end = count;
+        long start = end >= capacity ? end - capacity + 1 : 0;
+        sb.append("sequence");
+        for(String column: columns) {
+            sb.append(',').append(column);
+        }
+        sb.append('\n');
+
+        long[] row = new long[columns.length];
+        for(long seq=start; seq<end; seq++) {
+            for(int c=0; c<row.length; c++) {
+                row[c] = this.get(seq, c);
+            }
+            if(!this.isIntact(seq)) {
+                // The writer lapped us. Skip ahead to what's still there.
+                seq = this.getOldestSequence() - 1;
+                continue;
+            }
+            sb.append(seq);
+            for(long value: row) {
+                sb.append(',').append(value);
+            }
+            sb.append('\n');
+        }
+    }
+
+    public String toString() {
+        return "FlightLog(" + name + ", " + count + " records, capacity " + capacity + ")";
+    }
+
+}
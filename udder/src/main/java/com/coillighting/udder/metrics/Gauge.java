@@ -0,0 +1,30 @@
+package com.coillighting.udder.metrics;
+
+/** The most recently observed value of something that goes up and down,
+ *  such as a queue depth. Threadsafe and allocation-free.
+ */
+public class Gauge extends Metric {
+
+    private volatile long value = 0;
+
+    public Gauge(String name, String help, String labels) {
+        super(name, help, labels);
+    }
+
+    public void set(long value) {
+        this.value = value;
+    }
+
+    public long get() {
+        return value;
+    }
+
+    public String getType() {
+        return "gauge";
+    }
+
+    public void writePrometheus(StringBuilder sb) {
+        this.writeSample(sb, "", null, Long.toString(value));
+    }
+
+}
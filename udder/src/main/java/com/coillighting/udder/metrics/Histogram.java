@@ -0,0 +1,163 @@
+package com.coillighting.udder.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/** An HDR-style histogram of durations, recorded in nanoseconds and exported
+ *  in seconds.
+ *
+ *  Buckets are log-linear: each power of two (octave) is split into 16
+ *  equal sub-buckets, so any recorded value is known to within about 6%
+ *  across the whole range from 1 ns to 2^41 ns (about 36 minutes). Values
+ *  beyond that land in the last bucket. Recording costs one array index
+ *  calculation and a few atomic increments. It never allocates or locks, so
+ *  it is safe to call from the render loop and from several threads at once.
+ *
+ *  For Prometheus export we publish a fixed set of cumulative buckets whose
+ *  upper bounds fall exactly on internal bucket edges (every octave from
+ *  about 1 us to about 17 s), so no interpolation error creeps in. Since
+ *  Prometheus's le is inclusive, and our edges are exclusive, each bucket is
+ *  labelled with the largest value it holds, 1 ns below the octave.
+ */
+public class Histogram extends Metric {
+
+    public static final int SUB_BUCKET_BITS = 4;
+    public static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    public static final int MAX_EXPONENT = 40;
+    public static final int BUCKET_COUNT =
+        SUB_BUCKET_COUNT + (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT;
+
+    /** Exported upper bounds in nanoseconds: 2^k, exclusive. */
+    protected static final long[] EXPORT_BOUNDS_NANOS = createExportBounds(10, 34);
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public Histogram(String name, String help, String labels) {
+        super(name, help, labels);
+    }
+
+    /** Record one duration. Negative values are recorded as zero. */
+    public void record(long nanos) {
+        if(nanos < 0) {
+            nanos = 0;
+        }
+        counts.incrementAndGet(indexOf(nanos));
+        count.incrementAndGet();
+        sum.addAndGet(nanos);
+        long m = max.get();
+        while(nanos > m && !max.compareAndSet(m, nanos)) {
+            m = max.get();
+        }
+    }
+
+    /** Record the time elapsed since startNanos, per System.nanoTime(). */
+    public void recordSince(long startNanos) {
+        this.record(System.nanoTime() - startNanos);
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getSumNanos() {
+        return sum.get();
+    }
+
+    public long getMaxNanos() {
+        return max.get();
+    }
+
+    /** Return the lower bound of the bucket holding the given quantile
+     *  (0.0 to 1.0), or 0 if nothing has been recorded.
+     */
+    public long getValueAtQuantile(double q) {
+        long total = count.get();
+        if(total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(q * total);
+        if(rank < 1) {
+            rank = 1;
+        }
+        long seen = 0;
+        for(int i=0; i<BUCKET_COUNT; i++) {
+            seen += counts.get(i);
+            if(seen >= rank) {
+                return lowerBound(i);
+            }
+        }
+        return lowerBound(BUCKET_COUNT - 1);
+    }
+
+    public static int indexOf(long nanos) {
+        if(nanos < SUB_BUCKET_COUNT) {
+            return (int) nanos;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        if(exponent > MAX_EXPONENT) {
+            return BUCKET_COUNT - 1;
+        }
+        int shift = exponent - SUB_BUCKET_BITS;
+        int sub = (int) ((nanos >>> shift) & (SUB_BUCKET_COUNT - 1));
+        return SUB_BUCKET_COUNT + shift * SUB_BUCKET_COUNT + sub;
+    }
+
+    /** Return the smallest value that falls in bucket i. */
+    public static long lowerBound(int i) {
+        if(i < SUB_BUCKET_COUNT) {
+            return i;
+        }
+        int shift = (i - SUB_BUCKET_COUNT) / SUB_BUCKET_COUNT;
+        int sub = (i - SUB_BUCKET_COUNT) % SUB_BUCKET_COUNT;
+        return ((long) (SUB_BUCKET_COUNT + sub)) << shift;
+    }
+
+    protected static long[] createExportBounds(int minExponent, int maxExponent) {
+        long[] bounds = new long[maxExponent - minExponent + 1];
+        for(int k=minExponent; k<=maxExponent; k++) {
+            bounds[k - minExponent] = 1L << k;
+        }
+        return bounds;
+    }
+
+    public String getType() {
+        return "histogram";
+    }
+
+    public void writePrometheus(StringBuilder sb) {
+        // Read the bucket counts first so that the cumulative buckets never
+        // exceed _count, even while other threads keep recording.
+        long cumulative = 0;
+        int i = 0;
+        for(long bound: EXPORT_BOUNDS_NANOS) {
+            while(i < BUCKET_COUNT - 1 && lowerBound(i + 1) <= bound) {
+                cumulative += counts.get(i);
+                i++;
+            }
+            this.writeSample(sb, "_bucket", label("le", seconds(bound - 1)),
+                Long.toString(cumulative));
+        }
+        while(i < BUCKET_COUNT) {
+            cumulative += counts.get(i);
+            i++;
+        }
+        this.writeSample(sb, "_bucket", label("le", "+Inf"), Long.toString(cumulative));
+        this.writeSample(sb, "_sum", null, seconds(sum.get()));
+        this.writeSample(sb, "_count", null, Long.toString(cumulative));
+    }
+
+    protected static String seconds(long nanos) {
+        return Double.toString(nanos / 1000000000.0);
+    }
+
+    public String toString() {
+        return super.toString() + "(count=" + count.get()
+            + ", p50=" + seconds(getValueAtQuantile(0.5))
+            + "s, p99=" + seconds(getValueAtQuantile(0.99))
+            + "s, max=" + seconds(max.get()) + "s)";
+    }
+
+}
@@ -0,0 +1,205 @@
+package com.coillighting.udder.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+
+/** The only class in Udder that refers to jdk.jfr. Don't call it directly;
+ *  go through FlightEvents, which checks that JFR is present first.
+ *
+ *  Each begin method returns null unless a recording has enabled that event
+ *  type, so a JVM that isn't recording pays only for the allocation of an
+ *  event object, which the JIT can usually eliminate.
+ *
+ *  Frame and command events are recorded unconditionally. The finer-grained
+ *  layer, mix and send events default to a 1 ms threshold so that a
+ *  continuous recording captures the slow ones without a flood of normal
+ *  ones. Override the thresholds in your .jfc settings to see them all.
+ *
+ *  Stack traces are off because every event of a given type comes from the
+ *  same call site, and walking the stack 100 times a second isn't free.
+ */
+class JfrEvents {
+
+    static Object beginFrame() {
+        FrameEvent event = new FrameEvent();
+        if(!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    static void commitFrame(Object e, long frameIndex, boolean commandApplied) {
+        FrameEvent event = (FrameEvent) e;
+        event.frameIndex = frameIndex;
+        event.commandApplied = commandApplied;
+        event.commit();
+    }
+
+    static Object beginLayerAnimate() {
+        LayerAnimateEvent event = new LayerAnimateEvent();
+        if(!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    static void commitLayerAnimate(Object e, long frameIndex, int layerIndex, String layerName) {
+        LayerAnimateEvent event = (LayerAnimateEvent) e;
+        event.end();
+        if(event.shouldCommit()) {
+            event.frameIndex = frameIndex;
+            event.layerIndex = layerIndex;
+            event.layerName = layerName;
+            event.commit();
+        }
+    }
+
+    static Object beginMix() {
+        MixEvent event = new MixEvent();
+        if(!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    static void commitMix(Object e, long frameIndex, int visibleLayerCount) {
+        MixEvent event = (MixEvent) e;
+        event.end();
+        if(event.shouldCommit()) {
+            event.frameIndex = frameIndex;
+            event.visibleLayerCount = visibleLayerCount;
+            event.commit();
+        }
+    }
+
+    static Object beginOpcSend() {
+        OpcSendEvent event = new OpcSendEvent();
+        if(!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    static void commitOpcSend(Object e, String output, int bytes, boolean connected) {
+        OpcSendEvent event = (OpcSendEvent) e;
+        event.end();
+        if(event.shouldCommit()) {
+            event.output = output;
+            event.bytes = bytes;
+            event.connected = connected;
+            event.commit();
+        }
+    }
+
+    static Object beginCommand() {
+        CommandEvent event = new CommandEvent();
+        if(!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    static void commitCommand(Object e, String route, long queueWaitNanos, boolean succeeded) {
+        CommandEvent event = (CommandEvent) e;
+        event.route = route;
+        event.queueWait = queueWaitNanos;
+        event.succeeded = succeeded;
+        event.commit();
+    }
+
+}
+
+@Name("com.coillighting.udder.Frame")
+@Label("Udder Frame")
+@Category({"Udder", "Render"})
+@Description("One trip through ShowRunner's render loop: command, animate, mix and copy.")
+@StackTrace(false)
+class FrameEvent extends Event {
+
+    @Label("Frame Index")
+    long frameIndex;
+
+    @Label("Command Applied")
+    boolean commandApplied;
+}
+
+@Name("com.coillighting.udder.LayerAnimate")
+@Label("Udder Layer Animate")
+@Category({"Udder", "Render"})
+@Description("One call to animate a single visible layer.")
+@Threshold("1 ms")
+@StackTrace(false)
+class LayerAnimateEvent extends Event {
+
+    @Label("Frame Index")
+    long frameIndex;
+
+    @Label("Layer Index")
+    int layerIndex;
+
+    @Label("Layer Name")
+    String layerName;
+}
+
+@Name("com.coillighting.udder.Mix")
+@Label("Udder Mix")
+@Category({"Udder", "Render"})
+@Description("Mixdown of all visible layers into one frame.")
+@Threshold("1 ms")
+@StackTrace(false)
+class MixEvent extends Event {
+
+    @Label("Frame Index")
+    long frameIndex;
+
+    @Label("Visible Layers")
+    int visibleLayerCount;
+}
+
+@Name("com.coillighting.udder.OpcSend")
+@Label("Udder OPC Send")
+@Category({"Udder", "Output"})
+@Description("Writing one OPC message to the socket, including any connect.")
+@Threshold("1 ms")
+@StackTrace(false)
+class OpcSendEvent extends Event {
+
+    @Label("Output")
+    String output;
+
+    @Label("Bytes")
+    int bytes;
+
+    @Label("Connected")
+    @Description("True if this send had to open a new connection first.")
+    boolean connected;
+}
+
+@Name("com.coillighting.udder.Command")
+@Label("Udder Command")
+@Category({"Udder", "Commands"})
+@Description("Applying one command to the scene.")
+@StackTrace(false)
+class CommandEvent extends Event {
+
+    @Label("Route")
+    String route;
+
+    @Label("Queue Wait")
+    @Timespan(Timespan.NANOSECONDS)
+    long queueWait;
+
+    @Label("Succeeded")
+    boolean succeeded;
+}
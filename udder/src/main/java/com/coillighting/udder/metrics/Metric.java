@@ -0,0 +1,77 @@
+package com.coillighting.udder.metrics;
+
+/** Base class for named instruments in a MetricsRegistry.
+ *
+ *  Instruments are created once, normally while the show is being assembled,
+ *  and then updated from the hot path without allocating or locking.
+ *  Formatting for export happens only when someone asks for it.
+ */
+public abstract class Metric {
+
+    protected String name;
+    protected String help;
+
+    /** Prometheus label pairs without braces, e.g. layer="Woven", or the
+     *  empty string if the metric has no labels.
+     */
+    protected String labels;
+
+    protected Metric(String name, String help, String labels) {
+        if(name == null) {
+            throw new NullPointerException("A metric requires a name.");
+        }
+        this.name = name;
+        this.help = help == null ? "" : help;
+        this.labels = labels == null ? "" : labels;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getHelp() {
+        return help;
+    }
+
+    public String getLabels() {
+        return labels;
+    }
+
+    /** Return the Prometheus TYPE of this metric: counter, gauge, etc. */
+    public abstract String getType();
+
+    /** Append this metric's sample lines in the Prometheus text format.
+     *  The registry writes the HELP and TYPE lines.
+     */
+    public abstract void writePrometheus(StringBuilder sb);
+
+    /** Format name{labels} value, merging in one extra label if given. */
+    protected void writeSample(StringBuilder sb, String suffix, String extraLabel,
+                               String value)
+    {
+        sb.append(name).append(suffix);
+        if(labels.length() > 0 || extraLabel != null) {
+            sb.append('{').append(labels);
+            if(extraLabel != null) {
+                if(labels.length() > 0) {
+                    sb.append(',');
+                }
+                sb.append(extraLabel);
+            }
+            sb.append('}');
+        }
+        sb.append(' ').append(value).append('\n');
+    }
+
+    /** Return a Prometheus label pair with its value escaped. */
+    public static String label(String key, String value) {
+        String v = value == null ? "" : value;
+        v = v.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+        return key + "=\"" + v + '"';
+    }
+
+    public String toString() {
+        return name + (labels.length() > 0 ? "{" + labels + "}" : "");
+    }
+
+}
@@ -0,0 +1,112 @@
+package com.coillighting.udder.metrics;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/** A collection of named Counters, Gauges and Histograms, exportable in the
+ *  Prometheus text exposition format (version 0.0.4).
+ *
+ *  Registration is synchronized and may allocate, so do it up front while the
+ *  show is being assembled, then keep a reference to the returned instrument
+ *  for use in the hot path. Asking twice for the same name and labels returns
+ *  the same instrument, so several components (or several Mixers in a
+ *  benchmark) can safely share one.
+ *
+ *  Udder normally uses a single process-wide registry (see getDefault()),
+ *  which HttpServiceContainer publishes at GET /metrics.
+ */
+public class MetricsRegistry {
+
+    private static final MetricsRegistry defaultRegistry = new MetricsRegistry();
+
+    /** Metrics grouped by name, in order of first registration, so that
+     *  each family's HELP and TYPE lines are written exactly once.
+     */
+    protected Map<String, List<Metric>> families = new LinkedHashMap<String, List<Metric>>();
+
+    public static MetricsRegistry getDefault() {
+        return defaultRegistry;
+    }
+
+    public Counter counter(String name, String help) {
+        return this.counter(name, help, null);
+    }
+
+    public synchronized Counter counter(String name, String help, String labels) {
+        Metric m = this.find(name, labels);
+        if(m == null) {
+            m = this.register(new Counter(name, help, labels));
+        }
+        return (Counter) m;
+    }
+
+    public Gauge gauge(String name, String help) {
+        return this.gauge(name, help, null);
+    }
+
+    public synchronized Gauge gauge(String name, String help, String labels) {
+        Metric m = this.find(name, labels);
+        if(m == null) {
+            m = this.register(new Gauge(name, help, labels));
+        }
+        return (Gauge) m;
+    }
+
+    public Histogram histogram(String name, String help) {
+        return this.histogram(name, help, null);
+    }
+
+    public synchronized Histogram histogram(String name, String help, String labels) {
+        Metric m = this.find(name, labels);
+        if(m == null) {
+            m = this.register(new Histogram(name, help, labels));
+        }
+        return (Histogram) m;
+    }
+
+    /** Format every registered metric in the Prometheus text format. */
+    public synchronized String toPrometheusText() {
+        StringBuilder sb = new StringBuilder(4096);
+        for(List<Metric> family: families.values()) {
+            Metric first = family.get(0);
+            sb.append("# HELP ").append(first.getName()).append(' ')
+                .append(first.getHelp().replace("\\", "\\\\").replace("\n", "\\n"))
+                .append('\n');
+            sb.append("# TYPE ").append(first.getName()).append(' ')
+                .append(first.getType()).append('\n');
+            for(Metric m: family) {
+                m.writePrometheus(sb);
+            }
+        }
+        return sb.toString();
+    }
+
+    protected Metric find(String name, String labels) {
+        List<Metric> family = families.get(name);
+        if(family != null) {
+            String l = labels == null ? "" : labels;
+            for(Metric m: family) {
+                if(m.getLabels().equals(l)) {
+                    return m;
+                }
+            }
+        }
+        return null;
+    }
+
+    protected Metric register(Metric metric) {
+        List<Metric> family = families.get(metric.getName());
+        if(family == null) {
+            family = new ArrayList<Metric>();
+            families.put(metric.getName(), family);
+        } else if(!family.get(0).getType().equals(metric.getType())) {
+            throw new IllegalArgumentException("Metric " + metric.getName()
+                + " is already registered as a " + family.get(0).getType() + '.');
+        }
+        family.add(metric);
+        return metric;
+    }
+
+}
@@ -10,6 +10,11 @@ public class Frame {
     private TimePoint timePoint;
     private Pixel[] pixels;
 
+    /** The patch's map from output addresses to pixels, shared by reference
+     *  and never modified, or null if the transmitter should use its own.
+     */
+    private int[] deviceAddressMap = null;
+
     /** Construct a new Frame by deeply copying the given Pixels so that it is
      * safe to give this Frame to a transmitter in another thread. (Per
      * Effect.render's contract, renderers are permitted to return direct
@@ -25,6 +30,17 @@ public class Frame {
         return frame;
     }
 
+    /** As above, tagging the copy with the deviceAddressMap of the patch the
+     *  pixels were rendered for.
+     */
+    public static Frame createByCopy(TimePoint timePoint, Pixel[] otherPixels,
+                                     int[] deviceAddressMap)
+    {
+        Frame frame = createByCopy(timePoint, otherPixels);
+        frame.deviceAddressMap = deviceAddressMap;
+        return frame;
+    }
+
     /** Construct a new Frame incorporating the given pixels by reference. */
     public Frame(TimePoint timePoint, Pixel[] pixels) {
         if(timePoint == null) {
@@ -55,4 +71,9 @@ public class Frame {
     public TimePoint getTimePoint() {
         return this.timePoint;
     }
+
+    /** Do not modify the result. May be null. */
+    public int[] getDeviceAddressMap() {
+        return this.deviceAddressMap;
+    }
 }
@@ -5,6 +5,7 @@ import java.util.List;
 
 import com.coillighting.udder.effect.Effect;
 import com.coillighting.udder.model.Device;
+import com.coillighting.udder.model.DeviceGeometry;
 import com.coillighting.udder.model.Pixel;
 
 /** A Mixer is typically composed of several Layers. Each Layer is capable of
@@ -36,7 +37,7 @@ public class Layer extends MixableBase implements Effect, Mixable {
     }
 
     public Object getState() {
-        return null; // TODO LayerState
+        return new LayerState((float) this.level);
     }
 
     public void setState(Object state) throws ClassCastException {
@@ -65,6 +66,14 @@ public class Layer extends MixableBase implements Effect, Mixable {
         this.effect.patchDevices(devices);
     }
 
+    public Object preparePatch(Device[] devices, DeviceGeometry geometry) {
+        return this.effect.preparePatch(devices, geometry);
+    }
+
+    public void installPatch(Object prepared) {
+        this.effect.installPatch(prepared);
+    }
+
     public Effect getEffect() {
         return this.effect;
     }
@@ -7,7 +7,12 @@ import java.util.List;
 
 import com.coillighting.udder.blend.MaxBlendOp;
 import com.coillighting.udder.infrastructure.Stateful;
+import com.coillighting.udder.metrics.FlightEvents;
+import com.coillighting.udder.metrics.Histogram;
+import com.coillighting.udder.metrics.Metric;
+import com.coillighting.udder.metrics.MetricsRegistry;
 import com.coillighting.udder.model.Device;
+import com.coillighting.udder.model.DeviceGeometry;
 import com.coillighting.udder.model.Pixel;
 
 /** A concrete scenegraph is implemented as a Mixer with one or more Layers.
@@ -30,15 +35,34 @@ public class Mixer extends MixableBase implements Mixable, Iterable<Mixable> {
      * as long as it keeps its hands off the list of subscribers. For example,
      * a shuffle mode subscriber might randomly turn up some layers and
      * turn down others, or an LFO subscriber might periodically fade up and
-     * down the mixer's master level.
+     * down the mixer's master level. (Plain LFOs needn't subscribe: see
+     * ModulationMatrix, which the ShowRunner evaluates before this Mixer.)
      */
     protected List<StatefulAnimator> subscribers;
 
+    /** Per-layer animation time, indexed like layers. */
+    protected Histogram[] layerAnimateTimes;
+
+    /** Layer names and the current frame index, cached for JFR events. */
+    protected String[] layerNames;
+    protected long frameIndex = 0;
+
     public Mixer(Collection<Mixable> layers) {
 
         this.layers = new ArrayList<Mixable>(layers);
         this.setBlendOp(new MaxBlendOp());
         this.subscribers = new ArrayList<StatefulAnimator>();
+
+        MetricsRegistry metrics = MetricsRegistry.getDefault();
+        this.layerAnimateTimes = new Histogram[this.layers.size()];
+        this.layerNames = new String[this.layers.size()];
+        for(int i=0; i<layerAnimateTimes.length; i++) {
+            layerNames[i] = "" + this.layers.get(i);
+            layerAnimateTimes[i] = metrics.histogram("udder_layer_animate_seconds",
+                "Time spent animating each visible layer per frame.",
+                Metric.label("layer", "" + i) + ','
+                    + Metric.label("name", layerNames[i]));
+        }
     }
 
     public void subscribeAnimator(StatefulAnimator a) {
@@ -50,7 +74,7 @@ public class Mixer extends MixableBase implements Mixable, Iterable<Mixable> {
     }
 
     public Object getState() {
-        return null; // TODO MixerState
+        return new LayerState((float) this.level); // TODO MixerState
     }
 
     public void setState(Object state) throws ClassCastException {
@@ -79,13 +103,19 @@ public class Mixer extends MixableBase implements Mixable, Iterable<Mixable> {
      *  state as Pixels.
      */
     public void animate(TimePoint timePoint) {
+        frameIndex = timePoint.getFrameIndex();
         for(Animator a: subscribers) {
             a.animate(timePoint);
         }
         if(level > 0.0) {
-            for (Mixable layer : this) {
+            for(int i=0; i<layers.size(); i++) {
+                Mixable layer = layers.get(i);
                 if(layer.getLevel() > 0.0) {
+                    Object event = FlightEvents.beginLayerAnimate();
+                    long start = System.nanoTime();
                     layer.animate(timePoint);
+                    layerAnimateTimes[i].recordSince(start);
+                    FlightEvents.commitLayerAnimate(event, frameIndex, i, layerNames[i]);
                 }
             }
         }
@@ -101,10 +131,13 @@ public class Mixer extends MixableBase implements Mixable, Iterable<Mixable> {
         }
 
         // Draw all visible layers
+        Object event = FlightEvents.beginMix();
+        int visibleLayerCount = 0;
         if(level > 0.0) {
             for(Mixable layer : this) {
                 if(layer.getLevel() > 0.0) {
                     layer.mixWith(pixels);
+                    ++visibleLayerCount;
                 }
             }
 
@@ -116,27 +149,52 @@ public class Mixer extends MixableBase implements Mixable, Iterable<Mixable> {
                 }
             }
         }
+        FlightEvents.commitMix(event, frameIndex, visibleLayerCount);
     }
 
-    /** FIXME The Mixer normally runs in a separate thread, so it should make a
-     * deep copy of the devices[], in case the user edits their associated
-     * PatchSheet later, while the show is running. Also, it would be best if
-     * Device were a read-only interface so that it could be safely shared
-     * among Layers.
+    /** Patch every layer at once. Not threadsafe: call it before the show
+     *  starts. To repatch a running show, call preparePatch from any thread,
+     *  then have the render thread installPatch between two frames (see
+     *  PatchChange).
+     *
+     *  FUTURE: It would be best if Device were a read-only interface so that
+     *  it could be safely shared among Layers. Meanwhile, never modify a
+     *  Device after patching it; load a new patch sheet instead.
      */
     public void patchDevices(Device[] devices) {
-        deviceCount = devices.length;
-        for(Mixable layer : layers) {
-            layer.patchDevices(devices);
+        this.installPatch(this.preparePatch(devices, new DeviceGeometry(devices)));
+    }
+
+    /** Compute every layer's tables for the given devices, plus a new canvas,
+     *  without disturbing the running show. Every layer shares the geometry.
+     */
+    public Object preparePatch(Device[] devices, DeviceGeometry geometry) {
+        Object[] preparedLayers = new Object[layers.size()];
+        for(int i=0; i<preparedLayers.length; i++) {
+            preparedLayers[i] = layers.get(i).preparePatch(devices, geometry);
         }
 
         // Initialize the reusable canvas.
-        pixels = new Pixel[deviceCount];
-
-        for(int i=0; i<pixels.length; i++) {
-            pixels[i] = Pixel.black();
+        Pixel[] canvas = new Pixel[devices.length];
+        for(int i=0; i<canvas.length; i++) {
+            canvas[i] = Pixel.black();
         }
+        return new PreparedMixerPatch(preparedLayers, canvas);
+    }
 
+    /** Swap in the result of preparePatch. Render thread only. */
+    public void installPatch(Object prepared) {
+        PreparedMixerPatch patch = (PreparedMixerPatch) prepared;
+        if(patch.preparedLayers.length != layers.size()) {
+            throw new IllegalArgumentException("Prepared a patch for "
+                + patch.preparedLayers.length + " layers, but this mixer has "
+                + layers.size() + '.');
+        }
+        for(int i=0; i<patch.preparedLayers.length; i++) {
+            layers.get(i).installPatch(patch.preparedLayers[i]);
+        }
+        pixels = patch.canvas;
+        deviceCount = patch.canvas.length;
     }
 
     /** See borrowing contract on Effect. */
@@ -168,3 +226,18 @@ public class Mixer extends MixableBase implements Mixable, Iterable<Mixable> {
     }
 
 }
+
+
+/** The result of Mixer.preparePatch: each layer's own prepared patch, in
+ *  layer order, and the canvas.
+ */
+class PreparedMixerPatch {
+
+    final Object[] preparedLayers;
+    final Pixel[] canvas;
+
+    PreparedMixerPatch(Object[] preparedLayers, Pixel[] canvas) {
+        this.preparedLayers = preparedLayers;
+        this.canvas = canvas;
+    }
+}
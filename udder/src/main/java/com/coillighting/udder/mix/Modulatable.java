@@ -0,0 +1,21 @@
+package com.coillighting.udder.mix;
+
+/** Something with numeric parameters that a ModulationMatrix may drive, once
+ *  per frame, from a Wave. Layers and Mixers don't need this, since the
+ *  matrix sets their levels directly.
+ */
+public interface Modulatable {
+
+    /** Return the index of the named parameter, or -1 if there is no such
+     *  parameter. Called once per binding, so that modulate() needn't look
+     *  up names.
+     */
+    public int getParameterIndex(String name);
+
+    /** Set the given parameter. Called on the render thread before the
+     *  mixer animates, every frame, so don't allocate. Ignore out of range
+     *  values.
+     */
+    public void modulate(int parameter, double value);
+
+}
@@ -0,0 +1,36 @@
+package com.coillighting.udder.mix;
+
+import com.coillighting.udder.geometry.wave.DoubleWave;
+
+/** A resolved ModulationState: either a Mixable's level or a Modulatable's
+ *  parameter, ready to drive without lookups.
+ */
+class ModulationBinding {
+
+    private final DoubleWave wave;
+    private final double depth;
+    private final double offset;
+    private final Mixable mixable;
+    private final Modulatable modulatable;
+    private final int parameter;
+
+    ModulationBinding(DoubleWave wave, double depth, double offset,
+                      Mixable mixable, Modulatable modulatable, int parameter)
+    {
+        this.wave = wave;
+        this.depth = depth;
+        this.offset = offset;
+        this.mixable = mixable;
+        this.modulatable = modulatable;
+        this.parameter = parameter;
+    }
+
+    void apply(TimePoint timePoint) {
+        double value = offset + depth * wave.getVal(timePoint);
+        if(mixable != null) {
+            mixable.setLevel(value);
+        } else {
+            modulatable.modulate(parameter, value);
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.coillighting.udder.mix;
+
+import com.coillighting.udder.geometry.wave.ConstantWave;
+import com.coillighting.udder.geometry.wave.DoubleWave;
+import com.coillighting.udder.geometry.wave.SawtoothWave;
+import com.coillighting.udder.geometry.wave.SharkfinWave;
+import com.coillighting.udder.geometry.wave.SinusoidalWave;
+import com.coillighting.udder.geometry.wave.SquareWave;
+import com.coillighting.udder.geometry.wave.TriangleWave;
+import com.coillighting.udder.infrastructure.Router;
+import com.coillighting.udder.infrastructure.Stateful;
+
+/** Bind waves to layer levels and effect parameters: the LFOs that the Mixer
+ *  has always anticipated. Each binding drives one parameter with
+ *  offset + depth * wave (see ModulationState). Targets are named by their
+ *  routes, e.g. "/mixer0/layer3" or "/mixer0/layer8/effect", and the matrix
+ *  itself is routed like any other Stateful, so bindings may be changed over
+ *  HTTP or OSC while the show runs.
+ *
+ *  The ShowRunner evaluates every binding in one pass at the top of each
+ *  frame, before the Mixer animates, so that a layer modulated up from 0.0
+ *  is drawn in that same frame. Animators subscribed to the Mixer, like the
+ *  DairyShuffler, run after that and have the last word on any level they
+ *  set. Names are resolved when bindings are set, and waves are sampled as
+ *  primitives, so evaluating the matrix doesn't allocate.
+ *
+ *  Render thread only, like the objects it drives.
+ */
+public class ModulationMatrix implements Stateful {
+
+    public static final String LEVEL = "level";
+
+    protected Router router;
+    protected ModulationState[] states = new ModulationState[0];
+    protected ModulationBinding[] bindings = new ModulationBinding[0];
+
+    public ModulationMatrix(Router router) {
+        if(router == null) {
+            throw new NullPointerException("ModulationMatrix requires a Router to find its targets.");
+        }
+        this.router = router;
+    }
+
+    /** Drive every bound parameter to its value at the given time. */
+    public void animate(TimePoint timePoint) {
+        final ModulationBinding[] b = bindings;
+        for(int i=0; i<b.length; i++) {
+            b[i].apply(timePoint);
+        }
+    }
+
+    public int size() {
+        return bindings.length;
+    }
+
+    public Class<?> getStateClass() {
+        return ModulationMatrixState.class;
+    }
+
+    public Object getState() {
+        return new ModulationMatrixState(states.clone());
+    }
+
+    /** Replace every binding. If any binding is invalid, keep the old ones
+     *  and throw IllegalArgumentException.
+     */
+    public void setState(Object state) throws ClassCastException {
+        ModulationState[] s = ((ModulationMatrixState) state).getBindings();
+        if(s != null) {
+            ModulationBinding[] b = new ModulationBinding[s.length];
+            for(int i=0; i<s.length; i++) {
+                b[i] = this.bind(s[i]);
+            }
+            states = s.clone();
+            bindings = b;
+        }
+    }
+
+    protected ModulationBinding bind(ModulationState state) {
+        if(state == null) {
+            throw new IllegalArgumentException("Null modulation binding.");
+        }
+        String path = state.getTarget();
+        Stateful target = path == null ? null : router.get(path);
+        if(target == null) {
+            throw new IllegalArgumentException("No route to modulate: " + path);
+        }
+        DoubleWave wave = createWave(state.getWave(), state.getPeriodMillis());
+
+        String parameter = state.getParameter();
+        if(parameter == null) {
+            parameter = LEVEL;
+        }
+        if(LEVEL.equals(parameter) && target instanceof Mixable) {
+            return new ModulationBinding(wave, state.getDepth(), state.getOffset(),
+                (Mixable) target, null, -1);
+        } else if(target instanceof Modulatable) {
+            Modulatable modulatable = (Modulatable) target;
+            int index = modulatable.getParameterIndex(parameter);
+            if(index < 0) {
+                throw new IllegalArgumentException(path + " has no parameter "
+                    + parameter + " to modulate.");
+            }
+            return new ModulationBinding(wave, state.getDepth(), state.getOffset(),
+                null, modulatable, index);
+        } else {
+            throw new IllegalArgumentException(path + " has no parameter "
+                + parameter + " to modulate.");
+        }
+    }
+
+    /** Return a wave of the given shape running from 0.0 to 1.0. Default to
+     *  sinusoidal. A constant wave is always 1.0 and needs no period; every
+     *  other shape requires a positive periodMillis.
+     */
+    public static DoubleWave createWave(String shape, long periodMillis) {
+        if(periodMillis <= 0 && !"constant".equals(shape)) {
+            throw new IllegalArgumentException("A " + (shape == null ? "sinusoidal" : shape)
+                + " wave requires a positive periodMillis, not " + periodMillis + '.');
+        } else if(shape == null || shape.equals("sinusoidal")) {
+            return new SinusoidalWave(0.0, 1.0, periodMillis);
+        } else if(shape.equals("triangle")) {
+            return new TriangleWave(0.0, 1.0, periodMillis);
+        } else if(shape.equals("sawtooth")) {
+            return new SawtoothWave(0.0, 1.0, periodMillis);
+        } else if(shape.equals("sharkfin")) {
+            return new SharkfinWave(0.0, 1.0, periodMillis);
+        } else if(shape.equals("square")) {
+            return new SquareWave(0.0, 1.0, periodMillis);
+        } else if(shape.equals("constant")) {
+            return new ConstantWave(1.0);
+        } else {
+            throw new IllegalArgumentException("Unknown wave " + shape
+                + ". Try one of sinusoidal, triangle, sawtooth, sharkfin, square or constant.");
+        }
+    }
+
+    public String toString() {
+        return "ModulationMatrix(" + bindings.length + " bindings)";
+    }
+}
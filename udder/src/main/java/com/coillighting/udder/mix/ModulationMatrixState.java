@@ -0,0 +1,19 @@
+package com.coillighting.udder.mix;
+
+/** Every binding in a ModulationMatrix. Setting this state replaces all of
+ *  them, so an empty list stops all modulation, and null leaves it
+ *  unchanged.
+ */
+public class ModulationMatrixState {
+
+    protected ModulationState[] bindings = null;
+
+    public ModulationMatrixState(ModulationState[] bindings) {
+        this.bindings = bindings;
+    }
+
+    public ModulationState[] getBindings() {
+        return bindings;
+    }
+
+}
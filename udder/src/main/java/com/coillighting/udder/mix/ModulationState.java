@@ -0,0 +1,61 @@
+package com.coillighting.udder.mix;
+
+/** One binding in a ModulationMatrix: drive the given parameter of the object
+ *  at the given route with offset + depth * wave, where wave oscillates
+ *  between 0.0 and 1.0 with the given shape and period. For example,
+ *  target "/mixer0/layer3", parameter "level", wave "sinusoidal",
+ *  periodMillis 8000, depth 0.5 and offset 0.25 pulses layer 3 between a
+ *  quarter and three quarters every 8 seconds.
+ *
+ *  Parameter "level" works for any Mixer or Layer. Other parameter names
+ *  depend on the target, which must be Modulatable.
+ */
+public class ModulationState {
+
+    protected String target = null;
+    protected String parameter = null;
+    protected String wave = null;
+    protected long periodMillis = 0;
+    protected double depth = 0.0;
+    protected double offset = 0.0;
+
+    public ModulationState(String target, String parameter, String wave,
+                           long periodMillis, double depth, double offset)
+    {
+        this.target = target;
+        this.parameter = parameter;
+        this.wave = wave;
+        this.periodMillis = periodMillis;
+        this.depth = depth;
+        this.offset = offset;
+    }
+
+    public String getTarget() {
+        return target;
+    }
+
+    public String getParameter() {
+        return parameter;
+    }
+
+    public String getWave() {
+        return wave;
+    }
+
+    public long getPeriodMillis() {
+        return periodMillis;
+    }
+
+    public double getDepth() {
+        return depth;
+    }
+
+    public double getOffset() {
+        return offset;
+    }
+
+    public String toString() {
+        return target + " " + parameter + " = " + offset + " + " + depth + " * "
+            + wave + "(" + periodMillis + " ms)";
+    }
+}
@@ -0,0 +1,229 @@
+package com.coillighting.udder.model;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import com.coillighting.udder.geometry.BoundingCube;
+
+/** The positions of a patch's Devices, unpacked once per patch into flat
+ *  arrays, so that effects can read them in their per-device loops without
+ *  calling Device.getPoint(), which allocates, and without normalizing each
+ *  coordinate against the rig's bounds on every frame.
+ *
+ *  Index i describes devices[i]. Normalized coordinates express a device's
+ *  position as a fraction of the rig's extent along each axis, from 0.0 at
+ *  the minimum to 1.0 at the maximum, computed exactly as the effects used
+ *  to compute them. Along an axis where the rig has no extent, they are 0.0.
+ *
+ *  Each device's spacing is the typical distance between it and its
+ *  neighbors in the XY plane: half the distance to its fourth nearest
+ *  neighbor in the same group, ignoring neighbors at the very same XY
+ *  position. Along a strip of evenly spaced LEDs that is exactly their
+ *  spacing, and unlike the distance to the single nearest neighbor, it
+ *  isn't fooled by the odd pair of doubled-up devices. With fewer than four
+ *  neighbors, we use half the distance to the farthest, or 0.0 if there
+ *  are none. Effects that
+ *  project an image onto the rig use spacing to decide how much of the
+ *  image each device should average. Groups are measured separately because
+ *  the Dairy's two gates are parallel planes that overlap when flattened.
+ *
+ *  Immutable, and its arrays are handed out by reference, so nobody may
+ *  modify them. Shared among threads and among every effect in a patch:
+ *  see Effect.preparePatch().
+ */
+public final class DeviceGeometry {
+
+    /** Spacing is measured to this many nearest neighbors. */
+    private static final int SPACING_NEIGHBORS = 4;
+
+    private final int count;
+    private final double[] x;
+    private final double[] y;
+    private final double[] z;
+    private final double[] xNorm;
+    private final double[] yNorm;
+    private final double[] zNorm;
+    private final int[] group;
+    private final double[] spacing;
+    private final double minX;
+    private final double minY;
+    private final double minZ;
+    private final double width;
+    private final double height;
+    private final double depth;
+
+    public DeviceGeometry(Device[] devices) {
+        if(devices == null) {
+            devices = new Device[0];
+        }
+        count = devices.length;
+        x = new double[count];
+        y = new double[count];
+        z = new double[count];
+        xNorm = new double[count];
+        yNorm = new double[count];
+        zNorm = new double[count];
+        group = new int[count];
+        spacing = new double[count];
+
+        if(count == 0) {
+            minX = minY = minZ = 0.0;
+            width = height = depth = 0.0;
+            return;
+        }
+
+        // Bounds exactly as Device.getDeviceBoundingCube finds them.
+        BoundingCube bounds = Device.getDeviceBoundingCube(devices);
+        minX = bounds.getMinX();
+        minY = bounds.getMinY();
+        minZ = bounds.getMinZ();
+        width = bounds.getWidth();
+        height = bounds.getHeight();
+        depth = bounds.getDepth();
+
+        for(int i=0; i<count; i++) {
+            Device dev = devices[i];
+            x[i] = dev.x;
+            y[i] = dev.y;
+            z[i] = dev.z;
+            group[i] = dev.group;
+            xNorm[i] = width == 0.0 ? 0.0 : (dev.x - minX) / width;
+            yNorm[i] = height == 0.0 ? 0.0 : (dev.y - minY) / height;
+            zNorm[i] = depth == 0.0 ? 0.0 : (dev.z - minZ) / depth;
+        }
+        this.computeSpacing();
+    }
+
+    /** Find each device's nearest neighbors by sweeping outward through the
+     *  devices in order of x, stopping once the gap in x alone exceeds the
+     *  farthest of the nearest so far. Roughly O(n sqrt(n)) for a planar rig.
+     */
+    private void computeSpacing() {
+        Integer[] boxed = new Integer[count];
+        for(int i=0; i<count; i++) {
+            boxed[i] = i;
+        }
+        Arrays.sort(boxed, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Double.compare(x[a], x[b]);
+            }
+        });
+        int[] order = new int[count];
+        for(int i=0; i<count; i++) {
+            order[i] = boxed[i];
+        }
+
+        final int neighbors = SPACING_NEIGHBORS;
+        final double[] nearest = new double[neighbors]; // squared, ascending
+        for(int k=0; k<count; k++) {
+            final int i = order[k];
+            Arrays.fill(nearest, Double.POSITIVE_INFINITY);
+            for(int step=-1; step<=1; step+=2) {
+                for(int m=k + step; m >= 0 && m < count; m+=step) {
+                    final int j = order[m];
+                    final double dx = x[j] - x[i];
+                    if(dx * dx >= nearest[neighbors - 1]) {
+                        break;
+                    }
+                    if(group[j] == group[i]) {
+                        final double dy = y[j] - y[i];
+                        final double d = dx * dx + dy * dy;
+                        if(d > 0.0 && d < nearest[neighbors - 1]) {
+                            int n = neighbors - 1;
+                            while(n > 0 && nearest[n - 1] > d) {
+                                nearest[n] = nearest[n - 1];
+                                --n;
+                            }
+                            nearest[n] = d;
+                        }
+                    }
+                }
+            }
+            int farthest = neighbors - 1;
+            while(farthest >= 0 && nearest[farthest] == Double.POSITIVE_INFINITY) {
+                --farthest;
+            }
+            spacing[i] = farthest < 0 ? 0.0 : 0.5 * Math.sqrt(nearest[farthest]);
+        }
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    /** Do not modify the result. */
+    public double[] getX() {
+        return x;
+    }
+
+    /** Do not modify the result. */
+    public double[] getY() {
+        return y;
+    }
+
+    /** Do not modify the result. */
+    public double[] getZ() {
+        return z;
+    }
+
+    /** Do not modify the result. */
+    public double[] getXNorm() {
+        return xNorm;
+    }
+
+    /** Do not modify the result. */
+    public double[] getYNorm() {
+        return yNorm;
+    }
+
+    /** Do not modify the result. */
+    public double[] getZNorm() {
+        return zNorm;
+    }
+
+    /** Do not modify the result. */
+    public int[] getGroup() {
+        return group;
+    }
+
+    /** Do not modify the result. */
+    public double[] getSpacing() {
+        return spacing;
+    }
+
+    public double getMinX() {
+        return minX;
+    }
+
+    public double getMinY() {
+        return minY;
+    }
+
+    public double getMinZ() {
+        return minZ;
+    }
+
+    public double getWidth() {
+        return width;
+    }
+
+    public double getHeight() {
+        return height;
+    }
+
+    public double getDepth() {
+        return depth;
+    }
+
+    /** A new BoundingCube, or null if there are no devices. */
+    public BoundingCube createBoundingCube() {
+        if(count == 0) {
+            return null;
+        }
+        return new BoundingCube(minX, minY, minZ, width, height, depth);
+    }
+
+    public String toString() {
+        return "DeviceGeometry(" + count + " devices, " + width + "x" + height + "x" + depth + ")";
+    }
+}
@@ -0,0 +1,505 @@
+package com.coillighting.udder.model;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import javax.imageio.ImageIO;
+
+import com.coillighting.udder.metrics.Counter;
+import com.coillighting.udder.metrics.Histogram;
+import com.coillighting.udder.metrics.Metric;
+import com.coillighting.udder.metrics.MetricsRegistry;
+
+import static com.coillighting.udder.util.LogUtil.log;
+
+/** A sequence of frames decoded ahead of playback, on a background thread,
+ *  into a small ring of ready textures, so that an effect can play video
+ *  without the render thread ever waiting for a decoder.
+ *
+ *  The source may be a directory of images (PNG, JPEG, GIF or BMP, played in
+ *  order of filename), a Motion JPEG file (.mjpeg or .mjpg: JPEG frames
+ *  concatenated end to end, as ffmpeg writes with -f mjpeg) or a raw RGB file
+ *  (.rgb or .raw: 8-bit r, g, b texels, row by row, frame after frame, with
+ *  no header, as ffmpeg writes with -f rawvideo -pix_fmt rgb24), whose frame
+ *  size must be given.
+ *
+ *  Each frame the effect calls seek() with the frame it wants, then
+ *  nearest() for the ready frame closest to it. The decoder thread keeps the
+ *  ring filled with the wanted frame and the ones that follow it, wrapping
+ *  around at the end of the sequence, so during normal playback the wanted
+ *  frame is ready long before it is shown. If the decoder falls behind, the
+ *  effect shows the closest frame it has, and udder_sequence_frames_total
+ *  counts the shortfall.
+ *
+ *  Frames are decoded afresh each time around the loop, so memory stays
+ *  bounded by the ring however long the sequence, but decoding must keep up
+ *  with playback. Each frame allocates a new texture, so keep frames small:
+ *  the Dairy rig has only a few thousand devices, so 320x180 shows it all.
+ *  Run benchmark_sequence to find the headroom of a given source.
+ *
+ *  Opening the source (listing a directory, or indexing an MJPEG file) also
+ *  happens on the decoder thread. Until it is done, getFrameCount() is 0.
+ *  Call close() to stop the thread when the sequence is no longer needed.
+ */
+public class FrameSequence implements Runnable {
+
+    /** Decode up to this many frames ahead by default. */
+    public static final int DEFAULT_CAPACITY = 8;
+
+    private static final AtomicInteger threadCount = new AtomicInteger(0);
+
+    protected final String path;
+    protected final int capacity;
+    protected final int rawWidth;
+    protected final int rawHeight;
+
+    /** Frame i, once decoded, lives in ring[i % capacity]. The decoder
+     *  thread writes, and the render thread reads, without locking.
+     */
+    private final AtomicReferenceArray<DecodedFrame> ring;
+
+    /** The decoder waits on this for a new frame to decode. */
+    private final Object lock = new Object();
+
+    // Guarded by lock.
+    private int wanted = 0;
+    private boolean closed = false;
+
+    private volatile int frameCount = 0;
+    private volatile IOException error = null;
+    private Thread thread = null;
+
+    protected Counter exact;
+    protected Counter nearby;
+    protected Counter missing;
+    protected Counter errors;
+    protected Histogram decodeTime;
+
+    /** Play the sequence at the given path. rawWidth and rawHeight give the
+     *  frame size of a raw RGB file, and are otherwise ignored.
+     */
+    public FrameSequence(String path, int capacity, int rawWidth, int rawHeight) {
+        if(path == null) {
+            throw new NullPointerException("FrameSequence requires a path.");
+        } else if(capacity < 1) {
+            throw new IllegalArgumentException("Invalid frame ring capacity: " + capacity);
+        }
+        this.path = path;
+        this.capacity = capacity;
+        this.rawWidth = rawWidth;
+        this.rawHeight = rawHeight;
+        this.ring = new AtomicReferenceArray<DecodedFrame>(capacity);
+
+        MetricsRegistry metrics = MetricsRegistry.getDefault();
+        String help = "Frames shown by image sequence effects, by whether the frame"
+            + " wanted was ready, only a nearby one was, or none was.";
+        exact = metrics.counter("udder_sequence_frames_total", help,
+            Metric.label("result", "exact"));
+        nearby = metrics.counter("udder_sequence_frames_total", help,
+            Metric.label("result", "nearby"));
+        missing = metrics.counter("udder_sequence_frames_total", help,
+            Metric.label("result", "missing"));
+        errors = metrics.counter("udder_sequence_errors_total",
+            "Image sequences or frames of them that could not be loaded.");
+        decodeTime = metrics.histogram("udder_sequence_decode_seconds",
+            "Time to decode one frame of an image sequence.");
+    }
+
+    public FrameSequence(String path) {
+        this(path, DEFAULT_CAPACITY, 0, 0);
+    }
+
+    /** Start decoding on a new low priority daemon thread. */
+    public synchronized void start() {
+        if(thread != null) {
+            throw new IllegalStateException(this + " was already started.");
+        }
+        thread = new Thread(this, "SequenceDecoder-" + threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        // Decoding must never compete with the render thread.
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /** Stop the decoder once it finishes the frame in hand. */
+    public void close() {
+        synchronized(lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /** The number of frames, or 0 until the source has been opened. */
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    /** Why the source could not be opened, or null. */
+    public IOException getError() {
+        return error;
+    }
+
+    /** Ask the decoder to make this frame, and the ones after it, ready.
+     *  Never blocks for longer than it takes to hand over the index.
+     */
+    public void seek(int index) {
+        synchronized(lock) {
+            if(wanted != index) {
+                wanted = index;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /** Return the ready frame closest to the given one, counting around the
+     *  loop, or null if none is ready. Never blocks.
+     */
+    public PackedTexture nearest(int index) {
+        final int count = frameCount;
+        DecodedFrame best = null;
+        int bestDistance = Integer.MAX_VALUE;
+        if(count > 0) {
+            for(int s=0; s<capacity; s++) {
+                DecodedFrame frame = ring.get(s);
+                if(frame != null && frame.texture != null) {
+                    int distance = Math.abs(frame.index - index) % count;
+                    distance = Math.min(distance, count - distance);
+                    if(distance < bestDistance) {
+                        best = frame;
+                        bestDistance = distance;
+                    }
+                }
+            }
+        }
+        if(best == null) {
+            missing.increment();
+            return null;
+        } else if(bestDistance == 0) {
+            exact.increment();
+        } else {
+            nearby.increment();
+        }
+        return best.texture;
+    }
+
+    /** Open the source, then keep the ring filled until closed. */
+    public void run() {
+        FrameSource source;
+        try {
+            source = openSource(path, rawWidth, rawHeight);
+        } catch(IOException iox) {
+            errors.increment();
+            error = iox;
+            log(iox.getMessage());
+            return;
+        }
+        frameCount = source.getFrameCount();
+        log("Playing " + frameCount + " frames from " + path);
+
+        try {
+            while(true) {
+                int next = -1;
+                synchronized(lock) {
+                    while(!closed && (next = this.nextToDecode()) < 0) {
+                        lock.wait();
+                    }
+                    if(closed) {
+                        break;
+                    }
+                }
+                long start = System.nanoTime();
+                PackedTexture texture = null;
+                try {
+                    texture = source.read(next);
+                } catch(IOException iox) {
+                    // Skip the bad frame, rather than retrying it forever.
+                    errors.increment();
+                    log(iox.getMessage());
+                } catch(RuntimeException e) {
+                    errors.increment();
+                    log("Error decoding frame " + next + " of " + path + "\n" + e);
+                }
+                decodeTime.recordSince(start);
+                ring.set(next % capacity, new DecodedFrame(next, texture));
+            }
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            source.close();
+        }
+    }
+
+    /** The first frame from the wanted one onward that the ring lacks, or -1
+     *  if the ring holds all of them. Caller must hold the lock.
+     */
+    private int nextToDecode() {
+        final int count = frameCount;
+        final int ahead = Math.min(capacity, count);
+        final int first = Math.abs(wanted % count);
+        for(int k=0; k<ahead; k++) {
+            int index = (first + k) % count;
+            DecodedFrame frame = ring.get(index % capacity);
+            if(frame == null || frame.index != index) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    /** Open the source for the given path, choosing its format by whether it
+     *  is a directory, and otherwise by its extension.
+     */
+    protected static FrameSource openSource(String path, int rawWidth, int rawHeight)
+        throws IOException
+    {
+        File file = new File(path);
+        String name = file.getName().toLowerCase();
+        if(!file.exists()) {
+            throw new FileNotFoundException("File not found: " + path);
+        } else if(file.isDirectory()) {
+            return new ImageDirectorySource(file);
+        } else if(name.endsWith(".mjpeg") || name.endsWith(".mjpg")) {
+            return new MjpegSource(file);
+        } else if(name.endsWith(".rgb") || name.endsWith(".raw")) {
+            return new RawRgbSource(file, rawWidth, rawHeight);
+        } else {
+            throw new IOException("Unsupported image sequence " + path
+                + ": expected a directory of images, an .mjpeg file or an .rgb file.");
+        }
+    }
+
+    /** Decode the given image, failing with a helpful message. */
+    static PackedTexture decode(InputStream in, String description) throws IOException {
+        BufferedImage image;
+        try {
+            image = ImageIO.read(in);
+        } catch(IOException iox) {
+            throw new IOException("Error loading " + description + "\n" + iox);
+        }
+        if(image == null) {
+            throw new IOException("Error loading " + description + ": unsupported image format.");
+        } else if(image.getWidth() == 0 || image.getHeight() == 0) {
+            throw new IOException("Error loading " + description + ": empty image.");
+        }
+        return PackedTexture.fromImage(image);
+    }
+
+    public String toString() {
+        return "FrameSequence(" + path + ", " + frameCount + " frames)";
+    }
+}
+
+
+/** One frame in a FrameSequence's ring. A frame that couldn't be decoded
+ *  has a null texture, so that the decoder doesn't retry it.
+ */
+class DecodedFrame {
+
+    final int index;
+    final PackedTexture texture;
+
+    DecodedFrame(int index, PackedTexture texture) {
+        this.index = index;
+        this.texture = texture;
+    }
+}
+
+
+/** Where a FrameSequence reads its frames. Only the decoder thread uses it. */
+interface FrameSource {
+
+    int getFrameCount();
+
+    PackedTexture read(int index) throws IOException;
+
+    void close();
+}
+
+
+class ImageDirectorySource implements FrameSource {
+
+    private static final String[] EXTENSIONS = {".png", ".jpg", ".jpeg", ".gif", ".bmp"};
+
+    private final File[] files;
+
+    ImageDirectorySource(File dir) throws IOException {
+        File[] all = dir.listFiles();
+        if(all == null) {
+            throw new IOException("Error listing " + dir);
+        }
+        Arrays.sort(all);
+        ArrayList<File> images = new ArrayList<File>();
+        for(File file: all) {
+            String name = file.getName().toLowerCase();
+            for(String extension: EXTENSIONS) {
+                if(file.isFile() && name.endsWith(extension)) {
+                    images.add(file);
+                    break;
+                }
+            }
+        }
+        if(images.isEmpty()) {
+            throw new IOException("No images in " + dir);
+        }
+        files = images.toArray(new File[images.size()]);
+    }
+
+    public int getFrameCount() {
+        return files.length;
+    }
+
+    public PackedTexture read(int index) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(files[index]));
+        try {
+            return FrameSequence.decode(in, files[index].getPath());
+        } finally {
+            in.close();
+        }
+    }
+
+    public void close() {}
+}
+
+
+/** Concatenated JPEGs. We index the file once, at open, by scanning for the
+ *  start-of-image marker (FF D8 FF) that begins each frame. That would be
+ *  fooled by an embedded JPEG thumbnail, which video encoders don't write.
+ */
+class MjpegSource implements FrameSource {
+
+    private final String path;
+    private final RandomAccessFile file;
+    private final long[] offsets; // frame i spans offsets[i] to offsets[i + 1]
+
+    MjpegSource(File mjpeg) throws IOException {
+        path = mjpeg.getPath();
+        long length = mjpeg.length();
+        ArrayList<Long> starts = new ArrayList<Long>();
+        InputStream in = new BufferedInputStream(new FileInputStream(mjpeg), 1 << 16);
+        try {
+            int b0 = -1;
+            int b1 = -1;
+            long position = 0;
+            int b;
+            while((b = in.read()) >= 0) {
+                if(b0 == 0xFF && b1 == 0xD8 && b == 0xFF) {
+                    starts.add(position - 2);
+                }
+                b0 = b1;
+                b1 = b;
+                ++position;
+            }
+        } finally {
+            in.close();
+        }
+        if(starts.isEmpty()) {
+            throw new IOException("No JPEG frames in " + path);
+        }
+        offsets = new long[starts.size() + 1];
+        for(int i=0; i<starts.size(); i++) {
+            offsets[i] = starts.get(i);
+        }
+        offsets[starts.size()] = length;
+        file = new RandomAccessFile(mjpeg, "r");
+    }
+
+    public int getFrameCount() {
+        return offsets.length - 1;
+    }
+
+    public PackedTexture read(int index) throws IOException {
+        long size = offsets[index + 1] - offsets[index];
+        if(size > Integer.MAX_VALUE) {
+            throw new IOException("Frame " + index + " of " + path + " is too large.");
+        }
+        byte[] bytes = new byte[(int) size];
+        file.seek(offsets[index]);
+        file.readFully(bytes);
+        return FrameSequence.decode(new ByteArrayInputStream(bytes),
+            "frame " + index + " of " + path);
+    }
+
+    public void close() {
+        try {
+            file.close();
+        } catch(IOException iox) {
+            log("Error closing " + path + "\n" + iox);
+        }
+    }
+}
+
+
+/** Headerless 8-bit RGB frames of a given size, end to end. */
+class RawRgbSource implements FrameSource {
+
+    private final String path;
+    private final RandomAccessFile file;
+    private final int width;
+    private final int height;
+    private final int frameCount;
+    private final byte[] buffer; // reused, since only the decoder reads
+
+    RawRgbSource(File raw, int width, int height) throws IOException {
+        path = raw.getPath();
+        if(width <= 0 || height <= 0) {
+            throw new IOException("Raw RGB sequence " + path
+                + " needs a frameWidth and frameHeight, not " + width + "x" + height + '.');
+        }
+        long frameBytes = 3L * width * height;
+        if(frameBytes > Integer.MAX_VALUE) {
+            throw new IOException("Frames of " + path + " are too large: " + width + "x" + height);
+        }
+        long count = raw.length() / frameBytes;
+        if(count == 0) {
+            throw new IOException("No " + width + "x" + height + " frames in " + path);
+        } else if(count > Integer.MAX_VALUE) {
+            throw new IOException("Too many frames in " + path);
+        }
+        this.width = width;
+        this.height = height;
+        this.frameCount = (int) count;
+        this.buffer = new byte[(int) frameBytes];
+        this.file = new RandomAccessFile(raw, "r");
+    }
+
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    public PackedTexture read(int index) throws IOException {
+        file.seek((long) index * buffer.length);
+        file.readFully(buffer);
+        float[] data = new float[buffer.length];
+        for(int i=0; i<buffer.length; i++) {
+            // As Pixel.setRGBColor converts each channel.
+            data[i] = (float) (buffer[i] & 0xFF) / 255.0f;
+        }
+        return new PackedTexture(width, height, data);
+    }
+
+    public void close() {
+        try {
+            file.close();
+        } catch(IOException iox) {
+            log("Error closing " + path + "\n" + iox);
+        }
+    }
+}
@@ -0,0 +1,546 @@
+package com.coillighting.udder.model;
+
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+
+/** An immutable raster decoded once, at load time, into a flat array of
+ *  float channels, so that effects can sample it for every device in every
+ *  frame without going through BufferedImage.getRGB. That call dispatches
+ *  through the image's ColorModel and Raster for each pixel, and its packed
+ *  int must then be unpacked and divided again by Pixel.setRGBColor.
+ *
+ *  Texels are stored row by row, as interleaved r, g, b floats in [0.0, 1.0].
+ *  The texel at (x, y) begins at data[y * stride + 3 * x]. Alpha is ignored,
+ *  as Pixel.setRGBColor ignores it, so sampling a PackedTexture gives exactly
+ *  the same colors as sampling its source image with Bilinear.
+ *
+ *  Alternatively, a texture's texels may be 8-bit r, g, b bytes in a
+ *  ByteBuffer, laid out the same way, typically memory mapped from a raster
+ *  file (see RasterFile). Such a texture never copies its texels into the
+ *  heap: the OS pages them in as they are sampled. Each byte is converted
+ *  exactly as fromImage converts it, so both kinds of texture sample the
+ *  same colors from the same image.
+ *
+ *  A texture may carry a mip pyramid (see createMipmapped): successively
+ *  halved copies of itself, box filtered, so that an effect whose devices lie
+ *  many texels apart can sample the average color of each device's share of
+ *  the image, rather than four texels that happen to lie under the device,
+ *  which aliases as the image moves. See sampleTrilinear.
+ *
+ *  Final, with no virtual calls in the samplers, so the JIT can inline them
+ *  into an effect's per-device loop.
+ */
+public final class PackedTexture {
+
+    /** Convert an 8-bit channel to a float, exactly as Pixel.setRGBColor. */
+    private static final float[] UNIT = new float[256];
+    static {
+        for(int i=0; i<UNIT.length; i++) {
+            UNIT[i] = (float) i / 255.0f;
+        }
+    }
+
+    private final int width;
+    private final int height;
+    private final int stride;
+    private final float[] data;
+
+    /** Instead of data, for a texture of 8-bit texels. Only read with
+     *  absolute gets, so that threads may share it.
+     */
+    private final ByteBuffer bytes;
+
+    /** levels[0] is this texture. Each further level halves the previous
+     *  one's width and height, rounding up, down to 1x1.
+     */
+    private final PackedTexture[] levels;
+
+    public PackedTexture(int width, int height, float[] data) {
+        this(width, height, data, null, null);
+    }
+
+    private PackedTexture(int width, int height, float[] data, ByteBuffer bytes,
+                          PackedTexture[] smallerLevels)
+    {
+        if(width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Invalid texture size: " + width + "x" + height);
+        } else if(data == null && bytes == null) {
+            throw new NullPointerException("PackedTexture requires an array of texels.");
+        } else if(data != null && data.length < 3L * width * height) {
+            throw new IllegalArgumentException("A " + width + "x" + height
+                + " texture needs " + (3L * width * height) + " floats, not " + data.length + '.');
+        } else if(bytes != null && bytes.limit() < 3L * width * height) {
+            throw new IllegalArgumentException("A " + width + "x" + height
+                + " texture needs " + (3L * width * height) + " bytes, not " + bytes.limit() + '.');
+        }
+        this.width = width;
+        this.height = height;
+        this.stride = 3 * width;
+        this.data = data;
+        this.bytes = data == null ? bytes : null;
+        int n = smallerLevels == null ? 0 : smallerLevels.length;
+        this.levels = new PackedTexture[1 + n];
+        this.levels[0] = this;
+        for(int i=0; i<n; i++) {
+            this.levels[i + 1] = smallerLevels[i];
+        }
+    }
+
+    /** Decode the given image, one row at a time. */
+    public static PackedTexture fromImage(BufferedImage image) {
+        int w = image.getWidth();
+        int h = image.getHeight();
+        float[] data = new float[3 * w * h];
+        int[] row = new int[w];
+        int j = 0;
+        for(int y=0; y<h; y++) {
+            image.getRGB(0, y, w, 1, row, 0, w);
+            for(int x=0; x<w; x++) {
+                int rgb = row[x];
+                data[j] = UNIT[(rgb >> 16) & 0xFF];
+                data[j + 1] = UNIT[(rgb >> 8) & 0xFF];
+                data[j + 2] = UNIT[rgb & 0xFF];
+                j += 3;
+            }
+        }
+        return new PackedTexture(w, h, data);
+    }
+
+    /** Wrap 8-bit r, g, b texels, row by row, without copying them. The
+     *  buffer must not change while the texture is in use.
+     */
+    public static PackedTexture fromBytes(int width, int height, ByteBuffer rgb) {
+        if(rgb == null) {
+            throw new NullPointerException("PackedTexture requires a buffer of texels.");
+        }
+        return new PackedTexture(width, height, null, rgb, null);
+    }
+
+    /** Return a texture with the same texels as this one, sharing them,
+     *  whose mip pyramid is the given textures, which must be successively
+     *  halved in size, rounding up, down to 1x1. For pyramids built ahead of
+     *  time; see RasterFile.
+     */
+    public PackedTexture withLevels(PackedTexture[] smallerLevels) {
+        int w = width;
+        int h = height;
+        for(PackedTexture level: smallerLevels) {
+            w = (w + 1) / 2;
+            h = (h + 1) / 2;
+            if(level.width != w || level.height != h) {
+                throw new IllegalArgumentException("Expected a " + w + "x" + h
+                    + " mip level, not " + level.width + "x" + level.height + '.');
+            }
+        }
+        if(w > 1 || h > 1) {
+            throw new IllegalArgumentException("The mip pyramid of " + this
+                + " stops short at " + w + "x" + h + '.');
+        }
+        return new PackedTexture(width, height, data, bytes, smallerLevels);
+    }
+
+    /** Return a texture with the same texels as this one, sharing its data,
+     *  plus a full mip pyramid. Costs a third more memory. Call once, at load
+     *  time.
+     */
+    public PackedTexture createMipmapped() {
+        int count = 0;
+        for(int w=width, h=height; w > 1 || h > 1; w=(w + 1) / 2, h=(h + 1) / 2) {
+            ++count;
+        }
+        PackedTexture[] smaller = new PackedTexture[count];
+        PackedTexture level = this;
+        for(int i=0; i<count; i++) {
+            level = level.downsample();
+            smaller[i] = level;
+        }
+        return new PackedTexture(width, height, data, bytes, smaller);
+    }
+
+    /** Halve this texture, averaging each 2x2 block of texels. At an odd
+     *  edge, the last column (row) is averaged with itself.
+     */
+    private PackedTexture downsample() {
+        final int w = (width + 1) / 2;
+        final int h = (height + 1) / 2;
+        final float[] out = new float[3 * w * h];
+        int j = 0;
+        for(int y=0; y<h; y++) {
+            final int row1 = 2 * y * stride;
+            final int row2 = Math.min(2 * y + 1, height - 1) * stride;
+            for(int x=0; x<w; x++) {
+                final int col1 = 6 * x;
+                final int col2 = 3 * Math.min(2 * x + 1, width - 1);
+                for(int c=0; c<3; c++) {
+                    out[j++] = 0.25f * (this.texel(row1 + col1 + c) + this.texel(row1 + col2 + c)
+                        + this.texel(row2 + col1 + c) + this.texel(row2 + col2 + c));
+                }
+            }
+        }
+        return new PackedTexture(w, h, out);
+    }
+
+    /** 1 unless this texture was created by createMipmapped. */
+    public int getLevelCount() {
+        return levels.length;
+    }
+
+    /** getLevel(0) is this texture. */
+    public PackedTexture getLevel(int level) {
+        return levels[level];
+    }
+
+    /** Heap memory used by the texels of every level. Texels in a
+     *  ByteBuffer don't count, since they are normally mapped from a file.
+     */
+    public long getByteCount() {
+        long count = 0;
+        for(PackedTexture level: levels) {
+            if(level.data != null) {
+                count += 4L * level.data.length;
+            }
+        }
+        return count;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /** Floats per row. */
+    public int getStride() {
+        return stride;
+    }
+
+    /** Do not modify the result. Null if the texels are bytes. */
+    public float[] getData() {
+        return data;
+    }
+
+    /** True if the texels are bytes in a ByteBuffer (see fromBytes). */
+    public boolean isByteBacked() {
+        return data == null;
+    }
+
+    /** The channel at the given offset. For setup, not the samplers. */
+    private float texel(int i) {
+        return data != null ? data[i] : UNIT[bytes.get(i) & 0xFF];
+    }
+
+    /** Copy the texel at (x, y) into outputPixel, or black it out if (x, y)
+     *  lies outside the texture.
+     */
+    public void sampleNearest(Pixel outputPixel, int x, int y) {
+        if(x < 0 || x >= width || y < 0 || y >= height) {
+            outputPixel.setBlack();
+        } else if(data != null) {
+            int i = y * stride + 3 * x;
+            outputPixel.r = data[i];
+            outputPixel.g = data[i + 1];
+            outputPixel.b = data[i + 2];
+        } else {
+            int i = y * stride + 3 * x;
+            outputPixel.r = UNIT[bytes.get(i) & 0xFF];
+            outputPixel.g = UNIT[bytes.get(i + 1) & 0xFF];
+            outputPixel.b = UNIT[bytes.get(i + 2) & 0xFF];
+        }
+    }
+
+    /** Bilinear interpolation between the four texels closest to the given
+     *  location, expressed as a fraction of the texture's width and height.
+     *  Computes exactly what Bilinear.interpolate computes for the source
+     *  image, including its treatment of out-of-bounds coordinates: with
+     *  streakEnabled, clamp them to the edge colors; otherwise black out.
+     */
+    public void sampleBilinear(Pixel outputPixel, double xNormalized, double yNormalized,
+                               boolean streakEnabled)
+    {
+        this.sampleAt(outputPixel, (xNormalized * width) - 1, (yNormalized * height) - 1,
+            streakEnabled);
+    }
+
+    /** Like sampleBilinear, but from the mip levels nearest the given level
+     *  of detail, blending linearly between the two. lod is the base 2 log of
+     *  the distance between neighboring samples, in texels of this texture;
+     *  see lod(). At or below 0.0, where samples are no more than a texel
+     *  apart, this is exactly sampleBilinear. Texels at coarser levels are
+     *  aligned so that each one's center is the center of the block of
+     *  level 0 texels it averages.
+     */
+    public void sampleTrilinear(Pixel outputPixel, double xNormalized, double yNormalized,
+                                double lod, boolean streakEnabled)
+    {
+        final double x = (xNormalized * width) - 1;
+        final double y = (yNormalized * height) - 1;
+        final int maxLevel = levels.length - 1;
+        if(lod <= 0.0 || maxLevel == 0) {
+            this.sampleAt(outputPixel, x, y, streakEnabled);
+        } else if(lod >= maxLevel) {
+            this.sampleLevel(outputPixel, maxLevel, x, y, streakEnabled);
+        } else {
+            final int level = (int) lod;
+            final double blend = lod - level;
+            this.sampleLevel(outputPixel, level, x, y, streakEnabled);
+            final float r = outputPixel.r;
+            final float g = outputPixel.g;
+            final float b = outputPixel.b;
+            this.sampleLevel(outputPixel, level + 1, x, y, streakEnabled);
+            outputPixel.r = (float) (r + (outputPixel.r - r) * blend);
+            outputPixel.g = (float) (g + (outputPixel.g - g) * blend);
+            outputPixel.b = (float) (b + (outputPixel.b - b) * blend);
+        }
+    }
+
+    /** The level of detail for samples whose neighbors are (dx, dy) or
+     *  (ex, ey) away, measured as fractions of this texture's width and
+     *  height, whichever is farther. Uses a piecewise linear log2, which is
+     *  within 0.09 of the real thing, since it's only used to pick levels.
+     */
+    public double lod(double dx, double dy, double ex, double ey) {
+        final double du = dx * width;
+        final double dv = dy * height;
+        final double eu = ex * width;
+        final double ev = ey * height;
+        final double squared = Math.max(du * du + dv * dv, eu * eu + ev * ev);
+        if(!(squared > 1.0)) {
+            return 0.0; // Also for NaN.
+        }
+        // log2(sqrt(squared)) from the binary exponent and mantissa.
+        final int exponent = Math.getExponent(squared);
+        final double mantissa = squared / Math.scalb(1.0, exponent);
+        return 0.5 * (exponent + mantissa - 1.0);
+    }
+
+    /** Sample the given mip level at a point given in level 0 texels. */
+    private void sampleLevel(Pixel outputPixel, int level, double x, double y,
+                             boolean streakEnabled)
+    {
+        final double scale = 1.0 / (1 << level);
+        levels[level].sampleAt(outputPixel, (x + 0.5) * scale - 0.5, (y + 0.5) * scale - 0.5,
+            streakEnabled);
+    }
+
+    /** Bilinear interpolation at a point given in texels, where (0, 0) is the
+     *  first texel and (width - 1, height - 1) the last.
+     */
+    private void sampleAt(Pixel outputPixel, double x, double y, boolean streakEnabled) {
+        boolean streaked = false;
+        if(x < 0.0) {
+            x = 0.0;
+            streaked = true;
+        } else if(x >= width) {
+            x = width - 1;
+            streaked = true;
+        }
+        int x1 = (int) Math.floor(x);
+        int x2 = (int) Math.ceil(x);
+        if(x2 >= width) {
+            x2 = width - 1;
+            streaked = true;
+        }
+
+        if(y < 0.0) {
+            y = 0.0;
+            streaked = true;
+        } else if(y >= height) {
+            y = height - 1;
+            streaked = true;
+        }
+        int y1 = (int) Math.floor(y);
+        int y2 = (int) Math.ceil(y);
+        if(y2 >= height) {
+            y2 = height - 1;
+            streaked = true;
+        }
+
+        if(streaked && !streakEnabled) {
+            outputPixel.setBlack();
+        } else {
+            this.interpolate(outputPixel,
+                y1 * stride + 3 * x1, y1 * stride + 3 * x2,
+                y2 * stride + 3 * x1, y2 * stride + 3 * x2,
+                (x1 == x2 ? 0.0 : (x2 - x) / (x2 - x1)),
+                (x1 == x2 ? 1.0 : (x - x1) / (x2 - x1)),
+                (y1 == y2 ? 0.0 : (y2 - y) / (y2 - y1)),
+                (y1 == y2 ? 1.0 : (y - y1) / (y2 - y1)));
+        }
+    }
+
+    /** Do the arithmetic of sampleTrilinear(outputPixel, xNormalized, ...)
+     *  ahead of time, storing the result as sample i of the given table.
+     *  Then sample(outputPixel, table, i) will compute exactly the same color
+     *  from this texture, for as long as the sample point stays put, without
+     *  any rounding or edge checks. With a lod of 0.0, this prepares
+     *  sampleBilinear.
+     */
+    public void prepare(SampleTable table, int i, double xNormalized, double yNormalized,
+                        double lod, boolean streakEnabled)
+    {
+        final double x = (xNormalized * width) - 1;
+        final double y = (yNormalized * height) - 1;
+        final int maxLevel = levels.length - 1;
+        if(lod <= 0.0 || maxLevel == 0) {
+            table.setLevel(i, 0, 0.0);
+            this.locate(table, i, 0, x, y, streakEnabled);
+        } else if(lod >= maxLevel) {
+            table.setLevel(i, maxLevel, 0.0);
+            this.locateLevel(table, i, 0, maxLevel, x, y, streakEnabled);
+        } else {
+            final int level = (int) lod;
+            table.setLevel(i, level, lod - level);
+            this.locateLevel(table, i, 0, level, x, y, streakEnabled);
+            this.locateLevel(table, i, 1, level + 1, x, y, streakEnabled);
+        }
+    }
+
+    /** Sample i of a table filled in by this texture's prepare(). */
+    public void sample(Pixel outputPixel, SampleTable table, int i) {
+        final int level = table.levels[i];
+        final double blend = table.blends[i];
+        levels[level].sampleEntry(outputPixel, table, 2 * i);
+        if(blend != 0.0) {
+            final float r = outputPixel.r;
+            final float g = outputPixel.g;
+            final float b = outputPixel.b;
+            levels[level + 1].sampleEntry(outputPixel, table, 2 * i + 1);
+            outputPixel.r = (float) (r + (outputPixel.r - r) * blend);
+            outputPixel.g = (float) (g + (outputPixel.g - g) * blend);
+            outputPixel.b = (float) (b + (outputPixel.b - b) * blend);
+        }
+    }
+
+    private void sampleEntry(Pixel outputPixel, SampleTable table, int entry) {
+        final int[] texels = table.texels;
+        final double[] weights = table.weights;
+        final int j = 4 * entry;
+        if(texels[j] < 0) {
+            outputPixel.setBlack();
+        } else {
+            this.interpolate(outputPixel,
+                texels[j], texels[j + 1], texels[j + 2], texels[j + 3],
+                weights[j], weights[j + 1], weights[j + 2], weights[j + 3]);
+        }
+    }
+
+    private void locateLevel(SampleTable table, int i, int which, int level,
+                             double x, double y, boolean streakEnabled)
+    {
+        final double scale = 1.0 / (1 << level);
+        levels[level].locate(table, i, which, (x + 0.5) * scale - 0.5,
+            (y + 0.5) * scale - 0.5, streakEnabled);
+    }
+
+    /** sampleAt, but store the texels and weights instead of using them. */
+    private void locate(SampleTable table, int i, int which, double x, double y,
+                        boolean streakEnabled)
+    {
+        boolean streaked = false;
+        if(x < 0.0) {
+            x = 0.0;
+            streaked = true;
+        } else if(x >= width) {
+            x = width - 1;
+            streaked = true;
+        }
+        int x1 = (int) Math.floor(x);
+        int x2 = (int) Math.ceil(x);
+        if(x2 >= width) {
+            x2 = width - 1;
+            streaked = true;
+        }
+
+        if(y < 0.0) {
+            y = 0.0;
+            streaked = true;
+        } else if(y >= height) {
+            y = height - 1;
+            streaked = true;
+        }
+        int y1 = (int) Math.floor(y);
+        int y2 = (int) Math.ceil(y);
+        if(y2 >= height) {
+            y2 = height - 1;
+            streaked = true;
+        }
+
+        final int entry = 2 * i + which;
+        if(streaked && !streakEnabled) {
+            table.setBlack(entry);
+        } else {
+            table.set(entry,
+                y1 * stride + 3 * x1, y1 * stride + 3 * x2,
+                y2 * stride + 3 * x1, y2 * stride + 3 * x2,
+                (x1 == x2 ? 0.0 : (x2 - x) / (x2 - x1)),
+                (x1 == x2 ? 1.0 : (x - x1) / (x2 - x1)),
+                (y1 == y2 ? 0.0 : (y2 - y) / (y2 - y1)),
+                (y1 == y2 ? 1.0 : (y - y1) / (y2 - y1)));
+        }
+    }
+
+    /** Interpolate between columns x1 and x2 = x1 + 1 (or x1) and rows y1 and
+     *  y2 = y1 + 1 (or y1), given the fractions of the way from x1 to x2 and
+     *  from y1 to y2. For callers that track texel coordinates themselves,
+     *  like RollEffect. Up to rounding, the same as sampleBilinear at the
+     *  corresponding normalized coordinates. All four texels must exist.
+     */
+    public void sampleBilinear(Pixel outputPixel, int x1, int x2, double left,
+                               int y1, int y2, double low)
+    {
+        this.interpolate(outputPixel,
+            y1 * stride + 3 * x1, y1 * stride + 3 * x2,
+            y2 * stride + 3 * x1, y2 * stride + 3 * x2,
+            1.0 - left, left, 1.0 - low, low);
+    }
+
+    /** Weight the texels beginning at data offsets i11 (x1, y1), i21 (x2, y1),
+     *  i12 (x1, y2) and i22 (x2, y2).
+     */
+    private void interpolate(Pixel outputPixel, int i11, int i21, int i12, int i22,
+                             double right, double left, double high, double low)
+    {
+        if(data == null) {
+            this.interpolateBytes(outputPixel, i11, i21, i12, i22, right, left, high, low);
+            return;
+        }
+        // Interpolate each row in the x direction...
+        final double rR1 = data[i11] * right + data[i21] * left;
+        final double gR1 = data[i11 + 1] * right + data[i21 + 1] * left;
+        final double bR1 = data[i11 + 2] * right + data[i21 + 2] * left;
+        final double rR2 = data[i12] * right + data[i22] * left;
+        final double gR2 = data[i12 + 1] * right + data[i22 + 1] * left;
+        final double bR2 = data[i12 + 2] * right + data[i22 + 2] * left;
+
+        // ...then interpolate between the rows in the y direction.
+        outputPixel.r = (float) (rR1 * high + rR2 * low);
+        outputPixel.g = (float) (gR1 * high + gR2 * low);
+        outputPixel.b = (float) (bR1 * high + bR2 * low);
+    }
+
+    /** interpolate, for 8-bit texels. Kept separate so that the float path
+     *  stays as small as it was.
+     */
+    private void interpolateBytes(Pixel outputPixel, int i11, int i21, int i12, int i22,
+                                  double right, double left, double high, double low)
+    {
+        final ByteBuffer b = bytes;
+        final double rR1 = UNIT[b.get(i11) & 0xFF] * right + UNIT[b.get(i21) & 0xFF] * left;
+        final double gR1 = UNIT[b.get(i11 + 1) & 0xFF] * right + UNIT[b.get(i21 + 1) & 0xFF] * left;
+        final double bR1 = UNIT[b.get(i11 + 2) & 0xFF] * right + UNIT[b.get(i21 + 2) & 0xFF] * left;
+        final double rR2 = UNIT[b.get(i12) & 0xFF] * right + UNIT[b.get(i22) & 0xFF] * left;
+        final double gR2 = UNIT[b.get(i12 + 1) & 0xFF] * right + UNIT[b.get(i22 + 1) & 0xFF] * left;
+        final double bR2 = UNIT[b.get(i12 + 2) & 0xFF] * right + UNIT[b.get(i22 + 2) & 0xFF] * left;
+
+        outputPixel.r = (float) (rR1 * high + rR2 * low);
+        outputPixel.g = (float) (gR1 * high + gR2 * low);
+        outputPixel.b = (float) (bR1 * high + bR2 * low);
+    }
+
+    public String toString() {
+        return "PackedTexture(" + width + "x" + height + (data == null ? ", bytes" : "")
+            + (levels.length > 1 ? ", " + levels.length + " levels)" : ")");
+    }
+}
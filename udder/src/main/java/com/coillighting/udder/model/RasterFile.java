@@ -0,0 +1,190 @@
+package com.coillighting.udder.model;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/** Udder's raw raster format, for images too large to decode into the heap:
+ *  long scrolling loops and texture atlases of hundreds of megabytes. Convert
+ *  an image once (see RasterConverter), then map() the file for an instant
+ *  load whose texels stay in the OS page cache, out of the heap, however many
+ *  textures the scene uses. The TextureCache maps any file whose name ends in
+ *  EXTENSION, so effects need no changes to use one.
+ *
+ *  Layout, all integers big-endian:
+ *
+ *      0   magic, "URAW"
+ *      4   version, 1
+ *      8   width of level 0
+ *      12  height of level 0
+ *      16  number of levels, at least 1, at most a full pyramid
+ *      20  reserved, zero
+ *      32  level 0 texels, then level 1, and so on
+ *
+ *  Each level is its width * height texels, row by row, top row first, each
+ *  texel 8-bit r, g, b. Level i + 1 halves level i, rounding up, down to
+ *  1x1, each texel the rounded average of a 2x2 block (see PackedTexture's
+ *  mip pyramid). Level 0 samples exactly the colors of the source image;
+ *  coarser levels differ from a decoded image's float pyramid by at most
+ *  half a step of 8-bit rounding per level.
+ *
+ *  A level may not exceed 2 GB, which is about 26,000 texels square.
+ */
+public class RasterFile {
+
+    public static final String EXTENSION = ".uraw";
+    public static final int MAGIC = 0x55524157; // "URAW"
+    public static final int VERSION = 1;
+    public static final int HEADER_BYTES = 32;
+
+    public static boolean isRasterFile(String filename) {
+        return filename != null && filename.toLowerCase().endsWith(EXTENSION);
+    }
+
+    /** Map the given raster file, with its mip pyramid, if any. The mapping
+     *  outlives the file handle, and is released when the texture is
+     *  garbage collected.
+     */
+    public static PackedTexture map(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            while(header.hasRemaining()) {
+                if(channel.read(header, header.position()) < 0) {
+                    throw new IOException("Not a raster file: " + file + " is too short.");
+                }
+            }
+            header.flip();
+            int magic = header.getInt();
+            int version = header.getInt();
+            int width = header.getInt();
+            int height = header.getInt();
+            int levelCount = header.getInt();
+            if(magic != MAGIC) {
+                throw new IOException("Not a raster file: " + file);
+            } else if(version != VERSION) {
+                throw new IOException("Unsupported raster file version " + version + ": " + file);
+            } else if(width <= 0 || height <= 0 || levelCount < 1
+                    || levelCount > fullLevelCount(width, height)) {
+                throw new IOException("Corrupt raster file header: " + file + " claims "
+                    + levelCount + " levels of " + width + "x" + height);
+            }
+
+            PackedTexture[] levels = new PackedTexture[levelCount];
+            long offset = HEADER_BYTES;
+            int w = width;
+            int h = height;
+            for(int i=0; i<levelCount; i++) {
+                long size = 3L * w * h;
+                if(size > Integer.MAX_VALUE) {
+                    throw new IOException("Raster too large to map: " + file + " is "
+                        + w + "x" + h);
+                } else if(offset + size > channel.size()) {
+                    throw new IOException("Truncated raster file: " + file);
+                }
+                MappedByteBuffer texels = channel.map(FileChannel.MapMode.READ_ONLY,
+                    offset, size);
+                levels[i] = PackedTexture.fromBytes(w, h, texels);
+                offset += size;
+                w = (w + 1) / 2;
+                h = (h + 1) / 2;
+            }
+            if(levelCount == 1) {
+                return levels[0];
+            }
+            PackedTexture[] smaller = new PackedTexture[levelCount - 1];
+            System.arraycopy(levels, 1, smaller, 0, smaller.length);
+            return levels[0].withLevels(smaller);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /** Write the given image as a raster file with a full mip pyramid. Needs
+     *  about a third as much heap again as the image's own texels.
+     */
+    public static void write(BufferedImage image, File file) throws IOException {
+        int w = image.getWidth();
+        int h = image.getHeight();
+        if(w <= 0 || h <= 0) {
+            throw new IOException("Cannot convert an empty image to " + file);
+        } else if(3L * w * h > Integer.MAX_VALUE) {
+            throw new IOException("Image too large for a raster file: " + w + "x" + h);
+        }
+        int levelCount = fullLevelCount(w, h);
+
+        byte[] level = new byte[3 * w * h];
+        int[] row = new int[w];
+        int j = 0;
+        for(int y=0; y<h; y++) {
+            image.getRGB(0, y, w, 1, row, 0, w);
+            for(int x=0; x<w; x++) {
+                int rgb = row[x];
+                level[j++] = (byte) (rgb >> 16);
+                level[j++] = (byte) (rgb >> 8);
+                level[j++] = (byte) rgb;
+            }
+        }
+
+        DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(w);
+            out.writeInt(h);
+            out.writeInt(levelCount);
+            out.write(new byte[HEADER_BYTES - 20]);
+            for(int i=0; i<levelCount; i++) {
+                out.write(level);
+                if(i + 1 < levelCount) {
+                    level = downsample(level, w, h);
+                    w = (w + 1) / 2;
+                    h = (h + 1) / 2;
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /** The number of levels in a full mip pyramid, down to 1x1. */
+    protected static int fullLevelCount(int width, int height) {
+        int levelCount = 1;
+        for(int w=width, h=height; w > 1 || h > 1; w=(w + 1) / 2, h=(h + 1) / 2) {
+            ++levelCount;
+        }
+        return levelCount;
+    }
+
+    /** Halve a level as PackedTexture does, rounding to the nearest byte. */
+    protected static byte[] downsample(byte[] texels, int width, int height) {
+        final int w = (width + 1) / 2;
+        final int h = (height + 1) / 2;
+        final int stride = 3 * width;
+        final byte[] out = new byte[3 * w * h];
+        int j = 0;
+        for(int y=0; y<h; y++) {
+            final int row1 = 2 * y * stride;
+            final int row2 = Math.min(2 * y + 1, height - 1) * stride;
+            for(int x=0; x<w; x++) {
+                final int col1 = 6 * x;
+                final int col2 = 3 * Math.min(2 * x + 1, width - 1);
+                for(int c=0; c<3; c++) {
+                    int sum = (texels[row1 + col1 + c] & 0xFF) + (texels[row1 + col2 + c] & 0xFF)
+                        + (texels[row2 + col1 + c] & 0xFF) + (texels[row2 + col2 + c] & 0xFF);
+                    out[j++] = (byte) ((sum + 2) / 4);
+                }
+            }
+        }
+        return out;
+    }
+}
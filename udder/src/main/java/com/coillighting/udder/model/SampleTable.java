@@ -0,0 +1,72 @@
+package com.coillighting.udder.model;
+
+/** Texture samples worked out in advance, one per device, by
+ *  PackedTexture.prepare: for each sample, the mip level to sample, the data
+ *  offsets of the four surrounding texels in that level and the next, their
+ *  weights, and how much of the next level to blend in. Effects whose sample
+ *  points hold still from frame to frame fill one in whenever the points
+ *  move, and then sample each frame with a dozen multiplies per level per
+ *  device.
+ *
+ *  A table is only valid for the texture that prepared it.
+ */
+public final class SampleTable {
+
+    /** i11, i21, i12, i22 for each of two entries per sample, one for each
+     *  level. A negative i11 means black.
+     */
+    final int[] texels;
+
+    /** right, left, high, low for each entry. */
+    final double[] weights;
+
+    /** The first level of each sample. */
+    final int[] levels;
+
+    /** The weight of the second level of each sample, or 0.0 to skip it. */
+    final double[] blends;
+
+    private final int count;
+
+    public SampleTable(int count) {
+        if(count < 0) {
+            throw new IllegalArgumentException("Invalid sample count: " + count);
+        }
+        this.count = count;
+        texels = new int[8 * count];
+        weights = new double[8 * count];
+        levels = new int[count];
+        blends = new double[count];
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    void setLevel(int i, int level, double blend) {
+        levels[i] = level;
+        blends[i] = blend;
+    }
+
+    void set(int entry, int i11, int i21, int i12, int i22,
+             double right, double left, double high, double low)
+    {
+        final int j = 4 * entry;
+        texels[j] = i11;
+        texels[j + 1] = i21;
+        texels[j + 2] = i12;
+        texels[j + 3] = i22;
+        weights[j] = right;
+        weights[j + 1] = left;
+        weights[j + 2] = high;
+        weights[j + 3] = low;
+    }
+
+    void setBlack(int entry) {
+        texels[4 * entry] = -1;
+    }
+
+    public String toString() {
+        return "SampleTable(" + count + " samples)";
+    }
+}
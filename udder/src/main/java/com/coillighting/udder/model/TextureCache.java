@@ -0,0 +1,411 @@
+package com.coillighting.udder.model;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.imageio.ImageIO;
+
+import com.coillighting.udder.metrics.Counter;
+import com.coillighting.udder.metrics.Gauge;
+import com.coillighting.udder.metrics.Histogram;
+import com.coillighting.udder.metrics.Metric;
+import com.coillighting.udder.metrics.MetricsRegistry;
+
+/** Decoded textures shared by every effect that shows the same image.
+ *
+ *  Textures are keyed by the SHA-1 of their file's contents, not by path, so
+ *  two effects (or two copies of the same file under different names) share
+ *  one PackedTexture, and an image that was edited on disk under the same
+ *  name is decoded afresh. Reading and hashing a file costs a small fraction
+ *  of decoding it.
+ *
+ *  Each acquire must be balanced by a release. A texture nobody holds stays
+ *  cached, so that flipping back to a recent image is instant, until the
+ *  cache exceeds its capacity, whereupon the least recently released
+ *  textures are evicted. Textures in use are never evicted, so the cache may
+ *  temporarily exceed its capacity if the show needs that much.
+ *
+ *  acquire() blocks, and is meant for assembling a scene. While the show
+ *  runs, effects call acquireLater() instead, which decodes on a pool of
+ *  low priority daemon threads, so that the render thread never waits for a
+ *  PNG. Concurrent requests for the same content wait for a single decode.
+ *
+ *  Raster files (see RasterFile) are mapped rather than decoded. They're
+ *  keyed by path, size and modification time instead of content, since
+ *  hashing a file of hundreds of megabytes would take longer than mapping
+ *  it, and they don't count against the capacity, because their texels
+ *  live in the OS page cache, not the heap. A raster nobody holds is dropped
+ *  at once instead of idling, since mapping it again is nearly free, whereas
+ *  idle mappings would pile up in the address space, which is scarce on a
+ *  32-bit Pi.
+ *
+ *  Udder normally uses a single process-wide cache (see getDefault()).
+ */
+public class TextureCache {
+
+    /** Default capacity: enough for about seventeen 720p textures. */
+    public static final long DEFAULT_CAPACITY_BYTES = 256L * 1024L * 1024L;
+
+    private static final TextureCache defaultCache = new TextureCache(DEFAULT_CAPACITY_BYTES);
+
+    protected long capacityBytes;
+    protected long totalBytes = 0;
+
+    /** Every texture, decoded or being decoded, by content key. */
+    protected Map<String, TextureEntry> entries = new HashMap<String, TextureEntry>();
+
+    /** Decoded textures that nobody holds, least recently released first. */
+    protected LinkedHashMap<String, TextureEntry> idle =
+        new LinkedHashMap<String, TextureEntry>(16, 0.75f, true);
+
+    protected Map<PackedTexture, TextureEntry> byTexture =
+        new IdentityHashMap<PackedTexture, TextureEntry>();
+
+    protected ExecutorService executor = null;
+
+    protected Counter hits;
+    protected Counter misses;
+    protected Counter errors;
+    protected Counter evictions;
+    protected Gauge bytesGauge;
+    protected Gauge texturesGauge;
+    protected Histogram decodeTime;
+
+    public TextureCache(long capacityBytes) {
+        this.setCapacityBytes(capacityBytes);
+        MetricsRegistry metrics = MetricsRegistry.getDefault();
+        String help = "Texture requests, by whether the decoded texture was already cached.";
+        hits = metrics.counter("udder_texture_requests_total", help,
+            Metric.label("result", "hit"));
+        misses = metrics.counter("udder_texture_requests_total", help,
+            Metric.label("result", "miss"));
+        errors = metrics.counter("udder_texture_requests_total", help,
+            Metric.label("result", "error"));
+        evictions = metrics.counter("udder_texture_evictions_total",
+            "Unused textures evicted from the texture cache to stay within its capacity.");
+        bytesGauge = metrics.gauge("udder_texture_cache_bytes",
+            "Bytes of decoded texels held by the texture cache.");
+        texturesGauge = metrics.gauge("udder_texture_cache_textures",
+            "Decoded textures held by the texture cache, in use or not.");
+        decodeTime = metrics.histogram("udder_texture_decode_seconds",
+            "Time to decode an image file into a texture.");
+    }
+
+    public static TextureCache getDefault() {
+        return defaultCache;
+    }
+
+    public synchronized long getCapacityBytes() {
+        return capacityBytes;
+    }
+
+    /** Evict unused textures immediately if the cache now exceeds this. */
+    public synchronized void setCapacityBytes(long capacityBytes) {
+        if(capacityBytes < 0) {
+            throw new IllegalArgumentException("Invalid texture cache capacity: " + capacityBytes);
+        }
+        this.capacityBytes = capacityBytes;
+        this.evict();
+    }
+
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /** The number of textures decoded or being decoded. */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /** Read, hash and if necessary decode the image at the given path.
+     *  Blocks. The caller must eventually release the result.
+     */
+    public PackedTexture acquire(String filename) throws IOException {
+        File file = new File(filename);
+        if(!file.exists()) {
+            throw new FileNotFoundException("File not found: " + filename);
+        } else if(!file.isFile()) {
+            throw new FileNotFoundException("Not a regular file: " + filename);
+        }
+        boolean raster = RasterFile.isRasterFile(filename);
+        byte[] bytes = null;
+        String key;
+        if(raster) {
+            key = "raster:" + file.getCanonicalPath() + ':' + file.length()
+                + ':' + file.lastModified();
+        } else {
+            bytes = Files.readAllBytes(file.toPath());
+            key = contentKey(bytes);
+        }
+
+        TextureEntry entry;
+        boolean decodeHere = false;
+        synchronized(this) {
+            entry = entries.get(key);
+            if(entry == null) {
+                entry = new TextureEntry(key, filename, raster);
+                entries.put(key, entry);
+                decodeHere = true;
+            } else {
+                idle.remove(key);
+            }
+            ++entry.refCount;
+        }
+
+        if(decodeHere) {
+            misses.increment();
+            if(raster) {
+                this.map(entry, file);
+            } else {
+                this.decode(entry, bytes);
+            }
+        } else {
+            hits.increment();
+            try {
+                entry.decoded.await();
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                this.abandon(entry);
+                throw new IOException("Interrupted while waiting for " + filename);
+            }
+        }
+
+        if(entry.error != null) {
+            errors.increment();
+            this.abandon(entry);
+            throw entry.error;
+        }
+        return entry.texture;
+    }
+
+    /** Acquire the given image on a background thread. Poll the result from
+     *  the render thread.
+     */
+    public TextureLoad acquireLater(String filename) {
+        TextureLoad load = new TextureLoad(this, filename);
+        this.getExecutor().execute(load);
+        return load;
+    }
+
+    /** Give back a texture returned by acquire or by a TextureLoad. Null is
+     *  ignored, so that effects may release whatever they hold.
+     */
+    public synchronized void release(PackedTexture texture) {
+        if(texture == null) {
+            return;
+        }
+        TextureEntry entry = byTexture.get(texture);
+        if(entry == null) {
+            throw new IllegalArgumentException(texture + " does not belong to this cache.");
+        } else if(entry.refCount <= 0) {
+            throw new IllegalStateException(entry.filename + " was released too many times.");
+        }
+        --entry.refCount;
+        if(entry.refCount == 0) {
+            this.retire(entry);
+        }
+    }
+
+    /** Stop the loader threads, e.g. at the end of a benchmark. Loads that
+     *  are already queued are completed. A later acquireLater restarts them.
+     */
+    public synchronized void shutdown() {
+        if(executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    protected void decode(TextureEntry entry, byte[] bytes) {
+        long start = System.nanoTime();
+        PackedTexture texture = null;
+        IOException error = null;
+        try {
+            BufferedImage image = ImageIO.read(new ByteArrayInputStream(bytes));
+            if(image == null) {
+                error = new IOException("Error loading " + entry.filename
+                    + ": unsupported image format.");
+            } else if(image.getWidth() == 0 || image.getHeight() == 0) {
+                error = new IOException("Error loading " + entry.filename + ": empty image.");
+            } else {
+                // Build the mip pyramid here too, off the render thread.
+                texture = PackedTexture.fromImage(image).createMipmapped();
+            }
+        } catch(IOException iox) {
+            error = new IOException("Error loading image " + entry.filename + "\n" + iox);
+        } catch(RuntimeException e) {
+            error = new IOException("Error decoding image " + entry.filename + "\n" + e);
+        } catch(Error e) {
+            // E.g. OutOfMemoryError. Fail the waiters rather than leave them
+            // blocked on the latch forever, then let it propagate.
+            error = new IOException("Error decoding image " + entry.filename + "\n" + e);
+            throw e;
+        } finally {
+            decodeTime.recordSince(start);
+            this.publish(entry, texture, error);
+        }
+    }
+
+    protected void map(TextureEntry entry, File file) {
+        long start = System.nanoTime();
+        PackedTexture texture = null;
+        IOException error = null;
+        try {
+            texture = RasterFile.map(file);
+        } catch(IOException iox) {
+            error = new IOException("Error mapping raster " + entry.filename + "\n" + iox);
+        } catch(RuntimeException e) {
+            error = new IOException("Error mapping raster " + entry.filename + "\n" + e);
+        } catch(Error e) {
+            error = new IOException("Error mapping raster " + entry.filename + "\n" + e);
+            throw e;
+        } finally {
+            decodeTime.recordSince(start);
+            this.publish(entry, texture, error);
+        }
+    }
+
+    /** Hand a decoded texture, or the error, to everyone waiting for it. */
+    protected void publish(TextureEntry entry, PackedTexture texture, IOException error) {
+        synchronized(this) {
+            if(texture != null) {
+                entry.texture = texture;
+                entry.bytes = texture.getByteCount();
+                byTexture.put(texture, entry);
+                totalBytes += entry.bytes;
+                this.evict();
+                this.updateGauges();
+            } else {
+                // Forget the failure, so that a fixed file can be retried.
+                entry.error = error;
+                entries.remove(entry.key);
+            }
+        }
+        entry.decoded.countDown();
+    }
+
+    /** Undo an acquire whose caller won't receive a texture. */
+    protected synchronized void abandon(TextureEntry entry) {
+        --entry.refCount;
+        if(entry.refCount == 0 && entry.texture != null) {
+            this.retire(entry);
+        }
+    }
+
+    /** Put a texture nobody holds up for eviction, or drop it outright if
+     *  it's a raster. Caller must hold the lock.
+     */
+    protected void retire(TextureEntry entry) {
+        if(entry.raster) {
+            // The mapping is unmapped once the texture is garbage collected.
+            entries.remove(entry.key);
+            byTexture.remove(entry.texture);
+            this.updateGauges();
+        } else {
+            idle.put(entry.key, entry);
+            this.evict();
+        }
+    }
+
+    /** Drop the least recently released textures until we are within
+     *  capacity or nothing unused remains. Caller must hold the lock.
+     */
+    protected void evict() {
+        Iterator<TextureEntry> it = idle.values().iterator();
+        boolean changed = false;
+        while(totalBytes > capacityBytes && it.hasNext()) {
+            TextureEntry entry = it.next();
+            it.remove();
+            entries.remove(entry.key);
+            byTexture.remove(entry.texture);
+            totalBytes -= entry.bytes;
+            evictions.increment();
+            changed = true;
+        }
+        if(changed) {
+            this.updateGauges();
+        }
+    }
+
+    protected void updateGauges() {
+        bytesGauge.set(totalBytes);
+        texturesGauge.set(entries.size());
+    }
+
+    protected synchronized ExecutorService getExecutor() {
+        if(executor == null) {
+            int threads = Math.max(1, Math.min(4,
+                Runtime.getRuntime().availableProcessors() - 1));
+            executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger(0);
+
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "TextureLoader-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    // Decoding must never compete with the render thread.
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+
+    public static String contentKey(byte[] bytes) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch(NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is unavailable.", e);
+        }
+        byte[] hash = digest.digest(bytes);
+        StringBuilder sb = new StringBuilder(2 * hash.length);
+        for(byte b: hash) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+            sb.append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    public synchronized String toString() {
+        return "TextureCache(" + entries.size() + " textures, " + totalBytes / (1024 * 1024)
+            + " of " + capacityBytes / (1024 * 1024) + " MB)";
+    }
+}
+
+
+/** One texture in the cache, decoded or being decoded. Guarded by the cache,
+ *  except for texture and error, which are published by the latch.
+ */
+class TextureEntry {
+
+    final String key;
+    final String filename; // of the first request, for messages
+    final boolean raster; // mapped, not decoded
+    final CountDownLatch decoded = new CountDownLatch(1);
+    PackedTexture texture = null;
+    IOException error = null;
+    long bytes = 0;
+    int refCount = 0;
+
+    TextureEntry(String key, String filename, boolean raster) {
+        this.key = key;
+        this.filename = filename;
+        this.raster = raster;
+    }
+}
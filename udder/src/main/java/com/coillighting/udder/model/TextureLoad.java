@@ -0,0 +1,99 @@
+package com.coillighting.udder.model;
+
+import java.io.IOException;
+
+/** A texture being acquired from a TextureCache on a background thread.
+ *  The render thread polls isDone(), then takes the texture, which it must
+ *  eventually release to the cache, or the error.
+ *
+ *  A load whose result is no longer wanted, e.g. because the user picked
+ *  another image before this one finished decoding, must be cancelled, so
+ *  that its texture is released whenever it arrives.
+ */
+public class TextureLoad implements Runnable {
+
+    protected final TextureCache cache;
+    protected final String filename;
+
+    // Guarded by this.
+    private boolean done = false;
+    private boolean cancelled = false;
+    private PackedTexture texture = null;
+    private IOException error = null;
+
+    public TextureLoad(TextureCache cache, String filename) {
+        if(cache == null) {
+            throw new NullPointerException("TextureLoad requires a TextureCache.");
+        } else if(filename == null) {
+            throw new NullPointerException("TextureLoad requires a filename.");
+        }
+        this.cache = cache;
+        this.filename = filename;
+    }
+
+    public void run() {
+        PackedTexture result = null;
+        IOException failure = null;
+        try {
+            result = cache.acquire(filename);
+        } catch(IOException iox) {
+            failure = iox;
+        } catch(RuntimeException e) {
+            failure = new IOException("Error loading image " + filename + "\n" + e);
+        } catch(Error e) {
+            // Finish anyway, so that the render thread stops polling.
+            failure = new IOException("Error loading image " + filename + "\n" + e);
+            throw e;
+        } finally {
+            boolean release;
+            synchronized(this) {
+                texture = result;
+                error = failure;
+                done = true;
+                release = cancelled;
+            }
+            if(release) {
+                cache.release(result);
+            }
+        }
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    /** The acquired texture, or null if the load failed or isn't done. */
+    public synchronized PackedTexture getTexture() {
+        return texture;
+    }
+
+    /** Why the load failed, or null. */
+    public synchronized IOException getError() {
+        return error;
+    }
+
+    /** Release the texture now if it has arrived, or as soon as it does.
+     *  Don't use the texture after cancelling.
+     */
+    public void cancel() {
+        PackedTexture release = null;
+        synchronized(this) {
+            if(cancelled) {
+                return;
+            }
+            cancelled = true;
+            if(done) {
+                release = texture;
+            }
+        }
+        cache.release(release);
+    }
+
+    public String toString() {
+        return "TextureLoad(" + filename + ")";
+    }
+}
@@ -15,6 +15,7 @@ import com.coillighting.udder.effect.BloomEffectState;
 import com.coillighting.udder.effect.Effect;
 import com.coillighting.udder.effect.ImageEffect;
 import com.coillighting.udder.effect.RollEffect;
+import com.coillighting.udder.effect.SequenceEffect;
 import com.coillighting.udder.effect.TextureEffect;
 import com.coillighting.udder.effect.woven.WovenEffect;
 import com.coillighting.udder.mix.Layer;
@@ -80,49 +81,54 @@ public abstract class DairyScene {
         // the stickiness. 3) The logs never report dropped frames, leading
         // me to speculate that Udder never rendered those frames to begin
         // with.
+        //
+        // Every image is deferred: nothing is decoded until the shuffler
+        // prefetches a layer ahead of its fade-in, or a user fades it in, so
+        // the show starts at once. Prefetches decode in parallel on the
+        // TextureCache's pool.
 
         RollEffect r;
         ArrayList<EffectSlot> fx = new ArrayList<EffectSlot>();
 
-        r = new RollEffect(loopdir + "flame_scroller_amber_medium_contrast.png");
+        r = new RollEffect(loopdir + "flame_scroller_amber_medium_contrast.png", true);
         r.setYPeriodMillis(1450);
         fx.add(new EffectSlot(r, 1.0, 0.45));
 
         // blue lightning, good reviews from BV, blends well with flame
-        fx.add(new EffectSlot(new TextureEffect(adir + "blue_skull_necklace.png"), 1.0, 1.0));
+        fx.add(new EffectSlot(new TextureEffect(adir + "blue_skull_necklace.png", true), 1.0, 1.0));
 
         // should blend nicely with blue above
-        fx.add(new EffectSlot(new TextureEffect(adir + "light_cyan_trigrams.png"), 0.2, 1.0));
+        fx.add(new EffectSlot(new TextureEffect(adir + "light_cyan_trigrams.png", true), 0.2, 1.0));
 
         // mix all three similar looks, this + 2 above. verified good in person.
-        fx.add(new EffectSlot(new TextureEffect(adir + "light_amber_trigrams.png"), 1.0, 1.0));
+        fx.add(new EffectSlot(new TextureEffect(adir + "light_amber_trigrams.png", true), 1.0, 1.0));
 
         // (mix early, keep late) <<< tree shadows, try to solo on outro
-        fx.add(new EffectSlot(new TextureEffect(adir + "coppertone_trigrams.png"), 1.0, 1.0));
+        fx.add(new EffectSlot(new TextureEffect(adir + "coppertone_trigrams.png", true), 1.0, 1.0));
 
         // flames descend suddenly on coppertone tree shadows
-        r = new RollEffect(loopdir + "flame_scroller_amber_medium_contrast.png");
+        r = new RollEffect(loopdir + "flame_scroller_amber_medium_contrast.png", true);
         r.setYPeriodMillis(3700);
         fx.add(new EffectSlot(r, 0.35, 0.7));
 
         // nice palette, nice interaction, might need to be even brighter
-        fx.add(new EffectSlot(new TextureEffect(adir + "medium_contrast" + separator + "redblue_triclops_medium_contrast.png"), 1.0, 1.0));
+        fx.add(new EffectSlot(new TextureEffect(adir + "medium_contrast" + separator + "redblue_triclops_medium_contrast.png", true), 1.0, 1.0));
 
         // purple sparks, brings out copper, full enough but still dim
-        fx.add(new EffectSlot(new TextureEffect(adir + "rose_tint_trigrams.png"), 1.0, 1.0));
+        fx.add(new EffectSlot(new TextureEffect(adir + "rose_tint_trigrams.png", true), 1.0, 1.0));
 
-        r = new RollEffect(loopdir + "cartoon_flame_scroller_horizontal_gaussian_blur_4.2.png");
+        r = new RollEffect(loopdir + "cartoon_flame_scroller_horizontal_gaussian_blur_4.2.png", true);
         r.setXPeriodMillis(4300);
         fx.add(new EffectSlot(r, 0.5, 0.4));
 
-        r = new RollEffect(loopdir + "rainbow_stupidity_scroller_wavy.png");
+        r = new RollEffect(loopdir + "rainbow_stupidity_scroller_wavy.png", true);
         r.setYPeriodMillis(5130);
         fx.add(new EffectSlot(r, 0.35, 0.45));
 
-        fx.add(new EffectSlot(new TextureEffect(adir + "light_amber_densely_mustachioed_cthulus.png"), 0.5, 0.5));
+        fx.add(new EffectSlot(new TextureEffect(adir + "light_amber_densely_mustachioed_cthulus.png", true), 0.5, 0.5));
 
         // like water (could also flip x or y axis)
-        r = new RollEffect(loopdir + "cartoon_rivulet_scroller_horizontal_gaussian_blur_4.2.png");
+        r = new RollEffect(loopdir + "cartoon_rivulet_scroller_horizontal_gaussian_blur_4.2.png", true);
         r.setXPeriodMillis(6600);
         fx.add(new EffectSlot(r, 0.5, 0.5));
 
@@ -134,8 +140,8 @@ public abstract class DairyScene {
         b.setState(new BloomEffectState(cool2WayPalette, true, true, true, true));
         fx.add(new EffectSlot(b, 1.0, 1.0));
 
-        fx.add(new EffectSlot(new TextureEffect(adir + "purple_chains.png"), 1.0, 1.0));
-        fx.add(new EffectSlot(new TextureEffect(adir + "yellow_tape_worms.png"), 1.0, 0.9));
+        fx.add(new EffectSlot(new TextureEffect(adir + "purple_chains.png", true), 1.0, 1.0));
+        fx.add(new EffectSlot(new TextureEffect(adir + "yellow_tape_worms.png", true), 1.0, 0.9));
 
         // clown stripes: 3 colors, full reflective symmetry, both axes
         if(false) {
@@ -174,8 +180,9 @@ public abstract class DairyScene {
 
         int sequenceStartIndex = layers.size();
 
-        // Communicate per-layer fade-in and fade-out timings to the shuffler
-        int expectedLayerCount = layers.size() + fx.size() + 1;
+        // Communicate per-layer fade-in and fade-out timings to the shuffler.
+        // The extra two are the external input and image sequence layers.
+        int expectedLayerCount = layers.size() + fx.size() + 2;
         DairyShufflerFadeTiming[] timings = new DairyShufflerFadeTiming[expectedLayerCount];
 
         for(int i=0; i<fx.size(); i++) {
@@ -209,6 +216,13 @@ public abstract class DairyScene {
         externalA.setBlendOp(max);
         layers.add(externalA);
 
+        // Plays nothing until a user POSTs the path to an image sequence or
+        // video, so that it costs nothing in the show. See test/play_sequence.
+        Layer sequence = new Layer("Image sequence",
+            new SequenceEffect(null, SequenceEffect.DEFAULT_FRAMES_PER_SECOND));
+        sequence.setBlendOp(max);
+        layers.add(sequence);
+
         // Example: add a second external input (disabled for now, to
         // maximize performance).
         // -------------------------------------------------------------
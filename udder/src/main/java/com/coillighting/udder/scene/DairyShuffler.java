@@ -1,5 +1,7 @@
 package com.coillighting.udder.scene;
 
+import com.coillighting.udder.effect.Effect;
+import com.coillighting.udder.effect.ImageEffect;
 import com.coillighting.udder.effect.woven.WovenEffect;
 import com.coillighting.udder.geometry.Interpolator;
 import com.coillighting.udder.mix.StatefulAnimator;
@@ -21,6 +23,11 @@ import static com.coillighting.udder.geometry.Interpolator.Interpolation;
  * look + 1 outgoing look. Fade-in of the incoming look and fade-out of
  * the outgoing look have their own easing curves, randomly selected from
  * the available modes.
+ *
+ * Layers are shuffled in order, so we know which comes next. We prefetch
+ * each layer's image (see ImageEffect.prefetch) a whole cue before it starts
+ * fading in, and the first two during the Woven cue, so that images that the
+ * scene deferred are decoded in the background well before they are shown.
  */
 public class DairyShuffler implements StatefulAnimator {
 
@@ -137,6 +144,11 @@ public class DairyShuffler implements StatefulAnimator {
         interpolationModeIncoming = Interpolation.SINUSOIDAL;
         interpolationModeOutgoing = Interpolation.SINUSOIDAL;
         cueStartTimeMillis = -1; // < 0: not started
+
+        // The first texture fades in as soon as the Woven cue ends, and the
+        // second a cue later.
+        this.prefetchLayer(shuffleLayerStartIndex);
+        this.prefetchLayer(shuffleLayerStartIndex + 1);
     }
 
     // switch off woven vs. other layers only at the transition point,
@@ -197,6 +209,9 @@ public class DairyShuffler implements StatefulAnimator {
                     primaryLevel = incomingLevel;
                     incomingLevel = 0.0f;
                     incomingLayerIndex++;
+
+                    // Get the layer after this one ready for the next cue.
+                    this.prefetchLayer(incomingLayerIndex + 1);
                 }
                 cueStartTimeMillis = now;
             }
@@ -295,6 +310,19 @@ public class DairyShuffler implements StatefulAnimator {
         }
     }
 
+    /** Start loading a shuffled layer's image, if it has one that isn't
+     *  loaded yet. Ignore out of range layers.
+     */
+    private void prefetchLayer(int layerIndex) {
+        if(layerIndex >= shuffleLayerStartIndex
+                && layerIndex <= shuffleLayerEndIndex) {
+            Effect effect = ((Layer) mixer.getLayer(layerIndex)).getEffect();
+            if(effect instanceof ImageEffect) {
+                ((ImageEffect) effect).prefetch();
+            }
+        }
+    }
+
     public Class getStateClass() {
         return DairyShufflerState.class;
     }
@@ -0,0 +1,110 @@
+package com.coillighting.udder.util;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.imageio.ImageIO;
+
+import com.coillighting.udder.model.RasterFile;
+
+import static com.coillighting.udder.util.LogUtil.log;
+
+/** Convert images to raster files (see RasterFile), once, ahead of the
+ *  show, so that effects can map them instead of decoding them. Each image
+ *  is written next to itself with the extension changed, so that
+ *  images/loops/flame.png becomes images/loops/flame.uraw. Then name the
+ *  .uraw file wherever you named the image.
+ *
+ *  Converting an image needs enough heap for the decoded image plus its
+ *  mip pyramid; for a large atlas, raise -Xmx. Showing it needs hardly any.
+ *
+ *  Usage (from the udder directory, after building):
+ *
+ *      java -cp target/udder-0.4.2-SNAPSHOT.jar:lib/simple-5.1.5.jar:lib/boon-0.23.jar \
+ *          com.coillighting.udder.util.RasterConverter images/dairy_collection_B_scrolling_loops
+ */
+public class RasterConverter {
+
+    private static final String[] EXTENSIONS = {".png", ".jpg", ".jpeg", ".gif", ".bmp"};
+
+    protected List<File> inputs = new ArrayList<File>();
+
+    public void run() throws IOException {
+        int converted = 0;
+        for(File input: inputs) {
+            if(input.isDirectory()) {
+                File[] files = input.listFiles();
+                if(files == null) {
+                    throw new IOException("Error listing " + input);
+                }
+                Arrays.sort(files);
+                for(File file: files) {
+                    if(file.isFile() && isImage(file)) {
+                        this.convert(file);
+                        ++converted;
+                    }
+                }
+            } else {
+                this.convert(input);
+                ++converted;
+            }
+        }
+        log("Converted " + converted + " images.");
+    }
+
+    protected void convert(File image) throws IOException {
+        long start = System.nanoTime();
+        BufferedImage decoded = ImageIO.read(image);
+        if(decoded == null) {
+            throw new IOException("Error loading " + image + ": unsupported image format.");
+        }
+        String name = image.getName();
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        File output = new File(image.getParentFile(), base + RasterFile.EXTENSION);
+        RasterFile.write(decoded, output);
+        log(image + " (" + decoded.getWidth() + "x" + decoded.getHeight() + ") -> " + output
+            + ", " + (output.length() / 1024) + " KB in "
+            + ((System.nanoTime() - start) / 1000000) + " ms");
+    }
+
+    protected static boolean isImage(File file) {
+        String name = file.getName().toLowerCase();
+        for(String extension: EXTENSIONS) {
+            if(name.endsWith(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void parseArgs(String[] args) {
+        if(args.length == 0) {
+            throw new IllegalArgumentException("Expected at least one image or directory.");
+        }
+        for(String arg: args) {
+            File input = new File(arg);
+            if(!input.exists()) {
+                throw new IllegalArgumentException("File not found: " + arg);
+            }
+            inputs.add(input);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        RasterConverter converter = new RasterConverter();
+        try {
+            converter.parseArgs(args);
+        } catch(IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.out.println(
+                "Usage: java com.coillighting.udder.util.RasterConverter"
+                + " path/to/image.png|path/to/directory [...]");
+            System.exit(1);
+        }
+        converter.run();
+    }
+}
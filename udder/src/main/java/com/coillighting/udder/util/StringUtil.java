@@ -27,6 +27,36 @@ public class StringUtil {
         return sb.toString();
     }
 
+    private static final char[] BASE64_ALPHABET =
+        "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    /** java.util.Base64 is available only with Java 1.8. We support 1.7.
+     *
+     *  Append the first length bytes of data to sb in standard, padded
+     *  base64 (RFC 4648) without line breaks.
+     */
+    public static void appendBase64(StringBuilder sb, byte[] data, int length) {
+        int i = 0;
+        for(; i + 2 < length; i += 3) {
+            int n = (data[i] & 0xFF) << 16 | (data[i + 1] & 0xFF) << 8 | (data[i + 2] & 0xFF);
+            sb.append(BASE64_ALPHABET[n >>> 18])
+                .append(BASE64_ALPHABET[(n >>> 12) & 0x3F])
+                .append(BASE64_ALPHABET[(n >>> 6) & 0x3F])
+                .append(BASE64_ALPHABET[n & 0x3F]);
+        }
+        int remainder = length - i;
+        if(remainder > 0) {
+            int n = (data[i] & 0xFF) << 16;
+            if(remainder == 2) {
+                n |= (data[i + 1] & 0xFF) << 8;
+            }
+            sb.append(BASE64_ALPHABET[n >>> 18])
+                .append(BASE64_ALPHABET[(n >>> 12) & 0x3F])
+                .append(remainder == 2 ? BASE64_ALPHABET[(n >>> 6) & 0x3F] : '=')
+                .append('=');
+        }
+    }
+
     /** Draw an ASCII slider representing the value of x in range [0..1.0]. */
     public static final String plot1D(double x) {
         if(x < 0.0) {
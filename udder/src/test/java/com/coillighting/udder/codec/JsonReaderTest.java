@@ -0,0 +1,191 @@
+package com.coillighting.udder.codec;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Check that JsonReader reads well-formed tokens and rejects malformed
+ * ones with a message saying where the problem is.
+ */
+public class JsonReaderTest
+    extends TestCase
+{
+    private static final String[] FIELDS = { "a", "b" };
+
+    public JsonReaderTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( JsonReaderTest.class );
+    }
+
+    public void testReadsNumbers() throws Exception
+    {
+        assertEquals( 0.0, new JsonReader( "0" ).nextDouble(), 0.0 );
+        assertEquals( -0.5, new JsonReader( "-0.5" ).nextDouble(), 0.0 );
+        assertEquals( 0.1, new JsonReader( " 0.1 " ).nextDouble(), 0.0 );
+        assertEquals( 1.5e-7, new JsonReader( "1.5e-7" ).nextDouble(), 0.0 );
+        assertEquals( 8000L, new JsonReader( "8e3" ).nextLong() );
+        assertEquals( 4294967295L, new JsonReader( "4294967295" ).nextLong() );
+        assertEquals( -7, new JsonReader( "-7" ).nextInt() );
+    }
+
+    public void testReadsStrings() throws Exception
+    {
+        assertEquals( "plain", new JsonReader( "\"plain\"" ).nextString() );
+        assertEquals( "a\"b\\c/d\ne\tf", new JsonReader( "\"a\\\"b\\\\c\\/d\\ne\\tf\"" ).nextString() );
+        assertEquals( "\u00e9\u2603", new JsonReader( "\"\\u00e9\\u2603\"" ).nextString() );
+        assertEquals( "\u00ab", new JsonReader( "\"\\u00AB\"" ).nextString() );
+    }
+
+    public void testReadsObjectsWithTrailingCommas() throws Exception
+    {
+        JsonReader reader = new JsonReader( "{\"a\": [1, 2,], \"b\": null,}" );
+        reader.beginObject();
+        assertTrue( reader.hasNext() );
+        assertEquals( 0, reader.nextField( FIELDS ) );
+        reader.beginArray();
+        assertTrue( reader.hasNext() );
+        assertEquals( 1, reader.nextInt() );
+        assertTrue( reader.hasNext() );
+        assertEquals( 2, reader.nextInt() );
+        assertFalse( reader.hasNext() );
+        reader.endArray();
+        assertTrue( reader.hasNext() );
+        assertEquals( 1, reader.nextField( FIELDS ) );
+        assertTrue( reader.nextNull() );
+        assertFalse( reader.hasNext() );
+        reader.endObject();
+        reader.endDocument();
+    }
+
+    public void testRejectsTruncatedInput() throws Exception
+    {
+        assertError( "", "Expected an object at $ (line 1, column 1) but found the end of the input" );
+        assertError( "{", "at $ (line 1, column 2) but found the end of the input" );
+        assertError( "{\"a\"", "Expected ':' after field \"a\" at $.a (line 1, column 5) but found the end of the input" );
+        assertError( "{\"a\":", "Expected a number at $.a (line 1, column 6) but found the end of the input" );
+        assertError( "{\"a\": [1,", "at $.a[1] (line 1, column 10) but found the end of the input" );
+        assertError( "{\"a\": 1", "Expected ',' or '}' at $.a (line 1, column 8) but found the end of the input" );
+        assertError( "{\"a\": [1]", "Expected ',' or '}' at $.a (line 1, column 10) but found the end of the input" );
+    }
+
+    public void testRejectsBadUnicodeEscapes() throws Exception
+    {
+        assertStringError( "\"\\u12G4\"", "Expected a \\uXXXX escape at $ (line 1, column 2) but found \\u12G4" );
+        assertStringError( "\"\\u-123\"", "Expected a \\uXXXX escape at $ (line 1, column 2) but found \\u-123" );
+        assertStringError( "\"\\u+123\"", "Expected a \\uXXXX escape at $ (line 1, column 2) but found \\u+123" );
+        assertStringError( "\"\\u\u0663\u0663\u0663\u0663\"", "Expected a \\uXXXX escape" );
+        assertStringError( "\"\\u12\"", "Expected a \\uXXXX escape at $ (line 1, column 2) but found a truncated escape" );
+        assertStringError( "\"\\u12\" ", "Expected a \\uXXXX escape at $ (line 1, column 2) but found \\u12\" " );
+        assertStringError( "\"\\u12", "Expected a terminated string at $ (line 1, column 1) but found a string running to the end of the input" );
+        assertStringError( "\"\\x\"", "Expected a valid escape at $ (line 1, column 2) but found \\x" );
+    }
+
+    public void testRejectsUnterminatedStrings() throws Exception
+    {
+        assertStringError( "\"abc", "Expected a terminated string at $ (line 1, column 1) but found a string running to the end of the input" );
+        assertStringError( "\"abc\\\"", "Expected a terminated string at $ (line 1, column 1)" );
+        assertStringError( "\"ab\nc\"", "Expected a '\"' (control characters must be escaped in strings) at $ (line 1, column 4) but found a raw control character" );
+        assertError( "{\"a", "Expected a terminated string" );
+    }
+
+    public void testRejectsUnterminatedNumbers() throws Exception
+    {
+        assertNumberError( "-", "Expected a number at $ (line 1, column 1) but found '-'" );
+        assertNumberError( "1.", "Expected a number at $ (line 1, column 1) but found 1." );
+        assertNumberError( "1e", "Expected a number at $ (line 1, column 1) but found 1e" );
+        assertNumberError( "1e+", "Expected a number at $ (line 1, column 1) but found 1e+" );
+        assertNumberError( ".5", "Expected a number at $ (line 1, column 1) but found '.'" );
+        assertNumberError( "12abc", "Expected a number at $ (line 1, column 1) but found 12abc" );
+        assertNumberError( "1e999", "Expected a finite number at $ (line 1, column 1) but found 1e999" );
+    }
+
+    public void testRejectsLeadingZeros() throws Exception
+    {
+        assertNumberError( "007", "Expected a number without leading zeros at $ (line 1, column 1) but found 007" );
+        assertNumberError( "-01.5", "Expected a number without leading zeros at $ (line 1, column 1) but found -01" );
+        try {
+            new JsonReader( "010" ).nextLong();
+            fail( "Accepted 010" );
+        } catch( JsonCodecException e ) {
+            assertEquals( "Expected an integer without leading zeros at $ (line 1, column 1) but found 010",
+                e.getMessage() );
+        }
+    }
+
+    public void testReportsLineAndColumn() throws Exception
+    {
+        JsonReader reader = new JsonReader( "{\n  \"a\": [\n    1,\n    true\n  ]\n}" );
+        reader.beginObject();
+        reader.hasNext();
+        reader.nextField( FIELDS );
+        reader.beginArray();
+        reader.hasNext();
+        reader.nextInt();
+        try {
+            reader.hasNext();
+            reader.nextInt();
+            fail( "Accepted true as an integer" );
+        } catch( JsonCodecException e ) {
+            assertEquals( "$.a[1]", e.getPath() );
+            assertEquals( 4, e.getLine() );
+            assertEquals( 5, e.getColumn() );
+        }
+    }
+
+    /** Read {"a": [numbers...]} and expect an error containing message. */
+    private static void assertError( String json, String message )
+    {
+        try {
+            JsonReader reader = new JsonReader( json );
+            reader.beginObject();
+            while( reader.hasNext() ) {
+                reader.nextField( FIELDS );
+                if( reader.peek() == JsonReader.Token.BEGIN_ARRAY ) {
+                    reader.beginArray();
+                    while( reader.hasNext() ) {
+                        reader.nextDouble();
+                    }
+                    reader.endArray();
+                } else {
+                    reader.nextDouble();
+                }
+            }
+            reader.endObject();
+            reader.endDocument();
+            fail( "Accepted " + json );
+        } catch( JsonCodecException e ) {
+            assertTrue( "Expected \"" + message + "\" in \"" + e.getMessage() + "\"",
+                e.getMessage().contains( message ) );
+        }
+    }
+
+    private static void assertStringError( String json, String message )
+    {
+        try {
+            new JsonReader( json ).nextString();
+            fail( "Accepted " + json );
+        } catch( JsonCodecException e ) {
+            assertTrue( "Expected \"" + message + "\" in \"" + e.getMessage() + "\"",
+                e.getMessage().contains( message ) );
+        }
+    }
+
+    private static void assertNumberError( String json, String message )
+    {
+        try {
+            JsonReader reader = new JsonReader( json );
+            reader.nextDouble();
+            reader.endDocument();
+            fail( "Accepted " + json );
+        } catch( JsonCodecException e ) {
+            assertTrue( "Expected \"" + message + "\" in \"" + e.getMessage() + "\"",
+                e.getMessage().contains( message ) );
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.coillighting.udder.codec;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import com.coillighting.udder.mix.ModulationMatrixState;
+import com.coillighting.udder.mix.ModulationState;
+
+/**
+ * Decode ModulationMatrixStates, including the defaults a binding may omit.
+ */
+public class ModulationMatrixStateCodecTest
+    extends TestCase
+{
+    private ModulationMatrixStateCodec codec;
+
+    public ModulationMatrixStateCodecTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( ModulationMatrixStateCodecTest.class );
+    }
+
+    protected void setUp() throws Exception
+    {
+        codec = new ModulationMatrixStateCodec();
+    }
+
+    public void testDecodesEveryField() throws Exception
+    {
+        ModulationState[] bindings = decode( "{\"bindings\": [{\"target\": \"/mixer0/layer3\", "
+            + "\"parameter\": \"xRotate\", \"wave\": \"triangle\", \"periodMillis\": 8000, "
+            + "\"depth\": 0.5, \"offset\": 0.25}]}" ).getBindings();
+        assertEquals( 1, bindings.length );
+        ModulationState b = bindings[0];
+        assertEquals( "/mixer0/layer3", b.getTarget() );
+        assertEquals( "xRotate", b.getParameter() );
+        assertEquals( "triangle", b.getWave() );
+        assertEquals( 8000L, b.getPeriodMillis() );
+        assertEquals( 0.5, b.getDepth(), 0.0 );
+        assertEquals( 0.25, b.getOffset(), 0.0 );
+    }
+
+    public void testDefaults() throws Exception
+    {
+        ModulationState b = decode( "{\"bindings\": [{\"target\": \"/mixer0\", "
+            + "\"periodMillis\": 1000, \"parameter\": null}]}" ).getBindings()[0];
+        assertEquals( "/mixer0", b.getTarget() );
+        assertNull( b.getParameter() );
+        assertNull( b.getWave() );
+        assertEquals( 1000L, b.getPeriodMillis() );
+        assertEquals( 1.0, b.getDepth(), 0.0 );
+        assertEquals( 0.0, b.getOffset(), 0.0 );
+
+        // Without periodMillis, ModulationMatrix.bind rejects the binding.
+        b = decode( "{\"bindings\": [{\"target\": \"/mixer0\"}]}" ).getBindings()[0];
+        assertEquals( 0L, b.getPeriodMillis() );
+    }
+
+    public void testEmptyAndNullBindings() throws Exception
+    {
+        assertEquals( 0, decode( "{\"bindings\": []}" ).getBindings().length );
+        assertNull( decode( "{\"bindings\": null}" ).getBindings() );
+        assertNull( decode( "{}" ).getBindings() );
+    }
+
+    public void testRejectsMalformedBindings() throws Exception
+    {
+        String[] malformed = {
+            "{\"bindings\": {}}",
+            "{\"bindings\": [{\"target\": 3}]}",
+            "{\"bindings\": [{\"periodMillis\": \"slow\"}]}",
+            "{\"bindings\": [{\"colour\": \"red\"}]}",
+        };
+        for( String json: malformed ) {
+            try {
+                decode( json );
+                fail( "Accepted " + json );
+            } catch( JsonCodecException e ) {
+                assertTrue( e.getMessage(), e.getMessage().contains( "$.bindings" ) );
+            }
+        }
+    }
+
+    private ModulationMatrixState decode( String json ) throws JsonCodecException
+    {
+        JsonReader reader = new JsonReader( json );
+        ModulationMatrixState state = codec.decode( reader );
+        reader.endDocument();
+        return state;
+    }
+}
@@ -0,0 +1,194 @@
+package com.coillighting.udder.codec;
+
+import java.io.File;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import com.coillighting.udder.effect.BloomEffectState;
+import com.coillighting.udder.effect.TextureEffectState;
+import com.coillighting.udder.effect.woven.WovenEffectState;
+import com.coillighting.udder.infrastructure.Command;
+import com.coillighting.udder.infrastructure.CommandBatch;
+import com.coillighting.udder.infrastructure.CommandParser;
+import com.coillighting.udder.mix.LayerState;
+import com.coillighting.udder.mix.ModulationMatrixState;
+import com.coillighting.udder.model.Pixel;
+import com.coillighting.udder.model.RgbaArray;
+import com.coillighting.udder.scene.DairyShufflerState;
+
+/**
+ * Check that every example payload in udder/test/json decodes to the same
+ * state with its StateCodec as with Boon, which decoded every command before
+ * the codecs existed.
+ */
+public class StateCodecTest
+    extends TestCase
+{
+    private static final File JSON_DIR = new File( "test/json" );
+
+    /** The state class of each example payload, by file name. */
+    private static final Map<String, Class> PAYLOADS = new HashMap<String, Class>();
+    static {
+        for( String gel: new String[] { "amber_gel", "black_background", "cold_gel",
+                "neutral_gel", "white_worklight" } ) {
+            PAYLOADS.put( gel + ".json", Pixel.class );
+        }
+        for( String pixels: new String[] { "blip", "dashes", "first_pixel", "pastel_rainbow" } ) {
+            PAYLOADS.put( pixels + ".json", RgbaArray.class );
+        }
+        for( String woven: new String[] { "blue_red_woven", "green_amber_woven",
+                "magenta_gold_woven", "purple_green_woven" } ) {
+            PAYLOADS.put( woven + ".json", WovenEffectState.class );
+        }
+        for( String level: new String[] { "level_10", "level_25", "level_55", "level_90",
+                "level_full", "level_off" } ) {
+            PAYLOADS.put( level + ".json", LayerState.class );
+        }
+        for( String shuffler: new String[] { "shuffler_disabled", "shuffler_enabled",
+                "shuffler_fast", "shuffler_medium", "shuffler_slow" } ) {
+            PAYLOADS.put( shuffler + ".json", DairyShufflerState.class );
+        }
+        PAYLOADS.put( "purple_green_bloom.json", BloomEffectState.class );
+        PAYLOADS.put( "yellow_purple_blue_bloom.json", BloomEffectState.class );
+        PAYLOADS.put( "texture_auto.json", TextureEffectState.class );
+        PAYLOADS.put( "texture_manual.json", TextureEffectState.class );
+        PAYLOADS.put( "pulse_layer.json", ModulationMatrixState.class );
+        PAYLOADS.put( "modulation_off.json", ModulationMatrixState.class );
+    }
+
+    /** Example /batch payloads, whose routes are all mixers and layers. */
+    private static final String[] BATCHES = { "look_half_and_half.json" };
+
+    public StateCodecTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( StateCodecTest.class );
+    }
+
+    public void testEveryExamplePayloadIsCovered() throws Exception
+    {
+        String[] files = JSON_DIR.list();
+        assertNotNull( "Run from the udder directory.", files );
+        for( String file: files ) {
+            if( file.endsWith( ".json" ) && !file.startsWith( "broken_" )
+                    && !PAYLOADS.containsKey( file ) && !Arrays.asList( BATCHES ).contains( file ) ) {
+                fail( "Add " + file + " to StateCodecTest.PAYLOADS." );
+            }
+        }
+    }
+
+    public void testCodecsDecodeLikeBoon() throws Exception
+    {
+        for( Map.Entry<String, Class> entry: PAYLOADS.entrySet() ) {
+            Class stateClass = entry.getValue();
+            assertNotNull( "No codec for " + stateClass,
+                CodecRegistry.getDefault().get( stateClass ) );
+
+            Map<String, Class> commandMap = new HashMap<String, Class>();
+            commandMap.put( "/route", stateClass );
+            String json = readPayload( entry.getKey() );
+            Object decoded = createCommand( commandMap, true, "/route", json ).getValue();
+            Object expected = createCommand( commandMap, false, "/route", json ).getValue();
+            assertSameState( entry.getKey(), expected, decoded );
+        }
+    }
+
+    public void testBatchesDecodeLikeBoon() throws Exception
+    {
+        Map<String, Class> commandMap = new HashMap<String, Class>();
+        commandMap.put( "/mixer0", LayerState.class );
+        for( int i = 0; i < 23; i++ ) {
+            commandMap.put( "/mixer0/layer" + i, LayerState.class );
+        }
+        for( String file: BATCHES ) {
+            String json = readPayload( file );
+            List<Command> decoded = ( (CommandBatch) createCommand( commandMap, true,
+                CommandParser.BATCH_ROUTE, json ).getValue() ).getCommands();
+            List<Command> expected = ( (CommandBatch) createCommand( commandMap, false,
+                CommandParser.BATCH_ROUTE, json ).getValue() ).getCommands();
+            assertEquals( file, expected.size(), decoded.size() );
+            for( int i = 0; i < expected.size(); i++ ) {
+                assertEquals( file, expected.get( i ).getPath(), decoded.get( i ).getPath() );
+                assertSameState( file + " command " + i, expected.get( i ).getValue(),
+                    decoded.get( i ).getValue() );
+            }
+        }
+    }
+
+    public void testCodecsRejectBrokenPayloads() throws Exception
+    {
+        Map<String, Class> commandMap = new HashMap<String, Class>();
+        commandMap.put( "/route", RgbaArray.class );
+        for( String file: new String[] { "broken_payload_syntax.json", "broken_payload_value.json" } ) {
+            try {
+                createCommand( commandMap, true, "/route", readPayload( file ) );
+                fail( "Accepted " + file );
+            } catch( Exception e ) {
+                assertTrue( file + ": " + e, e.getMessage().startsWith( "Invalid RgbaArray for /route: " ) );
+            }
+        }
+    }
+
+    private static Command createCommand( Map<String, Class> commandMap, boolean useCodecs,
+                                          String route, String json ) throws Exception
+    {
+        CommandParser parser = new CommandParser( commandMap );
+        parser.setUseCodecs( useCodecs );
+        return parser.createCommand( route, json );
+    }
+
+    /** Read a payload, dropping the "state=" of its form parameter. */
+    private static String readPayload( String file ) throws Exception
+    {
+        String contents = new String( Files.readAllBytes( new File( JSON_DIR, file ).toPath() ),
+            Charset.forName( "UTF-8" ) );
+        assertTrue( file, contents.startsWith( "state=" ) );
+        return contents.substring( "state=".length() ).trim();
+    }
+
+    /** Compare two states field by field, since state classes don't
+     *  implement equals.
+     */
+    private static void assertSameState( String where, Object expected, Object actual )
+        throws Exception
+    {
+        if( expected == null || actual == null ) {
+            assertTrue( where + ": expected " + expected + " but got " + actual,
+                expected == actual );
+        } else if( expected.getClass().isArray() ) {
+            assertEquals( where, expected.getClass(), actual.getClass() );
+            assertEquals( where + " length", Array.getLength( expected ), Array.getLength( actual ) );
+            for( int i = 0; i < Array.getLength( expected ); i++ ) {
+                assertSameState( where + "[" + i + "]", Array.get( expected, i ), Array.get( actual, i ) );
+            }
+        } else if( expected.getClass().getName().startsWith( "java." ) ) {
+            assertEquals( where, expected, actual );
+        } else {
+            assertEquals( where, expected.getClass(), actual.getClass() );
+            for( Class c = expected.getClass(); c != Object.class; c = c.getSuperclass() ) {
+                for( Field field: c.getDeclaredFields() ) {
+                    if( !Modifier.isStatic( field.getModifiers() ) ) {
+                        field.setAccessible( true );
+                        assertSameState( where + "." + field.getName(), field.get( expected ),
+                            field.get( actual ) );
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package com.coillighting.udder.effect;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import com.coillighting.udder.benchmark.RigGenerator;
+import com.coillighting.udder.geometry.BoundingCube;
+import com.coillighting.udder.geometry.TriangularSequence;
+import com.coillighting.udder.mix.TimePoint;
+import com.coillighting.udder.model.Device;
+import com.coillighting.udder.model.DeviceGeometry;
+import com.coillighting.udder.model.Pixel;
+
+/**
+ * Check that BloomEffect's lookup tables color every device exactly as
+ * computing each device's colors directly, frame by frame, used to.
+ */
+public class BloomEffectTest
+    extends TestCase
+{
+    private static final Pixel[] THREE_COLORS = {
+        new Pixel( 1.0f, 0.8f, 0.0f ),
+        new Pixel( 0.85f, 0.6f, 0.0f ),
+        new Pixel( 0.0f, 0.0f, 0.75f ),
+    };
+
+    private Device[] devices;
+
+    public BloomEffectTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( BloomEffectTest.class );
+    }
+
+    protected void setUp() throws Exception
+    {
+        devices = new RigGenerator( RigGenerator.GATES, 2280, 2, 0L ).createDevices();
+    }
+
+    public void testDefaultPaletteOverTwoCycles() throws Exception
+    {
+        BloomEffect effect = new BloomEffect();
+        effect.patchDevices( devices );
+        DirectBloom expected = new DirectBloom( devices );
+        assertSameColors( effect, expected, 2 * BloomEffect.SCALES.length + 10 );
+    }
+
+    public void testEverySymmetry() throws Exception
+    {
+        boolean[] flags = { false, true };
+        for( boolean bilateral: flags ) {
+            for( boolean nested: flags ) {
+                for( boolean x: flags ) {
+                    for( boolean y: flags ) {
+                        BloomEffect effect = new BloomEffect();
+                        effect.patchDevices( devices );
+                        BloomEffectState state = new BloomEffectState( THREE_COLORS,
+                            bilateral, nested, x, y );
+                        effect.setState( state );
+                        DirectBloom expected = new DirectBloom( devices );
+                        expected.setState( state );
+                        assertSameColors( effect, expected, BloomEffect.SCALES.length + 1 );
+                    }
+                }
+            }
+        }
+    }
+
+    public void testEveryPaletteSize() throws Exception
+    {
+        for( int size = 1; size < BloomTiling.REPERTOIRES.length; size++ ) {
+            Pixel[] palette = new Pixel[size];
+            for( int i = 0; i < size; i++ ) {
+                palette[i] = new Pixel( i / (float) size, 1.0f - i / (float) size, 0.5f );
+            }
+            BloomEffect effect = new BloomEffect();
+            effect.patchDevices( devices );
+            BloomEffectState state = new BloomEffectState( palette, true, true, true, true );
+            effect.setState( state );
+            DirectBloom expected = new DirectBloom( devices );
+            expected.setState( state );
+            assertSameColors( effect, expected, 200 );
+        }
+    }
+
+    public void testChangesWhilePlaying() throws Exception
+    {
+        BloomEffect effect = new BloomEffect();
+        effect.patchDevices( devices );
+        DirectBloom expected = new DirectBloom( devices );
+        assertSameColors( effect, expected, 300 );
+
+        BloomEffectState state = new BloomEffectState( THREE_COLORS, true, false, true, true );
+        effect.setState( state );
+        expected.setState( state );
+        assertSameColors( effect, expected, 300 );
+
+        Device[] smaller = new RigGenerator( RigGenerator.GRID, 500, 1, 1L ).createDevices();
+        effect.patchDevices( smaller );
+        expected.patchDevices( smaller );
+        assertSameColors( effect, expected, 300 );
+
+        state = new BloomEffectState( null, false, null, null, false );
+        effect.setState( state );
+        expected.setState( state );
+        assertSameColors( effect, expected, 300 );
+    }
+
+    private static void assertSameColors( BloomEffect effect, DirectBloom expected, int frames )
+    {
+        for( int f = 0; f < frames; f++ ) {
+            effect.animate( new TimePoint( f * 10L, f * 10L, f ) );
+            Pixel[] actual = effect.render();
+            Pixel[] wanted = expected.render();
+            assertEquals( wanted.length, actual.length );
+            for( int i = 0; i < wanted.length; i++ ) {
+                if( wanted[i].r != actual[i].r || wanted[i].g != actual[i].g
+                        || wanted[i].b != actual[i].b ) {
+                    fail( "Frame " + f + ", device " + i + ": expected " + wanted[i]
+                        + " but got " + actual[i] );
+                }
+            }
+        }
+    }
+
+    /** BloomEffect as it was before it used lookup tables. */
+    private static class DirectBloom
+    {
+        private int[] repertoire = BloomTiling.REPERTOIRES[BloomEffect.DEFAULT_PALETTE_SIZE];
+        private Pixel[] palette = { Pixel.white(), Pixel.black() };
+        private int[][] tiling = BloomTiling.TILINGS_2D[repertoire.length];
+        private double scale = 1.0;
+        private double scaleIncrement = 0.05;
+        private boolean enableBilateralSym = true;
+        private boolean enableNestedBilateralSym = true;
+        private boolean enableX = true;
+        private boolean enableY = true;
+        private double[] xs;
+        private double[] ys;
+        private BoundingCube bounds;
+        private Pixel[] pixels;
+
+        DirectBloom( Device[] devices )
+        {
+            patchDevices( devices );
+        }
+
+        void patchDevices( Device[] devices )
+        {
+            DeviceGeometry geometry = new DeviceGeometry( devices );
+            xs = geometry.getX();
+            ys = geometry.getY();
+            bounds = geometry.createBoundingCube();
+            pixels = new Pixel[devices.length];
+            for( int i = 0; i < pixels.length; i++ ) {
+                pixels[i] = Pixel.black();
+            }
+        }
+
+        void setState( BloomEffectState state )
+        {
+            Pixel[] p = state.getPalette();
+            if( p != null ) {
+                repertoire = BloomTiling.REPERTOIRES[p.length];
+                tiling = BloomTiling.TILINGS_2D[repertoire.length];
+                palette = p;
+            }
+            if( state.getEnableBilateralSym() != null ) {
+                enableBilateralSym = state.getEnableBilateralSym();
+            }
+            if( state.getEnableNestedBilateralSym() != null ) {
+                enableNestedBilateralSym = state.getEnableNestedBilateralSym();
+            }
+            if( state.getEnableX() != null ) {
+                enableX = state.getEnableX();
+            }
+            if( state.getEnableY() != null ) {
+                enableY = state.getEnableY();
+            }
+        }
+
+        Pixel[] render()
+        {
+            double devMinX = bounds.getMinX();
+            double devMinY = bounds.getMinY();
+            double devWidth = bounds.getWidth();
+            double devHeight = bounds.getHeight();
+            for( int i = 0; i < pixels.length; i++ ) {
+                int px = 0;
+                int py = 0;
+                if( enableX ) {
+                    double xoffset = xs[i] - devMinX;
+                    if( enableBilateralSym ) {
+                        if( xoffset > devWidth * 0.5 ) {
+                            xoffset = devWidth - xoffset;
+                        }
+                        if( enableNestedBilateralSym && xoffset > devWidth * 0.25 ) {
+                            xoffset = devWidth * 0.5 - xoffset;
+                        }
+                    }
+                    px = TriangularSequence.oscillatingTriangularRootColor( xoffset, scale, repertoire );
+                }
+                if( enableY ) {
+                    double yoffset = ys[i] - devMinY;
+                    if( enableBilateralSym ) {
+                        if( yoffset > devHeight * 0.5 ) {
+                            yoffset = devHeight - yoffset;
+                        }
+                        if( enableNestedBilateralSym && yoffset > devHeight * 0.25 ) {
+                            yoffset = devHeight * 0.5 - yoffset;
+                        }
+                    }
+                    py = TriangularSequence.oscillatingTriangularRootColor( yoffset, scale, repertoire );
+                }
+                pixels[i].setColor( palette[tiling[px][py]] );
+            }
+
+            scale += scaleIncrement;
+            if( scale > 20.0 ) {
+                scaleIncrement = -0.05;
+                scale = 20.0;
+            } else if( scale < 1.0 ) {
+                scaleIncrement = 0.05;
+                scale = 1.0;
+            }
+            return pixels;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package com.coillighting.udder.effect.woven;
+
+import java.util.Random;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import com.coillighting.udder.benchmark.RigGenerator;
+import com.coillighting.udder.geometry.BoundingCube;
+import com.coillighting.udder.model.Device;
+import com.coillighting.udder.model.DeviceGeometry;
+import com.coillighting.udder.model.Pixel;
+
+/**
+ * Check that WovenFrame's per-patch WovenMap colors every device exactly as
+ * working out each device's warp or weft pixel on every frame used to.
+ */
+public class WovenFrameTest
+    extends TestCase
+{
+    private Device[] devices;
+    private Random random;
+
+    public WovenFrameTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( WovenFrameTest.class );
+    }
+
+    protected void setUp() throws Exception
+    {
+        Device[] gates = new RigGenerator( RigGenerator.GATES, 2280, 2, 0L ).createDevices();
+        // Woven draws only on groups 0 and 1. Add a device it must skip.
+        devices = new Device[gates.length + 1];
+        System.arraycopy( gates, 0, devices, 0, gates.length );
+        devices[gates.length] = new Device( gates.length, 2, 0.5, 0.5, 0.0 );
+        random = new Random( 0L );
+    }
+
+    public void testEveryLayerGrouping() throws Exception
+    {
+        boolean[] flags = { false, true };
+        for( boolean warp0: flags ) {
+            for( boolean warp1: flags ) {
+                for( boolean weft0: flags ) {
+                    for( boolean weft1: flags ) {
+                        WovenFrame frame = createFrame();
+                        frame.warpEnabled[0] = warp0;
+                        frame.warpEnabled[1] = warp1;
+                        frame.weftEnabled[0] = weft0;
+                        frame.weftEnabled[1] = weft1;
+                        assertSameColors( frame, 3 );
+                    }
+                }
+            }
+        }
+    }
+
+    public void testBrightness() throws Exception
+    {
+        WovenFrame frame = createFrame();
+        for( double brightness: new double[] { 0.0, 0.37, 1.0 } ) {
+            frame.setBrightness( brightness );
+            assertSameColors( frame, 2 );
+        }
+    }
+
+    public void testThreadcountChangedAfterPatching() throws Exception
+    {
+        WovenFrame frame = createFrame();
+        frame.warpThreadcount = 7;
+        frame.weftThreadcount = 11;
+        frame.reset();
+        assertSameColors( frame, 3 );
+    }
+
+    private WovenFrame createFrame()
+    {
+        WovenFrame frame = new WovenFrame();
+        frame.setMap( frame.createMap( new DeviceGeometry( devices ) ) );
+        return frame;
+    }
+
+    /** Render several frames of random warp and weft colors both ways. */
+    private void assertSameColors( WovenFrame frame, int frames )
+    {
+        Pixel[] actual = blackPixels();
+        Pixel[] expected = blackPixels();
+        for( int f = 0; f < frames; f++ ) {
+            randomize( frame.background );
+            for( Pixel p: frame.warp ) {
+                randomize( p );
+            }
+            for( Pixel[] column: frame.weft ) {
+                for( Pixel p: column ) {
+                    randomize( p );
+                }
+            }
+            frame.render( actual );
+            renderDirectly( frame, expected );
+            for( int i = 0; i < devices.length; i++ ) {
+                assertEquals( "frame " + f + " device " + i + " r", expected[i].r, actual[i].r, 0.0f );
+                assertEquals( "frame " + f + " device " + i + " g", expected[i].g, actual[i].g, 0.0f );
+                assertEquals( "frame " + f + " device " + i + " b", expected[i].b, actual[i].b, 0.0f );
+            }
+        }
+    }
+
+    private void randomize( Pixel p )
+    {
+        p.setColor( random.nextFloat(), random.nextFloat(), random.nextFloat() );
+    }
+
+    private Pixel[] blackPixels()
+    {
+        Pixel[] pixels = new Pixel[devices.length];
+        for( int i = 0; i < pixels.length; i++ ) {
+            pixels[i] = Pixel.black();
+        }
+        return pixels;
+    }
+
+    /** WovenFrame.render as it was before WovenMap, mapping every device
+     *  on every frame.
+     */
+    private void renderDirectly( WovenFrame frame, Pixel[] pixels )
+    {
+        final BoundingCube box = Device.getDeviceBoundingCube( devices );
+        final double wScale = 1.0 / box.getWidth();
+        final double hScale = 1.0 / box.getHeight();
+        final double xOff = -box.getMinX();
+        final double yOff = -box.getMinY();
+
+        final double warpScale = -0.000000001 + (double) frame.warp.length;
+        final double weftScale = -0.000000001 + (double) frame.weft[0].length;
+
+        for( int i = 0; i < devices.length; i++ ) {
+            final Device device = devices[i];
+            final int group = device.getGroup();
+
+            if( group < 2 ) {
+                final double px = wScale * ( device.x + xOff );
+                final double py = hScale * ( device.y + yOff );
+
+                final int xWarp = frame.warp.length - 1 - (int) ( px * warpScale );
+
+                final double center = 0.125;
+                final int xWeft = px < center ? 0 : 1;
+                final int yWeft = (int) ( py * weftScale );
+
+                final Pixel pixel = pixels[i];
+                pixel.setColor( frame.background );
+
+                if( WovenFrame.isWarp( group, px, py ) ) {
+                    if( frame.warpEnabled[group] ) {
+                        pixel.blendWith( frame.warp[xWarp], 1.0f, frame.blendOp );
+                    }
+                } else if( frame.weftEnabled[group] ) {
+                    pixel.blendWith( frame.weft[xWeft][yWeft], 1.0f, frame.blendOp );
+                }
+                pixel.scale( (float) frame.brightness );
+            }
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.coillighting.udder.geometry.wave;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import com.coillighting.udder.mix.TimePoint;
+
+/**
+ * Check that the sinusoidal waves rise from start to end over the first
+ * half of each period and fall back over the second.
+ */
+public class SinusoidalWaveTest
+    extends TestCase
+{
+    private static final long PERIOD = 1000;
+
+    public SinusoidalWaveTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( SinusoidalWaveTest.class );
+    }
+
+    public void testDoubleWave() throws Exception
+    {
+        SinusoidalWave wave = new SinusoidalWave( 0.2, 0.6, PERIOD );
+        assertEquals( 0.2, wave.getVal( at( 0 ) ), 1e-9 );
+        assertEquals( 0.4, wave.getVal( at( 250 ) ), 1e-9 );
+        assertEquals( 0.6, wave.getVal( at( 500 ) ), 1e-9 );
+        assertEquals( 0.4, wave.getVal( at( 750 ) ), 1e-9 );
+        assertEquals( 0.2, wave.getVal( at( 1000 ) ), 1e-9 );
+        for( long t = 0; t < PERIOD; t++ ) {
+            double value = wave.getVal( at( t ) );
+            assertTrue( t + " ms: " + value, value >= 0.2 - 1e-9 && value <= 0.6 + 1e-9 );
+            // The fall mirrors the rise.
+            assertEquals( t + " ms", value, wave.getVal( at( PERIOD - t ) ), 1e-9 );
+        }
+        assertEquals( 0.2, wave.getVal( at( PERIOD - 1 ) ), 1e-4 );
+    }
+
+    public void testFloatWave() throws Exception
+    {
+        SinusoidalFloatWave wave = new SinusoidalFloatWave( 0.2f, 0.6f, PERIOD );
+        assertEquals( 0.2f, wave.getVal( at( 0 ) ), 1e-6f );
+        assertEquals( 0.4f, wave.getVal( at( 250 ) ), 1e-6f );
+        assertEquals( 0.6f, wave.getVal( at( 500 ) ), 1e-6f );
+        assertEquals( 0.4f, wave.getVal( at( 750 ) ), 1e-6f );
+        for( long t = 0; t < PERIOD; t++ ) {
+            float value = wave.getVal( at( t ) );
+            assertTrue( t + " ms: " + value, value >= 0.2f - 1e-6f && value <= 0.6f + 1e-6f );
+            assertEquals( t + " ms", value, wave.getVal( at( PERIOD - t ) ), 1e-5f );
+        }
+        assertEquals( 0.2f, wave.getVal( at( PERIOD - 1 ) ), 1e-4f );
+    }
+
+    public void testAgreesWithFloatWave() throws Exception
+    {
+        SinusoidalWave wave = new SinusoidalWave( 0.0, 1.0, PERIOD );
+        SinusoidalFloatWave floatWave = new SinusoidalFloatWave( 0.0f, 1.0f, PERIOD );
+        for( long t = 0; t < 3 * PERIOD; t += 7 ) {
+            assertEquals( t + " ms", wave.getVal( at( t ) ), floatWave.getVal( at( t ) ), 1e-5 );
+            assertEquals( wave.getVal( at( t ) ), wave.getValue( at( t ) ).doubleValue(), 0.0 );
+        }
+    }
+
+    private static TimePoint at( long sceneTimeMillis )
+    {
+        return new TimePoint( sceneTimeMillis, sceneTimeMillis, 0 );
+    }
+}
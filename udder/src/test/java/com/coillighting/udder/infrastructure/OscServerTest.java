@@ -0,0 +1,273 @@
+package com.coillighting.udder.infrastructure;
+
+import java.io.ByteArrayOutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import com.coillighting.udder.metrics.MetricsRegistry;
+import com.coillighting.udder.mix.LayerState;
+import com.coillighting.udder.model.Pixel;
+
+/**
+ * Send OSC packets to an OscServer over loopback and check the commands it
+ * queues.
+ */
+public class OscServerTest
+    extends TestCase
+{
+    private static final long TIMEOUT_MILLIS = 2000;
+
+    private Queue<Command> queue;
+    private OscServer server;
+    private DatagramSocket sender;
+    private InetSocketAddress serverAddress;
+
+    public OscServerTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( OscServerTest.class );
+    }
+
+    protected void setUp() throws Exception
+    {
+        Map<String, Class> commandMap = new LinkedHashMap<String, Class>();
+        commandMap.put( "/mixer0", LayerState.class );
+        commandMap.put( "/mixer0/layer3", LayerState.class );
+        commandMap.put( "/mixer0/layer5/effect", Pixel.class );
+        queue = new ConcurrentLinkedQueue<Command>();
+        InetAddress loopback = InetAddress.getByName( "127.0.0.1" );
+        server = new OscServer( new InetSocketAddress( loopback, 0 ), queue,
+            new CommandParser( commandMap ) );
+        server.start();
+        serverAddress = new InetSocketAddress( loopback, server.getPort() );
+        sender = new DatagramSocket();
+    }
+
+    protected void tearDown() throws Exception
+    {
+        sender.close();
+        server.stop();
+    }
+
+    public void testFloatLevel() throws Exception
+    {
+        send( message( "/mixer0/layer3", 0.25f ) );
+        Command command = poll();
+        assertEquals( "/mixer0/layer3", command.getPath() );
+        assertEquals( 0.25f, ( (LayerState) command.getValue() ).getLevel(), 0.0f );
+    }
+
+    public void testLevelSuffix() throws Exception
+    {
+        send( message( "/mixer0/layer3/level", 0.75f ) );
+        Command command = poll();
+        assertEquals( "/mixer0/layer3", command.getPath() );
+        assertEquals( 0.75f, ( (LayerState) command.getValue() ).getLevel(), 0.0f );
+    }
+
+    public void testPixel() throws Exception
+    {
+        send( message( "/mixer0/layer5/effect", 1.0f, 0.5f, 0.0f ) );
+        Command command = poll();
+        assertEquals( "/mixer0/layer5/effect", command.getPath() );
+        Pixel pixel = (Pixel) command.getValue();
+        assertEquals( 1.0f, pixel.r, 0.0f );
+        assertEquals( 0.5f, pixel.g, 0.0f );
+        assertEquals( 0.0f, pixel.b, 0.0f );
+    }
+
+    public void testJsonString() throws Exception
+    {
+        send( message( "/mixer0", "{\"level\": 0.5}" ) );
+        Command command = poll();
+        assertEquals( "/mixer0", command.getPath() );
+        assertEquals( 0.5f, ( (LayerState) command.getValue() ).getLevel(), 0.0f );
+    }
+
+    public void testBundleBecomesOneBatch() throws Exception
+    {
+        send( bundle( message( "/mixer0/layer3/level", 0.1f ),
+                      message( "/mixer0/layer5/effect", 0.0f, 0.0f, 1.0f ) ) );
+        Command command = poll();
+        assertEquals( CommandParser.BATCH_ROUTE, command.getPath() );
+        List<Command> commands = ( (CommandBatch) command.getValue() ).getCommands();
+        assertEquals( 2, commands.size() );
+        assertEquals( "/mixer0/layer3", commands.get( 0 ).getPath() );
+        assertEquals( "/mixer0/layer5/effect", commands.get( 1 ).getPath() );
+    }
+
+    public void testUnmappedAddressIsCountedAndDropped() throws Exception
+    {
+        long before = unmapped();
+        send( message( "/mixer0/layer99/level", 0.5f ) );
+        // Then a good one, so we know the bad one has been processed.
+        send( message( "/mixer0", 1.0f ) );
+        Command command = poll();
+        assertEquals( "/mixer0", command.getPath() );
+        assertNull( queue.poll() );
+        assertEquals( before + 1, unmapped() );
+    }
+
+    public void testBundleWithABadMessageIsDropped() throws Exception
+    {
+        send( bundle( message( "/mixer0", 0.5f ),
+                      message( "/mixer0/layer5/effect", 0.5f ) ) );
+        send( message( "/mixer0/layer3", 1.0f ) );
+        Command command = poll();
+        assertEquals( "/mixer0/layer3", command.getPath() );
+        assertNull( queue.poll() );
+    }
+
+    public void testBundleWithABadMessageCountsEveryMessage() throws Exception
+    {
+        long before = unmapped();
+        send( bundle( message( "/mixer0", 0.5f ),
+                      bundle( message( "/mixer0/layer3", 0.5f ),
+                              message( "/mixer0/layer5/effect", 0.5f ) ) ) );
+        send( message( "/mixer0/layer3", 1.0f ) );
+        poll();
+        assertEquals( before + 3, unmapped() );
+    }
+
+    public void testUnexpectedDecoderErrorDoesNotStopTheServer() throws Exception
+    {
+        // Boon throws a plain JsonException on this, not a SoftenedException.
+        server.parser.setUseCodecs( false );
+        long before = malformed();
+        send( message( "/mixer0", "[" ) );
+        send( message( "/mixer0/layer3", 1.0f ) );
+        Command command = poll();
+        assertEquals( "/mixer0/layer3", command.getPath() );
+        assertNull( queue.poll() );
+        assertEquals( before + 1, malformed() );
+    }
+
+    public void testMessageWithoutTypeTags() throws Exception
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeString( out, "/mixer0" );
+        byte[] addressOnly = out.toByteArray();
+        OscReader reader = new OscReader( addressOnly, 0, addressOnly.length );
+        assertEquals( "/mixer0", reader.readString() );
+        assertTrue( reader.readArguments().isEmpty() );
+
+        writeInt( out, Float.floatToIntBits( 0.5f ) );
+        byte[] untagged = out.toByteArray();
+        reader = new OscReader( untagged, 0, untagged.length );
+        reader.readString();
+        try
+        {
+            reader.readArguments();
+            fail( "Read arguments without a type tag string." );
+        }
+        catch ( OscFormatException e )
+        {
+            assertEquals( "Missing type tag string at byte 8.", e.getMessage() );
+        }
+    }
+
+    private long unmapped()
+    {
+        return MetricsRegistry.getDefault().counter( "udder_osc_messages_total", "",
+            com.coillighting.udder.metrics.Metric.label( "result", "unmapped" ) ).get();
+    }
+
+    private long malformed()
+    {
+        return MetricsRegistry.getDefault().counter( "udder_osc_messages_total", "",
+            com.coillighting.udder.metrics.Metric.label( "result", "malformed" ) ).get();
+    }
+
+    private Command poll() throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while ( System.currentTimeMillis() < deadline )
+        {
+            Command command = queue.poll();
+            if ( command != null )
+            {
+                return command;
+            }
+            Thread.sleep( 1 );
+        }
+        fail( "No command arrived within " + TIMEOUT_MILLIS + " ms." );
+        return null;
+    }
+
+    private void send( byte[] packet ) throws Exception
+    {
+        sender.send( new DatagramPacket( packet, packet.length, serverAddress ) );
+    }
+
+    /** Encode an OSC message whose arguments are Floats or Strings. */
+    private static byte[] message( String address, Object... args ) throws Exception
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeString( out, address );
+        StringBuilder tags = new StringBuilder( "," );
+        for ( Object arg : args )
+        {
+            tags.append( arg instanceof String ? 's' : 'f' );
+        }
+        writeString( out, tags.toString() );
+        for ( Object arg : args )
+        {
+            if ( arg instanceof String )
+            {
+                writeString( out, (String) arg );
+            }
+            else
+            {
+                writeInt( out, Float.floatToIntBits( (Float) arg ) );
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] bundle( byte[]... elements ) throws Exception
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeString( out, "#bundle" );
+        writeInt( out, 0 );
+        writeInt( out, 1 ); // time tag "immediately"
+        for ( byte[] element : elements )
+        {
+            writeInt( out, element.length );
+            out.write( element );
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeString( ByteArrayOutputStream out, String s ) throws Exception
+    {
+        byte[] bytes = s.getBytes( "UTF-8" );
+        out.write( bytes );
+        for ( int i = bytes.length; i < ( bytes.length / 4 + 1 ) * 4; i++ )
+        {
+            out.write( 0 );
+        }
+    }
+
+    private static void writeInt( ByteArrayOutputStream out, int value )
+    {
+        out.write( value >>> 24 );
+        out.write( value >>> 16 );
+        out.write( value >>> 8 );
+        out.write( value );
+    }
+}
@@ -0,0 +1,197 @@
+package com.coillighting.udder.infrastructure;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import com.coillighting.udder.benchmark.RigGenerator;
+import com.coillighting.udder.effect.ArrayEffect;
+import com.coillighting.udder.mix.TimePoint;
+import com.coillighting.udder.model.Pixel;
+
+/**
+ * Feed raw pixel datagrams and HTTP bodies to a PixelIngestServer and check
+ * which frames reach its ArrayEffect.
+ */
+public class PixelIngestServerTest
+    extends TestCase
+{
+    private static final int DEVICES = 4;
+    private static final int FRAME_BYTES = 3 * DEVICES;
+
+    private ArrayEffect effect;
+    private PixelIngestServer server;
+    private long frameIndex = 0;
+
+    public PixelIngestServerTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( PixelIngestServerTest.class );
+    }
+
+    protected void setUp() throws Exception
+    {
+        effect = new ArrayEffect( null );
+        effect.patchDevices( new RigGenerator( RigGenerator.GRID, DEVICES, 1, 0L ).createDevices() );
+        Router router = new Router();
+        router.addRoute( "/ingest", effect );
+        server = new PixelIngestServer( router, Arrays.asList( "/ingest" ) );
+    }
+
+    public void testUnfragmentedFrame() throws Exception
+    {
+        assertTrue( server.receivePacket( datagram( 1, 0, 1, 0, frame( 10 ), 0, FRAME_BYTES ),
+            PixelIngestServer.HEADER_LENGTH + FRAME_BYTES ) );
+        assertShowing( 10 );
+    }
+
+    public void testOutOfOrderFragments() throws Exception
+    {
+        byte[] rgb = frame( 20 );
+        long submitted = server.framesSubmitted.get();
+        receiveFragment( 7, 2, 3, rgb );
+        receiveFragment( 7, 0, 3, rgb );
+        assertEquals( submitted, server.framesSubmitted.get() );
+        receiveFragment( 7, 1, 3, rgb );
+        assertEquals( submitted + 1, server.framesSubmitted.get() );
+        assertShowing( 20 );
+    }
+
+    public void testDuplicateFragments() throws Exception
+    {
+        byte[] rgb = frame( 30 );
+        long submitted = server.framesSubmitted.get();
+        receiveFragment( 8, 0, 3, rgb );
+        receiveFragment( 8, 0, 3, frame( 99 ) ); // the first copy wins
+        receiveFragment( 8, 2, 3, rgb );
+        receiveFragment( 8, 2, 3, rgb );
+        assertEquals( submitted, server.framesSubmitted.get() );
+        receiveFragment( 8, 1, 3, rgb );
+        assertEquals( submitted + 1, server.framesSubmitted.get() );
+        assertShowing( 30 );
+
+        // A fragment arriving after its frame completed is a stale duplicate.
+        receiveFragment( 8, 1, 3, frame( 99 ) );
+        assertEquals( submitted + 1, server.framesSubmitted.get() );
+        assertShowing( 30 );
+    }
+
+    public void testStaleFrameLosesToNewerCompleteFrame() throws Exception
+    {
+        long stale = server.framesStale.get();
+        long incomplete = server.framesIncomplete.get();
+
+        byte[] older = frame( 40 );
+        receiveFragment( 5, 0, 3, older );
+        receiveFragment( 5, 1, 3, older );
+        assertTrue( server.submit( 0, 6, frame( 50 ), 0, FRAME_BYTES ) );
+        assertEquals( incomplete + 1, server.framesIncomplete.get() );
+
+        // The rest of frame 5 arrives too late to be shown.
+        receiveFragment( 5, 2, 3, older );
+        assertShowing( 50 );
+        assertFalse( server.submit( 0, 4, frame( 60 ), 0, FRAME_BYTES ) );
+        assertFalse( server.submit( 0, 6, frame( 60 ), 0, FRAME_BYTES ) );
+        // Stale fragments count once per frame, at fragment 0.
+        assertEquals( stale + 2, server.framesStale.get() );
+        assertShowing( 50 );
+
+        // Unsequenced frames are always shown.
+        assertTrue( server.submit( 0, -1, frame( 70 ), 0, FRAME_BYTES ) );
+        assertShowing( 70 );
+    }
+
+    public void testReadsAFrameOfExactlyTheMaximumSize() throws Exception
+    {
+        byte[] body = new byte[PixelIngestServer.MAX_FRAME_BYTES];
+        body[body.length - 1] = 42;
+        assertEquals( body.length, HttpServiceContainer.readRawPixels( new ByteArrayInputStream( body ) ) );
+
+        try {
+            HttpServiceContainer.readRawPixels( new ByteArrayInputStream( new byte[body.length + 1] ) );
+            fail( "Accepted a frame of " + ( body.length + 1 ) + " bytes." );
+        } catch( IllegalArgumentException e ) {
+            assertEquals( "Raw pixel frame too large.", e.getMessage() );
+        }
+    }
+
+    public void testParseSequence() throws Exception
+    {
+        assertEquals( -1L, PixelIngestServer.parseSequence( null ) );
+        assertEquals( -1L, PixelIngestServer.parseSequence( "-1" ) );
+        assertEquals( -1L, PixelIngestServer.parseSequence( " -12 " ) );
+        assertEquals( 0L, PixelIngestServer.parseSequence( "0" ) );
+        assertEquals( 4294967295L, PixelIngestServer.parseSequence( "4294967295" ) );
+        for( String invalid: new String[] { "4294967296", "abc", "", "1.5" } ) {
+            try {
+                PixelIngestServer.parseSequence( invalid );
+                fail( "Accepted X-Udder-Sequence: " + invalid );
+            } catch( IllegalArgumentException e ) {
+                assertTrue( e.getMessage(), e.getMessage().contains( "X-Udder-Sequence" ) );
+            }
+        }
+    }
+
+    /** Return a frame whose every byte is value. */
+    private static byte[] frame( int value )
+    {
+        byte[] rgb = new byte[FRAME_BYTES];
+        Arrays.fill( rgb, (byte) value );
+        return rgb;
+    }
+
+    /** Send fragment index of count, an equal share of rgb. */
+    private void receiveFragment( int sequence, int index, int count, byte[] rgb )
+    {
+        int size = rgb.length / count;
+        int offset = index * size;
+        assertTrue( server.receivePacket( datagram( sequence, index, count, offset, rgb, offset, size ),
+            PixelIngestServer.HEADER_LENGTH + size ) );
+    }
+
+    private static byte[] datagram( int sequence, int index, int count, int offset,
+                                    byte[] rgb, int rgbOffset, int length )
+    {
+        byte[] packet = new byte[PixelIngestServer.HEADER_LENGTH + length];
+        packet[0] = 'U';
+        packet[1] = 'P';
+        packet[2] = PixelIngestServer.VERSION;
+        packet[3] = 0;
+        writeInt( packet, 4, sequence );
+        packet[8] = (byte) ( index >> 8 );
+        packet[9] = (byte) index;
+        packet[10] = (byte) ( count >> 8 );
+        packet[11] = (byte) count;
+        writeInt( packet, 12, offset );
+        System.arraycopy( rgb, rgbOffset, packet, PixelIngestServer.HEADER_LENGTH, length );
+        return packet;
+    }
+
+    private static void writeInt( byte[] b, int i, int value )
+    {
+        b[i] = (byte) ( value >> 24 );
+        b[i + 1] = (byte) ( value >> 16 );
+        b[i + 2] = (byte) ( value >> 8 );
+        b[i + 3] = (byte) value;
+    }
+
+    /** Render a frame and check that every device shows value. */
+    private void assertShowing( int value )
+    {
+        effect.animate( new TimePoint( frameIndex, frameIndex, frameIndex ) );
+        ++frameIndex;
+        float expected = value / 255.0f;
+        for( Pixel pixel: effect.render() ) {
+            assertEquals( expected, pixel.r, 0.0f );
+            assertEquals( expected, pixel.g, 0.0f );
+            assertEquals( expected, pixel.b, 0.0f );
+        }
+    }
+}
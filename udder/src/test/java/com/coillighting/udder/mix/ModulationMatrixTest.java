@@ -0,0 +1,201 @@
+package com.coillighting.udder.mix;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import com.coillighting.udder.effect.MonochromeEffect;
+import com.coillighting.udder.infrastructure.Router;
+import com.coillighting.udder.infrastructure.Stateful;
+import com.coillighting.udder.model.Pixel;
+
+/**
+ * Bind waves to a layer's level and to an effect parameter, and check what
+ * the matrix drives them to, and that a bad update changes nothing.
+ */
+public class ModulationMatrixTest
+    extends TestCase
+{
+    private Layer layer;
+    private Dial dial;
+    private ModulationMatrix matrix;
+
+    public ModulationMatrixTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( ModulationMatrixTest.class );
+    }
+
+    protected void setUp() throws Exception
+    {
+        layer = new Layer( "layer", new MonochromeEffect( Pixel.white() ) );
+        dial = new Dial();
+        Router router = new Router();
+        router.addRoute( "/layer", layer );
+        router.addRoute( "/dial", dial );
+        matrix = new ModulationMatrix( router );
+    }
+
+    public void testDrivesALevel() throws Exception
+    {
+        matrix.setState( bindings( new ModulationState( "/layer", null, "sawtooth", 1000, 0.5, 0.25 ) ) );
+        assertEquals( 1, matrix.size() );
+        matrix.animate( at( 0 ) );
+        assertEquals( 0.25, layer.getLevel(), 1e-9 );
+        matrix.animate( at( 500 ) );
+        assertEquals( 0.5, layer.getLevel(), 1e-9 );
+        matrix.animate( at( 1250 ) );
+        assertEquals( 0.375, layer.getLevel(), 1e-9 );
+    }
+
+    public void testDrivesAParameter() throws Exception
+    {
+        matrix.setState( bindings(
+            new ModulationState( "/dial", "b", "constant", 0, 2.0, 1.0 ),
+            new ModulationState( "/dial", "a", "square", 1000, 1.0, 0.0 ) ) );
+        matrix.animate( at( 750 ) );
+        assertEquals( 0, dial.parameter ); // bindings apply in order
+        assertEquals( 1.0, dial.values[0], 1e-9 );
+        assertEquals( 3.0, dial.values[1], 1e-9 );
+        matrix.animate( at( 1250 ) );
+        assertEquals( 0.0, dial.values[0], 1e-9 );
+    }
+
+    public void testEmptyListStopsAndNullKeeps() throws Exception
+    {
+        matrix.setState( bindings( new ModulationState( "/layer", "level", null, 1000, 1.0, 0.0 ) ) );
+        matrix.setState( new ModulationMatrixState( null ) );
+        assertEquals( 1, matrix.size() );
+        matrix.setState( bindings() );
+        assertEquals( 0, matrix.size() );
+    }
+
+    public void testBadBindingKeepsTheOldOnes() throws Exception
+    {
+        ModulationState good = new ModulationState( "/layer", "level", "triangle", 1000, 1.0, 0.0 );
+        matrix.setState( bindings( good ) );
+        ModulationState[] bad = {
+            new ModulationState( "/nowhere", "level", "triangle", 1000, 1.0, 0.0 ),
+            new ModulationState( null, "level", "triangle", 1000, 1.0, 0.0 ),
+            new ModulationState( "/dial", "c", "triangle", 1000, 1.0, 0.0 ),
+            new ModulationState( "/dial", "level", "triangle", 1000, 1.0, 0.0 ),
+            new ModulationState( "/layer", "a", "triangle", 1000, 1.0, 0.0 ),
+            new ModulationState( "/layer", "level", "wobble", 1000, 1.0, 0.0 ),
+            new ModulationState( "/layer", "level", "triangle", 0, 1.0, 0.0 ),
+            new ModulationState( "/layer", "level", null, -5, 1.0, 0.0 ),
+            null,
+        };
+        for( ModulationState state: bad ) {
+            try {
+                matrix.setState( bindings( new ModulationState( "/dial", "a", "constant", 0, 1.0, 0.0 ),
+                                           state ) );
+                fail( "Accepted " + state );
+            } catch( IllegalArgumentException e ) {
+                // expected
+            }
+            assertEquals( 1, matrix.size() );
+            ModulationState[] kept = ( (ModulationMatrixState) matrix.getState() ).getBindings();
+            assertSame( good, kept[0] );
+        }
+        dial.parameter = -1;
+        matrix.animate( at( 500 ) );
+        assertEquals( -1, dial.parameter );
+        assertEquals( 1.0, layer.getLevel(), 1e-9 );
+    }
+
+    public void testGetStateIsACopy() throws Exception
+    {
+        ModulationState[] states = { new ModulationState( "/layer", "level", null, 1000, 1.0, 0.0 ) };
+        matrix.setState( new ModulationMatrixState( states ) );
+        states[0] = null;
+        ModulationState[] got = ( (ModulationMatrixState) matrix.getState() ).getBindings();
+        assertNotNull( got[0] );
+        got[0] = null;
+        assertNotNull( ( (ModulationMatrixState) matrix.getState() ).getBindings()[0] );
+        assertEquals( ModulationMatrixState.class, matrix.getStateClass() );
+    }
+
+    public void testAnimateDoesNotAllocate() throws Exception
+    {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if( !( threads instanceof com.sun.management.ThreadMXBean ) ) {
+            return; // Not measurable on this JVM.
+        }
+        com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) threads;
+        if( !hotspot.isThreadAllocatedMemorySupported() || !hotspot.isThreadAllocatedMemoryEnabled() ) {
+            return;
+        }
+        matrix.setState( bindings(
+            new ModulationState( "/layer", "level", "sinusoidal", 8000, 0.5, 0.25 ),
+            new ModulationState( "/dial", "a", "sharkfin", 3000, 0.1, 0.0 ) ) );
+        TimePoint[] times = new TimePoint[1000];
+        for( int i = 0; i < times.length; i++ ) {
+            times[i] = at( 17 * i );
+        }
+        long thread = Thread.currentThread().getId();
+        for( int warmup = 0; warmup < 20; warmup++ ) {
+            for( TimePoint time: times ) {
+                matrix.animate( time );
+            }
+        }
+        long before = hotspot.getThreadAllocatedBytes( thread );
+        for( int round = 0; round < 100; round++ ) {
+            for( TimePoint time: times ) {
+                matrix.animate( time );
+            }
+        }
+        long allocated = hotspot.getThreadAllocatedBytes( thread ) - before;
+        // Boxing even one value per evaluation would take megabytes.
+        assertTrue( "Allocated " + allocated + " bytes", allocated < 4096 );
+    }
+
+    private static ModulationMatrixState bindings( ModulationState... states )
+    {
+        return new ModulationMatrixState( states );
+    }
+
+    private static TimePoint at( long sceneTimeMillis )
+    {
+        return new TimePoint( sceneTimeMillis, sceneTimeMillis, sceneTimeMillis / 17 );
+    }
+
+    /** A Modulatable with two parameters, remembering what it was sent. */
+    private static class Dial
+        implements Stateful, Modulatable
+    {
+        int parameter = -1;
+        double[] values = new double[2];
+
+        public Class<?> getStateClass()
+        {
+            return Object.class;
+        }
+
+        public Object getState()
+        {
+            return null;
+        }
+
+        public void setState( Object state )
+        {
+        }
+
+        public int getParameterIndex( String name )
+        {
+            return "a".equals( name ) ? 0 : "b".equals( name ) ? 1 : -1;
+        }
+
+        public void modulate( int parameter, double value )
+        {
+            this.parameter = parameter;
+            values[parameter] = value;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.coillighting.udder.model;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Check DeviceGeometry's per-device spacing on short strips, where some
+ * devices have fewer than four neighbors.
+ */
+public class DeviceGeometryTest
+    extends TestCase
+{
+    public DeviceGeometryTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( DeviceGeometryTest.class );
+    }
+
+    public void testNoNeighbors() throws Exception
+    {
+        assertSpacing( strip( 1 ), 0.0 );
+        assertEquals( 0, new DeviceGeometry( null ).getCount() );
+    }
+
+    public void testTwoDeviceStrip() throws Exception
+    {
+        assertSpacing( strip( 2 ), 0.5, 0.5 );
+    }
+
+    public void testThreeDeviceStrip() throws Exception
+    {
+        assertSpacing( strip( 3 ), 1.0, 0.5, 1.0 );
+    }
+
+    public void testFiveDeviceStrip() throws Exception
+    {
+        // Only the middle device has four neighbors, two on each side.
+        assertSpacing( strip( 5 ), 2.0, 1.5, 1.0, 1.5, 2.0 );
+    }
+
+    public void testIgnoresDoubledUpDevicesAndOtherGroups() throws Exception
+    {
+        Device[] devices = strip( 5 );
+        Device[] more = new Device[devices.length + 2];
+        System.arraycopy( devices, 0, more, 0, devices.length );
+        more[5] = new Device( 5, 0, 2.0, 0.0, 0.0 ); // on top of the middle device
+        more[6] = new Device( 6, 1, 2.5, 0.0, 0.0 ); // alone in another group
+        double[] spacing = new DeviceGeometry( more ).getSpacing();
+        assertEquals( 1.0, spacing[2], 0.0 );
+        assertEquals( 1.0, spacing[5], 0.0 );
+        assertEquals( 0.0, spacing[6], 0.0 );
+    }
+
+    /** Devices one unit apart along x, listed from right to left so that
+     *  the neighbor search has to sort them.
+     */
+    private static Device[] strip( int length )
+    {
+        Device[] devices = new Device[length];
+        for( int i = 0; i < length; i++ ) {
+            devices[i] = new Device( i, 0, length - 1 - i, 0.0, 0.0 );
+        }
+        return devices;
+    }
+
+    /** expected is in order of x. */
+    private static void assertSpacing( Device[] devices, double... expected )
+    {
+        double[] spacing = new DeviceGeometry( devices ).getSpacing();
+        assertEquals( expected.length, spacing.length );
+        for( int i = 0; i < devices.length; i++ ) {
+            int x = (int) devices[i].x;
+            assertEquals( "device at x=" + x, expected[x], spacing[i], 1e-12 );
+        }
+    }
+}